@@ -0,0 +1,303 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.ggtracker.uploader.Consts;
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadStatus;
+
+/**
+ * Common set-up and tear-down of the benchmarks and the checks.
+ * 
+ * <p>A harness must be created first thing in <code>main()</code>, before any uploader class is used: it points the user home
+ * to a temporary folder, so the settings, the logs, the upload checkpoint and the offline spool of the run never touch
+ * (and are never drained from) the ones of the user. The harness parses the <code>-name value</code> arguments, starts the
+ * {@link MockGgtrackerServer}, creates the temporary folders, and on {@link #finish(boolean)} deletes them and exits
+ * with the result.</p>
+ * 
+ * <p>Settings are set with {@link #set(String, Object)}, only in memory. The checks (focused behaviour checks of a component,
+ * see the <code>check</code> Ant target) report their expectations with {@link #check(boolean, String)}, and end with
+ * {@link #finishChecks()}.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class BenchHarness {
+	
+	/** The temporary user home.                                */
+	private final File                  userHome;
+	/** Values of the arguments mapped from their names.         */
+	private final Map< String, String > argumentMap = new HashMap< String, String >();
+	/** Temporary folders created by the harness.               */
+	private final List< File >          folderList  = new ArrayList< File >();
+	
+	/** The mock server; <code>null</code> if not started.        */
+	private MockGgtrackerServer server;
+	/** The mock client API; <code>null</code> if not started.    */
+	private MockClientApi       clientApi;
+	/** Number of failed checks.                                */
+	private int                 failedChecks;
+	
+	/**
+	 * Creates a new BenchHarness: isolates the user home and parses the arguments.
+	 * @param arguments arguments of the run, <code>-name value</code> pairs
+	 * @param names     names of the accepted arguments (without the leading dash)
+	 * @throws IOException if the temporary user home cannot be created
+	 * @throws IllegalArgumentException if an unknown argument is specified
+	 * @throws IllegalStateException if the uploader was initialized before the user home could be isolated
+	 */
+	public BenchHarness( final String[] arguments, final String... names ) throws IOException {
+		userHome = createTempFolder( "gguploader-home" );
+		System.setProperty( "user.home", userHome.getAbsolutePath() );
+		// The folder of the user content is fixed when Consts is initialized
+		if ( !userHome.equals( Consts.FOLDER_USER_CONTENT.getParentFile() ) ) {
+			deleteRecursively( userHome );
+			throw new IllegalStateException( "The uploader was initialized before the user home was isolated, refusing to run on "
+				+ Consts.FOLDER_USER_CONTENT );
+		}
+		
+		final List< String > nameList = Arrays.asList( names );
+		for ( int i = 0; i < arguments.length; i += 2 ) {
+			if ( !arguments[ i ].startsWith( "-" ) || !nameList.contains( arguments[ i ].substring( 1 ) ) || i + 1 == arguments.length )
+				throw new IllegalArgumentException( "Unknown argument: " + arguments[ i ] );
+			argumentMap.put( arguments[ i ].substring( 1 ), arguments[ i + 1 ] );
+		}
+	}
+	
+	/**
+	 * Returns the value of a string argument.
+	 * @param name         name of the argument
+	 * @param defaultValue value to return if the argument is not specified
+	 * @return the value of the argument
+	 */
+	public String getString( final String name, final String defaultValue ) {
+		final String value = argumentMap.get( name );
+		return value == null ? defaultValue : value;
+	}
+	
+	/**
+	 * Returns the value of an int argument.
+	 * @param name         name of the argument
+	 * @param defaultValue value to return if the argument is not specified
+	 * @return the value of the argument
+	 */
+	public int getInt( final String name, final int defaultValue ) {
+		final String value = argumentMap.get( name );
+		return value == null ? defaultValue : Integer.parseInt( value );
+	}
+	
+	/**
+	 * Returns the value of a long argument.
+	 * @param name         name of the argument
+	 * @param defaultValue value to return if the argument is not specified
+	 * @return the value of the argument
+	 */
+	public long getLong( final String name, final long defaultValue ) {
+		final String value = argumentMap.get( name );
+		return value == null ? defaultValue : Long.parseLong( value );
+	}
+	
+	/**
+	 * Returns the value of a double argument.
+	 * @param name         name of the argument
+	 * @param defaultValue value to return if the argument is not specified
+	 * @return the value of the argument
+	 */
+	public double getDouble( final String name, final double defaultValue ) {
+		final String value = argumentMap.get( name );
+		return value == null ? defaultValue : Double.parseDouble( value );
+	}
+	
+	/**
+	 * Sets a setting, only in memory.
+	 * @param key   key of the setting
+	 * @param value value of the setting
+	 */
+	public void set( final String key, final Object value ) {
+		Settings.set( key, value, false );
+	}
+	
+	/**
+	 * Starts the mock server, and points the uploads to it.
+	 * @return the started mock server
+	 * @throws IOException if the server cannot be started
+	 */
+	public MockGgtrackerServer startServer() throws IOException {
+		server = new MockGgtrackerServer();
+		server.start();
+		
+		set( Settings.KEY_UPLOAD_URL, server.getDropUrl() );
+		
+		return server;
+	}
+	
+	/**
+	 * Starts the mock SC2 client API, and points the game monitor to it. The simulated client starts in the menus.
+	 * @return the started mock client API
+	 * @throws IOException if the server cannot be started
+	 */
+	public MockClientApi startClientApi() throws IOException {
+		clientApi = new MockClientApi();
+		clientApi.start();
+		
+		set( Settings.KEY_GAME_CLIENT_API_URL, clientApi.getUrl() );
+		
+		return clientApi;
+	}
+	
+	/**
+	 * Creates a temporary folder which is deleted on {@link #finish(boolean)}.
+	 * @return the created temporary folder
+	 * @throws IOException if the folder cannot be created
+	 */
+	public File createFolder() throws IOException {
+		final File folder = createTempFolder( "gguploader-bench" );
+		folderList.add( folder );
+		return folder;
+	}
+	
+	/**
+	 * Deletes the temporary folders and the temporary user home, stops the mock servers, and exits.
+	 * @param ok tells if the run succeeded; the exit code is <code>0</code> if it did, <code>1</code> otherwise
+	 */
+	public void finish( final boolean ok ) {
+		if ( server != null )
+			server.stop();
+		if ( clientApi != null )
+			clientApi.stop();
+		for ( final File folder : folderList )
+			deleteRecursively( folder );
+		deleteRecursively( userHome );
+		
+		System.exit( ok ? 0 : 1 );
+	}
+	
+	/**
+	 * Reports the result of a check.
+	 * @param passed      tells if the check passed
+	 * @param description description of the expectation
+	 * @return <code>passed</code>
+	 */
+	public boolean check( final boolean passed, final String description ) {
+		System.out.println( ( passed ? "  ok    " : "  FAILED " ) + description );
+		if ( !passed )
+			failedChecks++;
+		return passed;
+	}
+	
+	/**
+	 * Prints the number of failed checks, and {@link #finish(boolean) finishes} with success if all checks passed.
+	 */
+	public void finishChecks() {
+		System.out.println( failedChecks == 0 ? "All checks passed." : failedChecks + " check(s) failed!" );
+		finish( failedChecks == 0 );
+	}
+	
+	/**
+	 * Writes replays of random content into a folder.
+	 * @param folder folder to write the replays into
+	 * @param prefix prefix of the file names of the replays, they are numbered from <code>0</code>
+	 * @param count  number of replays to write
+	 * @param size   size of the replays
+	 * @param seed   seed of the random content
+	 * @return the written replays
+	 * @throws IOException if a replay cannot be written
+	 */
+	public static List< File > writeReplays( final File folder, final String prefix, final int count, final int size, final long seed ) throws IOException {
+		final Random       random   = new Random( seed );
+		final byte[]       content  = new byte[ size ];
+		final List< File > fileList = new ArrayList< File >( count );
+		for ( int i = 0; i < count; i++ ) {
+			random.nextBytes( content );
+			final File file = new File( folder, prefix + i + ".SC2Replay" );
+			writeFile( file, content );
+			fileList.add( file );
+		}
+		
+		return fileList;
+	}
+	
+	/**
+	 * Waits until the specified number of replays are done (uploaded or failed).
+	 * @param status    status of the pipeline
+	 * @param count     number of replays to wait for
+	 * @param timeoutMs max time to wait in milliseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void awaitDone( final UploadStatus status, final int count, final long timeoutMs ) throws InterruptedException {
+		final long deadline = System.nanoTime() + timeoutMs * 1000000;
+		while ( status.getUploadedCount() + status.getFailedCount() < count && System.nanoTime() < deadline )
+			Thread.sleep( 10 );
+	}
+	
+	/**
+	 * Returns the specified percentile of sorted values using the nearest-rank method.
+	 * @param sortedValues sorted values
+	 * @param percentile   percentile to return, in the range of <code>0..100</code>
+	 * @return the specified percentile; <code>0</code> if there are no values
+	 */
+	public static long percentile( final long[] sortedValues, final double percentile ) {
+		if ( sortedValues.length == 0 )
+			return 0;
+		
+		final int rank = (int) Math.ceil( percentile / 100 * sortedValues.length );
+		return sortedValues[ Math.max( 0, Math.min( sortedValues.length, rank ) - 1 ) ];
+	}
+	
+	/**
+	 * Creates a new temporary folder.
+	 * @param prefix prefix of the name of the folder
+	 * @return the created temporary folder
+	 * @throws IOException if the folder cannot be created
+	 */
+	public static File createTempFolder( final String prefix ) throws IOException {
+		final File folder = File.createTempFile( prefix, "" ).getAbsoluteFile();
+		if ( !folder.delete() || !folder.mkdirs() )
+			throw new IOException( "Failed to create temp folder: " + folder );
+		return folder;
+	}
+	
+	/**
+	 * Writes the content into the specified file.
+	 * @param file    file to write
+	 * @param content content to be written
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void writeFile( final File file, final byte[] content ) throws IOException {
+		final FileOutputStream output = new FileOutputStream( file );
+		try {
+			output.write( content );
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Deletes the specified file or folder recursively.
+	 * @param file file or folder to be deleted
+	 */
+	public static void deleteRecursively( final File file ) {
+		final File[] files = file.listFiles();
+		if ( files != null )
+			for ( final File child : files )
+				deleteRecursively( child );
+		file.delete();
+	}
+
+}
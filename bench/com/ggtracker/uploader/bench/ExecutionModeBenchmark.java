@@ -0,0 +1,160 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadPipeline;
+import com.ggtracker.uploader.UploadStatus;
+import com.ggtracker.uploader.VirtualThreads;
+
+/**
+ * Compares the execution modes of the {@link UploadPipeline} (see {@link Settings#KEY_PIPELINE_EXECUTION_MODE}).
+ * 
+ * <p>Starts a {@link MockGgtrackerServer} with a high latency, then enqueues a large batch of replays into a fresh pipeline
+ * in each mode, allowing the same number of concurrent uploads (the send threads, and the task threads in the platform mode).
+ * Reports the elapsed time, replays/sec, the enqueue-to-URL latency percentiles and the peak number of platform threads
+ * running the uploads (virtual threads are not counted, they are not bound to platform threads while waiting).</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>ExecutionModeBenchmark [-count N] [-size bytes] [-latency ms] [-concurrency N] [-settle ms] [-modes stages,platform,virtual]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class ExecutionModeBenchmark {
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "count", "size", "latency", "concurrency", "settle", "modes" );
+		
+		final int      count       = harness.getInt( "count", 1000 );
+		final int      size        = harness.getInt( "size", 16*1024 );
+		final long     latency     = harness.getLong( "latency", 200 );
+		final int      concurrency = harness.getInt( "concurrency", 64 );
+		final long     settle      = harness.getLong( "settle", 0 );
+		final String[] modes       = harness.getString( "modes", UploadPipeline.MODE_STAGES + "," + UploadPipeline.MODE_PLATFORM + "," + UploadPipeline.MODE_VIRTUAL )
+			.split( "," );
+		
+		final MockGgtrackerServer server = harness.startServer();
+		server.setLatencyMs( latency );
+		
+		harness.set( Settings.KEY_PIPELINE_SETTLE_TIME    , settle                                      );
+		harness.set( Settings.KEY_PIPELINE_PREPARE_THREADS, Runtime.getRuntime().availableProcessors() );
+		harness.set( Settings.KEY_PIPELINE_SEND_THREADS   , concurrency                                 );
+		harness.set( Settings.KEY_PIPELINE_TASK_THREADS   , concurrency                                 );
+		harness.set( Settings.KEY_PIPELINE_QUEUE_CAPACITY , concurrency                                 );
+		harness.set( Settings.KEY_TRACE_JOURNAL           , false                                       );
+		
+		System.out.println( "Uploading " + count + " replays of " + size + " bytes, server latency: " + latency + " ms, concurrency: " + concurrency
+			+ ", settle time: " + settle + " ms, virtual threads " + ( VirtualThreads.isSupported() ? "available" : "not available" ) );
+		
+		boolean allUploaded = true;
+		for ( int run = 0; run < modes.length; run++ )
+			allUploaded &= runMode( harness, server, modes[ run ], run, count, size );
+		
+		harness.finish( allUploaded );
+	}
+	
+	/**
+	 * Uploads a batch of replays in the specified execution mode and prints the results.
+	 * @param harness the harness of the benchmark
+	 * @param server  the mock server
+	 * @param mode    execution mode to use
+	 * @param run     number of the run, used to make the replays of the runs different
+	 * @param count   number of replays to upload
+	 * @param size    size of the replays
+	 * @return true if all replays were uploaded; false otherwise
+	 * @throws Exception if the run cannot be set up
+	 */
+	private static boolean runMode( final BenchHarness harness, final MockGgtrackerServer server, final String mode, final int run, final int count,
+			final int size ) throws Exception {
+		final List< File > fileList = BenchHarness.writeReplays( harness.createFolder(), "Run " + run + " replay ", count, size, run );
+		
+		harness.set( Settings.KEY_PIPELINE_EXECUTION_MODE, mode );
+		final UploadPipeline pipeline = new UploadPipeline();
+		pipeline.start();
+		
+		final ThreadSampler sampler = new ThreadSampler();
+		sampler.start();
+		
+		final long start = System.nanoTime();
+		pipeline.enqueue( fileList );
+		
+		final UploadStatus status = pipeline.getStatus();
+		BenchHarness.awaitDone( status, count, 60000 + count * 100l );
+		final long end = System.nanoTime();
+		
+		sampler.interrupt();
+		sampler.join();
+		pipeline.shutdown();
+		
+		final long[] latencies = new long[ count ];
+		int completed = 0;
+		for ( final File file : fileList ) {
+			final Long completionNanos = server.getCompletionNanos( file.getName() );
+			if ( completionNanos != null )
+				latencies[ completed++ ] = completionNanos - start;
+		}
+		final long[] sortedLatencies = Arrays.copyOf( latencies, completed );
+		Arrays.sort( sortedLatencies );
+		
+		final double seconds = ( end - start ) / 1e9;
+		System.out.printf( "%-8s (%-8s): uploaded %d / %d in %.3f s, %.1f replays/sec, latency (ms) p50=%.1f p99=%.1f, peak upload platform threads: %d%n",
+			mode, pipeline.getExecutionMode(), status.getUploadedCount(), count, seconds, status.getUploadedCount() / seconds,
+			BenchHarness.percentile( sortedLatencies, 50 ) / 1e6, BenchHarness.percentile( sortedLatencies, 99 ) / 1e6,
+			sampler.peakThreads );
+		
+		return status.getUploadedCount() == count;
+	}
+	
+	/**
+	 * Thread sampling the number of live platform threads of the pipeline.
+	 */
+	private static class ThreadSampler extends Thread {
+		
+		/** Peak number of live platform threads of the pipeline. */
+		private volatile int peakThreads;
+		
+		/**
+		 * Creates a new ThreadSampler.
+		 */
+		public ThreadSampler() {
+			super( "Thread sampler" );
+			setDaemon( true );
+		}
+		
+		@Override
+		public void run() {
+			while ( !isInterrupted() ) {
+				int threads = 0;
+				for ( final Thread thread : Thread.getAllStackTraces().keySet() )
+					if ( thread.getName().startsWith( "Upload " ) )
+						threads++;
+				if ( threads > peakThreads )
+					peakThreads = threads;
+				
+				try {
+					Thread.sleep( 5 );
+				} catch ( final InterruptedException ie ) {
+					return;
+				}
+			}
+		}
+	
+	}
+
+}
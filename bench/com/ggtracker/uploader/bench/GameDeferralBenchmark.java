@@ -0,0 +1,135 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ggtracker.uploader.GameMonitor;
+import com.ggtracker.uploader.ProcessTable;
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadPipeline;
+import com.ggtracker.uploader.UploadStatus;
+
+/**
+ * Measures how uploading between games ({@link GameMonitor}) keeps the uploads out of the way of a game.
+ * 
+ * <p>Starts a {@link MockGgtrackerServer}, and simulates a game with a {@link ProcessTable.Fake fake process table}
+ * listing the SC2 client, a {@link MockClientApi} reporting the game, and a game loop which renders a frame every 16 ms. A batch of replays is enqueued
+ * when the game starts, once with the {@link GameMonitor#TIMING_IMMEDIATELY immediately} and once with the
+ * {@link GameMonitor#TIMING_BETWEEN_GAMES between games} upload timing. Reports the replays uploaded and the bytes
+ * received by the server during the game, the lateness of the frames of the game loop, and the time to upload
+ * the replays after the game ended.</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>GameDeferralBenchmark [-count N] [-size bytes] [-game ms] [-poll ms] [-concurrency N]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class GameDeferralBenchmark {
+	
+	/** Time of a frame of the simulated game loop in milliseconds. */
+	private static final long FRAME_MS = 16;
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "count", "size", "game", "poll", "concurrency" );
+		
+		final int  count       = harness.getInt( "count", 100 );
+		final int  size        = harness.getInt( "size", 1024*1024 );
+		final long game        = harness.getLong( "game", 3000 );
+		final long poll        = harness.getLong( "poll", 250 );
+		final int  concurrency = harness.getInt( "concurrency", 4 );
+		
+		final MockGgtrackerServer server    = harness.startServer();
+		final MockClientApi       clientApi = harness.startClientApi();
+		
+		harness.set( Settings.KEY_PIPELINE_SETTLE_TIME    , 0           );
+		harness.set( Settings.KEY_PIPELINE_PREPARE_THREADS, concurrency );
+		harness.set( Settings.KEY_PIPELINE_SEND_THREADS   , concurrency );
+		harness.set( Settings.KEY_GAME_POLL_INTERVAL      , poll        );
+		harness.set( Settings.KEY_TRACE_JOURNAL           , false       );
+		
+		System.out.println( "Uploading " + count + " replays of " + size + " bytes enqueued at the start of a " + game + " ms game, poll interval: "
+			+ poll + " ms, concurrency: " + concurrency );
+		
+		boolean allUploaded = runGame( harness, server, clientApi, GameMonitor.TIMING_IMMEDIATELY  , 0, count, size, game );
+		allUploaded        &= runGame( harness, server, clientApi, GameMonitor.TIMING_BETWEEN_GAMES, 1, count, size, game );
+		
+		harness.finish( allUploaded );
+	}
+	
+	/**
+	 * Plays a game while uploading a batch of replays with the specified upload timing, and prints the results.
+	 * @param harness   the harness of the benchmark
+	 * @param server    the mock server
+	 * @param clientApi the mock client API
+	 * @param timing    the upload timing
+	 * @param run       number of the run, used to make the replays of the runs different
+	 * @param count     number of replays to upload
+	 * @param size      size of the replays
+	 * @param game      duration of the game in milliseconds
+	 * @return true if all replays were uploaded; false otherwise
+	 * @throws Exception if the run cannot be set up
+	 */
+	private static boolean runGame( final BenchHarness harness, final MockGgtrackerServer server, final MockClientApi clientApi, final String timing,
+			final int run, final int count, final int size, final long game ) throws Exception {
+		final List< File > fileList = BenchHarness.writeReplays( harness.createFolder(), "Run " + run + " replay ", count, size, run );
+		
+		harness.set( Settings.KEY_UPLOAD_TIMING, timing );
+		final ProcessTable.Fake processTable = new ProcessTable.Fake();
+		processTable.setRunning( "explorer.exe", "SC2_x64.exe" );
+		clientApi.setInGame( true );
+		
+		final UploadPipeline pipeline = new UploadPipeline( processTable );
+		pipeline.start();
+		
+		final long         bytesBefore = server.getBytesReceived();
+		final UploadStatus status      = pipeline.getStatus();
+		final long[]       lateness    = new long[ (int) Math.max( 1, game / FRAME_MS ) ];
+		
+		final long start = System.nanoTime();
+		pipeline.enqueue( fileList );
+		
+		// The game loop: a frame is due every FRAME_MS, its lateness is how much later it starts
+		long frameDue = start;
+		for ( int frame = 0; frame < lateness.length; frame++ ) {
+			frameDue += FRAME_MS * 1000000;
+			final long sleepNanos = frameDue - System.nanoTime();
+			if ( sleepNanos > 0 )
+				Thread.sleep( sleepNanos / 1000000, (int) ( sleepNanos % 1000000 ) );
+			lateness[ frame ] = Math.max( 0, System.nanoTime() - frameDue );
+		}
+		
+		final long uploadedInGame = status.getUploadedCount();
+		final long bytesInGame    = server.getBytesReceived() - bytesBefore;
+		clientApi.setInGame( false );
+		final long gameEnd = System.nanoTime();
+		
+		BenchHarness.awaitDone( status, count, 60000 + count * 100l );
+		final long end = System.nanoTime();
+		
+		pipeline.shutdown();
+		
+		Arrays.sort( lateness );
+		System.out.printf( "%-12s: during the game uploaded %d / %d, server received %.1f MB, frame lateness p50 %.2f ms, p99 %.2f ms, max %.2f ms; "
+			+ "after the game done %d / %d in %.3f s%n", timing, uploadedInGame, count, bytesInGame / ( 1024.0 * 1024 ),
+			BenchHarness.percentile( lateness, 50 ) / 1e6, BenchHarness.percentile( lateness, 99 ) / 1e6,
+			lateness[ lateness.length - 1 ] / 1e6, status.getUploadedCount(), count, ( end - gameEnd ) / 1e9 );
+		
+		return status.getUploadedCount() == count;
+	}
+
+}
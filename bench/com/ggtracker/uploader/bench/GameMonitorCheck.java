@@ -0,0 +1,185 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.net.ServerSocket;
+
+import com.ggtracker.uploader.GameMonitor;
+import com.ggtracker.uploader.ProcessTable;
+import com.ggtracker.uploader.Settings;
+
+/**
+ * Checks the deferral of the uploads by the {@link GameMonitor}: no deferral when the client API of SC2 is disabled or does not answer,
+ * deferral while the {@link MockClientApi} reports a game, and the ends of the deferral: back in the menus, the client exited,
+ * the upload timing changed, and the max deferral reached.
+ * 
+ * <p>The SC2 client is simulated with a {@link ProcessTable.Fake fake process table}, uploads waiting for the game to end
+ * are simulated with threads calling {@link GameMonitor#awaitNoGame()}.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class GameMonitorCheck {
+	
+	/** Game poll interval in milliseconds.                      */
+	private static final long POLL_MS = 100;
+	/** Time to wait before ending a deferral, in milliseconds. */
+	private static final long WAIT_MS = 500;
+	
+	/**
+	 * An upload waiting for the game to end.
+	 */
+	private static class Waiter extends Thread {
+		/** The game monitor to wait on.                  */
+		final GameMonitor gameMonitor;
+		/** Tells if had to wait, set when done.          */
+		volatile boolean  waited;
+		/** Nano time when the wait ended, set when done. */
+		volatile long     endNanos;
+		
+		/**
+		 * Creates and starts a new Waiter.
+		 * @param gameMonitor the game monitor to wait on
+		 */
+		Waiter( final GameMonitor gameMonitor ) {
+			this.gameMonitor = gameMonitor;
+			setDaemon( true );
+			start();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				waited   = gameMonitor.awaitNoGame();
+				endNanos = System.nanoTime();
+			} catch ( final InterruptedException ie ) {
+				// Never interrupted, the thread is daemon
+			}
+		}
+	}
+	
+	/**
+	 * Entry point of the check.
+	 * @param arguments not used
+	 * @throws Exception if the check cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments );
+		
+		harness.set( Settings.KEY_UPLOAD_TIMING     , GameMonitor.TIMING_BETWEEN_GAMES );
+		harness.set( Settings.KEY_GAME_POLL_INTERVAL, POLL_MS                          );
+		
+		final ProcessTable.Fake processTable = new ProcessTable.Fake();
+		processTable.setRunning( "explorer.exe", "SC2_x64.exe" );
+		
+		System.out.println( "Client API disabled:" );
+		harness.set( Settings.KEY_GAME_CLIENT_API_URL, "" );
+		checkNoDeferral( harness, processTable );
+		
+		System.out.println( "Client API not answering:" );
+		final ServerSocket closedSocket = new ServerSocket( 0 );
+		closedSocket.close();
+		harness.set( Settings.KEY_GAME_CLIENT_API_URL, "http://127.0.0.1:" + closedSocket.getLocalPort() + MockClientApi.PATH_UI );
+		checkNoDeferral( harness, processTable );
+		
+		final MockClientApi clientApi = harness.startClientApi();
+		
+		System.out.println( "Back in the menus:" );
+		clientApi.setInGame( true );
+		GameMonitor gameMonitor = startMonitor( processTable );
+		harness.check( gameMonitor.isGameRunning() && gameMonitor.isDeferring(), "a game reported by the client API defers the uploads" );
+		Waiter waiter = new Waiter( gameMonitor );
+		Thread.sleep( WAIT_MS );
+		harness.check( waiter.isAlive(), "uploads wait while the game is being played" );
+		long endNanos = System.nanoTime();
+		clientApi.setInGame( false );
+		checkDeferralEnded( harness, waiter, endNanos, "returning to the menus" );
+		gameMonitor.shutdown();
+		
+		System.out.println( "Client exited:" );
+		clientApi.setInGame( true );
+		gameMonitor = startMonitor( processTable );
+		waiter      = new Waiter( gameMonitor );
+		Thread.sleep( WAIT_MS );
+		endNanos = System.nanoTime();
+		processTable.setRunning( "explorer.exe" );
+		checkDeferralEnded( harness, waiter, endNanos, "exiting the client" );
+		harness.check( !gameMonitor.isClientRunning(), "the client is no longer running" );
+		gameMonitor.shutdown();
+		processTable.setRunning( "explorer.exe", "SC2_x64.exe" );
+		
+		System.out.println( "Upload timing changed:" );
+		gameMonitor = startMonitor( processTable );
+		waiter      = new Waiter( gameMonitor );
+		Thread.sleep( WAIT_MS );
+		endNanos = System.nanoTime();
+		harness.set( Settings.KEY_UPLOAD_TIMING, GameMonitor.TIMING_IMMEDIATELY );
+		checkDeferralEnded( harness, waiter, endNanos, "switching to uploading immediately" );
+		gameMonitor.shutdown();
+		harness.set( Settings.KEY_UPLOAD_TIMING, GameMonitor.TIMING_BETWEEN_GAMES );
+		
+		System.out.println( "Max deferral:" );
+		harness.set( Settings.KEY_GAME_MAX_DEFERRAL, WAIT_MS );
+		final long gameStartNanos = System.nanoTime();
+		gameMonitor = startMonitor( processTable );
+		waiter      = new Waiter( gameMonitor );
+		waiter.join( 10 * WAIT_MS );
+		final long deferredMs = ( waiter.endNanos - gameStartNanos ) / 1000000;
+		harness.check( !waiter.isAlive() && waiter.waited && deferredMs >= WAIT_MS - 50 && deferredMs <= WAIT_MS + 200,
+			"uploads stop waiting when the max deferral is reached (" + ( waiter.isAlive() ? "still waiting" : "waited " + deferredMs + " ms" ) + ")" );
+		harness.check( gameMonitor.isGameRunning() && !gameMonitor.isDeferring(), "uploads are not deferred while the game goes on" );
+		harness.check( !gameMonitor.awaitNoGame(), "later uploads do not wait either" );
+		gameMonitor.shutdown();
+		
+		harness.finishChecks();
+	}
+	
+	/**
+	 * Checks that uploads are not deferred while the SC2 client is running but the client API cannot tell if a game is being played.
+	 * @param harness      the harness of the check
+	 * @param processTable the process table listing the SC2 client
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkNoDeferral( final BenchHarness harness, final ProcessTable processTable ) throws InterruptedException {
+		final GameMonitor gameMonitor = startMonitor( processTable );
+		harness.check( gameMonitor.isClientRunning(), "the running client is detected" );
+		harness.check( !gameMonitor.isGameRunning(), "no game is assumed" );
+		final long start = System.nanoTime();
+		harness.check( !gameMonitor.awaitNoGame() && System.nanoTime() - start < WAIT_MS * 1000000, "uploads do not wait" );
+		gameMonitor.shutdown();
+	}
+	
+	/**
+	 * Checks that a waiting upload stops waiting soon after the game ended.
+	 * @param harness  the harness of the check
+	 * @param waiter   the waiting upload
+	 * @param endNanos nano time when the game ended
+	 * @param how      how the game ended
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void checkDeferralEnded( final BenchHarness harness, final Waiter waiter, final long endNanos, final String how )
+			throws InterruptedException {
+		waiter.join( 10 * WAIT_MS );
+		final long waitedMs = ( waiter.endNanos - endNanos ) / 1000000;
+		harness.check( !waiter.isAlive() && waiter.waited && waitedMs <= 2 * POLL_MS + 200, "uploads stop waiting after "
+			+ how + " (" + ( waiter.isAlive() ? "still waiting" : waitedMs + " ms later" ) + ")" );
+	}
+	
+	/**
+	 * Creates and starts a game monitor.
+	 * @param processTable the process table to look for the SC2 client in
+	 * @return the started game monitor
+	 */
+	private static GameMonitor startMonitor( final ProcessTable processTable ) {
+		final GameMonitor gameMonitor = new GameMonitor( processTable );
+		gameMonitor.start();
+		return gameMonitor;
+	}
+
+}
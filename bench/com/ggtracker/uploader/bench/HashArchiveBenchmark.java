@@ -0,0 +1,129 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.ggtracker.uploader.LocalHash;
+import com.ggtracker.uploader.ReplaySource;
+
+/**
+ * Compares the MD5 to the {@link LocalHash local fingerprints} over a large archive of replays.
+ * 
+ * <p>Generates an archive of replays of random sizes (a given fraction of them are copies of other replays),
+ * or takes an existing replay folder. The archive is read once to warm up the page cache, then each hash is calculated
+ * over every replay (opening it as a {@link ReplaySource} included) a few times. Reports the best time, the throughput
+ * and the number of distinct values of each hash; a fingerprint with fewer distinct values than the MD5 has collided.</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>HashArchiveBenchmark [-count N] [-size average-bytes] [-duplicates fraction] [-runs N] [-folder replay-folder]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class HashArchiveBenchmark {
+	
+	/** Name of the MD5 in the results. */
+	private static final String NAME_MD5 = "md5";
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "count", "size", "duplicates", "runs", "folder" );
+		
+		final int    count      = harness.getInt( "count", 2000 );
+		final int    size       = harness.getInt( "size", 100*1024 );
+		final double duplicates = harness.getDouble( "duplicates", 0.1 );
+		final int    runs       = harness.getInt( "runs", 3 );
+		File         folder     = harness.getString( "folder", null ) == null ? null : new File( harness.getString( "folder", null ) );
+		
+		final boolean      generated = folder == null;
+		final List< File > fileList  = new ArrayList< File >();
+		if ( generated ) {
+			folder = harness.createFolder();
+			final Random         random      = new Random( 0 );
+			final List< byte[] > contentList = new ArrayList< byte[] >( count );
+			for ( int i = 0; i < count; i++ ) {
+				final byte[] content;
+				if ( i > 0 && random.nextDouble() < duplicates )
+					content = contentList.get( random.nextInt( contentList.size() ) );
+				else {
+					// Sizes are spread evenly between half and one and a half of the average
+					content = new byte[ size / 2 + random.nextInt( size + 1 ) ];
+					random.nextBytes( content );
+					contentList.add( content );
+				}
+				final File file = new File( folder, "Archive replay " + i + ".SC2Replay" );
+				BenchHarness.writeFile( file, content );
+				fileList.add( file );
+			}
+		}
+		else
+			collectReplays( folder, fileList );
+		
+		long totalBytes = 0;
+		for ( final File file : fileList )
+			totalBytes += ReplaySource.open( file ).getLength();
+		
+		System.out.printf( "Hashing %d replays, %.1f MB in total (%s), best of %d runs%n", fileList.size(), totalBytes / ( 1024.0 * 1024 ),
+			generated ? Math.round( duplicates * 100 ) + "% duplicates" : folder.getPath(), runs );
+		
+		final String[] names = { NAME_MD5, LocalHash.NAME_CRC32C, LocalHash.NAME_CRC32, LocalHash.NAME_XXH64 };
+		double md5Seconds = 0;
+		for ( final String name : names ) {
+			final LocalHash localHash = NAME_MD5.equals( name ) ? null : LocalHash.forName( name );
+			
+			long                bestNanos = Long.MAX_VALUE;
+			final Set< Object > valueSet  = new HashSet< Object >();
+			for ( int run = 0; run < runs; run++ ) {
+				valueSet.clear();
+				final long start = System.nanoTime();
+				for ( final File file : fileList ) {
+					final ReplaySource source = ReplaySource.open( file );
+					valueSet.add( localHash == null ? source.calculateMd5() : (Object) localHash.fingerprint( source.getData() ) );
+				}
+				bestNanos = Math.min( bestNanos, System.nanoTime() - start );
+			}
+			
+			final double seconds = bestNanos / 1e9;
+			if ( localHash == null )
+				md5Seconds = seconds;
+			System.out.printf( "%-6s (%-6s): %.3f s, %7.1f MB/s, %.1fx the speed of MD5, distinct values: %d%n", name,
+				localHash == null ? NAME_MD5 : localHash.getName(), seconds, totalBytes / ( 1024.0 * 1024 ) / seconds, md5Seconds / seconds, valueSet.size() );
+		}
+		
+		harness.finish( true );
+	}
+	
+	/**
+	 * Collects the replays of a folder recursively.
+	 * @param folder   folder to collect the replays of
+	 * @param fileList list to add the replays to
+	 */
+	private static void collectReplays( final File folder, final List< File > fileList ) {
+		final File[] files = folder.listFiles();
+		if ( files == null )
+			return;
+		
+		for ( final File file : files )
+			if ( file.isDirectory() )
+				collectReplays( file, fileList );
+			else if ( file.getName().toLowerCase().endsWith( ".sc2replay" ) )
+				fileList.add( file );
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import com.ggtracker.uploader.UploadHistory;
+
+/**
+ * Benchmark of the {@link UploadHistory}: appending, loading and querying a large history.
+ * 
+ * <p>Fills a history in a temporary folder with synthetic records spanning a year (every 10th failed, every 20th replay
+ * uploaded twice), then measures the load time, the heap used by the loaded index and the time of the typical queries.</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>HistoryBenchmark [-records N] [-runs N]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class HistoryBenchmark {
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "records", "runs" );
+		
+		final int records = harness.getInt( "records", 500000 );
+		final int runs    = harness.getInt( "runs", 5 );
+		
+		// Fill the history
+		final File folder = harness.createFolder();
+		final long now   = System.currentTimeMillis();
+		final long start = now - 365L*24*60*60*1000;
+		UploadHistory history = new UploadHistory( folder, Integer.MAX_VALUE );
+		history.load();
+		long nanos = System.nanoTime();
+		for ( int i = 0; i < records; i++ )
+			history.append( createEntry( i % 20 == 19 ? i - 1 : i, start + ( now - start ) * i / records ) );
+		nanos = System.nanoTime() - nanos;
+		while ( history.isCompacting() )
+			Thread.sleep( 10 );
+		history.close();
+		System.out.println( String.format( Locale.US, "Appended %d records in %.1f ms (%.1f us/record), %d records after compaction, %.1f MB on disk.",
+			records, nanos / 1e6, nanos / 1e3 / records, history.size(), folderSize( folder ) / ( 1024.0 * 1024 ) ) );
+		
+		// Load
+		final long[] loadNanos = new long[ runs ];
+		long heapBytes = 0;
+		for ( int run = 0; run < runs; run++ ) {
+			history = null;
+			System.gc();
+			final long heapBefore = usedHeap();
+			loadNanos[ run ] = System.nanoTime();
+			history = new UploadHistory( folder, Integer.MAX_VALUE );
+			history.load();
+			loadNanos[ run ] = System.nanoTime() - loadNanos[ run ];
+			System.gc();
+			heapBytes = usedHeap() - heapBefore;
+		}
+		final long firstLoadNanos = loadNanos[ 0 ];
+		Arrays.sort( loadNanos );
+		System.out.println( String.format( Locale.US, "Load of %d records: first %.1f ms, median %.1f ms, min %.1f ms, index heap %.1f MB", history.size(),
+			firstLoadNanos / 1e6, loadNanos[ runs / 2 ] / 1e6, loadNanos[ 0 ] / 1e6, heapBytes / ( 1024.0 * 1024 ) ) );
+		
+		// Queries
+		final int probe = records / 2 + 1;
+		final String probePath = createEntry( probe, 0 ).getPath();
+		final String probeMd5  = createEntry( probe, 0 ).getMd5();
+		System.out.println( String.format( Locale.US, "%-30s %8s %12s", "query", "results", "median us" ) );
+		for ( int round = 0; round < 2; round++ ) { // First round warms up
+			measure( "isUploaded(path)"            , history, probePath, probeMd5, 0, runs * 20, round == 1 );
+			measure( "findByMd5"                   , history, probePath, probeMd5, 1, runs * 20, round == 1 );
+			measure( "findSince(24 h, 1000)"       , history, probePath, probeMd5, 2, runs, round == 1 );
+			measure( "findFailures(1000)"          , history, probePath, probeMd5, 3, runs, round == 1 );
+			measure( "search(no match, full scan)" , history, probePath, probeMd5, 4, runs, round == 1 );
+		}
+		history.close();
+		
+		harness.finish( true );
+	}
+	
+	/**
+	 * Measures a query.
+	 * @param name      name of the query
+	 * @param history   history to query
+	 * @param probePath path to look up
+	 * @param probeMd5  MD5 to look up
+	 * @param query     query to measure
+	 * @param runs      number of runs
+	 * @param print     tells if the result is to be printed
+	 */
+	private static void measure( final String name, final UploadHistory history, final String probePath, final String probeMd5, final int query, final int runs, final boolean print ) {
+		final long[] nanos = new long[ runs ];
+		int results = 0;
+		for ( int run = 0; run < runs; run++ ) {
+			nanos[ run ] = System.nanoTime();
+			switch ( query ) {
+			case 0  : results = history.isUploaded( new File( probePath ) ) ? 1 : 0; break;
+			case 1  : results = history.findByMd5( probeMd5 ).size(); break;
+			case 2  : results = history.findSince( System.currentTimeMillis() - 24*60*60*1000L, 1000 ).size(); break;
+			case 3  : results = history.findFailures( 1000 ).size(); break;
+			default : results = history.query( Long.MIN_VALUE, false, "no such replay", 1000 ).size(); break;
+			}
+			nanos[ run ] = System.nanoTime() - nanos[ run ];
+		}
+		Arrays.sort( nanos );
+		if ( print )
+			System.out.println( String.format( Locale.US, "%-30s %8d %12.1f", name, results, nanos[ runs / 2 ] / 1e3 ) );
+	}
+	
+	/**
+	 * Creates a synthetic record.
+	 * @param replay number of the replay
+	 * @param time   time of the record
+	 * @return the synthetic record
+	 */
+	private static UploadHistory.Entry createEntry( final int replay, final long time ) {
+		final Random random = new Random( replay );
+		final String md5 = String.format( "%016x%016x", random.nextLong(), random.nextLong() );
+		final String path = "/home/player/Documents/StarCraft II/Accounts/1234567/1-S2-1-7654321/Replays/Multiplayer/Replay " + replay + ".SC2Replay";
+		if ( replay % 10 == 9 )
+			return new UploadHistory.Entry( time, UploadHistory.OUTCOME_FAILED, 80000 + random.nextInt( 100000 ), md5, path, null );
+		return new UploadHistory.Entry( time, UploadHistory.OUTCOME_UPLOADED, 80000 + random.nextInt( 100000 ), md5, path, "http://ggtracker.com/matches/" + replay );
+	}
+	
+	/**
+	 * Returns the used heap.
+	 * @return the used heap
+	 */
+	private static long usedHeap() {
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+	
+	/**
+	 * Returns the total size of the files in a folder.
+	 * @param folder folder to be measured
+	 * @return the total size of the files in the folder
+	 */
+	private static long folderSize( final File folder ) {
+		long size = 0;
+		for ( final File file : folder.listFiles() )
+			size += file.length();
+		return size;
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import com.ggtracker.uploader.GameMonitor;
+import com.ggtracker.uploader.Metrics;
+import com.ggtracker.uploader.ProcessTable;
+import com.ggtracker.uploader.ReplayFolderMonitor;
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadPipeline;
+import com.ggtracker.uploader.UploadStatus;
+
+/**
+ * Measures the wakeups of the {@link ReplayFolderMonitor} polling an idle replay folder, and the detection delay of a replay
+ * saved after the idle period.
+ * 
+ * <p>Starts a {@link MockGgtrackerServer} and monitors an empty replay folder for the idle period, then saves a replay into it.
+ * Reports the number of folder scans during the idle period (per minute) and the time until the replay is uploaded. Runs with:
+ * <ul>
+ * 	<li>a fixed interval: the min and max intervals are both the fixed interval (the old behaviour),
+ * 	<li>the adaptive interval, no SC2 client running,
+ * 	<li>the adaptive interval, an SC2 client running (simulated with a {@link ProcessTable.Fake fake process table}).
+ * </ul></p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>IdlePollingBenchmark [-idle ms] [-fixed ms] [-min ms] [-max ms]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class IdlePollingBenchmark {
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "idle", "fixed", "min", "max" );
+		
+		final long idle  = harness.getLong( "idle", 30000 );
+		final long fixed = harness.getLong( "fixed", 3000 );
+		final long min   = harness.getLong( "min", 1000 );
+		final long max   = harness.getLong( "max", 60000 );
+		
+		final MockGgtrackerServer server = harness.startServer();
+		
+		harness.set( Settings.KEY_PIPELINE_SETTLE_TIME, 0                              );
+		harness.set( Settings.KEY_UPLOAD_TIMING       , GameMonitor.TIMING_IMMEDIATELY );
+		harness.set( Settings.KEY_GAME_POLL_INTERVAL  , Math.min( min, 2000 )          );
+		harness.set( Settings.KEY_GAME_CLIENT_API_URL , ""                             );
+		harness.set( Settings.KEY_TRACE_JOURNAL       , false                          );
+		
+		System.out.println( "Idle period: " + idle + " ms, fixed interval: " + fixed + " ms, adaptive interval: " + min + " - " + max + " ms" );
+		
+		boolean allUploaded = runIdle( harness, "fixed"           , fixed, fixed, false, idle );
+		allUploaded        &= runIdle( harness, "adaptive"        , min  , max  , false, idle );
+		allUploaded        &= runIdle( harness, "adaptive, SC2 on", min  , max  , true , idle );
+		
+		harness.finish( allUploaded );
+	}
+	
+	/**
+	 * Monitors an idle replay folder, then saves a replay into it, and prints the results.
+	 * @param harness       the harness of the benchmark
+	 * @param name          name of the run
+	 * @param min           min polling interval
+	 * @param max           max polling interval
+	 * @param clientRunning tells if an SC2 client is running
+	 * @param idle          duration of the idle period
+	 * @return true if the replay was uploaded; false otherwise
+	 * @throws Exception if the run cannot be set up
+	 */
+	private static boolean runIdle( final BenchHarness harness, final String name, final long min, final long max, final boolean clientRunning,
+			final long idle ) throws Exception {
+		final File folder = harness.createFolder();
+		harness.set( Settings.KEY_REPLAY_FOLDER            , folder.getAbsolutePath() );
+		harness.set( Settings.KEY_MONITOR_POLL_MIN_INTERVAL, min                      );
+		harness.set( Settings.KEY_MONITOR_POLL_MAX_INTERVAL, max                      );
+		
+		final ProcessTable.Fake processTable = new ProcessTable.Fake();
+		if ( clientRunning )
+			processTable.setRunning( "SC2_x64.exe" );
+		
+		final UploadPipeline pipeline = new UploadPipeline( processTable );
+		pipeline.start();
+		final ReplayFolderMonitor monitor = new ReplayFolderMonitor( pipeline );
+		monitor.start();
+		
+		final long scansBefore = Metrics.FOLDER_SCANS.get();
+		Thread.sleep( idle );
+		final long scans = Metrics.FOLDER_SCANS.get() - scansBefore;
+		
+		final byte[] content = new byte[ 16*1024 ];
+		new Random( name.hashCode() ).nextBytes( content );
+		final long saved = System.nanoTime();
+		BenchHarness.writeFile( new File( folder, "Idle replay.SC2Replay" ), content );
+		
+		final UploadStatus status   = pipeline.getStatus();
+		final long         deadline = saved + ( max + 60000 ) * 1000000;
+		while ( status.getUploadedCount() + status.getFailedCount() < 1 && System.nanoTime() < deadline )
+			Thread.sleep( 1 );
+		final long uploaded = System.nanoTime();
+		
+		monitor.shutdown();
+		pipeline.shutdown();
+		
+		System.out.printf( "%-16s: %d scans while idle (%.1f per minute), replay uploaded %.3f s after saving it%n", name, scans, scans * 60000.0 / idle,
+			( uploaded - saved ) / 1e9 );
+		
+		return status.getUploadedCount() == 1;
+	}
+
+}
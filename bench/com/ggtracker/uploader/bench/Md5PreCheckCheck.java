@@ -0,0 +1,168 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ggtracker.uploader.Md5PreCheck;
+import com.ggtracker.uploader.Metrics;
+import com.ggtracker.uploader.Settings;
+
+/**
+ * Checks the {@link Md5PreCheck}: batching the MD5s of concurrent lookups, the answers for known and unknown replays,
+ * the caching of the answers, and the handling of malformed answers, reported errors, HTTP errors and an unreachable server.
+ * 
+ * <p>The lookups are done against a {@link MockGgtrackerServer} whose pre-check answers are scripted for the error cases.
+ * Every case asks about different MD5s, so answers cached in a previous case do not hide the requests.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class Md5PreCheckCheck {
+	
+	/** Auth token of the lookups.                                 */
+	private static final String AUTH_TOKEN = "check-token";
+	/** Simulated server latency in milliseconds.                  */
+	private static final long   LATENCY_MS = 300;
+	/** Number of lookups joining the batch of an in-flight check. */
+	private static final int    WAITING    = 150;
+	
+	/** Counter of the generated MD5s. */
+	private static int md5Counter;
+	
+	/**
+	 * Entry point of the check.
+	 * @param arguments not used
+	 * @throws Exception if the check cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness        harness = new BenchHarness( arguments );
+		final MockGgtrackerServer server  = harness.startServer();
+		
+		harness.set( Settings.KEY_MD5_CHECK        , true  );
+		harness.set( Settings.KEY_MD5_CHECK_TTL    , 60000 );
+		harness.set( Settings.KEY_HTTP_READ_TIMEOUT, 5000  );
+		
+		final Md5PreCheck preCheck = Md5PreCheck.get();
+		
+		System.out.println( "Known and unknown replays:" );
+		final String known   = nextMd5();
+		final String unknown = nextMd5();
+		server.addKnownReplay( known );
+		String replayUrl = preCheck.lookup( known, AUTH_TOKEN );
+		harness.check( replayUrl != null && replayUrl.endsWith( known ), "a known replay is answered with its replay URL (" + replayUrl + ")" );
+		harness.check( preCheck.lookup( unknown, AUTH_TOKEN ) == null, "an unknown replay is answered with null" );
+		int requests = server.getCheckRequestCount();
+		preCheck.lookup( known, AUTH_TOKEN );
+		preCheck.lookup( unknown, AUTH_TOKEN );
+		harness.check( server.getCheckRequestCount() == requests, "both answers are cached" );
+		
+		System.out.println( "Batching:" );
+		server.setLatencyMs( LATENCY_MS );
+		requests = server.getCheckRequestCount();
+		final int    md5sBefore = server.getCheckedMd5Count();
+		final String knownBatched = nextMd5();
+		server.addKnownReplay( knownBatched );
+		final AtomicInteger knownCount  = new AtomicInteger();
+		final List< Thread > threadList = new ArrayList< Thread >();
+		threadList.add( startLookup( preCheck, knownBatched, knownCount ) );
+		// The first lookup is sent alone right away, the rest wait for it and are sent in batches of MAX_BATCH_SIZE
+		Thread.sleep( LATENCY_MS / 3 );
+		for ( int i = 0; i < WAITING; i++ )
+			threadList.add( startLookup( preCheck, nextMd5(), knownCount ) );
+		for ( final Thread thread : threadList )
+			thread.join();
+		final int batchRequests = server.getCheckRequestCount() - requests;
+		final int expected      = 1 + ( WAITING + Md5PreCheck.MAX_BATCH_SIZE - 1 ) / Md5PreCheck.MAX_BATCH_SIZE;
+		harness.check( batchRequests == expected, "a lone lookup is sent alone, the waiting ones are batched (" + batchRequests + " requests for "
+			+ ( WAITING + 1 ) + " lookups, expected " + expected + ")" );
+		harness.check( server.getCheckedMd5Count() - md5sBefore == WAITING + 1, "every MD5 is asked about once ("
+			+ ( server.getCheckedMd5Count() - md5sBefore ) + " asked)" );
+		harness.check( knownCount.get() == 1, "the batched lookups get their own answers (" + knownCount.get() + " known)" );
+		server.setLatencyMs( 0 );
+		
+		System.out.println( "Errors:" );
+		checkError( harness, server, preCheck, 200, "<md5CheckResult><errorCode>0</errorCode><replay>", "a malformed answer" );
+		checkError( harness, server, preCheck, 200, "<md5CheckResult docVersion=\"1.0\"><errorCode>5</errorCode></md5CheckResult>", "a reported error" );
+		checkError( harness, server, preCheck, 200, "<md5CheckResult docVersion=\"1.0\"></md5CheckResult>", "an answer without an error code" );
+		checkError( harness, server, preCheck, 500, "", "an HTTP 500" );
+		server.setCheckResponse( 200, null );
+		server.setDown( true );
+		final long errorsBefore = Metrics.MD5_CHECKS.get( "error" );
+		harness.check( preCheck.lookup( nextMd5(), AUTH_TOKEN ) == null, "an unreachable server is answered with null" );
+		harness.check( Metrics.MD5_CHECKS.get( "error" ) == errorsBefore + 1, "an unreachable server is counted as an error" );
+		server.setDown( false );
+		final String knownAfter = nextMd5();
+		server.addKnownReplay( knownAfter );
+		harness.check( preCheck.lookup( knownAfter, AUTH_TOKEN ) != null, "the check works again after the errors" );
+		
+		System.out.println( "Unsupported server:" );
+		server.setCheckResponse( 404, "" );
+		harness.check( preCheck.lookup( nextMd5(), AUTH_TOKEN ) == null, "an HTTP 404 is answered with null" );
+		requests = server.getCheckRequestCount();
+		server.setCheckResponse( 200, null );
+		final String knownUnsupported = nextMd5();
+		server.addKnownReplay( knownUnsupported );
+		harness.check( preCheck.lookup( knownUnsupported, AUTH_TOKEN ) == null && server.getCheckRequestCount() == requests,
+			"the check is disabled after an HTTP 404, no more requests are sent" );
+		
+		harness.finishChecks();
+	}
+	
+	/**
+	 * Scripts an erroneous answer, and checks that a lookup fails gracefully and its answer is not cached.
+	 * @param harness     the harness of the check
+	 * @param server      the mock server
+	 * @param preCheck    the pre-check to look up with
+	 * @param status      HTTP status to answer with
+	 * @param body        body to answer with
+	 * @param description description of the answer
+	 */
+	private static void checkError( final BenchHarness harness, final MockGgtrackerServer server, final Md5PreCheck preCheck, final int status,
+			final String body, final String description ) {
+		server.setCheckResponse( status, body );
+		final String md5          = nextMd5();
+		final long   errorsBefore = Metrics.MD5_CHECKS.get( "error" );
+		final int    requests     = server.getCheckRequestCount();
+		harness.check( preCheck.lookup( md5, AUTH_TOKEN ) == null, description + " is answered with null" );
+		harness.check( Metrics.MD5_CHECKS.get( "error" ) == errorsBefore + 1, description + " is counted as an error" );
+		preCheck.lookup( md5, AUTH_TOKEN );
+		harness.check( server.getCheckRequestCount() == requests + 2, description + " is not cached" );
+	}
+	
+	/**
+	 * Starts a thread looking up an MD5.
+	 * @param preCheck   the pre-check to look up with
+	 * @param md5        MD5 to look up
+	 * @param knownCount counter of the known answers
+	 * @return the started thread
+	 */
+	private static Thread startLookup( final Md5PreCheck preCheck, final String md5, final AtomicInteger knownCount ) {
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				if ( preCheck.lookup( md5, AUTH_TOKEN ) != null )
+					knownCount.incrementAndGet();
+			}
+		};
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * Returns a new, unique MD5.
+	 * @return a new, unique MD5
+	 */
+	private static synchronized String nextMd5() {
+		return String.format( "%032x", ++md5Counter );
+	}
+
+}
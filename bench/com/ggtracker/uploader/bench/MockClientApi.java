@@ -0,0 +1,94 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded stand-in for the UI state endpoint of the SC2 client API.
+ * 
+ * <p>Tells the {@link com.ggtracker.uploader.GameMonitor} whether the simulated client is in a game or in the menus,
+ * it can be pointed at it through the {@link com.ggtracker.uploader.Settings#KEY_GAME_CLIENT_API_URL} setting.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class MockClientApi {
+	
+	/** Path of the UI state endpoint. */
+	public static final String PATH_UI = "/ui";
+	
+	/** The underlying HTTP server. */
+	private final HttpServer server;
+	
+	/** Tells if the simulated client is in a game. */
+	private volatile boolean inGame;
+	
+	/**
+	 * Creates a new MockClientApi listening on an ephemeral port of the loopback interface.
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public MockClientApi() throws IOException {
+		server = HttpServer.create( new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), 0 ), 10 );
+		server.createContext( PATH_UI, new HttpHandler() {
+			@Override
+			public void handle( final HttpExchange exchange ) throws IOException {
+				try {
+					// The list of the active screens is empty during a game
+					final byte[] response = ( inGame ? "{\"activeScreens\":[]}" : "{\"activeScreens\":[\"ScreenHome/ScreenHome\"]}" ).getBytes( "UTF-8" );
+					exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+					exchange.sendResponseHeaders( 200, response.length );
+					final OutputStream output = exchange.getResponseBody();
+					output.write( response );
+					output.flush();
+				} finally {
+					exchange.close();
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * Starts serving requests.
+	 */
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop( 0 );
+	}
+	
+	/**
+	 * Returns the URL of the UI state endpoint.
+	 * @return the URL of the UI state endpoint
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + PATH_UI;
+	}
+	
+	/**
+	 * Sets whether the simulated client is in a game or in the menus.
+	 * @param inGame true if the client is in a game; false if it is in the menus
+	 */
+	public void setInGame( final boolean inGame ) {
+		this.inGame = inGame;
+	}
+
+}
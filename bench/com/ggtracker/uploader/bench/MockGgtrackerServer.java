@@ -0,0 +1,493 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.ggtracker.uploader.Utils;
+
+/**
+ * An embedded stand-in for the ggtracker.com replay drop endpoint.
+ * 
+ * <p>Speaks the same <code>uploadResult</code> XML protocol as the real server, so the uploader can be pointed at it
+ * through the {@link com.ggtracker.uploader.Settings#KEY_UPLOAD_URL} setting. Server latency, inbound bandwidth
+ * and error rates can be configured to simulate slow or flaky servers, and the server can be taken down and brought back up
+ * to simulate outages.</p>
+ * 
+ * <p>Also serves the MD5 pre-check endpoint ({@link com.ggtracker.uploader.Md5PreCheck}): replays accepted by the server
+ * and the ones added with {@link #addKnownReplay(String)} are reported as known.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class MockGgtrackerServer {
+	
+	/** Path of the replay drop endpoint.    */
+	public static final String PATH_DROP  = "/replays/drop";
+	/** Path of the MD5 pre-check endpoint.  */
+	public static final String PATH_CHECK = "/replays/check";
+	
+	/** Error code reported if the upload is rejected by the simulated error rate. */
+	public static final int ERROR_CODE_REJECTED     = 1;
+	/** Error code reported if the sent MD5 does not match the sent content.       */
+	public static final int ERROR_CODE_MD5_MISMATCH = 2;
+	/** Error code reported if a mandatory parameter is missing.                   */
+	public static final int ERROR_CODE_BAD_REQUEST  = 3;
+	
+	/** The underlying HTTP server, re-created when brought back up. */
+	private volatile HttpServer   server;
+	/** Port the server is listening on.      */
+	private final int             port;
+	/** Executor serving the HTTP exchanges. */
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	/** Random used to roll the error rates.  */
+	private final Random          random   = new Random();
+	
+	/** Simulated server processing time in milliseconds.                          */
+	private volatile long    latencyMs;
+	/** Simulated inbound bandwidth in bytes/sec, <code>0</code> means unlimited.  */
+	private volatile long    bandwidth;
+	/** Probability of answering with an HTTP 500.                                 */
+	private volatile double  httpErrorRate;
+	/** Probability of answering with a non-zero <code>errorCode</code>.           */
+	private volatile double  uploadErrorRate;
+	/** Tells if the sent MD5 has to be verified against the sent content.         */
+	private volatile boolean verifyMd5 = true;
+	/** HTTP status of the scripted pre-check answers.                             */
+	private volatile int     checkStatus;
+	/** Body of the scripted pre-check answers, <code>null</code> to answer normally. */
+	private volatile String  checkBody;
+	
+	/** Number of accepted uploads.          */
+	private final AtomicInteger uploadCount       = new AtomicInteger();
+	/** Number of rejected uploads.          */
+	private final AtomicInteger failedCount       = new AtomicInteger();
+	/** Number of request body bytes read.   */
+	private final AtomicLong    bytesReceived     = new AtomicLong();
+	/** Number of MD5 pre-check requests.    */
+	private final AtomicInteger checkRequestCount = new AtomicInteger();
+	/** Number of MD5s asked about.          */
+	private final AtomicInteger checkedMd5Count   = new AtomicInteger();
+	
+	/** Replay URLs of the known replays, mapped from their MD5. */
+	private final Map< String, String > knownMd5UrlMap = new ConcurrentHashMap< String, String >();
+	
+	/** Nano time of the successful response, mapped from the uploaded file name. */
+	private final Map< String, Long > completionNanosMap = new ConcurrentHashMap< String, Long >();
+	
+	/**
+	 * Creates a new MockGgtrackerServer listening on an ephemeral port of the loopback interface.
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public MockGgtrackerServer() throws IOException {
+		this( 0 );
+	}
+	
+	/**
+	 * Creates a new MockGgtrackerServer listening on the loopback interface.
+	 * @param port port to listen on, <code>0</code> to choose an ephemeral port
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	public MockGgtrackerServer( final int port ) throws IOException {
+		server    = createServer( port );
+		this.port = server.getAddress().getPort();
+	}
+	
+	/**
+	 * Creates the underlying HTTP server.
+	 * @param port port to listen on, <code>0</code> to choose an ephemeral port
+	 * @return the created HTTP server
+	 * @throws IOException if the server socket cannot be bound
+	 */
+	private HttpServer createServer( final int port ) throws IOException {
+		final HttpServer server = HttpServer.create( new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), port ), 50 );
+		server.setExecutor( executor );
+		server.createContext( PATH_DROP, new HttpHandler() {
+			@Override
+			public void handle( final HttpExchange exchange ) throws IOException {
+				handleDrop( exchange );
+			}
+		} );
+		server.createContext( PATH_CHECK, new HttpHandler() {
+			@Override
+			public void handle( final HttpExchange exchange ) throws IOException {
+				handleCheck( exchange );
+			}
+		} );
+		return server;
+	}
+	
+	/**
+	 * Starts serving requests.
+	 */
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop( 0 );
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Simulates an outage: takes the server down so connections are refused, or brings it back up on the same port.
+	 * @param down true to take the server down; false to bring it back up
+	 * @throws IOException if the server socket cannot be bound again
+	 */
+	public synchronized void setDown( final boolean down ) throws IOException {
+		if ( down )
+			server.stop( 0 );
+		else {
+			server = createServer( port );
+			server.start();
+		}
+	}
+	
+	/**
+	 * Returns the port the server is listening on.
+	 * @return the port the server is listening on
+	 */
+	public int getPort() {
+		return port;
+	}
+	
+	/**
+	 * Returns the URL of the replay drop endpoint.
+	 * @return the URL of the replay drop endpoint
+	 */
+	public String getDropUrl() {
+		return "http://127.0.0.1:" + getPort() + PATH_DROP;
+	}
+	
+	/**
+	 * Sets the simulated server processing time.
+	 * @param latencyMs server processing time in milliseconds
+	 */
+	public void setLatencyMs( final long latencyMs ) {
+		this.latencyMs = latencyMs;
+	}
+	
+	/**
+	 * Sets the simulated inbound bandwidth.
+	 * @param bandwidth inbound bandwidth in bytes/sec, <code>0</code> means unlimited
+	 */
+	public void setBandwidth( final long bandwidth ) {
+		this.bandwidth = bandwidth;
+	}
+	
+	/**
+	 * Sets the probability of answering with an HTTP 500.
+	 * @param httpErrorRate probability in the range of <code>0..1</code>
+	 */
+	public void setHttpErrorRate( final double httpErrorRate ) {
+		this.httpErrorRate = httpErrorRate;
+	}
+	
+	/**
+	 * Sets the probability of answering with a non-zero <code>errorCode</code>.
+	 * @param uploadErrorRate probability in the range of <code>0..1</code>
+	 */
+	public void setUploadErrorRate( final double uploadErrorRate ) {
+		this.uploadErrorRate = uploadErrorRate;
+	}
+	
+	/**
+	 * Sets whether the sent MD5 has to be verified against the sent content.
+	 * @param verifyMd5 true to verify the MD5 of the uploads
+	 */
+	public void setVerifyMd5( final boolean verifyMd5 ) {
+		this.verifyMd5 = verifyMd5;
+	}
+	
+	/**
+	 * Scripts the answer of the MD5 pre-check requests, to simulate malformed answers and errors.
+	 * @param status HTTP status to answer with
+	 * @param body   body to answer with; <code>null</code> to answer normally
+	 */
+	public void setCheckResponse( final int status, final String body ) {
+		checkStatus = status;
+		checkBody   = body;
+	}
+	
+	/**
+	 * Returns the number of accepted uploads.
+	 * @return the number of accepted uploads
+	 */
+	public int getUploadCount() {
+		return uploadCount.get();
+	}
+	
+	/**
+	 * Returns the number of rejected uploads.
+	 * @return the number of rejected uploads
+	 */
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+	
+	/**
+	 * Returns the number of request body bytes read.
+	 * @return the number of request body bytes read
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+	
+	/**
+	 * Adds a replay to the known ones, as if it was uploaded by someone else.
+	 * @param md5 MD5 of the replay
+	 */
+	public void addKnownReplay( final String md5 ) {
+		knownMd5UrlMap.put( md5, "http://127.0.0.1:" + getPort() + "/replays/known-" + md5 );
+	}
+	
+	/**
+	 * Returns the number of MD5 pre-check requests.
+	 * @return the number of MD5 pre-check requests
+	 */
+	public int getCheckRequestCount() {
+		return checkRequestCount.get();
+	}
+	
+	/**
+	 * Returns the number of MD5s asked about in pre-check requests.
+	 * @return the number of MD5s asked about in pre-check requests
+	 */
+	public int getCheckedMd5Count() {
+		return checkedMd5Count.get();
+	}
+	
+	/**
+	 * Returns the nano time when the replay URL of the specified file was sent back.
+	 * @param fileName name of the uploaded file
+	 * @return the nano time of the successful response; <code>null</code> if the file was not (yet) accepted
+	 */
+	public Long getCompletionNanos( final String fileName ) {
+		return completionNanosMap.get( fileName );
+	}
+	
+	/**
+	 * Handles a replay drop request.
+	 * @param exchange the HTTP exchange
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void handleDrop( final HttpExchange exchange ) throws IOException {
+		try {
+			if ( !"POST".equals( exchange.getRequestMethod() ) ) {
+				exchange.sendResponseHeaders( 405, -1 );
+				return;
+			}
+			
+			final Map< String, String > paramsMap = parseForm( readBody( exchange.getRequestBody() ) );
+			
+			if ( latencyMs > 0 )
+				try { Thread.sleep( latencyMs ); } catch ( final InterruptedException ie ) {}
+			
+			if ( random.nextDouble() < httpErrorRate ) {
+				failedCount.incrementAndGet();
+				exchange.sendResponseHeaders( 500, -1 );
+				return;
+			}
+			
+			final String fileName    = paramsMap.get( "fileName"    );
+			final String fileMd5     = paramsMap.get( "fileMd5"     );
+			final String fileContent = paramsMap.get( "fileContent" );
+			if ( fileName == null || fileMd5 == null || fileContent == null ) {
+				failedCount.incrementAndGet();
+				sendResult( exchange, ERROR_CODE_BAD_REQUEST, "Missing parameter.", null );
+				return;
+			}
+			if ( verifyMd5 ) {
+				final byte[] content = Base64.getDecoder().decode( fileContent );
+				if ( !fileMd5.equals( md5Hex( content ) ) ) {
+					failedCount.incrementAndGet();
+					sendResult( exchange, ERROR_CODE_MD5_MISMATCH, "MD5 mismatch.", null );
+					return;
+				}
+			}
+			if ( random.nextDouble() < uploadErrorRate ) {
+				failedCount.incrementAndGet();
+				sendResult( exchange, ERROR_CODE_REJECTED, "Simulated failure.", null );
+				return;
+			}
+			
+			final int    id        = uploadCount.incrementAndGet();
+			final String replayUrl = "http://127.0.0.1:" + getPort() + "/replays/" + id;
+			knownMd5UrlMap.put( fileMd5, replayUrl );
+			sendResult( exchange, 0, "Upload OK.", replayUrl );
+			completionNanosMap.put( fileName, System.nanoTime() );
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Handles an MD5 pre-check request.
+	 * @param exchange the HTTP exchange
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void handleCheck( final HttpExchange exchange ) throws IOException {
+		try {
+			if ( !"POST".equals( exchange.getRequestMethod() ) ) {
+				exchange.sendResponseHeaders( 405, -1 );
+				return;
+			}
+			
+			final Map< String, String > paramsMap = parseForm( readBody( exchange.getRequestBody() ) );
+			
+			if ( latencyMs > 0 )
+				try { Thread.sleep( latencyMs ); } catch ( final InterruptedException ie ) {}
+			
+			checkRequestCount.incrementAndGet();
+			final String body = checkBody;
+			if ( body != null ) {
+				if ( checkStatus == 200 )
+					sendXml( exchange, body );
+				else
+					exchange.sendResponseHeaders( checkStatus, -1 );
+				return;
+			}
+			
+			final StringBuilder xmlBuilder = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<md5CheckResult docVersion=\"1.0\">\n" );
+			xmlBuilder.append( "    <errorCode>0</errorCode>\n" );
+			final String fileMd5s = paramsMap.get( "fileMd5s" );
+			if ( fileMd5s != null )
+				for ( final String md5 : fileMd5s.split( "," ) ) {
+					checkedMd5Count.incrementAndGet();
+					final String replayUrl = knownMd5UrlMap.get( md5 );
+					if ( replayUrl != null )
+						xmlBuilder.append( "    <replay><fileMd5>" ).append( md5 ).append( "</fileMd5><replayUrl>" ).append( replayUrl ).append( "</replayUrl></replay>\n" );
+				}
+			xmlBuilder.append( "</md5CheckResult>\n" );
+			
+			sendXml( exchange, xmlBuilder.toString() );
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Reads the request body, throttled to the configured bandwidth.
+	 * @param input request body stream
+	 * @return the request body as a string
+	 * @throws IOException if an I/O error occurs
+	 */
+	private String readBody( final InputStream input ) throws IOException {
+		final long start = System.nanoTime();
+		final StringBuilder bodyBuilder = new StringBuilder();
+		final byte[] buffer = new byte[ 8*1024 ];
+		
+		long total = 0;
+		int bytesRead;
+		while ( ( bytesRead = input.read( buffer ) ) > 0 ) {
+			// Form encoded body is pure ASCII
+			for ( int i = 0; i < bytesRead; i++ )
+				bodyBuilder.append( (char) buffer[ i ] );
+			total += bytesRead;
+			
+			final long bw = bandwidth;
+			if ( bw > 0 ) {
+				final long aheadMs = total * 1000 / bw - ( System.nanoTime() - start ) / 1000000;
+				if ( aheadMs > 0 )
+					try { Thread.sleep( aheadMs ); } catch ( final InterruptedException ie ) {}
+			}
+		}
+		
+		bytesReceived.addAndGet( total );
+		return bodyBuilder.toString();
+	}
+	
+	/**
+	 * Parses an <code>application/x-www-form-urlencoded</code> body.
+	 * @param body body to be parsed
+	 * @return the map of parameters
+	 * @throws IOException if the body cannot be decoded
+	 */
+	private static Map< String, String > parseForm( final String body ) throws IOException {
+		final Map< String, String > paramsMap = new HashMap< String, String >();
+		
+		for ( final String param : body.split( "&" ) ) {
+			final int eqIndex = param.indexOf( '=' );
+			if ( eqIndex > 0 )
+				paramsMap.put( URLDecoder.decode( param.substring( 0, eqIndex ), "UTF-8" ), URLDecoder.decode( param.substring( eqIndex + 1 ), "UTF-8" ) );
+		}
+		
+		return paramsMap;
+	}
+	
+	/**
+	 * Sends an <code>uploadResult</code> XML document.
+	 * @param exchange  the HTTP exchange
+	 * @param errorCode error code to report
+	 * @param message   message to report
+	 * @param replayUrl replay URL to report, optional
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void sendResult( final HttpExchange exchange, final int errorCode, final String message, final String replayUrl ) throws IOException {
+		final StringBuilder xmlBuilder = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<uploadResult docVersion=\"1.0\">\n" );
+		xmlBuilder.append( "    <errorCode>" ).append( errorCode ).append( "</errorCode>\n" );
+		xmlBuilder.append( "    <message>" ).append( message ).append( "</message>\n" );
+		if ( replayUrl != null )
+			xmlBuilder.append( "    <replayUrl>" ).append( replayUrl ).append( "</replayUrl>\n" );
+		xmlBuilder.append( "</uploadResult>\n" );
+		
+		sendXml( exchange, xmlBuilder.toString() );
+	}
+	
+	/**
+	 * Sends an XML document.
+	 * @param exchange the HTTP exchange
+	 * @param xml      XML document to send
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void sendXml( final HttpExchange exchange, final String xml ) throws IOException {
+		final byte[] response = xml.getBytes( "UTF-8" );
+		exchange.getResponseHeaders().set( "Content-Type", "text/xml; charset=UTF-8" );
+		exchange.sendResponseHeaders( 200, response.length );
+		final OutputStream output = exchange.getResponseBody();
+		output.write( response );
+		output.flush();
+	}
+	
+	/**
+	 * Calculates the hex MD5 of the specified data.
+	 * @param data data whose MD5 to be calculated
+	 * @return the hex MD5 of the specified data
+	 */
+	private static String md5Hex( final byte[] data ) {
+		try {
+			return Utils.convertToHexString( MessageDigest.getInstance( "MD5" ).digest( data ) );
+		} catch ( final Exception e ) {
+			return "";
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.List;
+
+import com.ggtracker.uploader.OfflineSpool;
+import com.ggtracker.uploader.ProcessTable;
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadPipeline;
+
+/**
+ * Checks the {@link OfflineSpool}: saving and reloading the spool, the back-off of the probes while the server is down,
+ * the rate of draining, and that draining stops when the server goes down again.
+ * 
+ * <p>The pipelines are not started, the spools are driven by hand against a {@link MockGgtrackerServer} taken down and
+ * brought back up; drained replays only land in the backlog of their pipeline.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class OfflineSpoolCheck {
+	
+	/** Probe interval in milliseconds.           */
+	private static final long PROBE_MS = 100;
+	/** Drain rate in replays/sec.                */
+	private static final int  RATE     = 10;
+	/** Number of spooled replays.                */
+	private static final int  COUNT    = 30;
+	
+	/**
+	 * Entry point of the check.
+	 * @param arguments not used
+	 * @throws Exception if the check cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness        harness = new BenchHarness( arguments );
+		final MockGgtrackerServer server  = harness.startServer();
+		
+		harness.set( Settings.KEY_OFFLINE_SPOOL         , true     );
+		harness.set( Settings.KEY_OFFLINE_PROBE_INTERVAL, PROBE_MS );
+		harness.set( Settings.KEY_OFFLINE_DRAIN_RATE    , RATE     );
+		
+		final File         stateFolder = harness.createFolder();
+		final File         spoolFile   = new File( stateFolder, OfflineSpool.SPOOL_FILE.getName() );
+		final List< File > replayList  = BenchHarness.writeReplays( harness.createFolder(), "Spooled replay ", COUNT, 1024, 0 );
+		
+		System.out.println( "Spooling:" );
+		server.setDown( true );
+		final OfflineSpool spool = new UploadPipeline( new ProcessTable.Fake(), stateFolder ).getSpool();
+		spool.goOffline();
+		spool.start();
+		for ( final File replay : replayList )
+			spool.add( replay );
+		spool.add( replayList.get( 0 ) );
+		harness.check( spool.size() == COUNT, "a replay is spooled only once (" + spool.size() + " spooled)" );
+		harness.check( spoolFile.isFile(), "the spool is saved to the state folder" );
+		spool.shutdown();
+		
+		System.out.println( "Reloading after a restart:" );
+		replayList.get( COUNT - 1 ).delete();
+		final UploadPipeline pipeline = new UploadPipeline( new ProcessTable.Fake(), stateFolder );
+		final OfflineSpool   spool2   = pipeline.getSpool();
+		spool2.goOffline();
+		final long offlineStart = System.nanoTime();
+		spool2.start();
+		harness.check( spool2.size() == COUNT - 1, "the saved replays are reloaded, deleted ones are dropped (" + spool2.size() + " reloaded)" );
+		
+		System.out.println( "Probing while the server is down:" );
+		// Probes at 100, 300, 700, 1500, 2300 ms (the delay doubles up to 8x): the server is back at 2000 ms, found at 2300 ms
+		Thread.sleep( 2000 - ( System.nanoTime() - offlineStart ) / 1000000 );
+		server.setDown( false );
+		final long upNanos = System.nanoTime();
+		while ( spool2.isOffline() && System.nanoTime() - upNanos < 5000000000l )
+			Thread.sleep( 1 );
+		final long recoveryNanos = System.nanoTime();
+		final long foundMs       = ( recoveryNanos - upNanos ) / 1000000;
+		harness.check( !spool2.isOffline(), "the server is found reachable again" );
+		harness.check( foundMs >= 2 * PROBE_MS, "the probe delay backs off while the server is down (found " + foundMs + " ms after it was back)" );
+		harness.check( foundMs <= 8 * PROBE_MS + 200, "the probe delay is capped at 8 times the probe interval (found " + foundMs + " ms after it was back)" );
+		
+		System.out.println( "Draining:" );
+		Thread.sleep( 500 );
+		harness.check( spool2.size() == COUNT - 1 - RATE, "the first burst drains at most the drain rate (" + spool2.size() + " left after 0.5 s)" );
+		harness.check( pipeline.getBacklogSize() == RATE, "drained replays are fed to the backlog of the pipeline (" + pipeline.getBacklogSize() + " in the backlog)" );
+		Thread.sleep( 1000 );
+		harness.check( spool2.size() == COUNT - 1 - 2 * RATE, "the next burst comes a second later (" + spool2.size() + " left after 1.5 s)" );
+		
+		System.out.println( "Going offline while draining:" );
+		server.setDown( true );
+		spool2.goOffline();
+		final int leftOffline = spool2.size();
+		Thread.sleep( 1500 );
+		harness.check( spool2.size() == leftOffline, "draining stops while the server is down (" + spool2.size() + " left of " + leftOffline + ")" );
+		server.setDown( false );
+		final long drainDeadline = System.nanoTime() + 5000000000l;
+		while ( spool2.size() > 0 && System.nanoTime() < drainDeadline )
+			Thread.sleep( 10 );
+		harness.check( spool2.size() == 0, "the rest is drained when the server is back" );
+		harness.check( !spoolFile.exists(), "the spool file is deleted when the spool is empty" );
+		spool2.shutdown();
+		
+		harness.finishChecks();
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ggtracker.uploader.Metrics;
+import com.ggtracker.uploader.OfflineSpool;
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadPipeline;
+import com.ggtracker.uploader.UploadStatus;
+
+/**
+ * Measures how the {@link UploadPipeline} rides out an outage of the upload server (see {@link OfflineSpool}).
+ * 
+ * <p>Starts a {@link MockGgtrackerServer}, takes it down, then enqueues a batch of replays. Reports how fast the replays
+ * are spooled and how many upload attempts were made while the server was down. After the outage the server is brought
+ * back up, and the time to drain the spool and the achieved drain rate (from the first to the last completed upload)
+ * are reported; the latter must not exceed the configured drain rate.</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>OutageBenchmark [-count N] [-size bytes] [-outage ms] [-probe ms] [-rate replays/sec]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class OutageBenchmark {
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "count", "size", "outage", "probe", "rate" );
+		
+		final int  count  = harness.getInt( "count", 40 );
+		final int  size   = harness.getInt( "size", 16*1024 );
+		final long outage = harness.getLong( "outage", 3000 );
+		final long probe  = harness.getLong( "probe", 250 );
+		final int  rate   = harness.getInt( "rate", 8 );
+		
+		final MockGgtrackerServer server = harness.startServer();
+		
+		harness.set( Settings.KEY_PIPELINE_SETTLE_TIME  , 0     );
+		harness.set( Settings.KEY_OFFLINE_SPOOL         , true  );
+		harness.set( Settings.KEY_OFFLINE_PROBE_INTERVAL, probe );
+		harness.set( Settings.KEY_OFFLINE_DRAIN_RATE    , rate  );
+		harness.set( Settings.KEY_TRACE_JOURNAL         , false );
+		
+		final List< File > fileList = BenchHarness.writeReplays( harness.createFolder(), "Outage replay ", count, size, 0 );
+		
+		System.out.println( "Uploading " + count + " replays of " + size + " bytes through a " + outage + " ms outage, probe interval: " + probe
+			+ " ms, drain rate: " + rate + " replays/sec" );
+		
+		final UploadPipeline pipeline = new UploadPipeline();
+		pipeline.start();
+		final OfflineSpool spool = pipeline.getSpool();
+		
+		server.setDown( true );
+		final long outageStart = System.nanoTime();
+		pipeline.enqueue( fileList );
+		
+		while ( spool.size() < count && System.nanoTime() - outageStart < 60000000000l )
+			Thread.sleep( 1 );
+		final long spooled = System.nanoTime();
+		final int  spooledCount = spool.size();
+		final long attempts     = Metrics.UPLOADS.get( "failure" );
+		
+		Thread.sleep( Math.max( 0, outage - ( spooled - outageStart ) / 1000000 ) );
+		
+		server.setDown( false );
+		final long upStart = System.nanoTime();
+		
+		final UploadStatus status = pipeline.getStatus();
+		BenchHarness.awaitDone( status, count, 60000 + count * 2000l / rate );
+		final long end = System.nanoTime();
+		
+		pipeline.shutdown();
+		
+		final long[] completions = new long[ count ];
+		int completed = 0;
+		for ( final File file : fileList ) {
+			final Long completionNanos = server.getCompletionNanos( file.getName() );
+			if ( completionNanos != null )
+				completions[ completed++ ] = completionNanos;
+		}
+		final long[] sortedCompletions = Arrays.copyOf( completions, completed );
+		Arrays.sort( sortedCompletions );
+		// The first burst completes right away, the remaining ones are spread over the drain time
+		final double drainRate = completed > rate ? ( completed - rate ) / ( ( sortedCompletions[ completed - 1 ] - sortedCompletions[ 0 ] ) / 1e9 ) : 0;
+		
+		System.out.printf( "Outage: spooled %d / %d in %.1f ms, failed uploads while down: %d%n", spooledCount, count, ( spooled - outageStart ) / 1e6, attempts );
+		System.out.printf( "Recovery: uploaded %d / %d in %.3f s after the server came back, achieved drain rate: %.1f replays/sec (limit: %d)%n",
+			status.getUploadedCount(), count, ( end - upStart ) / 1e9, drainRate, rate );
+		
+		harness.finish( status.getUploadedCount() == count && drainRate <= rate );
+	}
+
+}
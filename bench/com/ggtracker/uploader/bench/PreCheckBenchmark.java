@@ -0,0 +1,115 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.List;
+
+import com.ggtracker.uploader.Md5PreCheck;
+import com.ggtracker.uploader.Metrics;
+import com.ggtracker.uploader.ReplaySource;
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadPipeline;
+import com.ggtracker.uploader.UploadStatus;
+
+/**
+ * Measures the savings of the MD5 pre-check ({@link Md5PreCheck}).
+ * 
+ * <p>Starts a {@link MockGgtrackerServer} which already has a given fraction of the replays, then uploads a batch of replays
+ * through a fresh pipeline with the pre-check disabled and enabled. Reports the elapsed time, the bytes received
+ * by the server, the number of linked replays and the number of check requests with the average batch size.</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>PreCheckBenchmark [-count N] [-size bytes] [-known fraction] [-latency ms] [-concurrency N] [-mode stages|platform|virtual]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class PreCheckBenchmark {
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "count", "size", "known", "latency", "concurrency", "mode" );
+		
+		final int    count       = harness.getInt( "count", 200 );
+		final int    size        = harness.getInt( "size", 64*1024 );
+		final double known       = harness.getDouble( "known", 0.5 );
+		final long   latency     = harness.getLong( "latency", 50 );
+		final int    concurrency = harness.getInt( "concurrency", 16 );
+		final String mode        = harness.getString( "mode", UploadPipeline.MODE_PLATFORM );
+		
+		final MockGgtrackerServer server = harness.startServer();
+		server.setLatencyMs( latency );
+		
+		harness.set( Settings.KEY_PIPELINE_SETTLE_TIME    , 0           );
+		harness.set( Settings.KEY_PIPELINE_EXECUTION_MODE , mode        );
+		harness.set( Settings.KEY_PIPELINE_PREPARE_THREADS, concurrency );
+		harness.set( Settings.KEY_PIPELINE_SEND_THREADS   , concurrency );
+		harness.set( Settings.KEY_PIPELINE_TASK_THREADS   , concurrency );
+		harness.set( Settings.KEY_PIPELINE_QUEUE_CAPACITY , concurrency );
+		harness.set( Settings.KEY_TRACE_JOURNAL           , false       );
+		
+		System.out.println( "Uploading " + count + " replays of " + size + " bytes, " + Math.round( known * 100 ) + "% already on the server, server latency: "
+			+ latency + " ms, concurrency: " + concurrency + ", mode: " + mode );
+		
+		boolean allUploaded = runCheck( harness, server, false, 0, count, size, known );
+		allUploaded        &= runCheck( harness, server, true , 1, count, size, known );
+		
+		harness.finish( allUploaded );
+	}
+	
+	/**
+	 * Uploads a batch of replays with the pre-check disabled or enabled and prints the results.
+	 * @param harness the harness of the benchmark
+	 * @param server  the mock server
+	 * @param check   tells if the pre-check is enabled
+	 * @param run     number of the run, used to make the replays of the runs different
+	 * @param count   number of replays to upload
+	 * @param size    size of the replays
+	 * @param known   fraction of the replays the server already has
+	 * @return true if all replays were uploaded or linked; false otherwise
+	 * @throws Exception if the run cannot be set up
+	 */
+	private static boolean runCheck( final BenchHarness harness, final MockGgtrackerServer server, final boolean check, final int run, final int count,
+			final int size, final double known ) throws Exception {
+		final List< File > fileList = BenchHarness.writeReplays( harness.createFolder(), "Run " + run + " replay ", count, size, run );
+		for ( int i = 0; i < count * known; i++ )
+			server.addKnownReplay( ReplaySource.open( fileList.get( i ) ).calculateMd5() );
+		
+		harness.set( Settings.KEY_MD5_CHECK, check );
+		final long bytesBefore    = server.getBytesReceived();
+		final int  requestsBefore = server.getCheckRequestCount();
+		final int  checkedBefore  = server.getCheckedMd5Count();
+		final long linkedBefore   = Metrics.MD5_CHECKS.get( "known" );
+		
+		final UploadPipeline pipeline = new UploadPipeline();
+		pipeline.start();
+		
+		final long start = System.nanoTime();
+		pipeline.enqueue( fileList );
+		
+		final UploadStatus status = pipeline.getStatus();
+		BenchHarness.awaitDone( status, count, 60000 + count * 100l );
+		final long end = System.nanoTime();
+		
+		pipeline.shutdown();
+		
+		final int requests = server.getCheckRequestCount() - requestsBefore;
+		System.out.printf( "Pre-check %-3s: done %d / %d in %.3f s, server received %.1f MB, linked: %d, check requests: %d (%.1f MD5s per request)%n",
+			check ? "on" : "off", status.getUploadedCount(), count, ( end - start ) / 1e9, ( server.getBytesReceived() - bytesBefore ) / ( 1024.0 * 1024 ),
+			Metrics.MD5_CHECKS.get( "known" ) - linkedBefore, requests, requests == 0 ? 0 : ( server.getCheckedMd5Count() - checkedBefore ) / (double) requests );
+		
+		return status.getUploadedCount() == count;
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.ggtracker.uploader.Consts;
+import com.ggtracker.uploader.HeadlessUploader;
+import com.ggtracker.uploader.Settings;
+
+/**
+ * Measures the startup time and the resident memory of the uploader in headless and in GUI mode.
+ * 
+ * <p>Starts the uploader in a new JVM for each run (in dev mode, with a temporary user home), and measures the time
+ * from launching the process until the uploader detects a replay already waiting in the replay folder, and until
+ * it reports that its startup completed. The resident set size is read from <code>/proc/&lt;pid&gt;/status</code>
+ * (Linux only) after the process had some time to settle. The process is then terminated.</p>
+ * 
+ * <p>The GUI mode needs a display; if it cannot be started, it is reported as failed.</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>StartupBenchmark [-runs N] [-modes headless,gui] [-settle ms] [-jvmArgs "args"] [-jar uploader.jar]</code><br>
+ * <code>-jvmArgs</code> are passed to the uploader JVM (e.g. <code>-XX:SharedArchiveFile=gguploader.jsa</code>),
+ * <code>-jar</code> starts the uploader from its packaged jar instead of the class path of the benchmark.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class StartupBenchmark {
+	
+	/** Line printed by the uploader when startup completed.       */
+	private static final String STARTUP_COMPLETED = "Startup completed in ";
+	/** Line printed by the uploader when a replay is detected.    */
+	private static final String REPLAY_DETECTED   = "New replay detected";
+	
+	/** Max time to wait for the startup, in milliseconds. */
+	private static final long STARTUP_TIMEOUT_MS = 15000;
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		int      runs    = 5;
+		String[] modes   = { "headless", "gui" };
+		long     settle  = 2000;
+		String[] jvmArgs = new String[ 0 ];
+		String   jar     = null;
+		
+		for ( int i = 0; i + 1 < arguments.length; i += 2 ) {
+			final String value = arguments[ i + 1 ];
+			if ( "-runs".equals( arguments[ i ] ) )
+				runs = Integer.parseInt( value );
+			else if ( "-modes".equals( arguments[ i ] ) )
+				modes = value.split( "," );
+			else if ( "-settle".equals( arguments[ i ] ) )
+				settle = Long.parseLong( value );
+			else if ( "-jvmArgs".equals( arguments[ i ] ) )
+				jvmArgs = value.trim().length() == 0 ? new String[ 0 ] : value.trim().split( "\\s+" );
+			else if ( "-jar".equals( arguments[ i ] ) )
+				jar = value.length() == 0 ? null : new File( value ).getAbsolutePath();
+		}
+		
+		System.out.println( String.format( Locale.US, "%-10s %6s %16s %14s %14s %12s", "mode", "runs", "launch->detect", "launch->ready", "JVM uptime", "RSS" ) );
+		for ( final String mode : modes ) {
+			final long[] detectMs = new long[ runs ];
+			final long[] readyMs  = new long[ runs ];
+			final long[] uptimeMs = new long[ runs ];
+			final long[] rssKb    = new long[ runs ];
+			int succeeded = 0;
+			
+			for ( int run = 0; run < runs; run++ ) {
+				final long[] result = runOnce( "headless".equals( mode ), settle, jvmArgs, jar );
+				if ( result == null )
+					continue;
+				detectMs[ succeeded ] = result[ 0 ];
+				readyMs [ succeeded ] = result[ 1 ];
+				uptimeMs[ succeeded ] = result[ 2 ];
+				rssKb   [ succeeded ] = result[ 3 ];
+				succeeded++;
+			}
+			
+			if ( succeeded == 0 ) {
+				System.out.println( String.format( Locale.US, "%-10s %6s", mode, "failed" ) );
+				continue;
+			}
+			
+			System.out.println( String.format( Locale.US, "%-10s %6d %13d ms %11d ms %11d ms %9d KB", mode, succeeded,
+				median( detectMs, succeeded ), median( readyMs, succeeded ), median( uptimeMs, succeeded ), median( rssKb, succeeded ) ) );
+		}
+		System.out.println( "(medians)" );
+	}
+	
+	/**
+	 * Starts the uploader once and measures it.
+	 * @param headless tells if the headless mode is to be started
+	 * @param settle   time to let the process settle before reading its resident set size, in milliseconds
+	 * @param jvmArgs  additional arguments of the uploader JVM
+	 * @param jar      packaged jar of the uploader to start; <code>null</code> to use the class path of the benchmark
+	 * @return the launch to detection time in ms, the launch to ready time in ms, the reported JVM uptime in ms
+	 * 		and the resident set size in KB (<code>-1</code> if not available); or <code>null</code> if the uploader failed to start
+	 * @throws Exception if the process cannot be started
+	 */
+	private static long[] runOnce( final boolean headless, final long settle, final String[] jvmArgs, final String jar ) throws Exception {
+		final File userHome = BenchHarness.createTempFolder( "gguploader-bench" );
+		try {
+			prepareUserHome( userHome );
+			
+			final List< String > command = new ArrayList< String >();
+			command.add( new File( System.getProperty( "java.home" ), "bin/java" ).getPath() );
+			command.add( "-Ddev-mode" );
+			command.add( "-Duser.home=" + userHome.getPath() );
+			command.addAll( Arrays.asList( jvmArgs ) );
+			if ( jar == null )
+				command.addAll( Arrays.asList( "-cp", System.getProperty( "java.class.path" ), "com.ggtracker.uploader.GgtrackerUploader" ) );
+			else
+				command.addAll( Arrays.asList( "-jar", jar ) );
+			if ( headless )
+				command.add( HeadlessUploader.ARG_HEADLESS );
+			
+			final long start = System.nanoTime();
+			final Process process = new ProcessBuilder( command ).redirectErrorStream( true ).start();
+			// Reading the output blocks, a hanging uploader is killed after the timeout
+			final Timer watchdog = new Timer( "Startup watchdog", true );
+			watchdog.schedule( new TimerTask() {
+				@Override
+				public void run() {
+					process.destroy();
+				}
+			}, STARTUP_TIMEOUT_MS );
+			try {
+				final BufferedReader output = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+				String line;
+				long detectMs = -1;
+				long readyMs  = -1;
+				long uptimeMs = -1;
+				while ( ( detectMs < 0 || uptimeMs < 0 ) && ( line = output.readLine() ) != null ) {
+					if ( detectMs < 0 && line.contains( REPLAY_DETECTED ) )
+						detectMs = ( System.nanoTime() - start ) / 1000000;
+					final int index = line.indexOf( STARTUP_COMPLETED );
+					if ( index >= 0 ) {
+						readyMs  = ( System.nanoTime() - start ) / 1000000;
+						uptimeMs = Long.parseLong( line.substring( index + STARTUP_COMPLETED.length(), line.indexOf( ' ', index + STARTUP_COMPLETED.length() ) ) );
+					}
+				}
+				watchdog.cancel();
+				if ( detectMs < 0 || uptimeMs < 0 )
+					return null;
+				
+				Thread.sleep( settle );
+				return new long[] { detectMs, readyMs, uptimeMs, readRssKb( process ) };
+			} finally {
+				watchdog.cancel();
+				process.destroy();
+				process.waitFor();
+			}
+		} finally {
+			BenchHarness.deleteRecursively( userHome );
+		}
+	}
+	
+	/**
+	 * Prepares the temporary user home of the uploader: creates a settings file pointing to a closed local port
+	 * so nothing is uploaded, and a replay in the default replay folder which is newer than the start of the uploader.
+	 * @param userHome temporary user home
+	 * @throws IOException if the user home cannot be prepared
+	 */
+	private static void prepareUserHome( final File userHome ) throws IOException {
+		final Properties settings = new Properties();
+		settings.setProperty( Settings.KEY_REPLAY_FOLDER, new File( userHome, "Accounts" ).getAbsolutePath() );
+		settings.setProperty( Settings.KEY_UPLOAD_URL   , "http://localhost:1/replays/drop" );
+		settings.setProperty( Settings.KEY_STATS_PORT   , "0" );
+		final File settingsFile = new File( new File( userHome, Consts.FOLDER_USER_CONTENT.getName() ), Settings.SETTINGS_FILE.getName() );
+		settingsFile.getParentFile().mkdirs();
+		final FileOutputStream output = new FileOutputStream( settingsFile );
+		try {
+			settings.storeToXML( output, null );
+		} finally {
+			output.close();
+		}
+		
+		final File replay = new File( userHome, "Accounts/1234567/1-S2-1-234567/Replays/Multiplayer/Startup.SC2Replay" );
+		replay.getParentFile().mkdirs();
+		BenchHarness.writeFile( replay, new byte[ 1024 ] );
+		replay.setLastModified( System.currentTimeMillis() + 60000 );
+	}
+	
+	/**
+	 * Reads the resident set size of a process.
+	 * @param process the process
+	 * @return the resident set size of the process in KB; <code>-1</code> if it is not available
+	 */
+	private static long readRssKb( final Process process ) {
+		// Process.pid() is only available from Java 9
+		final Object pid;
+		try {
+			pid = Process.class.getMethod( "pid" ).invoke( process );
+		} catch ( final Exception e ) {
+			return -1;
+		}
+		
+		final File statusFile = new File( "/proc/" + pid + "/status" );
+		if ( !statusFile.exists() )
+			return -1;
+		
+		BufferedReader input = null;
+		try {
+			input = new BufferedReader( new InputStreamReader( new FileInputStream( statusFile ) ) );
+			String line;
+			while ( ( line = input.readLine() ) != null )
+				if ( line.startsWith( "VmRSS:" ) )
+					return Long.parseLong( line.substring( 6 ).replace( "kB", "" ).trim() );
+		} catch ( final IOException ie ) {
+			ie.printStackTrace();
+		} finally {
+			if ( input != null )
+				try { input.close(); } catch ( final IOException ie ) {}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the median of the first values of an array.
+	 * @param values values
+	 * @param count  number of values to consider
+	 * @return the median of the values
+	 */
+	private static long median( final long[] values, final int count ) {
+		final long[] sorted = Arrays.copyOf( values, count );
+		Arrays.sort( sorted );
+		return sorted[ count / 2 ];
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ggtracker.uploader.ReplayFolderMonitor;
+import com.ggtracker.uploader.Settings;
+import com.ggtracker.uploader.UploadPipeline;
+
+/**
+ * End-to-end throughput benchmark of the detect-to-upload pipeline.
+ * 
+ * <p>Starts a {@link MockGgtrackerServer}, points a {@link ReplayFolderMonitor} and an {@link UploadPipeline} to a temporary replay folder and to the
+ * mock server, then saves replays into the folder at a fixed interval (like SC2 would).
+ * Reports replays/sec, bytes/sec and the save-to-URL latency percentiles, the latter measured from the moment
+ * a replay file is closed until the server sends back its replay URL.</p>
+ * 
+ * <p>Usage (all arguments optional):<br>
+ * <code>UploadThroughputBenchmark [-count N] [-size bytes] [-interval ms] [-latency ms] [-bandwidth bytes/sec] [-errorRate 0..1]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class UploadThroughputBenchmark {
+	
+	/**
+	 * Entry point of the benchmark.
+	 * @param arguments benchmark parameters, see the class documentation
+	 * @throws Exception if the benchmark cannot be set up
+	 */
+	public static void main( final String[] arguments ) throws Exception {
+		final BenchHarness harness = new BenchHarness( arguments, "count", "size", "interval", "latency", "bandwidth", "errorRate" );
+		
+		final int    count     = harness.getInt( "count", 10 );
+		final int    size      = harness.getInt( "size", 100*1024 );
+		final long   interval  = harness.getLong( "interval", 5000 );
+		final long   latency   = harness.getLong( "latency", 50 );
+		final long   bandwidth = harness.getLong( "bandwidth", 0 );
+		final double errorRate = harness.getDouble( "errorRate", 0 );
+		
+		final MockGgtrackerServer server = harness.startServer();
+		server.setLatencyMs( latency );
+		server.setBandwidth( bandwidth );
+		server.setUploadErrorRate( errorRate );
+		
+		final File replayFolder = harness.createFolder();
+		final File saveFolder   = new File( replayFolder, "1234567/1-S2-1-7654321/Replays/Multiplayer" );
+		saveFolder.mkdirs();
+		harness.set( Settings.KEY_REPLAY_FOLDER, replayFolder.getAbsolutePath() );
+		
+		final UploadPipeline pipeline = new UploadPipeline();
+		pipeline.start();
+		final ReplayFolderMonitor monitor = new ReplayFolderMonitor( pipeline );
+		monitor.start();
+		
+		System.out.println( "Saving " + count + " replays of " + size + " bytes every " + interval + " ms, server latency: " + latency + " ms, bandwidth: "
+			+ ( bandwidth == 0 ? "unlimited" : bandwidth + " bytes/sec" ) + ", error rate: " + errorRate );
+		
+		final Random   random     = new Random( 1 );
+		final byte[]   content    = new byte[ size ];
+		final String[] fileNames  = new String[ count ];
+		final long[]   savedNanos = new long[ count ];
+		
+		// Let the first replay be newer than the monitor's start time
+		Thread.sleep( 20 );
+		for ( int i = 0; i < count; i++ ) {
+			random.nextBytes( content );
+			fileNames[ i ] = "Benchmark " + i + ".SC2Replay";
+			BenchHarness.writeFile( new File( saveFolder, fileNames[ i ] ), content );
+			savedNanos[ i ] = System.nanoTime();
+			if ( i < count - 1 )
+				Thread.sleep( interval );
+		}
+		
+		// Wait for the uploads to complete
+		final long deadline = System.nanoTime() + ( 30000 + count * 5000l ) * 1000000;
+		int completed = 0;
+		while ( System.nanoTime() < deadline ) {
+			completed = 0;
+			for ( final String fileName : fileNames )
+				if ( server.getCompletionNanos( fileName ) != null )
+					completed++;
+			if ( completed == count )
+				break;
+			Thread.sleep( 20 );
+		}
+		
+		monitor.shutdown();
+		for ( final UploadPipeline.Stage stage : pipeline.getStages() )
+			System.out.println( "Stage " + stage.getName() + ": threads=" + stage.getThreadCount() + ", peak queue depth=" + stage.getPeakQueueDepth() );
+		pipeline.shutdown();
+		
+		final long[] latencies = new long[ completed ];
+		long lastCompletion = savedNanos[ 0 ];
+		for ( int i = 0, j = 0; i < count; i++ ) {
+			final Long completionNanos = server.getCompletionNanos( fileNames[ i ] );
+			if ( completionNanos != null ) {
+				latencies[ j++ ] = completionNanos - savedNanos[ i ];
+				lastCompletion = Math.max( lastCompletion, completionNanos );
+			}
+		}
+		Arrays.sort( latencies );
+		
+		final double seconds = ( lastCompletion - savedNanos[ 0 ] ) / 1e9;
+		System.out.println( "Uploaded: " + completed + " / " + count + ", rejected attempts: " + server.getFailedCount() );
+		System.out.printf( "Elapsed: %.3f s%n", seconds );
+		System.out.printf( "Throughput: %.3f replays/sec, %.1f replay bytes/sec, %.1f wire bytes/sec%n",
+			completed / seconds, (double) completed * size / seconds, server.getBytesReceived() / seconds );
+		System.out.printf( "Save-to-URL latency (ms): p50=%.1f p90=%.1f p99=%.1f max=%.1f%n",
+			BenchHarness.percentile( latencies, 50 ) / 1e6, BenchHarness.percentile( latencies, 90 ) / 1e6, BenchHarness.percentile( latencies, 99 ) / 1e6,
+			BenchHarness.percentile( latencies, 100 ) / 1e6 );
+		
+		harness.finish( completed == count );
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the polling scan of {@link ReplayFolderMonitor#getLastReplay(File)} over a synthetic replay folder tree.
+ * 
+ * <p>The replays of the tree are older than the last archived replay, so every scan walks the whole tree and finds nothing.
+ * This is what happens on every poll while no game is being played.</p>
+ * 
+ * @author Andras Belicza
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FolderScanBenchmark {
+	
+	/** Number of account folders in the tree.       */
+	@Param( { "1", "4" } )
+	public int accounts;
+	
+	/** Number of replays in each account folder.    */
+	@Param( { "100", "2000" } )
+	public int replays;
+	
+	/** Root of the generated tree.                  */
+	private File                root;
+	/** Monitor whose scan is benchmarked.           */
+	private ReplayFolderMonitor monitor;
+	
+	/**
+	 * Generates the folder tree.
+	 * @throws Exception if the tree cannot be generated
+	 */
+	@Setup
+	public void setup() throws Exception {
+		root = JmhFixtures.createTempFolder();
+		JmhFixtures.createReplayTree( root, accounts, replays, System.currentTimeMillis() - TimeUnit.DAYS.toMillis( 1 ) );
+		
+		// The monitor is not started, and it never submits anything to the pipeline
+		monitor = new ReplayFolderMonitor( null );
+	}
+	
+	/**
+	 * Deletes the folder tree.
+	 */
+	@TearDown
+	public void tearDown() {
+		JmhFixtures.deleteRecursively( root );
+	}
+	
+	/**
+	 * Benchmarks one poll of the folder tree.
+	 * @return the found replay (always <code>null</code>)
+	 */
+	@Benchmark
+	public File getLastReplay() {
+		return monitor.getLastReplay( root );
+	}
+
+}
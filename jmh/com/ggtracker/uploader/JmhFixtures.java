@@ -0,0 +1,107 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the fixtures of the JMH benchmarks: replay-sized files with random content and synthetic replay folder trees.
+ * 
+ * <p>The content is generated from a fixed seed so every run (and every version being compared) works on the same bytes.</p>
+ * 
+ * @author Andras Belicza
+ */
+class JmhFixtures {
+	
+	/** Seed of the generated content. */
+	private static final long SEED = 0x5c2L;
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private JmhFixtures() {
+	}
+	
+	/**
+	 * Creates a new empty temporary folder.
+	 * @return the created folder
+	 * @throws IOException if the folder cannot be created
+	 */
+	static File createTempFolder() throws IOException {
+		final File folder = File.createTempFile( "gguploader-jmh", "" );
+		if ( !folder.delete() || !folder.mkdir() )
+			throw new IOException( "Failed to create temp folder: " + folder );
+		
+		return folder;
+	}
+	
+	/**
+	 * Creates a replay file with random content.
+	 * @param folder folder to create the replay in
+	 * @param name   name of the replay file
+	 * @param size   size of the replay in bytes
+	 * @return the created replay file
+	 * @throws IOException if the file cannot be written
+	 */
+	static File createReplay( final File folder, final String name, final int size ) throws IOException {
+		final byte[] content = new byte[ size ];
+		new Random( SEED ).nextBytes( content );
+		
+		final File file = new File( folder, name );
+		final FileOutputStream output = new FileOutputStream( file );
+		try {
+			output.write( content );
+		} finally {
+			output.close();
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Creates a synthetic replay folder tree like SC2 does:
+	 * <code>&lt;accountId&gt;/&lt;toonId&gt;/Replays/Multiplayer/*.SC2Replay</code>.
+	 * @param root     root folder of the tree
+	 * @param accounts number of account folders
+	 * @param replays  number of replays in each account folder
+	 * @param lastModified last modification time of the replays
+	 * @throws IOException if the tree cannot be created
+	 */
+	static void createReplayTree( final File root, final int accounts, final int replays, final long lastModified ) throws IOException {
+		for ( int i = 0; i < accounts; i++ ) {
+			final File folder = new File( root, ( 1000000 + i ) + "/1-S2-1-" + ( 2000000 + i ) + "/Replays/Multiplayer" );
+			if ( !folder.mkdirs() )
+				throw new IOException( "Failed to create folder: " + folder );
+			
+			for ( int j = 0; j < replays; j++ ) {
+				final File replay = new File( folder, "Game " + j + ".SC2Replay" );
+				if ( !replay.createNewFile() || !replay.setLastModified( lastModified ) )
+					throw new IOException( "Failed to create replay: " + replay );
+			}
+		}
+	}
+	
+	/**
+	 * Deletes a file or a folder recursively.
+	 * @param file file or folder to be deleted
+	 */
+	static void deleteRecursively( final File file ) {
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				deleteRecursively( child );
+		
+		file.delete();
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of reading replays for hashing and encoding: the stream based {@link StreamBaseline}
+ * against {@link ReplaySource} reading into a heap buffer and memory mapping.
+ * 
+ * <p>Every benchmark opens the replay, as preparing a replay does. The heap and mapped variants ignore the threshold:
+ * compare their results of a size to check {@link ReplaySource#MAP_THRESHOLD}.</p>
+ * 
+ * @author Andras Belicza
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ReplaySourceBenchmark {
+	
+	/** Size of the generated replay in bytes. */
+	@Param( { "20480", "131072", "1048576", "8388608" } )
+	public int size;
+	
+	/** Folder of the generated replay. */
+	private File folder;
+	/** The generated replay.           */
+	private File replay;
+	
+	/**
+	 * Generates the replay.
+	 * @throws Exception if the replay cannot be generated
+	 */
+	@Setup
+	public void setup() throws Exception {
+		folder = JmhFixtures.createTempFolder();
+		replay = JmhFixtures.createReplay( folder, "Replay.SC2Replay", size );
+	}
+	
+	/**
+	 * Deletes the generated replay.
+	 */
+	@TearDown
+	public void tearDown() {
+		JmhFixtures.deleteRecursively( folder );
+	}
+	
+	/**
+	 * Benchmarks hashing with {@link StreamBaseline#calculateFileMd5(File)}.
+	 * @return the MD5 of the replay
+	 */
+	@Benchmark
+	public String md5Stream() {
+		return StreamBaseline.calculateFileMd5( replay );
+	}
+	
+	/**
+	 * Benchmarks hashing a replay read into a heap buffer.
+	 * @return the MD5 of the replay
+	 * @throws IOException if the replay cannot be read
+	 */
+	@Benchmark
+	public String md5Heap() throws IOException {
+		return ReplaySource.open( replay, Integer.MAX_VALUE ).calculateMd5();
+	}
+	
+	/**
+	 * Benchmarks hashing a memory mapped replay.
+	 * @return the MD5 of the replay
+	 * @throws IOException if the replay cannot be read
+	 */
+	@Benchmark
+	public String md5Mapped() throws IOException {
+		return ReplaySource.open( replay, 0 ).calculateMd5();
+	}
+	
+	/**
+	 * Benchmarks encoding with {@link StreamBaseline#encodeFileBase64(File)}.
+	 * @return the base64 encoded replay
+	 */
+	@Benchmark
+	public String base64Stream() {
+		return StreamBaseline.encodeFileBase64( replay );
+	}
+	
+	/**
+	 * Benchmarks encoding a replay read into a heap buffer.
+	 * @return the base64 encoded replay
+	 * @throws IOException if the replay cannot be read
+	 */
+	@Benchmark
+	public String base64Heap() throws IOException {
+		return ReplaySource.open( replay, Integer.MAX_VALUE ).encodeBase64();
+	}
+	
+	/**
+	 * Benchmarks encoding a memory mapped replay.
+	 * @return the base64 encoded replay
+	 * @throws IOException if the replay cannot be read
+	 */
+	@Benchmark
+	public String base64Mapped() throws IOException {
+		return ReplaySource.open( replay, 0 ).encodeBase64();
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * The original stream based hashing and encoding of replays, kept as the baseline of the benchmarks.
+ * 
+ * <p>Replays are hashed and encoded with {@link ReplaySource}; these are the implementations it replaced, reading the file
+ * through a 16 KB buffer and byte by byte. They use the hex and base64 tables of {@link ReplaySource}.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class StreamBaseline {
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private StreamBaseline() {
+	}
+	
+	/**
+	 * Calculates the MD5 digest of a file.
+	 * @param file file whose MD5 digest to be calculated
+	 * @return the calculated MD5 digest of the file
+	 */
+	public static String calculateFileMd5( final File file ) {
+		FileInputStream input = null;
+		try {
+			final MessageDigest md = MessageDigest.getInstance( "MD5" );
+			
+			input = new FileInputStream( file );
+			final byte[] buffer = new byte[ 16*1024 ];
+			
+			int bytesRead;
+			while ( ( bytesRead = input.read( buffer ) ) > 0 )
+				md.update( buffer, 0, bytesRead );
+			
+			return ReplaySource.toHexString( md.digest() );
+		}
+		catch ( final Exception e ) {
+			return "";
+		}
+		finally {
+			if ( input != null )
+				try { input.close(); } catch ( final IOException ie ) {}
+		}
+	}
+	
+	/**
+	 * Returns the base64 encoded form of the specified file.
+	 * @param file file to be encoded
+	 * @return the base64 encoded form of the specified file; or <code>null</code> if some error occurs
+	 */
+	public static String encodeFileBase64( final File file ) {
+		if ( !file.exists() )
+			return null;
+		
+		// 3 bytes results in 4: charCount = RoundUp( size / 3 ) * 4
+		int bytesLeft = (int) file.length();
+		final char[] encoded = new char[ ( (bytesLeft+2) / 3 ) * 4 ];
+		
+		InputStream input = null;
+		int charPos = 0;
+		try {
+			input = new FileInputStream( file );
+			while ( bytesLeft > 0 ) {
+				final int byte1 = input.read();
+				final int byte2 = bytesLeft > 1 ? input.read() : 0;
+				final int byte3 = bytesLeft > 2 ? input.read() : 0;
+				
+				encoded[ charPos++ ] = ReplaySource.BASE64_SYMBOLS[ byte1 >> 2 ];
+				encoded[ charPos++ ] = ReplaySource.BASE64_SYMBOLS[ ( byte1 & 0x03 ) << 4 | ( byte2 & 0xf0 ) >> 4 ];
+				
+				if ( bytesLeft > 1 ) {
+					encoded[ charPos++ ] = ReplaySource.BASE64_SYMBOLS[ ( byte2 & 0x0f ) << 2 | ( byte3 & 0xc0 ) >> 6 ];
+					
+					if ( bytesLeft > 2 )
+						encoded[ charPos++ ] = ReplaySource.BASE64_SYMBOLS[ byte3 &0x3f ];
+					else
+						// 1 padding byte
+						encoded[ charPos++ ] = ReplaySource.BASE64_PADDING;
+				}
+				else {
+					// 2 padding bytes
+					encoded[ charPos++ ] = ReplaySource.BASE64_PADDING;
+					encoded[ charPos++ ] = ReplaySource.BASE64_PADDING;
+				}
+				
+				bytesLeft -= 3;
+			}
+		} catch ( final Exception e ) {
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			if ( input != null )
+				try { input.close(); } catch ( final IOException ie ) {}
+		}
+		
+		return new String( encoded );
+	}
+
+}
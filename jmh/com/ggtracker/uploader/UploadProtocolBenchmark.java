@@ -0,0 +1,116 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the upload protocol: preparing a replay, building the request body of {@link HttpPost}
+ * and parsing the response of the server.
+ * 
+ * @author Andras Belicza
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class UploadProtocolBenchmark {
+	
+	/** A successful response of the server. */
+	private static final String RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+		+ "<uploadResult docVersion=\"1.0\">\n"
+		+ "    <errorCode>0</errorCode>\n"
+		+ "    <message>Upload OK.</message>\n"
+		+ "    <replayUrl>http://ggtracker.com/matches/1234567</replayUrl>\n"
+		+ "</uploadResult>\n";
+	
+	/** Size of the generated replay in bytes. */
+	@Param( { "20480", "131072", "1048576" } )
+	public int size;
+	
+	/** Folder of the generated replay. */
+	private File      folder;
+	/** The generated replay.           */
+	private File      replay;
+	/** The prepared job of the replay. */
+	private UploadJob preparedJob;
+	
+	/**
+	 * Generates and prepares the replay.
+	 * @throws Exception if the replay cannot be generated
+	 */
+	@Setup
+	public void setup() throws Exception {
+		Settings.set( Settings.KEY_AUTH_TOKEN, "0123456789abcdef0123456789abcdef", false );
+		
+		folder = JmhFixtures.createTempFolder();
+		replay = JmhFixtures.createReplay( folder, "Replay.SC2Replay", size );
+		
+		preparedJob = new UploadJob( replay );
+		if ( !ReplayUploader.prepare( preparedJob ) )
+			throw new IOException( "Failed to prepare replay: " + replay );
+	}
+	
+	/**
+	 * Deletes the generated replay.
+	 */
+	@TearDown
+	public void tearDown() {
+		JmhFixtures.deleteRecursively( folder );
+	}
+	
+	/**
+	 * Benchmarks {@link ReplayUploader#prepare(UploadJob)}: MD5, base64 encoding and building the request parameters.
+	 * @return the prepared job
+	 */
+	@Benchmark
+	public UploadJob prepare() {
+		final UploadJob job = new UploadJob( replay );
+		ReplayUploader.prepare( job );
+		return job;
+	}
+	
+	/**
+	 * Benchmarks building the request body of {@link HttpPost} from the prepared parameters.
+	 * @return the request body
+	 * @throws IOException never
+	 */
+	@Benchmark
+	public byte[] encodeParams() throws IOException {
+		return HttpPost.encodeParams( preparedJob.getParamsMap() );
+	}
+	
+	/**
+	 * Benchmarks {@link ReplayUploader#parseReplayUrl(String)}.
+	 * @return the parsed replay URL
+	 */
+	@Benchmark
+	public String parseReplayUrl() {
+		return ReplayUploader.parseReplayUrl( RESPONSE );
+	}
+
+}
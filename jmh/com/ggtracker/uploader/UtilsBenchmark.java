@@ -0,0 +1,103 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the original replay preparing hot paths: MD5 calculation and base64 encoding ({@link StreamBaseline}),
+ * and hex conversion ({@link Utils}).
+ * 
+ * <p>Replays are generated with sizes typical for SC2 replays (a short game is around 20 KB, a long one is a couple of hundred KB).</p>
+ * 
+ * @author Andras Belicza
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class UtilsBenchmark {
+	
+	/** Size of the generated replay in bytes. */
+	@Param( { "20480", "131072", "1048576" } )
+	public int size;
+	
+	/** Folder of the generated replay.  */
+	private File   folder;
+	/** The generated replay.            */
+	private File   replay;
+	/** An MD5 digest to be hex encoded. */
+	private byte[] digest;
+	
+	/**
+	 * Generates the replay.
+	 * @throws Exception if the replay cannot be generated
+	 */
+	@Setup
+	public void setup() throws Exception {
+		folder = JmhFixtures.createTempFolder();
+		replay = JmhFixtures.createReplay( folder, "Replay.SC2Replay", size );
+		digest = MessageDigest.getInstance( "MD5" ).digest( replay.getName().getBytes( "UTF-8" ) );
+	}
+	
+	/**
+	 * Deletes the generated replay.
+	 */
+	@TearDown
+	public void tearDown() {
+		JmhFixtures.deleteRecursively( folder );
+	}
+	
+	/**
+	 * Benchmarks {@link StreamBaseline#calculateFileMd5(File)}.
+	 * @return the MD5 of the replay
+	 */
+	@Benchmark
+	public String calculateFileMd5() {
+		return StreamBaseline.calculateFileMd5( replay );
+	}
+	
+	/**
+	 * Benchmarks {@link StreamBaseline#encodeFileBase64(File)}.
+	 * @return the base64 encoded replay
+	 */
+	@Benchmark
+	public String encodeFileBase64() {
+		return StreamBaseline.encodeFileBase64( replay );
+	}
+	
+	/**
+	 * Benchmarks {@link Utils#convertToHexString(byte[])} on an MD5 digest.
+	 * @return the hex string of the digest
+	 */
+	@Benchmark
+	@OutputTimeUnit( TimeUnit.NANOSECONDS )
+	public String convertToHexString() {
+		return Utils.convertToHexString( digest );
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes replays to the auth tokens of the players on machines shared by multiple players.
+ * 
+ * <p>SC2 saves the replays of each account into its own <code>Accounts/&lt;id&gt;/&lt;region-id&gt;</code> folder.
+ * The {@link Settings#KEY_ACCOUNT_TOKENS} setting maps account folders to auth tokens, a replay is uploaded with the token
+ * of the deepest mapped folder containing it, or with the {@link Settings#KEY_AUTH_TOKEN} if no mapped folder contains it.</p>
+ * 
+ * <p>The mapped folders are stored in a trie of path segments, so a lookup takes one step per segment of the path
+ * regardless of the number of mappings. Lookups are cached by the folder of the replay, as all replays of a folder
+ * resolve to the same token. The trie and the cache are rebuilt when a relevant setting changes.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class AccountTokens {
+	
+	/** Max number of cached folders, the cache is cleared when exceeded. */
+	private static final int MAX_CACHE_SIZE = 4096;
+	
+	/** Tells if paths are compared case-insensitively. */
+	private static final boolean IGNORE_CASE = Consts.OS == OperatingSystem.WINDOWS || Consts.OS == OperatingSystem.MAC_OS_X;
+	
+	/**
+	 * A node of the trie, the path segments of the mapped folders lead to it.
+	 */
+	private static class Node {
+		/** Child nodes mapped from the next path segment.                 */
+		final Map< String, Node > childMap = new HashMap< String, Node >();
+		/** Token of the folder of the node; <code>null</code> if not mapped. */
+		String                    token;
+	}
+	
+	/**
+	 * A routing table built from the settings, replaced as a whole when they change.
+	 */
+	private static class Table {
+		/** Root of the trie.                        */
+		final Node                  root     = new Node();
+		/** Token of the replays of unmapped folders. */
+		final String                defaultToken;
+		/** Number of mapped folders.                 */
+		int                         mappingCount;
+		/** Resolved tokens mapped from folder paths. */
+		final Map< String, String > cacheMap = new ConcurrentHashMap< String, String >();
+		
+		/**
+		 * Creates a new Table.
+		 * @param defaultToken token of the replays of unmapped folders
+		 */
+		Table( final String defaultToken ) {
+			this.defaultToken = defaultToken;
+		}
+	}
+	
+	/** The process-wide instance, created on first use. */
+	private static AccountTokens instance;
+	
+	/** The current routing table. */
+	private volatile Table table;
+	
+	/**
+	 * Creates a new AccountTokens.
+	 */
+	private AccountTokens() {
+		table = buildTable();
+	}
+	
+	/**
+	 * Returns the process-wide instance, creates it from the settings on first call.
+	 * @return the process-wide instance
+	 */
+	public static synchronized AccountTokens get() {
+		if ( instance == null ) {
+			final AccountTokens accountTokens = new AccountTokens();
+			Settings.addListener( new Settings.Listener() {
+				@Override
+				public void settingChanged( final String key, final String oldValue, final String newValue ) {
+					if ( Settings.KEY_ACCOUNT_TOKENS.equals( key ) || Settings.KEY_AUTH_TOKEN.equals( key ) || Settings.KEY_REPLAY_FOLDER.equals( key ) )
+						accountTokens.table = buildTable();
+				}
+			} );
+			instance = accountTokens;
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Builds a routing table from the current settings.
+	 * 
+	 * <p>The mapping setting is a list of <code>folder=token</code> entries separated by semicolons or new lines.
+	 * Relative folders are resolved against the replay folder.</p>
+	 * 
+	 * @return the built routing table
+	 */
+	private static Table buildTable() {
+		final Table table      = new Table( Settings.get( Settings.KEY_AUTH_TOKEN ) );
+		final File  baseFolder = new File( Settings.get( Settings.KEY_REPLAY_FOLDER ) );
+		
+		for ( final String entry : Settings.get( Settings.KEY_ACCOUNT_TOKENS ).split( "[;\r\n]" ) ) {
+			final int eqIndex = entry.lastIndexOf( '=' );
+			if ( eqIndex <= 0 ) {
+				if ( entry.trim().length() > 0 )
+					System.out.println( "Invalid account token mapping, expected folder=token: " + entry.trim() );
+				continue;
+			}
+			
+			File folder = new File( entry.substring( 0, eqIndex ).trim() );
+			if ( !folder.isAbsolute() )
+				folder = new File( baseFolder, folder.getPath() );
+			
+			Node node = table.root;
+			for ( final String segment : segments( folder.getAbsolutePath() ) ) {
+				Node child = node.childMap.get( segment );
+				if ( child == null )
+					node.childMap.put( segment, child = new Node() );
+				node = child;
+			}
+			if ( node.token == null )
+				table.mappingCount++;
+			node.token = entry.substring( eqIndex + 1 ).trim();
+		}
+		
+		return table;
+	}
+	
+	/**
+	 * Splits a path into its segments.
+	 * @param path path to split
+	 * @return the segments of the path
+	 */
+	private static String[] segments( final String path ) {
+		return ( IGNORE_CASE ? path.toLowerCase() : path ).split( File.separatorChar == '\\' ? "[\\\\/]+" : "/+" );
+	}
+	
+	/**
+	 * Returns the auth token to upload a replay with.
+	 * @param replay replay to be uploaded
+	 * @return the auth token to upload the replay with
+	 */
+	public String resolve( final File replay ) {
+		final Table table = this.table;
+		if ( table.mappingCount == 0 )
+			return table.defaultToken;
+		
+		final File   folder = replay.getAbsoluteFile().getParentFile();
+		final String path   = folder == null ? "" : folder.getPath();
+		
+		String token = table.cacheMap.get( path );
+		if ( token == null ) {
+			token = table.defaultToken;
+			Node node = table.root;
+			for ( final String segment : segments( path ) ) {
+				node = node.childMap.get( segment );
+				if ( node == null )
+					break;
+				if ( node.token != null )
+					token = node.token;
+			}
+			
+			if ( table.cacheMap.size() >= MAX_CACHE_SIZE )
+				table.cacheMap.clear();
+			table.cacheMap.put( path, token );
+		}
+		
+		return token;
+	}
+	
+	/**
+	 * Returns the number of mapped account folders.
+	 * @return the number of mapped account folders
+	 */
+	public int getMappingCount() {
+		return table.mappingCount;
+	}
+
+}
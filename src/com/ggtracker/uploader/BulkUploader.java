@@ -0,0 +1,334 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One-shot command line bulk uploader: uploads the replays given by paths, folders and glob patterns, and exits.
+ * 
+ * <p>Usage:<br>
+ * <code>java -cp ggtracker-uploader.jar com.ggtracker.uploader.BulkUploader [-workers N] [-config &lt;file&gt;] &lt;path or pattern&gt;...</code><br>
+ * Folders are searched recursively, patterns are described at {@link ReplayFiles}. The auth token and the upload URL
+ * come from the settings file, overridden by the optional config file (see {@link HeadlessUploader}). Settings are never saved.</p>
+ * 
+ * <p>Replays are uploaded by <code>N</code> parallel workers (4 by default). Replays with the same content are only uploaded once,
+ * the rest are skipped. Duplicates are found by the fast {@link LocalHash local fingerprint} and confirmed by the MD5 (which identifies replays
+ * on the server too), so colliding fingerprints never skip a distinct replay. Replays the server already has are only linked (see {@link Md5PreCheck}), not sent.
+ * Progress is printed to the standard error. When done, a one line JSON summary is printed
+ * to the standard output, e.g.:<br>
+ * <code>{"replays":3,"uploaded":2,"linked":0,"skipped":1,"failed":0,"missing":0,"bytes":81920,"seconds":1.250,"replays_per_second":1.60,"megabytes_per_second":0.06,"failed_files":[]}</code></p>
+ * 
+ * <p>Exit status: {@link #EXIT_OK} if all replays were uploaded or skipped, {@link #EXIT_FAILURES} if some replays failed
+ * or some paths did not exist, {@link #EXIT_USAGE} if the arguments are invalid.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class BulkUploader {
+	
+	/** Argument to specify the number of workers. */
+	public static final String ARG_WORKERS = "-workers";
+	/** Argument to specify the config file.       */
+	public static final String ARG_CONFIG  = "-config";
+	
+	/** Exit status if all replays were uploaded or skipped.     */
+	public static final int EXIT_OK       = 0;
+	/** Exit status if some replays failed or paths are missing. */
+	public static final int EXIT_FAILURES = 1;
+	/** Exit status if the arguments are invalid.                */
+	public static final int EXIT_USAGE    = 2;
+	
+	/** Default number of workers. */
+	private static final int DEFAULT_WORKERS = 4;
+	
+	/** Replays to be uploaded.                     */
+	private final List< File > replayList;
+	/** Number of workers.                          */
+	private final int          workers;
+	
+	/** Replays already taken, mapped from their local fingerprint. */
+	private final Map< Long, File > fingerprintFileMap = new ConcurrentHashMap< Long, File >();
+	/** Paths of the replays failed to upload.                       */
+	private final List< String >    failedPathList     = Collections.synchronizedList( new ArrayList< String >() );
+	
+	/** Number of processed replays.  */
+	private final AtomicInteger processed = new AtomicInteger();
+	/** Number of uploaded replays.   */
+	private final AtomicInteger uploaded  = new AtomicInteger();
+	/** Number of linked replays.     */
+	private final AtomicInteger linked    = new AtomicInteger();
+	/** Number of skipped replays.    */
+	private final AtomicInteger skipped   = new AtomicInteger();
+	/** Total size of the uploaded replays. */
+	private final AtomicLong    bytes     = new AtomicLong();
+	
+	/** Nano time when uploading started.  */
+	private long startNanos;
+	/** Nano time when uploading finished. */
+	private long endNanos;
+	
+	/**
+	 * Creates a new BulkUploader.
+	 * @param replayList replays to be uploaded
+	 * @param workers    number of workers
+	 */
+	public BulkUploader( final List< File > replayList, final int workers ) {
+		this.replayList = replayList;
+		this.workers    = Math.max( 1, workers );
+	}
+	
+	/**
+	 * Entry point of the bulk uploader.
+	 * @param arguments options and paths, see the class documentation
+	 */
+	public static void main( final String[] arguments ) {
+		System.setProperty( "java.awt.headless", "true" );
+		
+		int                  workers     = DEFAULT_WORKERS;
+		File                 configFile  = null;
+		final List< String > patternList = new ArrayList< String >();
+		try {
+			for ( int i = 0; i < arguments.length; i++ ) {
+				if ( ARG_WORKERS.equals( arguments[ i ] ) && i + 1 < arguments.length )
+					workers = Integer.parseInt( arguments[ ++i ] );
+				else if ( ARG_CONFIG.equals( arguments[ i ] ) && i + 1 < arguments.length )
+					configFile = new File( arguments[ ++i ] );
+				else
+					patternList.add( arguments[ i ] );
+			}
+		} catch ( final NumberFormatException nfe ) {
+			patternList.clear();
+		}
+		if ( patternList.isEmpty() || workers < 1 ) {
+			System.err.println( "Usage: " + BulkUploader.class.getName() + " [" + ARG_WORKERS + " N] [" + ARG_CONFIG + " <file>] <path or pattern>..." );
+			System.exit( EXIT_USAGE );
+		}
+		
+		// Keep the standard output for the summary, everything else goes to the standard error
+		final PrintStream summaryOutput = System.out;
+		System.setOut( System.err );
+		
+		Settings.loadSettings();
+		if ( configFile != null && !Settings.loadOverrides( configFile ) )
+			System.exit( EXIT_USAGE );
+		
+		final Set< File > replaySet = new LinkedHashSet< File >();
+		final int missing = ReplayFiles.collect( patternList, replaySet );
+		if ( missing > 0 )
+			System.err.println( missing + " path(s) or pattern(s) did not match anything!" );
+		
+		final BulkUploader bulkUploader = new BulkUploader( new ArrayList< File >( replaySet ), workers );
+		bulkUploader.run();
+		
+		summaryOutput.println( bulkUploader.getSummaryJson( missing ) );
+		summaryOutput.flush();
+		
+		System.exit( bulkUploader.getFailedCount() > 0 || missing > 0 ? EXIT_FAILURES : EXIT_OK );
+	}
+	
+	/**
+	 * Uploads the replays, returns when all are processed.
+	 */
+	public void run() {
+		System.err.println( "Uploading " + replayList.size() + " replay(s) with " + workers + " worker(s)..." );
+		startNanos = System.nanoTime();
+		
+		final ExecutorService executor = Executors.newFixedThreadPool( workers, new ThreadFactory() {
+			private final AtomicInteger threadCounter = new AtomicInteger();
+			@Override
+			public Thread newThread( final Runnable runnable ) {
+				return new Thread( runnable, "Bulk uploader #" + threadCounter.incrementAndGet() );
+			}
+		} );
+		for ( final File replay : replayList )
+			executor.execute( new Runnable() {
+				@Override
+				public void run() {
+					upload( replay );
+				}
+			} );
+		
+		executor.shutdown();
+		try {
+			while ( !executor.awaitTermination( 1, TimeUnit.SECONDS ) )
+				;
+		} catch ( final InterruptedException ie ) {
+			executor.shutdownNow();
+		}
+		
+		endNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Uploads a replay.
+	 * @param replay replay to be uploaded
+	 */
+	private void upload( final File replay ) {
+		final UploadJob job = new UploadJob( replay );
+		
+		final ReplaySource source;
+		try {
+			source = ReplaySource.open( replay );
+		} catch ( final IOException ie ) {
+			fail( replay, "could not be read: " + ie );
+			return;
+		}
+		final File original = fingerprintFileMap.putIfAbsent( source.calculateFingerprint(), replay );
+		if ( original != null ) {
+			final String md5 = ReplayUploader.calculateMd5( source );
+			if ( md5 != null && md5.length() > 0 ) {
+				if ( md5.equals( calculateMd5( original ) ) ) {
+					skipped.incrementAndGet();
+					progress( "Skipped " + replay + " (same as " + original + ")" );
+					return;
+				}
+				// Fingerprints collided, the MD5 is not calculated again when preparing
+				job.setMd5( md5 );
+			}
+		}
+		
+		final MemoryBudget budget  = MemoryBudget.get();
+		final long         reserve = MemoryBudget.estimatePayload( job.getLength() );
+		try {
+			budget.reserve( reserve );
+		} catch ( final InterruptedException ie ) {
+			fail( replay, "interrupted" );
+			return;
+		}
+		final String replayUrl;
+		try {
+			if ( !ReplayUploader.prepare( job ) ) {
+				fail( replay, "could not be read" );
+				return;
+			}
+			if ( job.getKnownReplayUrl() != null ) {
+				linked.incrementAndGet();
+				progress( "Linked " + replay + " (already on the server): " + job.getKnownReplayUrl() );
+				return;
+			}
+			replayUrl = ReplayUploader.send( job );
+		} finally {
+			job.setParamsMap( null );
+			budget.release( reserve );
+		}
+		
+		if ( replayUrl == null ) {
+			fail( replay, "upload failed" );
+			return;
+		}
+		
+		uploaded.incrementAndGet();
+		bytes.addAndGet( job.getLength() );
+		progress( "Uploaded " + replay + ": " + replayUrl );
+	}
+	
+	/**
+	 * Returns the MD5 of a replay with the same fingerprint as another one.<br>
+	 * The MD5 of the replay is usually remembered from preparing it, see {@link ReplayUploader#calculateMd5(ReplaySource)}.
+	 * @param original the replay
+	 * @return the MD5 of the replay; <code>null</code> if it cannot be read
+	 */
+	private static String calculateMd5( final File original ) {
+		try {
+			return ReplayUploader.calculateMd5( ReplaySource.open( original ) );
+		} catch ( final IOException ie ) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Registers a failed replay.
+	 * @param replay replay that failed
+	 * @param reason reason of the failure
+	 */
+	private void fail( final File replay, final String reason ) {
+		failedPathList.add( replay.getPath() );
+		progress( "Failed " + replay + " (" + reason + ")" );
+	}
+	
+	/**
+	 * Prints a progress line for a processed replay.
+	 * @param message message describing the outcome
+	 */
+	private void progress( final String message ) {
+		System.err.println( "[" + processed.incrementAndGet() + "/" + replayList.size() + "] " + message );
+	}
+	
+	/**
+	 * Returns the number of replays failed to upload.
+	 * @return the number of replays failed to upload
+	 */
+	public int getFailedCount() {
+		return failedPathList.size();
+	}
+	
+	/**
+	 * Returns the one line JSON summary of the upload.
+	 * @param missing number of paths and patterns that did not match anything
+	 * @return the one line JSON summary of the upload
+	 */
+	public String getSummaryJson( final int missing ) {
+		final double seconds = Math.max( endNanos - startNanos, 1 ) / 1e9;
+		
+		final StringBuilder json = new StringBuilder( 256 );
+		json.append( "{\"replays\":"  ).append( replayList.size() )
+			.append( ",\"uploaded\":" ).append( uploaded.get() )
+			.append( ",\"linked\":"   ).append( linked.get() )
+			.append( ",\"skipped\":"  ).append( skipped.get() )
+			.append( ",\"failed\":"   ).append( getFailedCount() )
+			.append( ",\"missing\":"  ).append( missing )
+			.append( ",\"bytes\":"    ).append( bytes.get() )
+			.append( String.format( Locale.US, ",\"seconds\":%.3f,\"replays_per_second\":%.2f,\"megabytes_per_second\":%.2f",
+				seconds, uploaded.get() / seconds, bytes.get() / seconds / ( 1024 * 1024 ) ) )
+			.append( ",\"failed_files\":[" );
+		synchronized ( failedPathList ) {
+			for ( int i = 0; i < failedPathList.size(); i++ )
+				appendJsonString( i == 0 ? json : json.append( ',' ), failedPathList.get( i ) );
+		}
+		
+		return json.append( "]}" ).toString();
+	}
+	
+	/**
+	 * Appends a string as a JSON string literal.
+	 * @param json  builder to append to
+	 * @param value string to be appended
+	 */
+	private static void appendJsonString( final StringBuilder json, final String value ) {
+		json.append( '"' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			final char ch = value.charAt( i );
+			if ( ch == '"' || ch == '\\' )
+				json.append( '\\' ).append( ch );
+			else if ( ch < 0x20 )
+				json.append( String.format( "\\u%04x", (int) ch ) );
+			else
+				json.append( ch );
+		}
+		json.append( '"' );
+	}
+
+}
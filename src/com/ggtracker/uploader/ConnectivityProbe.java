@@ -0,0 +1,56 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+
+/**
+ * Cheap probe of the reachability of the upload server.
+ * 
+ * <p>Only opens (and closes) a TCP connection to the host and port of the upload URL, nothing is sent,
+ * so probing costs a round trip instead of an upload attempt.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class ConnectivityProbe {
+	
+	/** Timeout of a probe in milliseconds. */
+	public static final int TIMEOUT_MS = 3000;
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private ConnectivityProbe() {
+	}
+	
+	/**
+	 * Tells if the server of a URL can be connected.
+	 * @param urlString URL whose server to probe
+	 * @return true if the server of the URL can be connected; false otherwise
+	 */
+	public static boolean isReachable( final String urlString ) {
+		final Socket socket = new Socket();
+		try {
+			final URL url  = new URL( urlString );
+			final int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+			socket.connect( new InetSocketAddress( url.getHost(), port ), TIMEOUT_MS );
+			return true;
+		} catch ( final IOException ie ) {
+			Log.debug( "Upload server is unreachable: " + ie );
+			return false;
+		} finally {
+			try { socket.close(); } catch ( final IOException ie ) {}
+		}
+	}
+
+}
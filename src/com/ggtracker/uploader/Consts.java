@@ -37,8 +37,22 @@ public class Consts {
 	 * In developer mode logs are not redirected to the log file but printed on the console. */
 	public static final boolean DEV_MODE = System.getProperty( "dev-mode" ) != null;
 	
-	/** Application icon. Used as the main frame icon image and as the tray icon image. */
-	public static final ImageIcon APP_ICON = new ImageIcon( Consts.class.getResource("resources/gg.png") );
+	/**
+	 * Holder of the application icon, so the icon (and AWT with it) is only loaded when first used, not when {@link Consts} is loaded.
+	 */
+	private static class AppIconHolder {
+		/** Application icon. */
+		private static final ImageIcon APP_ICON = new ImageIcon( Consts.class.getResource("resources/gg.png") );
+	}
+	
+	/**
+	 * Returns the application icon. Used as the main frame icon image and as the tray icon image.<br>
+	 * The icon is loaded on first call; must not be called in headless mode.
+	 * @return the application icon
+	 */
+	public static ImageIcon getAppIcon() {
+		return AppIconHolder.APP_ICON;
+	}
 	
 	/** Home page URL.                                                        */
 	public static final String URL_HOME_PAGE          = "http://ggtracker.com/uploader";
@@ -51,7 +65,11 @@ public class Consts {
 	/** Extension of the log files.                                           */
 	public static final String LOG_FILE_EXT           = ".log";
 	
-	/** Days to keep log files for (older files get auto-deleted on startup). */
+	/** Days to keep log files for (older files get auto-deleted on rotation). */
 	public static final int    DAYS_TO_KEEP_LOG_FILES = 14;
+	/** Max size of the log file, it is rotated when it gets bigger.          */
+	public static final long   LOG_MAX_FILE_SIZE      = 2*1024*1024;
+	/** Max total size of the rotated (compressed) log files.                 */
+	public static final long   LOG_MAX_TOTAL_SIZE     = 20*1024*1024;
 	
 }
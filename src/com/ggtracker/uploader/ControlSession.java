@@ -0,0 +1,275 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Handles a connection accepted by the {@link InstanceMonitor}: another instance passing its arguments, or a script controlling the uploader.
+ * 
+ * <p>The protocol is line based, lines are text in the default charset of the platform.
+ * If the first line is a number, the connection uses the protocol of the earlier versions: the number of arguments
+ * followed by the arguments, one per line. The arguments are enqueued for upload, and if there were no replays among them
+ * (the user just started the application again), the main frame is restored.</p>
+ * 
+ * <p>Otherwise every line is a command, and the response of every command ends with a line starting with <code>OK</code> or <code>ERROR</code>:
+ * <ul>
+ * 	<li><code>ENQUEUE &lt;path&gt;</code>: enqueues a replay file, all the replays in a folder and its subfolders,
+ * 		or the replays matched by a glob pattern (see {@link ReplayFiles}),
+ * 	<li><code>ENQUEUE</code>: enqueues the paths and patterns given in the following lines, up to an empty line,
+ * 	<li><code>STATUS</code>: lists the state of the pipeline, one <code>name value</code> pair per line,
+ * 	<li><code>METRICS</code>: lists the metrics in the Prometheus text format,
+ * 	<li><code>PAUSE</code>, <code>RESUME</code>: pauses and resumes sending,
+ * 	<li><code>RESCAN</code>: scans the replay folder immediately,
+ * 	<li><code>SHOW</code>: restores the main frame,
+ * 	<li><code>QUIT</code>: closes the connection.
+ * </ul>
+ * Example: <code>printf 'ENQUEUE\n/replays/old\n\nSTATUS\nQUIT\n' | nc localhost 15634</code></p>
+ * 
+ * <p>Only files with the SC2Replay extension are enqueued, so the connection cannot be used to upload arbitrary files.</p>
+ * 
+ * @author Andras Belicza
+ */
+class ControlSession implements Runnable {
+	
+	/** Time after an idle connection is closed, in milliseconds.      */
+	private static final int  IDLE_TIMEOUT_MS  = 60000;
+	/** Max time to wait for the upload pipeline to start, in milliseconds. */
+	private static final long PIPELINE_WAIT_MS = 10000;
+	
+	/** The accepted connection. */
+	private final Socket socket;
+	
+	/**
+	 * Creates a new ControlSession.
+	 * @param socket the accepted connection
+	 */
+	public ControlSession( final Socket socket ) {
+		this.socket = socket;
+	}
+	
+	/**
+	 * Reads and executes the commands of the connection until it is closed.
+	 */
+	@Override
+	public void run() {
+		BufferedReader input  = null;
+		PrintWriter    output = null;
+		try {
+			socket.setSoTimeout( IDLE_TIMEOUT_MS );
+			input  = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
+			output = new PrintWriter( new OutputStreamWriter( socket.getOutputStream() ) );
+			
+			String line = input.readLine();
+			if ( line == null )
+				return;
+			
+			if ( line.trim().matches( "\\d+" ) ) {
+				handleArguments( Integer.parseInt( line.trim() ), input );
+				return;
+			}
+			
+			do {
+				line = line.trim();
+				if ( line.length() == 0 )
+					continue;
+				
+				final boolean keepOpen = handleCommand( line, input, output );
+				output.flush();
+				if ( !keepOpen )
+					break;
+			} while ( ( line = input.readLine() ) != null );
+		} catch ( final SocketTimeoutException ste ) {
+			Log.debug( "Closing idle control connection." );
+		} catch ( final IOException ie ) {
+			ie.printStackTrace();
+		} finally {
+			if ( output != null )
+				output.close();
+			if ( input != null )
+				try { input.close(); } catch ( final IOException ie ) {}
+			try { socket.close(); } catch ( final IOException ie ) {}
+		}
+	}
+	
+	/**
+	 * Handles the arguments passed by another instance.
+	 * @param argumentsCount number of arguments
+	 * @param input          input to read the arguments from
+	 * @throws IOException if reading the arguments fails
+	 */
+	private void handleArguments( final int argumentsCount, final BufferedReader input ) throws IOException {
+		final List< String > pathList = new ArrayList< String >( argumentsCount );
+		for ( int i = 0; i < argumentsCount; i++ ) {
+			final String argument = input.readLine();
+			if ( argument == null )
+				break;
+			pathList.add( argument );
+		}
+		
+		final List< File > replayList = new ArrayList< File >();
+		ReplayFiles.collect( pathList, replayList );
+		
+		if ( replayList.isEmpty() ) {
+			Log.debug( "Another instance started, restoring the main frame." );
+			// Restore main window even if minimized to system tray (there is none in headless mode)
+			final MainFrame mainFrame = GgtrackerUploader.mainFrame;
+			if ( mainFrame != null )
+				mainFrame.restore();
+		}
+		else {
+			final UploadPipeline uploadPipeline = awaitPipeline();
+			if ( uploadPipeline != null )
+				uploadPipeline.enqueue( replayList );
+		}
+	}
+	
+	/**
+	 * Executes a command.
+	 * @param line   the command line
+	 * @param input  input to read further lines of the command from
+	 * @param output output to write the response to
+	 * @return true if the connection has to be kept open; false if it has to be closed
+	 * @throws IOException if reading the input fails
+	 */
+	private boolean handleCommand( final String line, final BufferedReader input, final PrintWriter output ) throws IOException {
+		final int    spaceIndex = line.indexOf( ' ' );
+		final String command    = ( spaceIndex < 0 ? line : line.substring( 0, spaceIndex ) ).toUpperCase( Locale.ENGLISH );
+		final String argument   = spaceIndex < 0 ? null : line.substring( spaceIndex + 1 ).trim();
+		
+		if ( "QUIT".equals( command ) ) {
+			output.println( "OK bye" );
+			return false;
+		}
+		
+		if ( "SHOW".equals( command ) ) {
+			final MainFrame mainFrame = GgtrackerUploader.mainFrame;
+			if ( mainFrame == null )
+				output.println( "ERROR no main frame" );
+			else {
+				mainFrame.restore();
+				output.println( "OK" );
+			}
+			return true;
+		}
+		
+		if ( "RESCAN".equals( command ) ) {
+			final ReplayFolderMonitor replayFolderMonitor = GgtrackerUploader.replayFolderMonitor;
+			if ( replayFolderMonitor == null )
+				output.println( "ERROR not monitoring" );
+			else {
+				replayFolderMonitor.rescan();
+				output.println( "OK" );
+			}
+			return true;
+		}
+		
+		if ( "METRICS".equals( command ) ) {
+			final StringBuilder metricsBuilder = new StringBuilder( 4096 );
+			Metrics.writePrometheus( metricsBuilder );
+			output.print( metricsBuilder );
+			output.println( "OK" );
+			return true;
+		}
+		
+		if ( !"ENQUEUE".equals( command ) && !"STATUS".equals( command ) && !"PAUSE".equals( command ) && !"RESUME".equals( command ) ) {
+			output.println( "ERROR unknown command: " + command );
+			return true;
+		}
+		
+		// The remaining commands need the pipeline
+		List< String > pathList = null;
+		if ( "ENQUEUE".equals( command ) ) {
+			if ( argument != null && argument.length() > 0 )
+				pathList = Arrays.asList( argument );
+			else {
+				pathList = new ArrayList< String >();
+				String path;
+				while ( ( path = input.readLine() ) != null && path.trim().length() > 0 )
+					pathList.add( path.trim() );
+			}
+		}
+		
+		final UploadPipeline uploadPipeline = awaitPipeline();
+		if ( uploadPipeline == null ) {
+			output.println( "ERROR not ready" );
+			return true;
+		}
+		
+		if ( pathList != null ) {
+			final List< File > replayList = new ArrayList< File >();
+			final int missing = ReplayFiles.collect( pathList, replayList );
+			final int enqueued = uploadPipeline.enqueue( replayList );
+			output.println( "OK enqueued=" + enqueued + " skipped=" + ( replayList.size() - enqueued ) + " missing=" + missing );
+		}
+		else if ( "STATUS".equals( command ) ) {
+			final UploadStatus status = uploadPipeline.getStatus();
+			output.println( "paused "             + uploadPipeline.isPaused() );
+			output.println( "in_flight "          + uploadPipeline.getInFlightCount() );
+			output.println( "backlog "            + uploadPipeline.getBacklogSize() );
+			output.println( "uploaded "           + status.getUploadedCount() );
+			output.println( "failed "             + status.getFailedCount() );
+			output.println( "uploaded_bytes "     + status.getUploadedBytes() );
+			output.println( "memory_budget "      + MemoryBudget.get().getLimit() );
+			output.println( "memory_budget_used " + MemoryBudget.get().getUsed() );
+			output.println( "account_tokens "     + AccountTokens.get().getMappingCount() );
+			if ( uploadPipeline.getSpool() != null ) {
+				output.println( "offline "            + uploadPipeline.getSpool().isOffline() );
+				output.println( "spooled "            + uploadPipeline.getSpool().size() );
+			}
+			output.println( "game_running "       + uploadPipeline.getGameMonitor().isGameRunning() );
+			output.println( "deferring "          + uploadPipeline.getGameMonitor().isDeferring() );
+			for ( final UploadPipeline.Stage stage : uploadPipeline.getStages() ) {
+				output.println( "stage." + stage.getName() + ".queue "  + stage.getQueueDepth() );
+				output.println( "stage." + stage.getName() + ".active " + stage.getActiveCount() );
+			}
+			output.println( "OK" );
+		}
+		else if ( "PAUSE".equals( command ) ) {
+			uploadPipeline.pause();
+			output.println( "OK paused" );
+		}
+		else {
+			uploadPipeline.resume();
+			output.println( "OK resumed" );
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the upload pipeline, waiting for it if the application is still starting.
+	 * @return the upload pipeline; <code>null</code> if it is not started in time
+	 */
+	private static UploadPipeline awaitPipeline() {
+		final long deadline = System.nanoTime() + PIPELINE_WAIT_MS * 1000000;
+		UploadPipeline uploadPipeline;
+		while ( ( uploadPipeline = GgtrackerUploader.uploadPipeline ) == null && System.nanoTime() < deadline )
+			try {
+				Thread.sleep( 50 );
+			} catch ( final InterruptedException ie ) {
+				return null;
+			}
+		
+		return uploadPipeline;
+	}
+
+}
@@ -0,0 +1,348 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tells if a game is being played, so uploads don't compete with the SC2 client for the disk and the network.
+ * 
+ * <p>A background thread checks every {@link Settings#KEY_GAME_POLL_INTERVAL} (backing off while none is running) whether an SC2 client
+ * ({@link Settings#KEY_GAME_PROCESSES}) is in the {@link ProcessTable}. If one is running, the client API of SC2
+ * ({@link Settings#KEY_GAME_CLIENT_API_URL}) is asked which screens are shown: while the player is in the menus
+ * or on the score screen, no game is being played. If the client API is disabled or does not answer, it cannot be told
+ * whether a game is being played, and no game is assumed: uploads are not deferred on a guess.</p>
+ * 
+ * <p>If the {@link Settings#KEY_UPLOAD_TIMING} is {@link #TIMING_BETWEEN_GAMES}, the {@link UploadPipeline} only detects and
+ * enqueues replays during a game; hashing, encoding and sending wait in {@link #awaitNoGame()} until the game ends.
+ * A newly detected replay means a game has just ended, so it triggers a check right away ({@link #checkNow()}),
+ * and the deferred replays are drained as soon as the player is back in the menus. Uploads are deferred at most for the
+ * {@link Settings#KEY_GAME_MAX_DEFERRAL} of a game, so a misdetected game does not hold them back indefinitely.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class GameMonitor {
+	
+	/** Upload timing: upload right away, even during a game. */
+	public static final String TIMING_IMMEDIATELY   = "immediately";
+	/** Upload timing: defer the uploads until the game ends.  */
+	public static final String TIMING_BETWEEN_GAMES = "betweenGames";
+	
+	/** Timeout of asking the client API in milliseconds. */
+	private static final int CLIENT_API_TIMEOUT_MS = 500;
+	
+	/** Pattern of the list of the active screens in the UI state of the client API. */
+	private static final Pattern ACTIVE_SCREENS_PATTERN = Pattern.compile( "\"activeScreens\"\\s*:\\s*\\[([^\\]]*)\\]" );
+	
+	/** Process table to look for the SC2 client in.                    */
+	private final ProcessTable      processTable;
+	/** Listener waking up the waiting uploads when the timing changes. */
+	private final Settings.Listener timingListener = new Settings.Listener() {
+		@Override
+		public void settingChanged( final String key, final String oldValue, final String newValue ) {
+			if ( Settings.KEY_UPLOAD_TIMING.equals( key ) || Settings.KEY_GAME_MAX_DEFERRAL.equals( key ) )
+				signalChange();
+		}
+	};
+	
+	/** Lock guarding the state; not a monitor, which would pin a virtual thread while its upload is deferred. */
+	private final ReentrantLock lock    = new ReentrantLock();
+	/** Condition signalled when the game state or the timing changes, or a check is requested. */
+	private final Condition     changed = lock.newCondition();
+	
+	/** Tells if an SC2 client is running.      */
+	private volatile boolean clientRunning;
+	/** Tells if a game is being played.        */
+	private volatile boolean gameRunning;
+	/** Nano time when the game started.        */
+	private volatile long    gameStartNanos;
+	/** Nano time of the last check.            */
+	private volatile long    lastCheckNanos;
+	/** Tells if a check has been requested.    */
+	private boolean          checkRequested;
+	/** Tells if the max deferral was reported. */
+	private boolean          maxDeferralReported;
+	/** Tells if shutdown has been requested.   */
+	private volatile boolean shuttingDown;
+	
+	/** Thread checking whether a game is running. */
+	private final Thread thread = new Thread( "Upload pipeline - game monitor" ) {
+		@Override
+		public void run() {
+			poll();
+		}
+	};
+	
+	/**
+	 * Creates a new GameMonitor.
+	 * @param processTable process table to look for the SC2 client in
+	 */
+	public GameMonitor( final ProcessTable processTable ) {
+		this.processTable = processTable;
+		
+		Metrics.registerGauge( "game_running", "1 if a game is being played, 0 otherwise.", null, null, new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return gameRunning ? 1 : 0;
+			}
+		} );
+	}
+	
+	/**
+	 * Checks whether a game is running, and starts the checking thread.
+	 */
+	public void start() {
+		gameRunning    = isGameBeingPlayed();
+		lastCheckNanos = System.nanoTime();
+		gameStartNanos = lastCheckNanos;
+		if ( isDeferring() )
+			System.out.println( "A game is being played, deferring uploads until it ends." );
+		Settings.addListener( timingListener );
+		
+		thread.setDaemon( true );
+		thread.start();
+	}
+	
+	/**
+	 * Stops the checking thread.
+	 */
+	public void shutdown() {
+		shuttingDown = true;
+		Settings.removeListener( timingListener );
+		thread.interrupt();
+	}
+	
+	/**
+	 * Tells if an SC2 client is running, whether or not a game is being played in it.
+	 * @return true if an SC2 client is running; false otherwise
+	 */
+	public boolean isClientRunning() {
+		return clientRunning;
+	}
+	
+	/**
+	 * Tells if a game is being played.
+	 * @return true if a game is being played; false otherwise
+	 */
+	public boolean isGameRunning() {
+		return gameRunning;
+	}
+	
+	/**
+	 * Tells if the uploads are deferred: a game is being played, the uploads are to be done between games,
+	 * and the game has not exceeded the {@link Settings#KEY_GAME_MAX_DEFERRAL}.
+	 * @return true if the uploads are deferred; false otherwise
+	 */
+	public boolean isDeferring() {
+		return gameRunning && TIMING_BETWEEN_GAMES.equals( Settings.get( Settings.KEY_UPLOAD_TIMING ) ) && getDeferralLeftMs() > 0;
+	}
+	
+	/**
+	 * Returns the time left until the uploads of the current game may no longer be deferred.
+	 * @return the time left until the max deferral is reached, in milliseconds, rounded up
+	 */
+	private long getDeferralLeftMs() {
+		final long leftNanos = gameStartNanos + Settings.getInt( Settings.KEY_GAME_MAX_DEFERRAL ) * 1000000l - System.nanoTime();
+		return leftNanos <= 0 ? 0 : ( leftNanos + 999999 ) / 1000000;
+	}
+	
+	/**
+	 * Waits while the uploads are deferred, at most until the game exceeds the {@link Settings#KEY_GAME_MAX_DEFERRAL}.
+	 * @return true if had to wait; false if the uploads were not deferred
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitNoGame() throws InterruptedException {
+		// The poller backs off while no client is running, the state must be fresh before starting heavy work
+		if ( System.nanoTime() - lastCheckNanos > getPollIntervalMs() * 1000000 )
+			check();
+		
+		lock.lockInterruptibly();
+		try {
+			if ( !isDeferring() )
+				return false;
+			
+			Metrics.GAME_DEFERRALS.inc();
+			while ( isDeferring() )
+				changed.await( getDeferralLeftMs() + 1, TimeUnit.MILLISECONDS );
+			if ( gameRunning && getDeferralLeftMs() == 0 && !maxDeferralReported ) {
+				maxDeferralReported = true;
+				System.out.println( "The game exceeded the max deferral, uploading the deferred replays." );
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Requests a check whether a game is running right away instead of at the next poll.
+	 */
+	public void checkNow() {
+		lock.lock();
+		try {
+			checkRequested = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Wakes up the waiting uploads and the poller to reevaluate the state.
+	 */
+	private void signalChange() {
+		lock.lock();
+		try {
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the polling interval while an SC2 client is running.
+	 * @return the polling interval while an SC2 client is running, in milliseconds
+	 */
+	private static long getPollIntervalMs() {
+		return Math.max( 100, Settings.getInt( Settings.KEY_GAME_POLL_INTERVAL ) );
+	}
+	
+	/**
+	 * Checks whether a game is running until shutdown.
+	 * 
+	 * <p>While no SC2 client is running, the polling interval doubles after each check up to the
+	 * {@link Settings#KEY_MONITOR_POLL_MAX_INTERVAL}, so an idle uploader hardly wakes up;
+	 * {@link #awaitNoGame()} checks right away if the last check is older than the {@link Settings#KEY_GAME_POLL_INTERVAL}.</p>
+	 */
+	private void poll() {
+		long intervalMs = getPollIntervalMs();
+		try {
+			while ( !shuttingDown ) {
+				lock.lockInterruptibly();
+				try {
+					long remainingNanos = intervalMs * 1000000;
+					while ( !checkRequested && remainingNanos > 0 )
+						remainingNanos = changed.awaitNanos( remainingNanos );
+					checkRequested = false;
+				} finally {
+					lock.unlock();
+				}
+				
+				check();
+				
+				final long pollIntervalMs = getPollIntervalMs();
+				if ( clientRunning )
+					intervalMs = pollIntervalMs;
+				else
+					intervalMs = Math.max( pollIntervalMs, Math.min( Settings.getInt( Settings.KEY_MONITOR_POLL_MAX_INTERVAL ), intervalMs * 2 ) );
+			}
+		} catch ( final InterruptedException ie ) {
+			// Shutting down
+		}
+	}
+	
+	/**
+	 * Checks whether a game is running, and wakes up the waiting uploads if it changed.
+	 */
+	private void check() {
+		final boolean running = isGameBeingPlayed();
+		lastCheckNanos = System.nanoTime();
+		
+		lock.lock();
+		try {
+			if ( running == gameRunning )
+				return;
+			
+			gameRunning = running;
+			if ( running ) {
+				gameStartNanos      = System.nanoTime();
+				maxDeferralReported = false;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if ( TIMING_BETWEEN_GAMES.equals( Settings.get( Settings.KEY_UPLOAD_TIMING ) ) )
+			System.out.println( running ? "Game started, deferring uploads until it ends." : "Game ended, uploading the deferred replays." );
+	}
+	
+	/**
+	 * Tells if a game is being played: an SC2 client is running and its client API tells it does not show any menu screens.
+	 * Also updates whether an SC2 client is running.
+	 * @return true if a game is being played; false otherwise, also if the client API cannot tell
+	 */
+	private boolean isGameBeingPlayed() {
+		final List< String > processList = new ArrayList< String >();
+		for ( final String name : Settings.get( Settings.KEY_GAME_PROCESSES ).split( ";" ) )
+			if ( name.trim().length() > 0 )
+				processList.add( name.trim() );
+		
+		clientRunning = processTable.isAnyRunning( processList );
+		if ( !clientRunning )
+			return false;
+		
+		final Boolean inMenus = isClientInMenus();
+		return inMenus != null && !inMenus;
+	}
+	
+	/**
+	 * Asks the client API of SC2 if the client shows menu screens.
+	 * @return true if the client shows menu screens; false if it shows none (a game or a replay is being played);
+	 * 		<code>null</code> if it cannot be told
+	 */
+	private static Boolean isClientInMenus() {
+		final String urlString = Settings.get( Settings.KEY_GAME_CLIENT_API_URL );
+		if ( urlString.length() == 0 )
+			return null;
+		
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL( urlString ).openConnection();
+			connection.setConnectTimeout( CLIENT_API_TIMEOUT_MS );
+			connection.setReadTimeout( CLIENT_API_TIMEOUT_MS );
+			if ( connection.getResponseCode() != HttpURLConnection.HTTP_OK )
+				return null;
+			
+			final ByteArrayOutputStream response = new ByteArrayOutputStream();
+			final InputStream           input    = connection.getInputStream();
+			try {
+				final byte[] buffer = new byte[ 1024 ];
+				int count;
+				while ( ( count = input.read( buffer ) ) > 0 )
+					response.write( buffer, 0, count );
+			} finally {
+				input.close();
+			}
+			
+			// Like {"activeScreens":["ScreenHome/ScreenHome"]}, the list is empty during a game
+			final Matcher matcher = ACTIVE_SCREENS_PATTERN.matcher( response.toString( "UTF-8" ) );
+			return matcher.find() ? matcher.group( 1 ).trim().length() > 0 : null;
+		} catch ( final IOException ie ) {
+			Log.debug( "SC2 client API is not available: " + ie );
+			return null;
+		} finally {
+			if ( connection != null )
+				connection.disconnect();
+		}
+	}
+
+}
@@ -10,10 +10,7 @@
 package com.ggtracker.uploader;
 
 import java.awt.AWTException;
-
-import java.net.URLClassLoader;
-
-import java.awt.Frame;
+import java.awt.EventQueue;
 import java.awt.MenuItem;
 import java.awt.PopupMenu;
 import java.awt.SystemTray;
@@ -22,19 +19,18 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.IOException;
-import java.net.URL;
-import java.util.Enumeration;
+import java.lang.management.ManagementFactory;
 
 import javax.swing.UIManager;
 
-import java.net.URLClassLoader;
 /**
  * This is the main class of ggtracker uploader.
  * 
  * <p>Application starts in development mode if the <code>"dev-mode"</code> environment variable is present (see {@link Consts#DEV_MODE} for details).
  * You can achieve this by passing the <code>-Ddev-mode</code> VM argument to the <code>java.exe</code> or <code>javaw.exe</code> process.</p>
  * 
+ * <p>Passing the <code>-headless</code> argument starts the {@link HeadlessUploader} service mode without any GUI.</p>
+ * 
  * @author Andras Belicza
  */
 public class GgtrackerUploader {
@@ -44,6 +40,12 @@ public class GgtrackerUploader {
 	/** Reference to the replay folder monitor. */
 	public static ReplayFolderMonitor replayFolderMonitor;
 	
+	/** Reference to the upload pipeline. */
+	public static UploadPipeline      uploadPipeline;
+	
+	/** Reference to the upload history, set when loaded. */
+	public static volatile UploadHistory uploadHistory;
+	
 	/** Reference to the tray icon. */
 	public static TrayIcon            trayIcon;
 	
@@ -62,121 +64,207 @@ public class GgtrackerUploader {
 	 * @param arguments arguments passed on to us
 	 */
 	public static void main( final String[] arguments ) {
-		// Set Look and Feel.
-		try {
-			UIManager.setLookAndFeel( UIManager.getSystemLookAndFeelClassName() );
-		} catch ( final Exception e ) {
-			e.printStackTrace();
+		// Headless mode must be decided before anything touches AWT or Swing
+		if ( HeadlessUploader.isRequested( arguments ) ) {
+			HeadlessUploader.main( arguments );
+			return;
 		}
-        ClassLoader cl = ClassLoader.getSystemClassLoader();
-        
-        URL[] urls = ((URLClassLoader)cl).getURLs();
- 
-        for(URL url: urls){
-        	System.out.println(url.getFile());
-        }
-		System.out.println(GgtrackerUploader.class.getClassLoader().getClass().getName());
+		
 		// Check running instances and active it if there's one
-		 InstanceMonitor.checkRunningInstance( arguments );
+		InstanceMonitor.checkRunningInstance( arguments );
 		
-		// Init logging
+		// Initializing AWT and Swing takes the most time of the startup, do it in parallel with starting the monitoring
+		final Thread guiInitializer = new Thread( "GUI initializer" ) {
+			@Override
+			public void run() {
+				// Set Look and Feel.
+				try {
+					UIManager.setLookAndFeel( UIManager.getSystemLookAndFeelClassName() );
+				} catch ( final Exception e ) {
+					e.printStackTrace();
+				}
+				Consts.getAppIcon();
+			}
+		};
+		guiInitializer.start();
+		
+		// Init logging (housekeeping of old logs is done by the log writer thread)
 		Log.init();
 		
 		// Load settings:
 		Settings.loadSettings();
 		
+		// Start the upload pipeline
+		uploadPipeline = new UploadPipeline();
+		uploadPipeline.start();
+		uploadPipeline.resumeCheckpoint();
+		
 		// Initialize replay folder monitor
 		initReplayFolderMonitor();
+		watchReplayFolderSetting();
 		
-		// Install tray icon
-		setupTrayIcon();
+		// Expose the metrics locally
+		StatsServer.start();
+		
+		// The history is not needed to monitor and upload, load it after the monitoring started
+		final Thread historyLoader = startHistoryLoader();
+		
+		// The look and feel must be set before any component is created, the main frame shows if the history is available
+		try {
+			guiInitializer.join();
+			historyLoader.join();
+		} catch ( final InterruptedException ie ) {
+			ie.printStackTrace();
+		}
 		
-		// Create and display main frame
-		mainFrame = new MainFrame();
+		EventQueue.invokeLater( new Runnable() {
+			@Override
+			public void run() {
+				// Install tray icon
+				setupTrayIcon();
+				
+				// Create and display main frame
+				mainFrame = new MainFrame();
+				
+				logStartupCompleted( "GUI" );
+			}
+		} );
+	}
+	
+	/**
+	 * Logs that the startup completed, with the time elapsed since the start of the JVM.
+	 * @param mode name of the started mode
+	 */
+	static void logStartupCompleted( final String mode ) {
+		System.out.println( "Startup completed in " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms (" + mode + " mode)." );
+	}
+	
+	/**
+	 * Starts loading the upload history in the background.<br>
+	 * When loaded, it is set to {@link #uploadHistory} and attached to the {@link #uploadPipeline}.
+	 * Uploads finishing before that are not recorded in the history.
+	 * @return the thread loading the upload history
+	 */
+	static Thread startHistoryLoader() {
+		final Thread historyLoader = new Thread( "History loader" ) {
+			@Override
+			public void run() {
+				final long start = System.nanoTime();
+				final UploadHistory history = new UploadHistory( UploadHistory.HISTORY_FOLDER, Settings.getInt( Settings.KEY_HISTORY_MAX_RECORDS ) );
+				if ( !history.load() )
+					return;
+				
+				System.out.println( "Loaded " + history.size() + " upload history record(s) in " + ( System.nanoTime() - start ) / 1000000 + " ms." );
+				uploadHistory = history;
+				uploadPipeline.setHistory( history );
+			}
+		};
+		historyLoader.setDaemon( true );
+		historyLoader.start();
+		return historyLoader;
 	}
 	
 	/**
 	 * Initializes the replay folder monitor.<br>
-	 * If a monitor is already running, it will be stopped.
+	 * If a monitor is already running, it will be stopped (and waited for a bounded time).
 	 */
 	public static synchronized void initReplayFolderMonitor() {
 		if ( replayFolderMonitor != null )
-			replayFolderMonitor.requestToCancel();
+			replayFolderMonitor.shutdown();
 		
-		replayFolderMonitor = new ReplayFolderMonitor();
+		replayFolderMonitor = new ReplayFolderMonitor( uploadPipeline );
 		replayFolderMonitor.start();
 	}
 	
 	/**
-	 * Sets up the tray icon.
+	 * Registers a setting listener which restarts the replay folder monitor when the replay folder setting changes.
 	 */
-	private static void setupTrayIcon() {
-		if ( !SystemTray.isSupported() ) {
-			System.out.println( "System tray is not supported!" );
-			return;
-		}
-		
-		
-		try {
-			Enumeration<URL> urls = Consts.class.getClassLoader().getResources("");
-			while(urls.hasMoreElements()) {
-				System.out.println(urls.nextElement());
-			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		trayIcon = new TrayIcon( Consts.APP_ICON.getImage(), Consts.APP_NAME + " is running." );
-		trayIcon.setImageAutoSize( true );
-		
-		try {
-	        SystemTray.getSystemTray().add( trayIcon );
-        } catch ( final AWTException ae ) {
-			System.out.println( "Failed to install system tray icon!" );
-	        ae.printStackTrace();
-	        trayIcon = null;
-        }
-		
-		popupMenu = new PopupMenu();
-		final MenuItem quitMenuItem = new MenuItem("Quit and Stop Uploading");
-		quitMenuItem.addActionListener(new ActionListener() {
-			public void actionPerformed( final ActionEvent event) {
-				exit();
-			}
-		});
-		
-		final MenuItem showHideMenuItem = new MenuItem("Minimize to Tray");
-		showHideMenuItem.addActionListener( new ActionListener() {
+	static void watchReplayFolderSetting() {
+		Settings.addListener( new Settings.Listener() {
 			@Override
-			public void actionPerformed( final ActionEvent event ) {
-				if (!mainFrame.isVisible()) {
-					show();
-				} else {
-					hide();
+			public void settingChanged( final String key, final String oldValue, final String newValue ) {
+				if ( Settings.KEY_REPLAY_FOLDER.equals( key ) ) {
+					System.out.println( "Replay folder changed to: " + newValue );
+					initReplayFolderMonitor();
 				}
 			}
 		} );
+	}
+	
+	/**
+	 * Sets up the tray icon.
+	 */
+	private static void setupTrayIcon() {
+		TrayIconInstaller.install();
+	}
+	
+	/**
+	 * Installs the tray icon.<br>
+	 * This is a separate class so loading (and verifying) {@link GgtrackerUploader} does not load AWT classes in headless mode.
+	 */
+	private static class TrayIconInstaller {
 		
-		
-		popupMenu.add( showHideMenuItem );
-		popupMenu.add( quitMenuItem );
-		trayIcon.setPopupMenu( popupMenu );
-		
-		// Windows properly passes left click to the tray icon, MAC OS-X does not!
-		// So this listener probably will only work on windows for now. Need OS-X Solution!
-		trayIcon.addMouseListener(new MouseAdapter() {
-			@Override
-			public void mouseClicked( final MouseEvent event ) {
-				if (event.getButton() == MouseEvent.BUTTON1) {
-    				if (!mainFrame.isVisible()) {
-    					show();
-    				} else {
-    					hide();
-    				}
-				}
+		/**
+		 * Sets up the tray icon.
+		 */
+		private static void install() {
+			if ( !SystemTray.isSupported() ) {
+				System.out.println( "System tray is not supported!" );
+				return;
 			}
-		});
+			
+			trayIcon = new TrayIcon( Consts.getAppIcon().getImage(), Consts.APP_NAME + " is running." );
+			trayIcon.setImageAutoSize( true );
+			
+			try {
+		        SystemTray.getSystemTray().add( trayIcon );
+	        } catch ( final AWTException ae ) {
+				System.out.println( "Failed to install system tray icon!" );
+		        ae.printStackTrace();
+		        trayIcon = null;
+	        }
+			
+			popupMenu = new PopupMenu();
+			final MenuItem quitMenuItem = new MenuItem("Quit and Stop Uploading");
+			quitMenuItem.addActionListener(new ActionListener() {
+				public void actionPerformed( final ActionEvent event) {
+					exit();
+				}
+			});
+			
+			final MenuItem showHideMenuItem = new MenuItem("Minimize to Tray");
+			showHideMenuItem.addActionListener( new ActionListener() {
+				@Override
+				public void actionPerformed( final ActionEvent event ) {
+					if (!mainFrame.isVisible()) {
+						show();
+					} else {
+						hide();
+					}
+				}
+			} );
+			
+			
+			popupMenu.add( showHideMenuItem );
+			popupMenu.add( quitMenuItem );
+			trayIcon.setPopupMenu( popupMenu );
+			
+			// Windows properly passes left click to the tray icon, MAC OS-X does not!
+			// So this listener probably will only work on windows for now. Need OS-X Solution!
+			trayIcon.addMouseListener(new MouseAdapter() {
+				@Override
+				public void mouseClicked( final MouseEvent event ) {
+					if (event.getButton() == MouseEvent.BUTTON1) {
+	    				if (!mainFrame.isVisible()) {
+	    					show();
+	    				} else {
+	    					hide();
+	    				}
+					}
+				}
+			});
+		}
+		
 	}
 	
 	public static void hide() {
@@ -201,8 +289,12 @@ public class GgtrackerUploader {
 	 * Exits the application.
 	 */
 	public static void exit() {
-		// Wait for the folder monitor to shut down properly so if an upload is in progress, we will not interrupt it.
+		// Wait for the folder monitor and the pipeline to shut down properly so if an upload is in progress, we will not interrupt it.
+		// Waiting is bounded: uploads not finishing before the drain deadline are aborted and resumed on next start.
 		replayFolderMonitor.shutdown();
+		uploadPipeline.shutdown();
+		if ( uploadHistory != null )
+			uploadHistory.close();
 		
 		System.exit( 0 );
 	}
@@ -0,0 +1,163 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Headless service mode of ggtracker uploader, for servers without a display.
+ * 
+ * <p>Never loads AWT or Swing: there is no look and feel, tray icon or main frame. Logs go to the log files (see {@link Log}).
+ * Started by passing <code>-headless</code> to {@link GgtrackerUploader}, or by running this class directly.</p>
+ * 
+ * <p>Configuration comes from the settings file, overridden by an optional config file in the Java properties format
+ * (<code>key=value</code> lines with the keys of {@link Settings}), specified by the <code>-config &lt;file&gt;</code> argument
+ * or {@link #DEFAULT_CONFIG_FILE} if it exists.</p>
+ * 
+ * <p>Signals (where supported):
+ * <ul>
+ * 	<li><b>SIGHUP</b>: reloads the settings and the config file, and restarts the replay folder monitor if the replay folder changed,
+ * 	<li><b>SIGTERM</b>, <b>SIGINT</b>: shuts down: in-flight uploads get the drain deadline, unfinished ones are checkpointed.
+ * </ul></p>
+ * 
+ * @author Andras Belicza
+ */
+public class HeadlessUploader {
+	
+	/** Argument to start the headless mode.        */
+	public static final String ARG_HEADLESS = "-headless";
+	/** Argument to specify the config file.        */
+	public static final String ARG_CONFIG   = "-config";
+	
+	/** Config file used if none is specified.      */
+	public static final File DEFAULT_CONFIG_FILE = new File( Consts.FOLDER_USER_CONTENT, "uploader.properties" );
+	
+	/** The config file; <code>null</code> if there is none. */
+	private static File configFile;
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private HeadlessUploader() {
+	}
+	
+	/**
+	 * Tells if the headless mode is requested by the arguments.
+	 * @param arguments arguments of the application
+	 * @return true if the headless mode is requested; false otherwise
+	 */
+	public static boolean isRequested( final String[] arguments ) {
+		for ( final String argument : arguments )
+			if ( ARG_HEADLESS.equals( argument ) )
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Entry point of the headless mode.
+	 * @param arguments arguments of the application: optional <code>-headless</code> and <code>-config &lt;file&gt;</code>
+	 */
+	public static void main( final String[] arguments ) {
+		// Fail fast instead of opening a window if something tries to use AWT anyway
+		System.setProperty( "java.awt.headless", "true" );
+		
+		for ( int i = 0; i < arguments.length; i++ )
+			if ( ARG_CONFIG.equals( arguments[ i ] ) && i + 1 < arguments.length )
+				configFile = new File( arguments[ ++i ] ).getAbsoluteFile();
+		if ( configFile == null && DEFAULT_CONFIG_FILE.exists() )
+			configFile = DEFAULT_CONFIG_FILE;
+		
+		// Check running instances, there can only be one
+		InstanceMonitor.checkRunningInstance( new String[ 0 ] );
+		
+		Log.init();
+		
+		loadSettings();
+		
+		GgtrackerUploader.uploadPipeline = new UploadPipeline();
+		GgtrackerUploader.uploadPipeline.start();
+		GgtrackerUploader.uploadPipeline.resumeCheckpoint();
+		
+		GgtrackerUploader.initReplayFolderMonitor();
+		GgtrackerUploader.watchReplayFolderSetting();
+		
+		StatsServer.start();
+		
+		GgtrackerUploader.startHistoryLoader();
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( "Headless shutdown" ) {
+			@Override
+			public void run() {
+				System.out.println( "Shutting down..." );
+				GgtrackerUploader.replayFolderMonitor.shutdown();
+				GgtrackerUploader.uploadPipeline.shutdown();
+				if ( GgtrackerUploader.uploadHistory != null )
+					GgtrackerUploader.uploadHistory.close();
+				StatsServer.stop();
+				Log.shutdown();
+			}
+		} );
+		installReloadSignal();
+		
+		GgtrackerUploader.logStartupCompleted( "headless" );
+		// The pipeline and monitor threads keep running
+	}
+	
+	/**
+	 * Loads the settings file and the config file.
+	 */
+	private static void loadSettings() {
+		Settings.loadSettings();
+		
+		if ( configFile != null && Settings.loadOverrides( configFile ) )
+			System.out.println( "Loaded config file: " + configFile );
+	}
+	
+	/**
+	 * Installs the SIGHUP handler to reload the configuration.<br>
+	 * <code>sun.misc.Signal</code> is accessed with reflection as it is not a public API and might not be present.
+	 */
+	private static void installReloadSignal() {
+		try {
+			final Class< ? > signalClass  = Class.forName( "sun.misc.Signal" );
+			final Class< ? > handlerClass = Class.forName( "sun.misc.SignalHandler" );
+			
+			final Object handler = Proxy.newProxyInstance( handlerClass.getClassLoader(), new Class< ? >[] { handlerClass }, new InvocationHandler() {
+				@Override
+				public Object invoke( final Object proxy, final Method method, final Object[] args ) throws Throwable {
+					if ( method.getDeclaringClass() == Object.class )
+						return method.invoke( this, args );
+					
+					reload();
+					return null;
+				}
+			} );
+			
+			signalClass.getMethod( "handle", signalClass, handlerClass ).invoke( null, signalClass.getConstructor( String.class ).newInstance( "HUP" ), handler );
+		} catch ( final Throwable t ) {
+			// Not supported on this platform (e.g. Windows), reload requires a restart
+			System.out.println( "SIGHUP is not supported, configuration reload is not available." );
+		}
+	}
+	
+	/**
+	 * Reloads the settings and the config file. The replay folder monitor is restarted by its setting listener if the replay folder changed.<br>
+	 * Settings read on each use (like the upload URL, the auth token and the timeouts) take effect immediately,
+	 * the pipeline thread counts require a restart.
+	 */
+	private static synchronized void reload() {
+		System.out.println( "Reloading configuration..." );
+		loadSettings();
+	}
+
+}
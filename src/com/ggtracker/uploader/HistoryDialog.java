@@ -0,0 +1,212 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.awt.BorderLayout;
+import java.awt.EventQueue;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Dialog to search the upload history.
+ * 
+ * <p>Queries run in a background thread, only the result of the last query is displayed.
+ * Double clicking an uploaded replay opens its page.</p>
+ * 
+ * @author Andras Belicza
+ */
+@SuppressWarnings( "serial" )
+public class HistoryDialog extends JDialog {
+	
+	/** Max number of records displayed. */
+	private static final int    MAX_ROWS = 1000;
+	
+	/** Filter showing all records.                  */
+	private static final String FILTER_ALL      = "All uploads";
+	/** Filter showing the records of the last 24 h. */
+	private static final String FILTER_LAST_DAY = "Last 24 hours";
+	/** Filter showing the failed uploads.           */
+	private static final String FILTER_FAILURES = "Failures";
+	
+	/** Names of the table columns. */
+	private static final String[] COLUMN_NAMES = { "Time", "Replay", "Result", "Size", "Replay URL" };
+	
+	/** The upload history.       */
+	private final UploadHistory history;
+	
+	/** Field of the search text. */
+	private final JTextField          searchTextField  = new JTextField( 25 );
+	/** Combo box of the filters. */
+	private final JComboBox< String > filterComboBox   = new JComboBox< String >( new String[] { FILTER_ALL, FILTER_LAST_DAY, FILTER_FAILURES } );
+	/** Label to display the number of records. */
+	private final JLabel              resultLabel      = new JLabel( " " );
+	
+	/** Records displayed in the table. */
+	private List< UploadHistory.Entry > entryList = new ArrayList< UploadHistory.Entry >();
+	
+	/** Number of the last query, results of earlier queries are discarded. */
+	private final AtomicInteger queryCounter = new AtomicInteger();
+	
+	/** Model of the history table. */
+	private final AbstractTableModel tableModel = new AbstractTableModel() {
+		/** Format of the upload times. */
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
+		@Override
+		public int getRowCount() {
+			return entryList.size();
+		}
+		@Override
+		public int getColumnCount() {
+			return COLUMN_NAMES.length;
+		}
+		@Override
+		public String getColumnName( final int column ) {
+			return COLUMN_NAMES[ column ];
+		}
+		@Override
+		public Object getValueAt( final int row, final int column ) {
+			final UploadHistory.Entry entry = entryList.get( row );
+			switch ( column ) {
+			case 0  : return dateFormat.format( new Date( entry.getTime() ) );
+			case 1  : return new File( entry.getPath() ).getName();
+			case 2  : return entry.isUploaded() ? "Uploaded" : "Failed";
+			case 3  : return ( entry.getSize() + 512 ) / 1024 + " KB";
+			default : return entry.getReplayUrl() == null ? "" : entry.getReplayUrl();
+			}
+		}
+	};
+	
+	/**
+	 * Creates a new HistoryDialog.
+	 * @param owner   owner frame
+	 * @param history the upload history
+	 */
+	public HistoryDialog( final JFrame owner, final UploadHistory history ) {
+		super( owner, "Upload history" );
+		
+		this.history = history;
+		
+		setDefaultCloseOperation( DISPOSE_ON_CLOSE );
+		
+		buildGUI();
+		
+		setSize( 800, 500 );
+		setLocationRelativeTo( owner );
+		
+		search();
+	}
+	
+	/**
+	 * Builds the graphical user interface of the dialog.
+	 */
+	private void buildGUI() {
+		final ActionListener searchListener = new ActionListener() {
+			@Override
+			public void actionPerformed( final ActionEvent event ) {
+				search();
+			}
+		};
+		
+		final JPanel searchPanel = new JPanel( new FlowLayout( FlowLayout.LEFT ) );
+		searchPanel.add( new JLabel( "Search (name, path, URL or MD5):" ) );
+		searchTextField.addActionListener( searchListener );
+		searchPanel.add( searchTextField );
+		filterComboBox.addActionListener( searchListener );
+		searchPanel.add( filterComboBox );
+		final JButton searchButton = new JButton( "Search" );
+		searchButton.addActionListener( searchListener );
+		searchPanel.add( searchButton );
+		getContentPane().add( searchPanel, BorderLayout.NORTH );
+		
+		final JTable table = new JTable( tableModel );
+		table.setAutoCreateRowSorter( true );
+		table.getColumnModel().getColumn( 0 ).setPreferredWidth( 130 );
+		table.getColumnModel().getColumn( 1 ).setPreferredWidth( 220 );
+		table.getColumnModel().getColumn( 2 ).setPreferredWidth( 70 );
+		table.getColumnModel().getColumn( 3 ).setPreferredWidth( 60 );
+		table.getColumnModel().getColumn( 4 ).setPreferredWidth( 300 );
+		table.addMouseListener( new MouseAdapter() {
+			@Override
+			public void mouseClicked( final MouseEvent event ) {
+				if ( event.getClickCount() < 2 )
+					return;
+				final int row = table.rowAtPoint( event.getPoint() );
+				if ( row < 0 )
+					return;
+				final UploadHistory.Entry entry = entryList.get( table.convertRowIndexToModel( row ) );
+				if ( entry.getReplayUrl() != null )
+					Utils.showURLInBrowser( entry.getReplayUrl() );
+			}
+		} );
+		getContentPane().add( new JScrollPane( table ), BorderLayout.CENTER );
+		
+		resultLabel.setBorder( BorderFactory.createEmptyBorder( 3, 5, 3, 5 ) );
+		getContentPane().add( resultLabel, BorderLayout.SOUTH );
+	}
+	
+	/**
+	 * Starts a query with the current search text and filter.
+	 */
+	private void search() {
+		final String  text         = searchTextField.getText();
+		final Object  filter       = filterComboBox.getSelectedItem();
+		final long    since        = FILTER_LAST_DAY.equals( filter ) ? System.currentTimeMillis() - 24*60*60*1000L : Long.MIN_VALUE;
+		final boolean failuresOnly = FILTER_FAILURES.equals( filter );
+		final int     queryNumber  = queryCounter.incrementAndGet();
+		
+		resultLabel.setText( "Searching..." );
+		
+		final Thread queryThread = new Thread( "History query" ) {
+			@Override
+			public void run() {
+				final long start = System.nanoTime();
+				final List< UploadHistory.Entry > resultList = history.query( since, failuresOnly, text, MAX_ROWS );
+				final long queryMs = ( System.nanoTime() - start ) / 1000000;
+				
+				EventQueue.invokeLater( new Runnable() {
+					@Override
+					public void run() {
+						if ( queryNumber != queryCounter.get() )
+							return; // A newer query is running
+						
+						entryList = resultList;
+						tableModel.fireTableDataChanged();
+						resultLabel.setText( "Showing " + resultList.size() + ( resultList.size() == MAX_ROWS ? " (max)" : "" ) + " of "
+							+ history.size() + " record(s), the newest first. Query took " + queryMs + " ms. Double click a row to open the replay page." );
+					}
+				} );
+			}
+		};
+		queryThread.setDaemon( true );
+		queryThread.start();
+	}
+
+}
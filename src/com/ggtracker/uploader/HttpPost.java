@@ -14,12 +14,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utility class to perform an HTTP POST.
@@ -27,6 +33,12 @@ import java.util.Map.Entry;
  * <p>Parameters are sent as if they would be part of an HTML form. The content-type (<code>"Content-Type"</code> request property)
  * of the request will be set to <code>"application/x-www-form-urlencoded;charset"</code>.</p>
  * 
+ * <p>The request body is built before connecting and is streamed with a fixed length, so it is not buffered again
+ * by the underlying connection, and the time spent on sending and on waiting for the server can be measured separately.</p>
+ * 
+ * <p>Besides the connect and read timeouts of the underlying connection a total timeout can be set:
+ * when it expires, the connection is closed from a watchdog thread which unblocks any pending I/O.</p>
+ * 
  * @author Andras Belicza
  */
 public class HttpPost {
@@ -34,6 +46,16 @@ public class HttpPost {
 	/** Charset to be used. */
 	private static final String DEFAULT_CHARSET = "UTF-8";
 	
+	/** Watchdog to abort posts exceeding their total timeout. */
+	private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+		@Override
+		public Thread newThread( final Runnable runnable ) {
+			final Thread thread = new Thread( runnable, "HTTP POST watchdog" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	} );
+	
 	/** Map of parameters to be sent.           */
 	private final Map< String, String > paramsMap;
 	/** URL string to post to.                  */
@@ -41,8 +63,35 @@ public class HttpPost {
 	/** Optional additional request properties. */
 	private Map< String, String >       requestPropertyMap;
 	
+	/** Connect timeout in milliseconds, <code>0</code> means infinite.        */
+	private int                         connectTimeout;
+	/** Read timeout in milliseconds, <code>0</code> means infinite.           */
+	private int                         readTimeout;
+	/** Total timeout in milliseconds, <code>0</code> means infinite.          */
+	private long                        totalTimeout;
+	
 	/** HttpUrlConnection to perform the POST.  */
-	private HttpURLConnection           httpUrlConnection;
+	private volatile HttpURLConnection  httpUrlConnection;
+	/** Scheduled abort enforcing the total timeout. */
+	private ScheduledFuture< ? >        abortFuture;
+	/** Tells if the post has been aborted.     */
+	private volatile boolean            aborted;
+	
+	/** Encoded request body, released once sent.                             */
+	private byte[]                      body;
+	/** Number of request body bytes sent.                                    */
+	private long                        bytesSent;
+	/** Time spent on connecting, in nanoseconds.                             */
+	private long                        connectNanos;
+	/** Time spent on sending the request body, in nanoseconds.               */
+	private long                        sendNanos;
+	/** Time spent on waiting for the response after sending, in nanoseconds. */
+	private long                        serverNanos;
+	/** HTTP status code of the response, <code>-1</code> if not received.   */
+	private int                         status = -1;
+	
+	/** Flight recorder event of the exchange, committed on {@link #close()}. */
+	private JfrEvents.HttpExchange      exchangeEvent;
 	
 	/**
 	 * Creates a new HttpPost.
@@ -73,15 +122,54 @@ public class HttpPost {
 	}
 	
 	/**
-	 * Connects to the provided URL.
+	 * Sets the timeouts of the post.
+	 * 
+	 * <p>It must be called before {@link #connect()}.</p>
+	 * 
+	 * @param connectTimeout timeout to establish the connection in milliseconds, <code>0</code> means infinite
+	 * @param readTimeout    timeout to wait for data from the server in milliseconds, <code>0</code> means infinite
+	 * @param totalTimeout   max duration of the whole post (from connecting until the response is read) in milliseconds, <code>0</code> means infinite
+	 */
+	public void setTimeouts( final int connectTimeout, final int readTimeout, final long totalTimeout ) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout    = readTimeout;
+		this.totalTimeout   = totalTimeout;
+	}
+	
+	/**
+	 * Encodes the parameters and connects to the provided URL.
+	 * 
+	 * <p>The parameters will be encoded using UTF-8 charset.</p>
 	 * 
 	 * @return true if connection was successful; false otherwise
 	 */
 	public boolean connect() {
+		if ( JfrEvents.isRecorderInitialized() ) {
+			exchangeEvent = new JfrEvents.HttpExchange();
+			exchangeEvent.begin();
+		}
+		
 		try {
+			body = encodeParams( paramsMap );
+			
 			httpUrlConnection = (HttpURLConnection) new URL( urlString ).openConnection();
 			
 			httpUrlConnection.setDoOutput( true );
+			httpUrlConnection.setFixedLengthStreamingMode( (long) body.length );
+			httpUrlConnection.setConnectTimeout( connectTimeout );
+			httpUrlConnection.setReadTimeout( readTimeout );
+			
+			if ( totalTimeout > 0 )
+				abortFuture = WATCHDOG.schedule( new Runnable() {
+					@Override
+					public void run() {
+						System.out.println( "Upload exceeded the total timeout of " + totalTimeout + " ms, aborting." );
+						abort();
+					}
+				}, totalTimeout, TimeUnit.MILLISECONDS );
+			
+			if ( aborted )
+				return false;
 			
 			if ( requestPropertyMap != null )
 				for ( final Entry< String, String > entry : requestPropertyMap.entrySet() )
@@ -90,7 +178,9 @@ public class HttpPost {
 			httpUrlConnection.setRequestProperty( "Accept-Charset", DEFAULT_CHARSET );
 			httpUrlConnection.setRequestProperty( "Content-Type"  , "application/x-www-form-urlencoded;charset=" + DEFAULT_CHARSET );
 			
+			final long start = System.nanoTime();
 			httpUrlConnection.connect();
+			connectNanos = System.nanoTime() - start;
 		} catch ( final IOException ie ) {
 			ie.printStackTrace();
 			return false;
@@ -100,9 +190,24 @@ public class HttpPost {
 	}
 	
 	/**
-	 * Posts the parameters to the server.
-	 * 
-	 * <p>The parameters will be encoded using UTF-8 charset.</p>
+	 * Encodes the parameters as an <code>application/x-www-form-urlencoded</code> request body.
+	 * @param paramsMap map of parameters to be encoded
+	 * @return the encoded request body
+	 * @throws UnsupportedEncodingException if the default charset is not supported
+	 */
+	static byte[] encodeParams( final Map< String, String > paramsMap ) throws UnsupportedEncodingException {
+		final StringBuilder paramsBuilder = new StringBuilder();
+		for ( final Entry< String, String > entry : paramsMap.entrySet() ) {
+			if ( paramsBuilder.length() > 0 )
+				paramsBuilder.append( '&' );
+			paramsBuilder.append( entry.getKey() ).append( '=' ).append( URLEncoder.encode( entry.getValue(), DEFAULT_CHARSET ) );
+		}
+		
+		return paramsBuilder.toString().getBytes( DEFAULT_CHARSET );
+	}
+	
+	/**
+	 * Posts the encoded parameters to the server.
 	 * 
 	 * <p>Can only be called if {@link #connect()} returned <code>true</code>.</p>
 	 * 
@@ -112,18 +217,16 @@ public class HttpPost {
 		OutputStream output = null;
 		
 		try {
+			final long start = System.nanoTime();
 			output = httpUrlConnection.getOutputStream();
 			
-			final StringBuilder paramsBuilder = new StringBuilder();
-			for ( final Entry< String, String > entry : paramsMap.entrySet() ) {
-				if ( paramsBuilder.length() > 0 )
-					paramsBuilder.append( '&' );
-				paramsBuilder.append( entry.getKey() ).append( '=' ).append( URLEncoder.encode( entry.getValue(), DEFAULT_CHARSET ) );
-			}
-			
-			output.write( paramsBuilder.toString().getBytes( DEFAULT_CHARSET ) );
+			output.write( body );
 			output.flush();
 			
+			bytesSent = body.length;
+			sendNanos = System.nanoTime() - start;
+			// Release the encoded body, it might be big
+			body = null;
 		} catch ( final IOException ie ) {
 			ie.printStackTrace();
 			return false;
@@ -161,8 +264,10 @@ public class HttpPost {
 	public String getResponse() {
 		InputStream input = null;
 		try {
+			final long start = System.nanoTime();
 			input = httpUrlConnection.getInputStream();
-			final int status = httpUrlConnection.getResponseCode();
+			serverNanos = System.nanoTime() - start;
+			status      = httpUrlConnection.getResponseCode();
 			if ( status == HttpURLConnection.HTTP_OK ) {
 				
 				String responseCharset = DEFAULT_CHARSET;
@@ -195,12 +300,82 @@ public class HttpPost {
 		return null;
 	}
 	
+	/**
+	 * Returns the number of request body bytes sent.
+	 * @return the number of request body bytes sent
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+	
+	/**
+	 * Returns the time spent on connecting.
+	 * @return the time spent on connecting, in nanoseconds
+	 */
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+	
+	/**
+	 * Returns the time spent on sending the request body.
+	 * @return the time spent on sending the request body, in nanoseconds
+	 */
+	public long getSendNanos() {
+		return sendNanos;
+	}
+	
+	/**
+	 * Returns the time spent on waiting for the response after the request body was sent
+	 * (server processing time plus network round trip).
+	 * @return the time spent on waiting for the response, in nanoseconds
+	 */
+	public long getServerNanos() {
+		return serverNanos;
+	}
+	
+	/**
+	 * Aborts the post. Can be called from any thread, pending I/O operations will fail.
+	 */
+	public void abort() {
+		aborted = true;
+		
+		final HttpURLConnection connection = httpUrlConnection;
+		if ( connection != null )
+			connection.disconnect();
+	}
+	
+	/**
+	 * Tells if the post has been aborted (either explicitly or because the total timeout expired).
+	 * @return true if the post has been aborted; false otherwise
+	 */
+	public boolean isAborted() {
+		return aborted;
+	}
+	
 	/**
 	 * Closes this HttpPost, releases all allocated resources.
 	 */
 	public void close() {
+		if ( abortFuture != null )
+			abortFuture.cancel( false );
+		
 		if ( httpUrlConnection != null )
 			httpUrlConnection.disconnect();
+		
+		if ( exchangeEvent != null ) {
+			exchangeEvent.end();
+			if ( exchangeEvent.shouldCommit() ) {
+				exchangeEvent.url         = urlString;
+				exchangeEvent.bytesSent   = bytesSent;
+				exchangeEvent.status      = status;
+				exchangeEvent.connectTime = connectNanos;
+				exchangeEvent.sendTime    = sendNanos;
+				exchangeEvent.serverTime  = serverNanos;
+				exchangeEvent.aborted     = aborted;
+				exchangeEvent.commit();
+			}
+			exchangeEvent = null;
+		}
 	}
 	
 }
@@ -9,25 +9,43 @@
  */
 package com.ggtracker.uploader;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is responsible for allowing only one instance,
  * and to pass the arguments to the running instance if we're not the first one.
  * 
+ * <p>The port of the running instance also accepts control connections from scripts, see {@link ControlSession}.
+ * Connections are handled by a small thread pool.</p>
+ * 
  * @author Andras Belicza
  */
 public class InstanceMonitor extends Thread {
 	
+	/** Local port used to force and check the only instance. */
+	public static final int PORT = 15634;
+	
+	/** Max number of connections handled at the same time.        */
+	private static final int MAX_CONNECTIONS      = 4;
+	/** Max number of accepted connections waiting to be handled.  */
+	private static final int MAX_PENDING          = 16;
+	
 	/** Reference to the server socket used to force and check the only instance. */
 	private final ServerSocket serverSocket;
 	
+	/** Thread pool handling the accepted connections. */
+	private final ThreadPoolExecutor connectionPool;
+	
 	/**
 	 * Creates a new InstanceListener and starts it.
 	 * @param serverSocket reference to the server socket used to force and check the only instance
@@ -37,6 +55,18 @@ public class InstanceMonitor extends Thread {
 		setPriority( NORM_PRIORITY );
 		
 		this.serverSocket = serverSocket;
+		
+		connectionPool = new ThreadPoolExecutor( MAX_CONNECTIONS, MAX_CONNECTIONS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue< Runnable >( MAX_PENDING ), new ThreadFactory() {
+			private final AtomicInteger threadCounter = new AtomicInteger();
+			@Override
+			public Thread newThread( final Runnable runnable ) {
+				final Thread thread = new Thread( runnable, "Instance connection #" + threadCounter.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		connectionPool.allowCoreThreadTimeOut( true );
+		
 		start();
 	}
 	
@@ -47,7 +77,6 @@ public class InstanceMonitor extends Thread {
 	 * @param arguments arguments of the application
 	 */
 	public static void checkRunningInstance( final String[] arguments ) {
-		final int PORT = 15634;
 		try {
 			// Check if there is already an instance running
 			// We do this by trying to create a sever socket.
@@ -91,37 +120,22 @@ public class InstanceMonitor extends Thread {
 	}
 	
 	/**
-	 * Continues to listen for potential new instances on the server port, and handles the passed arguments. 
+	 * Continues to listen for potential new instances and control connections on the server port,
+	 * and hands the accepted connections over to the connection pool.
 	 */
 	@Override
 	public void run() {
 		while ( true ) {
-			Socket         inSocket = null;
-			BufferedReader input    = null;
-			System.out.println("Looping.");
+			Socket inSocket = null;
 			try {
 				inSocket = serverSocket.accept();
-				System.out.println("Accepted the socket.");
-				// Restore main window even if minimized to system tray
-				System.out.println("restoring the main frame");
-				GgtrackerUploader.mainFrame.restore();
-				
-				input = new BufferedReader( new InputStreamReader( inSocket.getInputStream() ) );
-				final int argumentsCount = Integer.parseInt( input.readLine() );
-				if ( argumentsCount > 0 ) {
-					final String[] inArguments = new String[ argumentsCount ];
-					for ( int i = 0; i < argumentsCount; i++ )
-						inArguments[ i ] = input.readLine();
-					
-					// Nothing to do (yet) with the arguments
-				}
+				Log.debug( "Accepted connection on the instance port." );
+				connectionPool.execute( new ControlSession( inSocket ) );
+			} catch ( final RejectedExecutionException ree ) {
+				System.out.println( "Too many connections on the instance port, closing one." );
+				try { inSocket.close(); } catch ( final Exception e ) {}
 			} catch ( final Exception e ) {
 				e.printStackTrace();
-			} finally {
-				if ( input != null )
-					try { input.close(); } catch ( final Exception e ) {}
-				if ( inSocket != null )
-					try { inSocket.close(); } catch ( final Exception e ) {}
 			}
 		}
 	}
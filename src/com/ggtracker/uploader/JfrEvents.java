@@ -0,0 +1,211 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom Java Flight Recorder events of the uploader.
+ * 
+ * <p>The events show up under the <i>ggtracker uploader</i> category of a recording, next to the GC and I/O events of the JVM.
+ * A recording can be started with the <code>-XX:StartFlightRecording</code> VM option, or with <code>jcmd &lt;pid&gt; JFR.start</code>
+ * on a running uploader.</p>
+ * 
+ * <p>Event fields are only filled if {@link Event#shouldCommit()} returns true, so the events cost next to nothing
+ * when no recording is running. Loading the first event class initializes the flight recorder infrastructure
+ * (some hundred classes, a couple hundred milliseconds), so events are only created if {@link #isRecorderInitialized()}.
+ * That is a read of a flag set by a {@link FlightRecorderListener} when the recorder is initialized.</p>
+ * 
+ * <p>Compiling this class needs the flight recorder API (JDK 11 or newer, or 8u262 and newer). At runtime the API is optional:
+ * on Java 8 builds older than 8u262 and on JREs without the <code>jdk.jfr</code> module the listener is not registered,
+ * the recorder is never reported initialized, and the event classes are never loaded.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class JfrEvents {
+	
+	/** Category of the events. */
+	private static final String CATEGORY = "ggtracker uploader";
+	
+	/** Tells if the flight recorder is initialized, set by the {@link RecorderListener}. */
+	private static volatile boolean recorderInitialized;
+	static {
+		try {
+			// Check the API first, the listener class can only be loaded if it is available
+			Class.forName( "jdk.jfr.FlightRecorderListener" );
+			RecorderListener.register();
+		} catch ( final Exception e ) {
+			// Older Java or a JRE without the jdk.jfr module
+		}
+	}
+	
+	/**
+	 * Listener setting {@link JfrEvents#recorderInitialized} when the flight recorder is initialized
+	 * (right away if it already is when the listener is added).
+	 */
+	private static class RecorderListener implements FlightRecorderListener {
+		
+		/**
+		 * Registers a new listener.<br>
+		 * Called from here and not from {@link JfrEvents}, so verifying {@link JfrEvents} does not load the listener interface.
+		 */
+		static void register() {
+			FlightRecorder.addListener( new RecorderListener() );
+		}
+		
+		@Override
+		public void recorderInitialized( final FlightRecorder recorder ) {
+			recorderInitialized = true;
+		}
+	
+	}
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private JfrEvents() {
+	}
+	
+	/**
+	 * Tells if the flight recorder is initialized, i.e. a recording has been started in this JVM.
+	 * @return true if the flight recorder is initialized; false otherwise
+	 */
+	public static boolean isRecorderInitialized() {
+		return recorderInitialized;
+	}
+	
+	/**
+	 * A polling scan of the replay folder.
+	 */
+	@Name( "com.ggtracker.uploader.FolderScan" )
+	@Label( "Replay Folder Scan" )
+	@Description( "A polling scan of the replay folder looking for new replays." )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	public static class FolderScan extends Event {
+		
+		/** The scanned folder.               */
+		@Label( "Folder" )
+		public String folder;
+		
+		/** Number of directories listed.     */
+		@Label( "Directories Visited" )
+		public int    directories;
+		
+		/** Number of files and directories stat'ed. */
+		@Label( "Files Stat'ed" )
+		public int    files;
+		
+		/** The found new replay, if any.     */
+		@Label( "Found Replay" )
+		public String foundReplay;
+	
+	}
+	
+	/**
+	 * Calculating the MD5 of a replay.
+	 */
+	@Name( "com.ggtracker.uploader.ReplayHash" )
+	@Label( "Replay Hash" )
+	@Description( "Calculating the MD5 digest of a replay file." )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	public static class ReplayHash extends Event {
+		
+		/** The hashed file.          */
+		@Label( "File" )
+		public String file;
+		
+		/** Number of bytes hashed.   */
+		@Label( "Bytes Hashed" )
+		@DataAmount( DataAmount.BYTES )
+		public long   bytes;
+	
+	}
+	
+	/**
+	 * Base64 encoding a replay.
+	 */
+	@Name( "com.ggtracker.uploader.ReplayEncode" )
+	@Label( "Replay Encode" )
+	@Description( "Base64 encoding a replay file." )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	public static class ReplayEncode extends Event {
+		
+		/** The encoded file.               */
+		@Label( "File" )
+		public String file;
+		
+		/** Number of bytes encoded.        */
+		@Label( "Bytes Encoded" )
+		@DataAmount( DataAmount.BYTES )
+		public long   bytes;
+		
+		/** Number of base64 chars produced. */
+		@Label( "Encoded Length" )
+		public long   encodedLength;
+	
+	}
+	
+	/**
+	 * An HTTP exchange: from connecting until the response is read or the post is closed.
+	 */
+	@Name( "com.ggtracker.uploader.HttpExchange" )
+	@Label( "HTTP Exchange" )
+	@Description( "An HTTP POST to the server, from connecting until the post is closed." )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	public static class HttpExchange extends Event {
+		
+		/** The URL posted to.                   */
+		@Label( "URL" )
+		public String  url;
+		
+		/** Number of request body bytes sent.   */
+		@Label( "Bytes Sent" )
+		@DataAmount( DataAmount.BYTES )
+		public long    bytesSent;
+		
+		/** HTTP status code of the response, <code>-1</code> if there was no response. */
+		@Label( "Status" )
+		public int     status;
+		
+		/** Time spent on connecting.            */
+		@Label( "Connect Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		public long    connectTime;
+		
+		/** Time spent on sending the request body. */
+		@Label( "Send Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		public long    sendTime;
+		
+		/** Time spent on waiting for the response. */
+		@Label( "Server Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		public long    serverTime;
+		
+		/** Tells if the post was aborted.       */
+		@Label( "Aborted" )
+		public boolean aborted;
+	
+	}
+
+}
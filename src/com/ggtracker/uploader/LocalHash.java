@@ -0,0 +1,229 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Fast non-cryptographic fingerprint of replays for local bookkeeping (deduplication, caching the MD5).
+ * 
+ * <p>The MD5 is only needed by the upload protocol, it is several times slower than a checksum.
+ * Local indexes are keyed by a 64-bit fingerprint instead: the length of the replay combined with a checksum of its content.
+ * A fingerprint match does not guarantee identical content, users of the fingerprint that must be sure compare the content.</p>
+ * 
+ * <p>Available hashes (the {@link Settings#KEY_LOCAL_HASH} setting):</p>
+ * <ul>
+ * <li>{@link #NAME_CRC32C}: CRC32C, computed with the CPU's CRC32 instructions by the JVM where available (Java 9 or newer);
+ *     if not available, CRC32 is used instead.</li>
+ * <li>{@link #NAME_CRC32}: CRC32, also hardware accelerated by the JVM, available on all Java versions.</li>
+ * <li>{@link #NAME_XXH64}: 64-bit xxHash in pure Java, for fewer collisions on big archives.</li>
+ * </ul>
+ * 
+ * @author Andras Belicza
+ */
+public abstract class LocalHash {
+	
+	/** Name of the CRC32C hash.   */
+	public static final String NAME_CRC32C = "crc32c";
+	/** Name of the CRC32 hash.    */
+	public static final String NAME_CRC32  = "crc32";
+	/** Name of the xxHash64 hash. */
+	public static final String NAME_XXH64  = "xxh64";
+	
+	/** The hash selected by the settings, created on first use. */
+	private static LocalHash instance;
+	
+	/**
+	 * Returns the hash selected by the settings.
+	 * @return the hash selected by the settings
+	 */
+	public static synchronized LocalHash get() {
+		if ( instance == null )
+			instance = forName( Settings.get( Settings.KEY_LOCAL_HASH ) );
+		
+		return instance;
+	}
+	
+	/**
+	 * Returns a hash by its name.
+	 * @param name name of the hash
+	 * @return the hash of the specified name; CRC32C if the name is unknown
+	 */
+	public static LocalHash forName( final String name ) {
+		if ( NAME_XXH64.equals( name ) )
+			return new Xxh64();
+		if ( NAME_CRC32.equals( name ) )
+			return new Crc( NAME_CRC32, null );
+		
+		if ( !NAME_CRC32C.equals( name ) )
+			System.out.println( "Unknown local hash: " + name + ", using " + NAME_CRC32C + "." );
+		
+		try {
+			// java.util.zip.CRC32C is only available from Java 9
+			final Class< ? > crc32cClass = Class.forName( "java.util.zip.CRC32C" );
+			return new Crc( NAME_CRC32C, crc32cClass.getMethod( "update", ByteBuffer.class ) );
+		} catch ( final Exception e ) {
+			return new Crc( NAME_CRC32, null );
+		}
+	}
+	
+	/**
+	 * Returns the name of the hash.
+	 * @return the name of the hash
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Calculates the fingerprint of data.
+	 * @param data data to fingerprint, from its position to its limit; its position is not changed
+	 * @return the fingerprint of the data
+	 */
+	public abstract long fingerprint( ByteBuffer data );
+	
+	/**
+	 * CRC32 or CRC32C checksum combined with the length.
+	 */
+	private static class Crc extends LocalHash {
+		/** Name of the hash.                                                   */
+		private final String name;
+		/** <code>CRC32C.update(ByteBuffer)</code>; <code>null</code> for CRC32. */
+		private final Method updateMethod;
+		
+		/**
+		 * Creates a new Crc.
+		 * @param name         name of the hash
+		 * @param updateMethod <code>CRC32C.update(ByteBuffer)</code>; <code>null</code> for CRC32
+		 */
+		Crc( final String name, final Method updateMethod ) {
+			this.name         = name;
+			this.updateMethod = updateMethod;
+		}
+		
+		@Override
+		public String getName() {
+			return name;
+		}
+		
+		@Override
+		public long fingerprint( final ByteBuffer data ) {
+			final ByteBuffer input = data.duplicate();
+			final long       crc;
+			if ( updateMethod == null ) {
+				final CRC32 crc32 = new CRC32();
+				crc32.update( input );
+				crc = crc32.getValue();
+			}
+			else {
+				try {
+					final Checksum crc32c = (Checksum) updateMethod.getDeclaringClass().getConstructor().newInstance();
+					updateMethod.invoke( crc32c, input );
+					crc = crc32c.getValue();
+				} catch ( final Exception e ) {
+					throw new RuntimeException( e );
+				}
+			}
+			
+			return (long) data.remaining() << 32 | crc;
+		}
+	}
+	
+	/**
+	 * 64-bit xxHash (XXH64) with seed 0.
+	 */
+	private static class Xxh64 extends LocalHash {
+		/** Prime 1. */
+		private static final long P1 = 0x9E3779B185EBCA87L;
+		/** Prime 2. */
+		private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+		/** Prime 3. */
+		private static final long P3 = 0x165667B19E3779F9L;
+		/** Prime 4. */
+		private static final long P4 = 0x85EBCA77C2B2AE63L;
+		/** Prime 5. */
+		private static final long P5 = 0x27D4EB2F165667C5L;
+		
+		@Override
+		public String getName() {
+			return NAME_XXH64;
+		}
+		
+		/**
+		 * Mixes an input lane into an accumulator.
+		 * @param acc   the accumulator
+		 * @param input the input lane
+		 * @return the new value of the accumulator
+		 */
+		private static long round( long acc, final long input ) {
+			acc += input * P2;
+			acc  = Long.rotateLeft( acc, 31 );
+			return acc * P1;
+		}
+		
+		/**
+		 * Merges an accumulator into the hash.
+		 * @param hash the hash
+		 * @param acc  the accumulator
+		 * @return the new value of the hash
+		 */
+		private static long mergeRound( final long hash, final long acc ) {
+			return ( hash ^ round( 0, acc ) ) * P1 + P4;
+		}
+		
+		@Override
+		public long fingerprint( final ByteBuffer data ) {
+			final ByteBuffer input  = data.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+			final int        length = input.remaining();
+			
+			long hash;
+			if ( length >= 32 ) {
+				long v1 = P1 + P2;
+				long v2 = P2;
+				long v3 = 0;
+				long v4 = -P1;
+				// Stripes of 32 bytes in 4 independent lanes
+				while ( input.remaining() >= 32 ) {
+					v1 = round( v1, input.getLong() );
+					v2 = round( v2, input.getLong() );
+					v3 = round( v3, input.getLong() );
+					v4 = round( v4, input.getLong() );
+				}
+				hash = Long.rotateLeft( v1, 1 ) + Long.rotateLeft( v2, 7 ) + Long.rotateLeft( v3, 12 ) + Long.rotateLeft( v4, 18 );
+				hash = mergeRound( hash, v1 );
+				hash = mergeRound( hash, v2 );
+				hash = mergeRound( hash, v3 );
+				hash = mergeRound( hash, v4 );
+			}
+			else
+				hash = P5;
+			
+			hash += length;
+			
+			while ( input.remaining() >= 8 )
+				hash = Long.rotateLeft( hash ^ round( 0, input.getLong() ), 27 ) * P1 + P4;
+			if ( input.remaining() >= 4 )
+				hash = Long.rotateLeft( hash ^ ( input.getInt() & 0xffffffffL ) * P1, 23 ) * P2 + P3;
+			while ( input.hasRemaining() )
+				hash = Long.rotateLeft( hash ^ ( input.get() & 0xff ) * P5, 11 ) * P1;
+			
+			hash ^= hash >>> 33;
+			hash *= P2;
+			hash ^= hash >>> 29;
+			hash *= P3;
+			hash ^= hash >>> 32;
+			
+			return hash;
+		}
+	}
+
+}
@@ -9,24 +9,91 @@
  */
 package com.ggtracker.uploader;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * The Log Manager controls the console redirection to a log file and manages old log files.
  * 
+ * <p>Logging is asynchronous: log records are put into a bounded ring buffer and written by a background thread,
+ * so logging threads never wait for the disk. If the buffer is full, records are dropped and the number of dropped records
+ * is logged later.</p>
+ * 
+ * <p>The log file is rotated when it exceeds {@link Consts#LOG_MAX_FILE_SIZE} or when the day changes.
+ * Rotated files are gzipped, and the oldest ones are deleted if they are older than {@link Consts#DAYS_TO_KEEP_LOG_FILES} days
+ * or if all of them take more than {@link Consts#LOG_MAX_TOTAL_SIZE} bytes.</p>
+ * 
+ * <p>Anything printed to <code>System.out</code> is logged with {@link Level#INFO}, anything printed to <code>System.err</code>
+ * is logged with {@link Level#ERROR}. The minimum level to be logged can be set with the <code>log-level</code> system property.</p>
+ * 
  * @author Andras Belicza
  */
 public class Log {
 	
-	/** Name of the log file name. */
-	private static final String LOG_FILE_NAME = "system_messages";
-	/** The log file.              */
-	private static final File   LOG_FILE      = new File( Consts.FOLDER_LOGS, LOG_FILE_NAME + Consts.LOG_FILE_EXT );
+	/**
+	 * Log levels.
+	 */
+	public enum Level {
+		/** Debug messages, not logged by default. */
+		DEBUG,
+		/** Informational messages.                */
+		INFO,
+		/** Warnings.                              */
+		WARN,
+		/** Errors.                                */
+		ERROR
+	}
+	
+	/** Name of the log file name.            */
+	private static final String LOG_FILE_NAME     = "system_messages";
+	/** The log file.                         */
+	private static final File   LOG_FILE          = new File( Consts.FOLDER_LOGS, LOG_FILE_NAME + Consts.LOG_FILE_EXT );
+	/** Extension of the gzipped log files.   */
+	private static final String GZIP_EXT          = ".gz";
+	
+	/** Capacity of the ring buffer.                                           */
+	private static final int    BUFFER_CAPACITY   = 8192;
+	/** Max time the writer waits for new records before checking rotation, in ms. */
+	private static final long   IDLE_TIMEOUT_MS   = 1000;
+	/** Max time a warning or an error waits for free space in the full buffer, in ms. */
+	private static final long   FULL_WAIT_MS      = 100;
+	/** Max time to wait for the writer to write the buffered records on shutdown, in ms. */
+	private static final long   SHUTDOWN_TIMEOUT_MS = 2000;
+	
+	/** Minimum level to be logged. */
+	private static final Level  MIN_LEVEL         = parseLevel( System.getProperty( "log-level" ), Level.INFO );
+	
+	/** The ring buffer of the records to be written. */
+	private static final BlockingQueue< Record > buffer = new ArrayBlockingQueue< Record >( BUFFER_CAPACITY );
+	/** Number of records dropped because the buffer was full. */
+	private static final AtomicLong droppedCount = new AtomicLong();
+	
+	/** The original standard output, used in dev mode and when the writer is not running. */
+	private static final PrintStream console = System.out;
+	
+	/** The background writer; <code>null</code> if not running. */
+	private static volatile LogWriter logWriter;
 	
 	/**
 	 * No need to instantiate this class.
@@ -37,34 +104,514 @@ public class Log {
 	/**
 	 * Initializes the log manager.
 	 */
-	public static void init() {
+	public static synchronized void init() {
+		if ( logWriter != null )
+			return;
+		
 		// First check and create the log folder if not exists
 		if ( !Consts.FOLDER_LOGS.exists() )
 			Consts.FOLDER_LOGS.mkdirs();
 		
+		logWriter = new LogWriter();
+		logWriter.start();
+		
+		// Redirect the console
+		if ( !Consts.DEV_MODE ) {
+			System.setOut( new PrintStream( new LineOutputStream( Level.INFO  ), false ) );
+			System.setErr( new PrintStream( new LineOutputStream( Level.ERROR ), false ) );
+		}
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( "Log shutdown" ) {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		} );
+	}
+	
+	/**
+	 * Shuts down the log manager: writes the buffered records and closes the log file.<br>
+	 * Records logged after this are printed to the original console.
+	 */
+	public static void shutdown() {
+		final LogWriter writer = logWriter;
+		if ( writer == null )
+			return;
+		
+		writer.requestToCancel();
 		try {
-			// Backup (rename) last log file
-			if ( LOG_FILE.exists() && LOG_FILE.length() > 0 )
-				LOG_FILE.renameTo( new File( Consts.FOLDER_LOGS, LOG_FILE_NAME + new SimpleDateFormat( " yyyy-MM-dd HH-mm-ss" ).format( new Date( LOG_FILE.lastModified() ) ) + Consts.LOG_FILE_EXT ) );
+			writer.join( SHUTDOWN_TIMEOUT_MS );
+		} catch ( final InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+		}
+		
+		logWriter = null;
+	}
+	
+	/**
+	 * Tells if the specified level is logged.
+	 * @param level level to be tested
+	 * @return true if the specified level is logged; false otherwise
+	 */
+	public static boolean isEnabled( final Level level ) {
+		return level.compareTo( MIN_LEVEL ) >= 0;
+	}
+	
+	/**
+	 * Logs a debug message.
+	 * @param message message to be logged
+	 */
+	public static void debug( final String message ) {
+		log( Level.DEBUG, message, null );
+	}
+	
+	/**
+	 * Logs an informational message.
+	 * @param message message to be logged
+	 */
+	public static void info( final String message ) {
+		log( Level.INFO, message, null );
+	}
+	
+	/**
+	 * Logs a warning.
+	 * @param message message to be logged
+	 */
+	public static void warn( final String message ) {
+		log( Level.WARN, message, null );
+	}
+	
+	/**
+	 * Logs an error.
+	 * @param message   message to be logged
+	 * @param throwable optional cause of the error
+	 */
+	public static void error( final String message, final Throwable throwable ) {
+		log( Level.ERROR, message, throwable );
+	}
+	
+	/**
+	 * Logs a record.<br>
+	 * If the buffer is full, the record is dropped. Warnings and errors wait {@link #FULL_WAIT_MS} for free space before being dropped,
+	 * other levels never wait.
+	 * @param level     level of the record
+	 * @param message   message to be logged
+	 * @param throwable optional throwable whose stack trace to be logged
+	 */
+	public static void log( final Level level, final String message, final Throwable throwable ) {
+		if ( !isEnabled( level ) )
+			return;
+		
+		final Record record = new Record( level, message, throwable );
+		
+		if ( logWriter == null ) {
+			// Not initialized or already shut down
+			synchronized ( console ) {
+				console.println( record.format( new SimpleDateFormat( Record.DATE_FORMAT ) ) );
+				if ( throwable != null )
+					throwable.printStackTrace( console );
+			}
+			return;
+		}
+		
+		boolean added = buffer.offer( record );
+		if ( !added && level.compareTo( Level.WARN ) >= 0 )
+			try {
+				added = buffer.offer( record, FULL_WAIT_MS, TimeUnit.MILLISECONDS );
+			} catch ( final InterruptedException ie ) {
+				Thread.currentThread().interrupt();
+			}
+		
+		if ( !added )
+			droppedCount.incrementAndGet();
+	}
+	
+	/**
+	 * Parses a log level.
+	 * @param name         name of the level
+	 * @param defaultLevel level to be returned if the name is not a valid level
+	 * @return the parsed level
+	 */
+	private static Level parseLevel( final String name, final Level defaultLevel ) {
+		if ( name != null )
+			for ( final Level level : Level.values() )
+				if ( level.name().equalsIgnoreCase( name ) )
+					return level;
+		
+		return defaultLevel;
+	}
+	
+	/**
+	 * A log record.
+	 */
+	private static class Record {
+		
+		/** Format of the record timestamps. */
+		private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+		
+		/** Time of the record.            */
+		private final long      time = System.currentTimeMillis();
+		/** Name of the logging thread.    */
+		private final String    thread = Thread.currentThread().getName();
+		/** Level of the record.           */
+		private final Level     level;
+		/** The message.                   */
+		private final String    message;
+		/** Optional throwable.            */
+		private final Throwable throwable;
+		
+		/**
+		 * Creates a new Record.
+		 * @param level     level of the record
+		 * @param message   the message
+		 * @param throwable optional throwable
+		 */
+		public Record( final Level level, final String message, final Throwable throwable ) {
+			this.level     = level;
+			this.message   = message;
+			this.throwable = throwable;
+		}
+		
+		/**
+		 * Formats the record (without the stack trace of the throwable) as a tab separated line:
+		 * time, level, thread and message.
+		 * @param dateFormat date format to be used for the time
+		 * @return the formatted record
+		 */
+		public String format( final SimpleDateFormat dateFormat ) {
+			return dateFormat.format( new Date( time ) ) + '\t' + level + '\t' + thread + '\t' + message;
+		}
+	
+	}
+	
+	/**
+	 * Output stream that collects the bytes written to the redirected console into lines, and logs each line as a record.<br>
+	 * Synchronization is provided by the wrapping {@link PrintStream}.
+	 */
+	private static class LineOutputStream extends OutputStream {
+		
+		/** Level of the logged lines. */
+		private final Level                 level;
+		/** Bytes of the current line. */
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream( 256 );
+		
+		/**
+		 * Creates a new LineOutputStream.
+		 * @param level level of the logged lines
+		 */
+		public LineOutputStream( final Level level ) {
+			this.level = level;
+		}
+		
+		@Override
+		public void write( final int b ) {
+			if ( b == '\n' ) {
+				int length = line.size();
+				final byte[] bytes = line.toByteArray();
+				if ( length > 0 && bytes[ length - 1 ] == '\r' )
+					length--;
+				line.reset();
+				
+				log( level, new String( bytes, 0, length ), null );
+			}
+			else
+				line.write( b );
+		}
+		
+		@Override
+		public void write( final byte[] bytes, final int offset, final int length ) {
+			for ( int i = offset; i < offset + length; i++ )
+				write( bytes[ i ] );
+		}
+	
+	}
+	
+	/**
+	 * The background writer of the log records.
+	 */
+	private static class LogWriter extends Thread {
+		
+		/** Tells if a request has been made to cancel the execution of the thread. */
+		private volatile boolean requestedToCancel;
+		
+		/** Date format of the records.                                  */
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat( Record.DATE_FORMAT );
+		/** Records taken from the buffer.                               */
+		private final List< Record >   batch      = new ArrayList< Record >( 256 );
+		
+		/** Writer of the log file; <code>null</code> if the file is not open. */
+		private BufferedWriter writer;
+		/** Print writer for the stack traces, wraps {@link #writer}.         */
+		private PrintWriter    printWriter;
+		/** Time when the log file has to be rotated.                         */
+		private long           rotationTime;
+		/** Tells if the last write of the log file failed.                   */
+		private boolean        writeFailing;
+		
+		/**
+		 * Creates a new LogWriter.
+		 */
+		public LogWriter() {
+			super( "Log writer" );
+			setDaemon( true );
+		}
+		
+		/**
+		 * Requests the cancellation of the execution of the thread.
+		 * The buffered records are still written.
+		 */
+		public void requestToCancel() {
+			requestedToCancel = true;
+			interrupt();
+		}
+		
+		@Override
+		public void run() {
+			if ( !Consts.DEV_MODE ) {
+				// Rotate the log of the previous run
+				if ( LOG_FILE.exists() && LOG_FILE.length() > 0 )
+					rotate();
+				else
+					deleteOldLogs();
+			}
 			
-			// Delete old log files
-			final File[] logFiles = Consts.FOLDER_LOGS.listFiles();
-			if ( logFiles != null ) {
-				final long oldestAllowed = System.currentTimeMillis() - Consts.DAYS_TO_KEEP_LOG_FILES * 24l * 60 * 60 * 1000;
-				for ( final File logFile : logFiles )
-					if ( logFile.lastModified() < oldestAllowed )
-						logFile.delete();
+			try {
+				while ( !requestedToCancel || !buffer.isEmpty() ) {
+					try {
+						final Record record = buffer.poll( IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+						if ( record != null ) {
+							batch.add( record );
+							buffer.drainTo( batch );
+							writeBatch();
+						}
+					} catch ( final InterruptedException ie ) {
+						// Shutdown requested, the loop condition decides
+					} catch ( final IOException ie ) {
+						writeFailed( ie );
+					}
+					
+					if ( !Consts.DEV_MODE && writer != null && ( LOG_FILE.length() >= Consts.LOG_MAX_FILE_SIZE || System.currentTimeMillis() >= rotationTime ) )
+						rotate();
+				}
+				
+				try {
+					writeDroppedCount();
+				} catch ( final IOException ie ) {
+					ie.printStackTrace( console );
+				}
+			} finally {
+				closeLogFile();
+			}
+		}
+		
+		/**
+		 * Handles a failed write of the log file: the records of the batch are written to the console instead,
+		 * and the log file is closed so the next batch tries to reopen it.<br>
+		 * The error is reported to the console once, until a write succeeds again.
+		 * @param ie the error of the write
+		 */
+		private void writeFailed( final IOException ie ) {
+			synchronized ( console ) {
+				if ( !writeFailing ) {
+					writeFailing = true;
+					console.println( "Failed to write the log file, logging to the console until it succeeds again:" );
+					ie.printStackTrace( console );
+				}
+				printBatch();
 			}
+			batch.clear();
 			
-			// Create new log file
-			if ( !Consts.DEV_MODE ) {
-				final PrintStream logStream = new PrintStream( new FileOutputStream( LOG_FILE ), true );
-				System.setOut( logStream );
-				System.setErr( logStream );
+			if ( writer != null ) {
+				// The buffered content cannot be written either, do not report it again
+				try { writer.close(); } catch ( final IOException ie2 ) {}
+				writer      = null;
+				printWriter = null;
+			}
+		}
+		
+		/**
+		 * Prints the records of the batch to the console.
+		 */
+		private void printBatch() {
+			synchronized ( console ) {
+				for ( final Record record : batch ) {
+					console.println( record.format( dateFormat ) );
+					if ( record.throwable != null )
+						record.throwable.printStackTrace( console );
+				}
+			}
+		}
+		
+		/**
+		 * Writes the records of the batch and flushes the log file.
+		 * @throws IOException if writing fails
+		 */
+		private void writeBatch() throws IOException {
+			writeDroppedCount();
+			
+			if ( Consts.DEV_MODE )
+				printBatch();
+			else {
+				if ( writer == null )
+					openLogFile();
+				for ( final Record record : batch ) {
+					writer.write( record.format( dateFormat ) );
+					writer.newLine();
+					if ( record.throwable != null ) {
+						record.throwable.printStackTrace( printWriter );
+						printWriter.flush();
+					}
+				}
+				writer.flush();
+				if ( writeFailing ) {
+					writeFailing = false;
+					console.println( "Writing the log file succeeded again." );
+				}
+			}
+			
+			batch.clear();
+		}
+		
+		/**
+		 * Writes a warning about the dropped records if there are any.
+		 * @throws IOException if writing fails
+		 */
+		private void writeDroppedCount() throws IOException {
+			final long dropped = droppedCount.getAndSet( 0 );
+			if ( dropped > 0 ) {
+				final Record record = new Record( Level.WARN, dropped + " log records dropped (log buffer full)!", null );
+				if ( Consts.DEV_MODE )
+					console.println( record.format( dateFormat ) );
+				else {
+					if ( writer == null )
+						openLogFile();
+					writer.write( record.format( dateFormat ) );
+					writer.newLine();
+				}
+			}
+		}
+		
+		/**
+		 * Opens the log file for appending.
+		 * @throws IOException if the log file cannot be opened
+		 */
+		private void openLogFile() throws IOException {
+			writer      = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( LOG_FILE, true ) ), 64*1024 );
+			printWriter = new PrintWriter( writer );
+			
+			// Next midnight
+			final Calendar calendar = Calendar.getInstance();
+			calendar.add( Calendar.DAY_OF_MONTH, 1 );
+			calendar.set( Calendar.HOUR_OF_DAY, 0 );
+			calendar.set( Calendar.MINUTE, 0 );
+			calendar.set( Calendar.SECOND, 0 );
+			calendar.set( Calendar.MILLISECOND, 0 );
+			rotationTime = calendar.getTimeInMillis();
+		}
+		
+		/**
+		 * Closes the log file.
+		 */
+		private void closeLogFile() {
+			if ( writer != null ) {
+				try { writer.close(); } catch ( final IOException ie ) { ie.printStackTrace( console ); }
+				writer      = null;
+				printWriter = null;
+			}
+		}
+		
+		/**
+		 * Rotates the log file: closes it, compresses it to a gzipped file named after its last modification time,
+		 * and deletes the old log files. The log file is reopened when the next record arrives.
+		 */
+		private void rotate() {
+			closeLogFile();
+			
+			final String rotatedName = LOG_FILE_NAME + new SimpleDateFormat( " yyyy-MM-dd HH-mm-ss" ).format( new Date( LOG_FILE.lastModified() ) ) + Consts.LOG_FILE_EXT;
+			if ( gzip( LOG_FILE, new File( Consts.FOLDER_LOGS, rotatedName + GZIP_EXT ) ) )
+				LOG_FILE.delete();
+			else
+				// Could not compress, at least keep the log
+				LOG_FILE.renameTo( new File( Consts.FOLDER_LOGS, rotatedName ) );
+			
+			deleteOldLogs();
+		}
+		
+		/**
+		 * Compresses a file.
+		 * @param source file to be compressed
+		 * @param target gzipped file to be created
+		 * @return true if the file was compressed successfully; false otherwise
+		 */
+		private boolean gzip( final File source, final File target ) {
+			InputStream  input   = null;
+			OutputStream output  = null;
+			boolean      success = false;
+			try {
+				input  = new FileInputStream( source );
+				output = new GZIPOutputStream( new FileOutputStream( target ), 64*1024 );
+				
+				final byte[] buffer = new byte[ 64*1024 ];
+				int bytesRead;
+				while ( ( bytesRead = input.read( buffer ) ) > 0 )
+					output.write( buffer, 0, bytesRead );
+				
+				output.close();
+				success = true;
+			} catch ( final IOException ie ) {
+				ie.printStackTrace( console );
+			} finally {
+				if ( input != null )
+					try { input.close(); } catch ( final IOException ie ) {}
+				if ( !success ) {
+					if ( output != null )
+						try { output.close(); } catch ( final IOException ie ) {}
+					target.delete();
+				}
+			}
+			
+			if ( success )
+				target.setLastModified( source.lastModified() );
+			
+			return success;
+		}
+		
+		/**
+		 * Deletes the log files older than {@link Consts#DAYS_TO_KEEP_LOG_FILES} days,
+		 * and the oldest rotated log files if all of them exceed {@link Consts#LOG_MAX_TOTAL_SIZE}.<br>
+		 * Only the system message log files are touched, other files in the logs folder (like the upload journal) are left alone.
+		 */
+		private void deleteOldLogs() {
+			final File[] logFiles = Consts.FOLDER_LOGS.listFiles();
+			if ( logFiles == null )
+				return;
+			
+			// Newest first
+			Arrays.sort( logFiles, new Comparator< File >() {
+				@Override
+				public int compare( final File f1, final File f2 ) {
+					final long lastModified1 = f1.lastModified();
+					final long lastModified2 = f2.lastModified();
+					return lastModified1 > lastModified2 ? -1 : lastModified1 < lastModified2 ? 1 : 0;
+				}
+			} );
+			
+			final long oldestAllowed = System.currentTimeMillis() - Consts.DAYS_TO_KEEP_LOG_FILES * 24l * 60 * 60 * 1000;
+			long totalSize = LOG_FILE.length();
+			for ( final File logFile : logFiles ) {
+				if ( logFile.equals( LOG_FILE ) || !logFile.getName().startsWith( LOG_FILE_NAME ) )
+					continue;
+				
+				if ( logFile.lastModified() < oldestAllowed )
+					logFile.delete();
+				else {
+					totalSize += logFile.length();
+					if ( totalSize > Consts.LOG_MAX_TOTAL_SIZE )
+						logFile.delete();
+				}
 			}
-		} catch ( final FileNotFoundException fnfe ) {
-			fnfe.printStackTrace();
 		}
-	}
 	
+	}
+
 }
@@ -11,18 +11,22 @@ package com.ggtracker.uploader;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.FlowLayout;
 import java.awt.Frame;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Locale;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -30,10 +34,14 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
 
 /**
  * Main frame of ggtracker uploader.
  * 
+ * <p>The upload status is not pushed to the frame by the upload threads: the {@link UploadStatus} of the pipeline is sampled
+ * by a Swing timer, which only runs while the frame is showing and not iconified.</p>
+ * 
  * @author Andras Belicza
  */
 @SuppressWarnings( "serial" )
@@ -42,10 +50,10 @@ public class MainFrame extends JFrame {
 	/** Color to display errors. */
 	private static final Color COLOR_ERROR = new Color( 215, 150, 150 ); // Red-ish color
 	
-	/** Successful upload counter. */
-	private final AtomicInteger uploadCount = new AtomicInteger();
-	/** Failed upload counter.     */
-	private final AtomicInteger failedCount = new AtomicInteger();
+	/** Status refresh period in milliseconds.                    */
+	private static final int STATUS_REFRESH_MS  = 1000;
+	/** Number of status samples the throughput is calculated from. */
+	private static final int THROUGHPUT_SAMPLES = 10;
 	
 	/** Text field to display the monitored replay folder. */
 	private final JTextField replayFolderTextField = new JTextField( Settings.get( Settings.KEY_REPLAY_FOLDER ) );
@@ -56,6 +64,27 @@ public class MainFrame extends JFrame {
 	private final JLabel uploadedCountLabel = new JLabel( "0" );
 	/** Label to display failed uploads count.     */
 	private final JLabel failedCountLabel   = new JLabel( "0");
+	/** Label to display the replays in progress.  */
+	private final JLabel inProgressLabel    = new JLabel( "0" );
+	/** Label to display the upload throughput.    */
+	private final JLabel throughputLabel    = new JLabel( "-" );
+	
+	/** Timer sampling the upload status while the frame is visible. */
+	private final Timer  statusTimer        = new Timer( STATUS_REFRESH_MS, new ActionListener() {
+		@Override
+		public void actionPerformed( final ActionEvent event ) {
+			refreshStatus();
+		}
+	} );
+	
+	/** Upload counts of the throughput samples (ring buffer).  */
+	private final long[] sampleCounts = new long[ THROUGHPUT_SAMPLES ];
+	/** Uploaded bytes of the throughput samples.               */
+	private final long[] sampleBytes  = new long[ THROUGHPUT_SAMPLES ];
+	/** Nano times of the throughput samples.                   */
+	private final long[] sampleNanos  = new long[ THROUGHPUT_SAMPLES ];
+	/** Total number of samples taken since the timer started.  */
+	private int          sampleCount;
 	
 	/**
 	 * Creates a new MainFrame.
@@ -75,11 +104,44 @@ public class MainFrame extends JFrame {
 					if ( JOptionPane.YES_OPTION == JOptionPane.showConfirmDialog( MainFrame.this, new String[] { "Warning! System tray icon could not be installed.", "Are you sure you want to Quit and Stop Uploading Replays?" }, "Warning!", JOptionPane.YES_NO_OPTION ) )
 						GgtrackerUploader.exit();
 			}
+			@Override
+			public void windowIconified( final WindowEvent event ) {
+				updateStatusTimer();
+			}
+			@Override
+			public void windowDeiconified( final WindowEvent event ) {
+				updateStatusTimer();
+			}
+		} );
+		addComponentListener( new ComponentAdapter() {
+			@Override
+			public void componentShown( final ComponentEvent event ) {
+				updateStatusTimer();
+			}
+			@Override
+			public void componentHidden( final ComponentEvent event ) {
+				updateStatusTimer();
+			}
 		} );
-		setIconImage( Consts.APP_ICON.getImage() );
+		setIconImage( Consts.getAppIcon().getImage() );
 		
 		buildGUI();
 		
+		// The replay folder might be changed by others too (e.g. by a reload)
+		Settings.addListener( new Settings.Listener() {
+			@Override
+			public void settingChanged( final String key, final String oldValue, final String newValue ) {
+				if ( Settings.KEY_REPLAY_FOLDER.equals( key ) )
+					EventQueue.invokeLater( new Runnable() {
+						@Override
+						public void run() {
+							replayFolderTextField.setText( newValue );
+							checkReplayFolder();
+						}
+					} );
+			}
+		} );
+		
 		pack();
 		
 		setLocationRelativeTo( null );
@@ -117,11 +179,13 @@ public class MainFrame extends JFrame {
 				if ( fileChooser.showOpenDialog( MainFrame.this ) == JFileChooser.APPROVE_OPTION ) {
 					// Proceed even if the same folder is selected, he might have created it if it didn't exist for example.
 					final String selectedFilePath = fileChooser.getSelectedFile().getAbsolutePath();
-					System.out.println( "Replay folder changed to: " + selectedFilePath );
-					replayFolderTextField.setText( selectedFilePath );
-					Settings.set( Settings.KEY_REPLAY_FOLDER, selectedFilePath );
-					checkReplayFolder();
-					GgtrackerUploader.initReplayFolderMonitor();
+					// If the folder changed, the setting listeners refresh the text field and restart the monitor
+					if ( selectedFilePath.equals( Settings.get( Settings.KEY_REPLAY_FOLDER ) ) ) {
+						checkReplayFolder();
+						GgtrackerUploader.initReplayFolderMonitor();
+					}
+					else
+						Settings.set( Settings.KEY_REPLAY_FOLDER, selectedFilePath );
 				}
 			}
 		} );
@@ -132,6 +196,29 @@ public class MainFrame extends JFrame {
 		row.add( new JLabel( "Upload key:" ) );
 		row.add( Utils.createSettingTextField( Settings.KEY_AUTH_TOKEN) );
 		contentBox.add( row );
+		contentBox.add( Box.createVerticalStrut( SPACING ) );
+		row = Box.createHorizontalBox();
+		row.add( new JLabel( "Account keys:" ) );
+		final JTextField accountTokensTextField = Utils.createSettingTextField( Settings.KEY_ACCOUNT_TOKENS );
+		accountTokensTextField.setToolTipText( "<html>Upload keys of the players sharing this computer, like <code>&lt;account folder&gt;=&lt;upload key&gt;; ...</code><br>"
+			+ "Account folders are relative to the replay folder. Replays of other folders are uploaded with the upload key above.</html>" );
+		row.add( accountTokensTextField );
+		contentBox.add( row );
+		contentBox.add( Box.createVerticalStrut( SPACING ) );
+		row = Box.createHorizontalBox();
+		row.add( new JLabel( "Upload:" ) );
+		final JCheckBox betweenGamesCheckBox = new JCheckBox( "Only between games",
+			GameMonitor.TIMING_BETWEEN_GAMES.equals( Settings.get( Settings.KEY_UPLOAD_TIMING ) ) );
+		betweenGamesCheckBox.setToolTipText( "While a game is being played, replays are only detected, and uploaded when the game ends." );
+		betweenGamesCheckBox.addActionListener( new ActionListener() {
+			@Override
+			public void actionPerformed( final ActionEvent event ) {
+				Settings.set( Settings.KEY_UPLOAD_TIMING, betweenGamesCheckBox.isSelected() ? GameMonitor.TIMING_BETWEEN_GAMES : GameMonitor.TIMING_IMMEDIATELY );
+			}
+		} );
+		row.add( betweenGamesCheckBox );
+		row.add( Box.createHorizontalGlue() );
+		contentBox.add( row );
 		Utils.formLayoutBox( contentBox, 1 );
 		
 		// STATS AND STATUS
@@ -148,6 +235,13 @@ public class MainFrame extends JFrame {
 		wrapper.add( new JLabel( "Failed uploads: " ) );
 		wrapper.add( failedCountLabel );
 		contentBox.add( wrapper );
+		wrapper = new JPanel( new FlowLayout( FlowLayout.LEFT, 0, SPACING ) );
+		wrapper.add( new JLabel( "In progress: " ) );
+		wrapper.add( inProgressLabel );
+		wrapper.add( Box.createHorizontalStrut( 15 ) );
+		wrapper.add( new JLabel( "Throughput: " ) );
+		wrapper.add( throughputLabel );
+		contentBox.add( wrapper );
 		
 		// ACTIONS
 		
@@ -155,6 +249,16 @@ public class MainFrame extends JFrame {
 		wrapper = new JPanel( new FlowLayout( FlowLayout.RIGHT, 0, 0 ) );
 //		wrapper.add( Utils.createLinkLabel("Online Help", Consts.ONLINE_HELP_LINK));
 		wrapper.add( Box.createHorizontalStrut( 20 ) );
+		final JButton historyButton = new JButton( "Upload History..." );
+		historyButton.setEnabled( GgtrackerUploader.uploadHistory != null );
+		historyButton.addActionListener( new ActionListener() {
+			@Override
+			public void actionPerformed( final ActionEvent event ) {
+				new HistoryDialog( MainFrame.this, GgtrackerUploader.uploadHistory ).setVisible( true );
+			}
+		} );
+		wrapper.add( historyButton );
+		wrapper.add( Box.createHorizontalStrut( 10 ) );
 		final JButton exitButton = new JButton( "Quit and Stop Uploading Replays" );
 		exitButton.addActionListener( new ActionListener() {
 			@Override
@@ -199,17 +303,54 @@ public class MainFrame extends JFrame {
 	}
 	
 	/**
-	 * Increments the successful uploads count.
+	 * Starts the status timer if the frame is showing and not iconified, stops it otherwise.<br>
+	 * When started, the status is refreshed immediately and the throughput samples are restarted.
 	 */
-	public void incUploadCount() {
-		uploadedCountLabel.setText( Integer.toString( uploadCount.incrementAndGet() ) );
+	private void updateStatusTimer() {
+		final boolean visible = isShowing() && ( getExtendedState() & ICONIFIED ) == 0;
+		
+		if ( visible && !statusTimer.isRunning() ) {
+			sampleCount = 0;
+			refreshStatus();
+			statusTimer.start();
+		}
+		else if ( !visible && statusTimer.isRunning() )
+			statusTimer.stop();
 	}
 	
 	/**
-	 * Increments the failed uploads count.
+	 * Samples the status of the upload pipeline and displays it.
 	 */
-	public void incFailedCount() {
-		failedCountLabel.setText( Integer.toString( failedCount.incrementAndGet() ) );
+	private void refreshStatus() {
+		final UploadPipeline pipeline = GgtrackerUploader.uploadPipeline;
+		if ( pipeline == null )
+			return;
+		
+		final UploadStatus status = pipeline.getStatus();
+		final long uploaded = status.getUploadedCount();
+		final long bytes    = status.getUploadedBytes();
+		final long now      = System.nanoTime();
+		
+		// Labels only repaint if their text changes
+		uploadedCountLabel.setText( Long.toString( uploaded ) );
+		failedCountLabel  .setText( Long.toString( status.getFailedCount() ) );
+		inProgressLabel   .setText( pipeline.getGameMonitor().isDeferring() ? pipeline.getInFlightCount() + " (waiting for the game to end)"
+			: Integer.toString( pipeline.getInFlightCount() ) );
+		
+		// Throughput over the last THROUGHPUT_SAMPLES samples
+		final int index = sampleCount % THROUGHPUT_SAMPLES;
+		final int oldest = sampleCount < THROUGHPUT_SAMPLES ? 0 : index;
+		final long elapsedNanos = now - sampleNanos[ oldest ];
+		if ( sampleCount > 0 && elapsedNanos > 0 )
+			throughputLabel.setText( String.format( Locale.US, "%.1f replays/min, %.1f KB/s",
+				( uploaded - sampleCounts[ oldest ] ) * 60e9 / elapsedNanos, ( bytes - sampleBytes[ oldest ] ) * 1e9 / 1024 / elapsedNanos ) );
+		else
+			throughputLabel.setText( "-" );
+		
+		sampleCounts[ index ] = uploaded;
+		sampleBytes [ index ] = bytes;
+		sampleNanos [ index ] = now;
+		sampleCount++;
 	}
 	
 	/**
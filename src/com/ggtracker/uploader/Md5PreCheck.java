@@ -0,0 +1,339 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Asks the server whether it already has replays, by their MD5, before their content is encoded and sent.
+ * 
+ * <p>Many replays are uploaded by the opponents or teammates too. Replays the server already has are linked
+ * to the account of the auth token by the check itself, so their content does not have to be sent at all.</p>
+ * 
+ * <p>Checks are batched: while a check request is in flight, the MD5s of the other replays being prepared are collected,
+ * and the next request asks about all of them (up to {@link #MAX_BATCH_SIZE}) at once. No delay is added to form batches,
+ * a lone replay is checked right away. Answers, both positive and negative, are cached for the {@link Settings#KEY_MD5_CHECK_TTL},
+ * and replays uploaded by this process are recorded as known.</p>
+ * 
+ * <p>Protocol: the MD5s are posted comma separated in the <code>fileMd5s</code> parameter to the {@link Settings#KEY_MD5_CHECK_URL},
+ * the server answers with the known ones:</p>
+ * <pre>
+ * &lt;md5CheckResult docVersion="1.0"&gt;
+ *     &lt;errorCode&gt;0&lt;/errorCode&gt;
+ *     &lt;replay&gt;&lt;fileMd5&gt;...&lt;/fileMd5&gt;&lt;replayUrl&gt;http://some.host.com/replay?id=1234&lt;/replayUrl&gt;&lt;/replay&gt;
+ * &lt;/md5CheckResult&gt;
+ * </pre>
+ * 
+ * <p>If the check fails, the replays are uploaded as usual. If the server does not support the check, it is disabled until restart.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class Md5PreCheck {
+	
+	/** Max number of MD5s asked about in one request. */
+	public static final int MAX_BATCH_SIZE = 100;
+	
+	/** Max number of cached answers, expired answers are dropped when exceeded. */
+	private static final int MAX_CACHE_SIZE = 100000;
+	
+	/** Name of the request version parameter. */
+	private static final String PARAM_NAME_REQUEST_VERSION = "requestVersion";
+	/** Name of the auth token parameter.      */
+	private static final String PARAM_NAME_AUTH_TOKEN      = "accessToken";
+	/** Name of the file MD5s parameter.       */
+	private static final String PARAM_NAME_FILE_MD5S       = "fileMd5s";
+	
+	/**
+	 * A cached answer.
+	 */
+	private static class CacheEntry {
+		/** Replay URL if the server has the replay; <code>null</code> if it does not. */
+		final String replayUrl;
+		/** Nano time when the answer expires.                                        */
+		final long   expiresNanos;
+		
+		/**
+		 * Creates a new CacheEntry.
+		 * @param replayUrl    replay URL if the server has the replay; <code>null</code> if it does not
+		 * @param expiresNanos nano time when the answer expires
+		 */
+		CacheEntry( final String replayUrl, final long expiresNanos ) {
+			this.replayUrl    = replayUrl;
+			this.expiresNanos = expiresNanos;
+		}
+	}
+	
+	/**
+	 * A replay waiting to be checked.
+	 */
+	private static class Request {
+		/** MD5 of the replay.                                      */
+		final String md5;
+		/** Auth token to link the replay to.                      */
+		final String authToken;
+		/** Replay URL if the server has the replay, set when done. */
+		String       replayUrl;
+		/** Tells if the check is done.                             */
+		boolean      done;
+		
+		/**
+		 * Creates a new Request.
+		 * @param md5       MD5 of the replay
+		 * @param authToken auth token to link the replay to
+		 */
+		Request( final String md5, final String authToken ) {
+			this.md5       = md5;
+			this.authToken = authToken;
+		}
+	}
+	
+	/** The process-wide instance, created on first use. */
+	private static Md5PreCheck instance;
+	
+	/** Cached answers mapped from the auth token and the MD5. */
+	private final Map< String, CacheEntry > cacheMap    = new ConcurrentHashMap< String, CacheEntry >();
+	/** Replays waiting to be checked, guarded by the lock.    */
+	private final List< Request >           pendingList = new ArrayList< Request >();
+	/** Tells if a check request is in flight.                */
+	private boolean                         inFlight;
+	/** Tells if the server does not support the check.       */
+	private volatile boolean                unsupported;
+	
+	/** Lock guarding the pending replays; not a monitor, which would pin the virtual threads waiting for an answer. */
+	private final ReentrantLock             lock        = new ReentrantLock();
+	/** Condition signalled when a check request is answered. */
+	private final Condition                 answered    = lock.newCondition();
+	
+	/**
+	 * Returns the process-wide instance.
+	 * @return the process-wide instance
+	 */
+	public static synchronized Md5PreCheck get() {
+		if ( instance == null )
+			instance = new Md5PreCheck();
+		
+		return instance;
+	}
+	
+	/**
+	 * Returns the key of a cached answer.
+	 * @param md5       MD5 of the replay
+	 * @param authToken auth token the replay is linked to
+	 * @return the key of the cached answer
+	 */
+	private static String cacheKey( final String md5, final String authToken ) {
+		return authToken + ':' + md5;
+	}
+	
+	/**
+	 * Checks if the server has a replay. Waits for the answer, joining the next batch if a check request is in flight.
+	 * @param md5       MD5 of the replay
+	 * @param authToken auth token to link the replay to
+	 * @return the replay URL if the server has the replay; <code>null</code> if it does not, or the check is disabled or failed
+	 */
+	public String lookup( final String md5, final String authToken ) {
+		if ( unsupported || !Settings.getBoolean( Settings.KEY_MD5_CHECK ) )
+			return null;
+		
+		final CacheEntry entry = cacheMap.get( cacheKey( md5, authToken ) );
+		if ( entry != null && entry.expiresNanos - System.nanoTime() > 0 ) {
+			Metrics.MD5_CHECKS.inc( entry.replayUrl == null ? "cached_unknown" : "cached_known" );
+			return entry.replayUrl;
+		}
+		
+		final Request         request = new Request( md5, authToken );
+		final List< Request > batch;
+		lock.lock();
+		try {
+			pendingList.add( request );
+			try {
+				while ( inFlight && !request.done )
+					answered.await();
+			} catch ( final InterruptedException ie ) {
+				pendingList.remove( request );
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			if ( request.done )
+				return request.replayUrl;
+			if ( unsupported ) {
+				pendingList.remove( request );
+				return null;
+			}
+			
+			// Send the request of the waiting replays of the same token
+			inFlight = true;
+			batch    = new ArrayList< Request >();
+			for ( final Iterator< Request > iterator = pendingList.iterator(); iterator.hasNext() && batch.size() < MAX_BATCH_SIZE; ) {
+				final Request pending = iterator.next();
+				if ( pending.authToken.equals( authToken ) ) {
+					batch.add( pending );
+					iterator.remove();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		Map< String, String > knownMd5UrlMap = null;
+		try {
+			knownMd5UrlMap = check( batch, authToken );
+		} finally {
+			final long expiresNanos = System.nanoTime() + Settings.getInt( Settings.KEY_MD5_CHECK_TTL ) * 1000000l;
+			if ( knownMd5UrlMap != null && cacheMap.size() + batch.size() > MAX_CACHE_SIZE )
+				purgeCache();
+			
+			lock.lock();
+			try {
+				for ( final Request pending : batch ) {
+					if ( knownMd5UrlMap != null ) {
+						pending.replayUrl = knownMd5UrlMap.get( pending.md5 );
+						cacheMap.put( cacheKey( pending.md5, authToken ), new CacheEntry( pending.replayUrl, expiresNanos ) );
+						Metrics.MD5_CHECKS.inc( pending.replayUrl == null ? "unknown" : "known" );
+					}
+					else
+						Metrics.MD5_CHECKS.inc( "error" );
+					pending.done = true;
+				}
+				inFlight = false;
+				answered.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		return request.replayUrl;
+	}
+	
+	/**
+	 * Records that a replay was uploaded, so the server is known to have it.
+	 * @param md5       MD5 of the replay
+	 * @param authToken auth token the replay was uploaded with
+	 * @param replayUrl replay URL reported by the server
+	 */
+	public void recordUploaded( final String md5, final String authToken, final String replayUrl ) {
+		cacheMap.put( cacheKey( md5, authToken ), new CacheEntry( replayUrl, System.nanoTime() + Settings.getInt( Settings.KEY_MD5_CHECK_TTL ) * 1000000l ) );
+	}
+	
+	/**
+	 * Drops the expired answers from the cache, or all of them if none expired.
+	 */
+	private void purgeCache() {
+		final long now = System.nanoTime();
+		for ( final Iterator< CacheEntry > iterator = cacheMap.values().iterator(); iterator.hasNext(); )
+			if ( iterator.next().expiresNanos - now <= 0 )
+				iterator.remove();
+		
+		if ( cacheMap.size() >= MAX_CACHE_SIZE )
+			cacheMap.clear();
+	}
+	
+	/**
+	 * Asks the server which replays of a batch it has.
+	 * @param batch     replays to ask about
+	 * @param authToken auth token to link the replays to
+	 * @return the replay URLs of the replays the server has, mapped from their MD5; <code>null</code> if the check failed
+	 */
+	private Map< String, String > check( final List< Request > batch, final String authToken ) {
+		final StringBuilder md5sBuilder = new StringBuilder( batch.size() * 33 );
+		for ( final Request request : batch ) {
+			if ( md5sBuilder.length() > 0 )
+				md5sBuilder.append( ',' );
+			md5sBuilder.append( request.md5 );
+		}
+		
+		final Map< String, String > paramsMap = new HashMap< String, String >();
+		paramsMap.put( PARAM_NAME_REQUEST_VERSION, "1.0" );
+		paramsMap.put( PARAM_NAME_AUTH_TOKEN     , authToken );
+		paramsMap.put( PARAM_NAME_FILE_MD5S      , md5sBuilder.toString() );
+		
+		Metrics.MD5_CHECK_REQUESTS.inc();
+		final Settings.Snapshot settings = Settings.getSnapshot();
+		final HttpPost httpPost = new HttpPost( getCheckUrl( settings ), paramsMap );
+		try {
+			httpPost.setTimeouts( settings.getInt( Settings.KEY_HTTP_CONNECT_TIMEOUT ), settings.getInt( Settings.KEY_HTTP_READ_TIMEOUT ), settings.getInt( Settings.KEY_HTTP_READ_TIMEOUT ) );
+			if ( !httpPost.connect() || !httpPost.doPost() )
+				return null;
+			
+			final String response = httpPost.getResponse();
+			if ( response == null ) {
+				final int status = httpPost.getServerResponseCode();
+				if ( status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED ) {
+					System.out.println( "The server does not support the MD5 pre-check, it is disabled." );
+					unsupported = true;
+				}
+				return null;
+			}
+			
+			return parseKnownReplays( response );
+		} finally {
+			httpPost.close();
+		}
+	}
+	
+	/**
+	 * Returns the URL of the check endpoint.
+	 * @param settings settings to use
+	 * @return the URL of the check endpoint
+	 */
+	private static String getCheckUrl( final Settings.Snapshot settings ) {
+		final String checkUrl = settings.get( Settings.KEY_MD5_CHECK_URL );
+		if ( checkUrl.length() > 0 )
+			return checkUrl;
+		
+		// Next to the upload endpoint
+		final String uploadUrl = settings.get( Settings.KEY_UPLOAD_URL );
+		return uploadUrl.substring( 0, uploadUrl.lastIndexOf( '/' ) + 1 ) + "check";
+	}
+	
+	/**
+	 * Parses the <code>md5CheckResult</code> response of the server.
+	 * @param response the server response
+	 * @return the replay URLs of the replays the server has, mapped from their MD5; <code>null</code> if the server reported an error
+	 */
+	static Map< String, String > parseKnownReplays( final String response ) {
+		try {
+			final Element docElement = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( new ByteArrayInputStream( response.getBytes( "UTF-8" ) ) ).getDocumentElement();
+			final int     errorCode  = Integer.parseInt( ( (Element) docElement.getElementsByTagName( "errorCode" ).item( 0 ) ).getTextContent().trim() );
+			if ( errorCode != 0 ) {
+				System.out.println( "MD5 pre-check reported to have failed, error code: " + errorCode );
+				return null;
+			}
+			
+			final Map< String, String > knownMd5UrlMap = new HashMap< String, String >();
+			final NodeList replayList = docElement.getElementsByTagName( "replay" );
+			for ( int i = 0; i < replayList.getLength(); i++ ) {
+				final Element replayElement = (Element) replayList.item( i );
+				knownMd5UrlMap.put( ( (Element) replayElement.getElementsByTagName( "fileMd5" ).item( 0 ) ).getTextContent().trim(),
+					( (Element) replayElement.getElementsByTagName( "replayUrl" ).item( 0 ) ).getTextContent().trim() );
+			}
+			return knownMd5UrlMap;
+		} catch ( final Exception e ) {
+			System.out.println( "Failed to parse MD5 pre-check response!" );
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+}
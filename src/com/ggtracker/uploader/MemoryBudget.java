@@ -0,0 +1,226 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide budget of the heap held by upload payloads.
+ * 
+ * <p>An upload holds several copies of its replay at its peak: the read content, the base64 encoded string,
+ * the URL encoded form of it and the request body. Every upload reserves the estimate of this
+ * ({@link #estimatePayload(long)}) before preparing its payload, and releases it when the payload is dropped.
+ * Reserving blocks while the budget is exhausted, so the producers block through the bounded queues
+ * in front of the uploaders instead of running the JVM out of memory on small heaps.</p>
+ * 
+ * <p>A reservation bigger than the whole budget is granted when nothing else is reserved, so a huge replay is uploaded alone
+ * instead of never.</p>
+ * 
+ * <p>The size of the budget is the {@link Settings#KEY_MEMORY_BUDGET} setting, by default half of the max heap.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class MemoryBudget {
+	
+	/** Estimated number of heap bytes held by an upload at its peak, per byte of the replay. */
+	public static final int  PAYLOAD_FACTOR   = 8;
+	/** Estimated fixed heap overhead of an upload in bytes.                                  */
+	public static final long PAYLOAD_OVERHEAD = 64*1024;
+	
+	/** The process-wide budget, created on first use. */
+	private static MemoryBudget instance;
+	
+	/** Size of the budget in bytes.                 */
+	private final long limit;
+	/** Number of reserved bytes.                    */
+	private long       used;
+	/** Number of threads waiting for the budget.    */
+	private int        waiting;
+	
+	/** Lock guarding the budget; not a monitor, which would pin the virtual threads waiting for the budget. */
+	private final ReentrantLock lock     = new ReentrantLock();
+	/** Condition signalled when bytes are released. */
+	private final Condition     released = lock.newCondition();
+	
+	/**
+	 * Creates a new MemoryBudget.
+	 * @param limit size of the budget in bytes
+	 */
+	public MemoryBudget( final long limit ) {
+		this.limit = Math.max( 1, limit );
+	}
+	
+	/**
+	 * Returns the process-wide budget, creates it from the settings on first call.
+	 * @return the process-wide budget
+	 */
+	public static synchronized MemoryBudget get() {
+		if ( instance == null ) {
+			final long budgetMb = Settings.getInt( Settings.KEY_MEMORY_BUDGET );
+			instance = new MemoryBudget( budgetMb > 0 ? budgetMb * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 2 );
+			
+			final MemoryBudget budget = instance;
+			Metrics.registerGauge( "memory_budget_bytes"     , "Size of the in-flight upload memory budget.", null, null, new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return budget.getLimit();
+				}
+			} );
+			Metrics.registerGauge( "memory_budget_used_bytes", "Bytes of the in-flight upload memory budget reserved by uploads.", null, null, new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return budget.getUsed();
+				}
+			} );
+			Metrics.registerGauge( "memory_budget_waiting"   , "Number of uploads waiting for the in-flight upload memory budget.", null, null, new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return budget.getWaitingCount();
+				}
+			} );
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Returns the estimated number of heap bytes held by the upload of a replay at its peak.
+	 * @param replaySize size of the replay in bytes
+	 * @return the estimated number of heap bytes held by the upload of the replay
+	 */
+	public static long estimatePayload( final long replaySize ) {
+		return replaySize * PAYLOAD_FACTOR + PAYLOAD_OVERHEAD;
+	}
+	
+	/**
+	 * Tells if a reservation fits into the budget. Must be called while holding the lock.
+	 * @param bytes number of bytes to reserve
+	 * @return true if the reservation fits into the budget; false otherwise
+	 */
+	private boolean fits( final long bytes ) {
+		return used == 0 || used + bytes <= limit;
+	}
+	
+	/**
+	 * Reserves bytes from the budget, waits while they do not fit.
+	 * @param bytes number of bytes to reserve
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void reserve( final long bytes ) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if ( !fits( bytes ) ) {
+				Metrics.BUDGET_WAITS.inc();
+				waiting++;
+				try {
+					while ( !fits( bytes ) )
+						released.await();
+				} finally {
+					waiting--;
+				}
+			}
+			
+			used += bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Reserves bytes from the budget if they fit, does not wait.
+	 * @param bytes number of bytes to reserve
+	 * @return true if the bytes were reserved; false if they do not fit into the budget
+	 */
+	public boolean tryReserve( final long bytes ) {
+		lock.lock();
+		try {
+			if ( !fits( bytes ) )
+				return false;
+			
+			used += bytes;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until a reservation would fit into the budget, without reserving it.
+	 * @param bytes     number of bytes of the reservation
+	 * @param timeoutMs max time to wait, in milliseconds
+	 * @return true if the reservation would fit; false if the timeout expired
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitAvailable( final long bytes, final long timeoutMs ) throws InterruptedException {
+		long remainingNanos = timeoutMs * 1000000;
+		lock.lockInterruptibly();
+		try {
+			while ( !fits( bytes ) ) {
+				if ( remainingNanos <= 0 )
+					return false;
+				remainingNanos = released.awaitNanos( remainingNanos );
+			}
+			
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Releases bytes reserved earlier.
+	 * @param bytes number of bytes to release
+	 */
+	public void release( final long bytes ) {
+		lock.lock();
+		try {
+			used = Math.max( 0, used - bytes );
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the size of the budget.
+	 * @return the size of the budget in bytes
+	 */
+	public long getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * Returns the number of reserved bytes.
+	 * @return the number of reserved bytes
+	 */
+	public long getUsed() {
+		lock.lock();
+		try {
+			return used;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of threads waiting for the budget.
+	 * @return the number of threads waiting for the budget
+	 */
+	public int getWaitingCount() {
+		lock.lock();
+		try {
+			return waiting;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
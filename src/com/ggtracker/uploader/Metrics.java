@@ -0,0 +1,448 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process metrics registry of the upload pipeline.
+ * 
+ * <p>Recording is lock-free and allocation-free (except for the first occurrence of a new label value),
+ * so it can be done on the hot paths. The registry can be exported in the Prometheus text format,
+ * see {@link StatsServer}.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class Metrics {
+	
+	/** Prefix of all metric names. */
+	private static final String PREFIX = "gguploader_";
+	
+	/** Registered metrics in registration order. */
+	private static final List< Metric > METRIC_LIST = new ArrayList< Metric >();
+	
+	/** Time from saving a replay until it is detected.         */
+	public static final Histogram      DETECTION_DELAY = register( new Histogram     ( "detection_delay_seconds", "Time from saving a replay until it is detected." ) );
+	/** Number of scans of the replay folder.                    */
+	public static final Counter        FOLDER_SCANS    = register( new Counter       ( "folder_scans_total"     , "Number of scans of the replay folder." ) );
+	/** Time of hashing and encoding a replay.                   */
+	public static final Histogram      PREPARE_TIME    = register( new Histogram     ( "prepare_seconds"        , "Time of hashing and encoding a replay." ) );
+	/** Time of one upload attempt (connect, send and response). */
+	public static final Histogram      SEND_TIME       = register( new Histogram     ( "send_seconds"           , "Time of one upload attempt from connecting until the response is read." ) );
+	/** Time of waiting for the server after sending a replay.   */
+	public static final Histogram      SERVER_TIME     = register( new Histogram     ( "server_seconds"         , "Time of waiting for the server response after the replay was sent." ) );
+	/** Number of request body bytes sent.                       */
+	public static final Counter        BYTES_SENT      = register( new Counter       ( "bytes_sent_total"       , "Number of request body bytes sent." ) );
+	/** Number of upload retries.                                */
+	public static final Counter        RETRIES         = register( new Counter       ( "retries_total"          , "Number of upload retries." ) );
+	/** Number of finished uploads by result.                    */
+	public static final LabeledCounter UPLOADS         = register( new LabeledCounter( "uploads_total"          , "Number of finished uploads.", "result" ) );
+	/** Number of failed upload attempts by reason.              */
+	public static final LabeledCounter FAILURES        = register( new LabeledCounter( "failures_total"         , "Number of failed upload attempts.", "reason" ) );
+	/** Number of uploads that waited for the memory budget.     */
+	public static final Counter        BUDGET_WAITS    = register( new Counter       ( "memory_budget_waits_total", "Number of uploads that had to wait for the in-flight upload memory budget." ) );
+	/** Number of replays spooled while the upload server was unreachable. */
+	public static final Counter        SPOOLED         = register( new Counter       ( "spooled_total"          , "Number of replays spooled while the upload server was unreachable." ) );
+	/** Number of MD5 pre-checks by result.                      */
+	public static final LabeledCounter MD5_CHECKS      = register( new LabeledCounter( "md5_checks_total"       , "Number of replays checked to be known by the server before sending.", "result" ) );
+	/** Number of MD5 pre-check requests.                        */
+	public static final Counter        MD5_CHECK_REQUESTS = register( new Counter    ( "md5_check_requests_total", "Number of MD5 pre-check requests sent to the server." ) );
+	/** Number of MD5 lookups by local fingerprint by result.    */
+	public static final LabeledCounter MD5_CACHE       = register( new LabeledCounter( "md5_cache_total"        , "Number of replay MD5s looked up by local fingerprint before calculating them.", "result" ) );
+	/** Number of times a replay waited for a game to end.      */
+	public static final Counter        GAME_DEFERRALS  = register( new Counter       ( "game_deferrals_total"   , "Number of times preparing or sending a replay waited for a game to end." ) );
+	/** Time from detecting or enqueueing a replay until it is prepared, by priority class. */
+	public static final LabeledHistogram SCHEDULE_DELAY = register( new LabeledHistogram( "schedule_delay_seconds", "Time from detecting or enqueueing a replay until its preparation starts.", "class" ) );
+	/** Time from detecting or enqueueing a replay until its upload finishes, by priority class. */
+	public static final LabeledHistogram UPLOAD_LATENCY = register( new LabeledHistogram( "upload_latency_seconds", "Time from detecting or enqueueing a replay until its upload finishes.", "class" ) );
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private Metrics() {
+	}
+	
+	/**
+	 * Registers a metric.
+	 * @param metric metric to be registered
+	 * @return the registered metric
+	 */
+	private static < T extends Metric > T register( final T metric ) {
+		synchronized ( METRIC_LIST ) {
+			METRIC_LIST.add( metric );
+		}
+		return metric;
+	}
+	
+	/**
+	 * Registers a gauge. If a gauge with the same name and label value is already registered, it is replaced.
+	 * @param name       name of the gauge (without the common prefix)
+	 * @param help       help text of the gauge
+	 * @param labelName  name of the label, <code>null</code> if the gauge has no label
+	 * @param labelValue value of the label, <code>null</code> if the gauge has no label
+	 * @param gauge      the gauge to be sampled
+	 */
+	public static void registerGauge( final String name, final String help, final String labelName, final String labelValue, final Gauge gauge ) {
+		synchronized ( METRIC_LIST ) {
+			GaugeFamily family = null;
+			for ( final Metric metric : METRIC_LIST )
+				if ( metric instanceof GaugeFamily && metric.name.equals( PREFIX + name ) )
+					family = (GaugeFamily) metric;
+			if ( family == null )
+				METRIC_LIST.add( family = new GaugeFamily( name, help, labelName ) );
+			
+			family.gaugeMap.put( labelValue == null ? "" : labelValue, gauge );
+		}
+	}
+	
+	/**
+	 * Writes all registered metrics in the Prometheus text exposition format.
+	 * @param output builder to write to
+	 */
+	public static void writePrometheus( final StringBuilder output ) {
+		synchronized ( METRIC_LIST ) {
+			for ( final Metric metric : METRIC_LIST ) {
+				output.append( "# HELP " ).append( metric.name ).append( ' ' ).append( metric.help ).append( '\n' );
+				output.append( "# TYPE " ).append( metric.name ).append( ' ' ).append( metric.type ).append( '\n' );
+				metric.write( output );
+			}
+		}
+	}
+	
+	/**
+	 * Base class of the metrics.
+	 */
+	private static abstract class Metric {
+		
+		/** Full name of the metric. */
+		protected final String name;
+		/** Help text of the metric. */
+		protected final String help;
+		/** Prometheus type.         */
+		protected final String type;
+		
+		/**
+		 * Creates a new Metric.
+		 * @param name name of the metric (without the common prefix)
+		 * @param help help text of the metric
+		 * @param type Prometheus type of the metric
+		 */
+		protected Metric( final String name, final String help, final String type ) {
+			this.name = PREFIX + name;
+			this.help = help;
+			this.type = type;
+		}
+		
+		/**
+		 * Writes the samples of the metric.
+		 * @param output builder to write to
+		 */
+		protected abstract void write( StringBuilder output );
+	
+	}
+	
+	/**
+	 * A monotonic counter.
+	 */
+	public static class Counter extends Metric {
+		
+		/** Value of the counter. */
+		private final AtomicLong value = new AtomicLong();
+		
+		/**
+		 * Creates a new Counter.
+		 * @param name name of the counter (without the common prefix)
+		 * @param help help text of the counter
+		 */
+		public Counter( final String name, final String help ) {
+			super( name, help, "counter" );
+		}
+		
+		/**
+		 * Adds to the counter.
+		 * @param delta value to add
+		 */
+		public void add( final long delta ) {
+			value.addAndGet( delta );
+		}
+		
+		/**
+		 * Increments the counter.
+		 */
+		public void inc() {
+			value.incrementAndGet();
+		}
+		
+		/**
+		 * Returns the value of the counter.
+		 * @return the value of the counter
+		 */
+		public long get() {
+			return value.get();
+		}
+		
+		@Override
+		protected void write( final StringBuilder output ) {
+			output.append( name ).append( ' ' ).append( value.get() ).append( '\n' );
+		}
+	
+	}
+	
+	/**
+	 * A monotonic counter with one label, like the reason of a failure.
+	 */
+	public static class LabeledCounter extends Metric {
+		
+		/** Name of the label.                   */
+		private final String                                  labelName;
+		/** Values of the counter by label value. */
+		private final ConcurrentHashMap< String, AtomicLong > valueMap = new ConcurrentHashMap< String, AtomicLong >();
+		
+		/**
+		 * Creates a new LabeledCounter.
+		 * @param name      name of the counter (without the common prefix)
+		 * @param help      help text of the counter
+		 * @param labelName name of the label
+		 */
+		public LabeledCounter( final String name, final String help, final String labelName ) {
+			super( name, help, "counter" );
+			this.labelName = labelName;
+		}
+		
+		/**
+		 * Increments the counter of the specified label value.
+		 * @param labelValue label value whose counter to increment
+		 */
+		public void inc( final String labelValue ) {
+			AtomicLong value = valueMap.get( labelValue );
+			if ( value == null ) {
+				final AtomicLong newValue = new AtomicLong();
+				value = valueMap.putIfAbsent( labelValue, newValue );
+				if ( value == null )
+					value = newValue;
+			}
+			value.incrementAndGet();
+		}
+		
+		/**
+		 * Returns the value of the counter of the specified label value.
+		 * @param labelValue label value whose counter to return
+		 * @return the value of the counter of the specified label value
+		 */
+		public long get( final String labelValue ) {
+			final AtomicLong value = valueMap.get( labelValue );
+			return value == null ? 0 : value.get();
+		}
+		
+		@Override
+		protected void write( final StringBuilder output ) {
+			for ( final Map.Entry< String, AtomicLong > entry : valueMap.entrySet() )
+				output.append( name ).append( '{' ).append( labelName ).append( "=\"" ).append( entry.getKey() ).append( "\"} " ).append( entry.getValue().get() ).append( '\n' );
+		}
+	
+	}
+	
+	/**
+	 * A sampled value, like a queue depth.
+	 */
+	public interface Gauge {
+		
+		/**
+		 * Returns the current value of the gauge.
+		 * @return the current value of the gauge
+		 */
+		long getValue();
+	
+	}
+	
+	/**
+	 * Gauges sharing the same name, distinguished by a label.
+	 */
+	private static class GaugeFamily extends Metric {
+		
+		/** Name of the label, <code>null</code> if the gauge has no label. */
+		private final String               labelName;
+		/** Gauges by label value.                                          */
+		private final Map< String, Gauge > gaugeMap = new LinkedHashMap< String, Gauge >();
+		
+		/**
+		 * Creates a new GaugeFamily.
+		 * @param name      name of the gauges (without the common prefix)
+		 * @param help      help text of the gauges
+		 * @param labelName name of the label, <code>null</code> if the gauge has no label
+		 */
+		private GaugeFamily( final String name, final String help, final String labelName ) {
+			super( name, help, "gauge" );
+			this.labelName = labelName;
+		}
+		
+		@Override
+		protected void write( final StringBuilder output ) {
+			for ( final Map.Entry< String, Gauge > entry : gaugeMap.entrySet() ) {
+				output.append( name );
+				if ( labelName != null )
+					output.append( '{' ).append( labelName ).append( "=\"" ).append( entry.getKey() ).append( "\"}" );
+				output.append( ' ' ).append( entry.getValue().getValue() ).append( '\n' );
+			}
+		}
+	
+	}
+	
+	/**
+	 * A latency histogram with fixed buckets.
+	 * 
+	 * <p>Values are recorded in nanoseconds and exported in seconds.</p>
+	 */
+	public static class Histogram extends Metric {
+		
+		/** Upper bounds of the buckets in seconds, as exported. */
+		private static final String[] BOUND_LABELS = { "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30", "60", "120", "300" };
+		/** Upper bounds of the buckets in nanoseconds.           */
+		private static final long[]   BOUNDS       = new long[ BOUND_LABELS.length ];
+		static {
+			for ( int i = 0; i < BOUNDS.length; i++ )
+				BOUNDS[ i ] = (long) ( Double.parseDouble( BOUND_LABELS[ i ] ) * 1e9 );
+		}
+		
+		/** Non-cumulative bucket counts, the last one is the +Inf bucket. */
+		private final AtomicLongArray bucketCounts = new AtomicLongArray( BOUNDS.length + 1 );
+		/** Sum of the recorded values in nanoseconds.                      */
+		private final AtomicLong      sumNanos     = new AtomicLong();
+		
+		/**
+		 * Creates a new Histogram.
+		 * @param name name of the histogram (without the common prefix)
+		 * @param help help text of the histogram
+		 */
+		public Histogram( final String name, final String help ) {
+			super( name, help, "histogram" );
+		}
+		
+		/**
+		 * Records a value.
+		 * @param nanos value to record in nanoseconds; negative values are recorded as <code>0</code>
+		 */
+		public void record( long nanos ) {
+			if ( nanos < 0 )
+				nanos = 0;
+			
+			// Binary search for the first bound not less than the value
+			int low = 0, high = BOUNDS.length;
+			while ( low < high ) {
+				final int mid = ( low + high ) >>> 1;
+				if ( BOUNDS[ mid ] < nanos )
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			
+			bucketCounts.incrementAndGet( low );
+			sumNanos.addAndGet( nanos );
+		}
+		
+		/**
+		 * Returns the number of recorded values.
+		 * @return the number of recorded values
+		 */
+		public long getCount() {
+			long count = 0;
+			for ( int i = bucketCounts.length() - 1; i >= 0; i-- )
+				count += bucketCounts.get( i );
+			return count;
+		}
+		
+		@Override
+		protected void write( final StringBuilder output ) {
+			writeSamples( output, name, null );
+		}
+		
+		/**
+		 * Writes the samples of the histogram.
+		 * @param output  builder to write to
+		 * @param name    full name of the histogram
+		 * @param label   label of the samples like <code>class="live"</code>; <code>null</code> if the samples have no label
+		 */
+		private void writeSamples( final StringBuilder output, final String name, final String label ) {
+			final String labelPrefix = label == null ? "" : label + ",";
+			final String labels      = label == null ? "" : "{" + label + "}";
+			long cumulative = 0;
+			for ( int i = 0; i < BOUNDS.length; i++ ) {
+				cumulative += bucketCounts.get( i );
+				output.append( name ).append( "_bucket{" ).append( labelPrefix ).append( "le=\"" ).append( BOUND_LABELS[ i ] ).append( "\"} " ).append( cumulative ).append( '\n' );
+			}
+			cumulative += bucketCounts.get( BOUNDS.length );
+			output.append( name ).append( "_bucket{" ).append( labelPrefix ).append( "le=\"+Inf\"} " ).append( cumulative ).append( '\n' );
+			output.append( name ).append( "_sum" ).append( labels ).append( ' ' ).append( sumNanos.get() / 1e9 ).append( '\n' );
+			output.append( name ).append( "_count" ).append( labels ).append( ' ' ).append( cumulative ).append( '\n' );
+		}
+	
+	}
+	
+	/**
+	 * Latency histograms with one label, like the priority class of a replay.
+	 */
+	public static class LabeledHistogram extends Metric {
+		
+		/** Name of the label.                   */
+		private final String                                 labelName;
+		/** Histograms by label value.           */
+		private final ConcurrentHashMap< String, Histogram > histogramMap = new ConcurrentHashMap< String, Histogram >();
+		
+		/**
+		 * Creates a new LabeledHistogram.
+		 * @param name      name of the histogram (without the common prefix)
+		 * @param help      help text of the histogram
+		 * @param labelName name of the label
+		 */
+		public LabeledHistogram( final String name, final String help, final String labelName ) {
+			super( name, help, "histogram" );
+			this.labelName = labelName;
+		}
+		
+		/**
+		 * Returns the histogram of the specified label value.
+		 * @param labelValue label value whose histogram to return
+		 * @return the histogram of the specified label value
+		 */
+		public Histogram get( final String labelValue ) {
+			Histogram histogram = histogramMap.get( labelValue );
+			if ( histogram == null ) {
+				final Histogram newHistogram = new Histogram( name, help );
+				histogram = histogramMap.putIfAbsent( labelValue, newHistogram );
+				if ( histogram == null )
+					histogram = newHistogram;
+			}
+			return histogram;
+		}
+		
+		/**
+		 * Records a value in the histogram of the specified label value.
+		 * @param labelValue label value whose histogram to record in
+		 * @param nanos      value to record in nanoseconds
+		 */
+		public void record( final String labelValue, final long nanos ) {
+			get( labelValue ).record( nanos );
+		}
+		
+		@Override
+		protected void write( final StringBuilder output ) {
+			for ( final Map.Entry< String, Histogram > entry : histogramMap.entrySet() )
+				entry.getValue().writeSamples( output, name, labelName + "=\"" + entry.getKey() + "\"" );
+		}
+	
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Local spool of the replays to upload when the upload server becomes reachable again.
+ * 
+ * <p>When an upload cannot connect to the server (and a probe confirms it, see {@link ReplayUploader#send(UploadJob)}),
+ * the pipeline goes offline: replays reaching the prepare or send stage are spooled instead of being tried.
+ * The spool is saved to the {@link #SPOOL_FILE} on every change, so spooled replays survive a restart.</p>
+ * 
+ * <p>While offline, a background thread probes the server with {@link ConnectivityProbe}, starting with
+ * the {@link Settings#KEY_OFFLINE_PROBE_INTERVAL} and doubling it after each failed probe up to {@link #MAX_PROBE_BACKOFF} times.
+ * When the server is reachable again, the spooled replays are fed back to the pipeline as retries, oldest first,
+ * in bursts of at most {@link Settings#KEY_OFFLINE_DRAIN_RATE} replays per second, so the recovering link
+ * (and the server) is not flooded. Draining stops if the pipeline goes offline again.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class OfflineSpool {
+	
+	/** File to save the spooled replays to. */
+	public static final File SPOOL_FILE = new File( Consts.FOLDER_USER_CONTENT, "spooled-uploads.txt" );
+	
+	/** Max multiplier of the probe interval. */
+	private static final int MAX_PROBE_BACKOFF = 8;
+	
+	/** Pipeline to feed the drained replays to. */
+	private final UploadPipeline pipeline;
+	/** File to save the spooled replays to.     */
+	private final File           file;
+	
+	/** Absolute paths of the spooled replays, oldest first. */
+	private final Set< String > pathSet = new LinkedHashSet< String >();
+	
+	/** Tells if the upload server is unreachable. */
+	private volatile boolean offline;
+	/** Tells if shutdown has been requested.      */
+	private volatile boolean shuttingDown;
+	
+	/** Thread probing the server and draining the spool. */
+	private final Thread thread = new Thread( "Upload pipeline - offline spool" ) {
+		@Override
+		public void run() {
+			probeAndDrain();
+		}
+	};
+	
+	/**
+	 * Creates a new OfflineSpool.
+	 * @param pipeline pipeline to feed the drained replays to
+	 * @param file     file to save the spooled replays to
+	 */
+	public OfflineSpool( final UploadPipeline pipeline, final File file ) {
+		this.pipeline = pipeline;
+		this.file     = file;
+		
+		Metrics.registerGauge( "offline", "1 if the upload server is unreachable and replays are spooled, 0 otherwise.", null, null, new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return offline ? 1 : 0;
+			}
+		} );
+		Metrics.registerGauge( "spool_size", "Number of replays spooled while the upload server was unreachable.", null, null, new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return size();
+			}
+		} );
+	}
+	
+	/**
+	 * Loads the replays spooled by the last run, and starts the probing and draining thread.
+	 */
+	public void start() {
+		load();
+		
+		thread.setDaemon( true );
+		thread.start();
+	}
+	
+	/**
+	 * Stops the probing and draining thread. Replays still in the spool remain saved.
+	 */
+	public void shutdown() {
+		shuttingDown = true;
+		thread.interrupt();
+	}
+	
+	/**
+	 * Tells if the upload server is unreachable.
+	 * @return true if the upload server is unreachable and replays are to be spooled; false otherwise
+	 */
+	public boolean isOffline() {
+		return offline;
+	}
+	
+	/**
+	 * Marks the upload server unreachable: replays are spooled until a probe succeeds.
+	 */
+	public synchronized void goOffline() {
+		if ( offline )
+			return;
+		
+		System.out.println( "Upload server is unreachable, spooling replays until it is back." );
+		offline = true;
+		notifyAll();
+	}
+	
+	/**
+	 * Adds a replay to the spool.
+	 * @param replay replay to add
+	 */
+	public synchronized void add( final File replay ) {
+		if ( !pathSet.add( replay.getAbsolutePath() ) )
+			return;
+		
+		Metrics.SPOOLED.inc();
+		save();
+		notifyAll();
+	}
+	
+	/**
+	 * Returns the number of spooled replays.
+	 * @return the number of spooled replays
+	 */
+	public synchronized int size() {
+		return pathSet.size();
+	}
+	
+	/**
+	 * Probes the server while offline and drains the spool while online, until shutdown.
+	 */
+	private void probeAndDrain() {
+		final long probeIntervalMs = Math.max( 100, Settings.getInt( Settings.KEY_OFFLINE_PROBE_INTERVAL ) );
+		long       probeDelayMs    = probeIntervalMs;
+		try {
+			while ( !shuttingDown ) {
+				if ( offline ) {
+					Thread.sleep( probeDelayMs );
+					if ( ConnectivityProbe.isReachable( Settings.get( Settings.KEY_UPLOAD_URL ) ) ) {
+						System.out.println( "Upload server is reachable again, draining " + size() + " spooled replay(s)." );
+						offline      = false;
+						probeDelayMs = probeIntervalMs;
+					}
+					else
+						probeDelayMs = Math.min( probeDelayMs * 2, probeIntervalMs * MAX_PROBE_BACKOFF );
+					continue;
+				}
+				
+				final List< File > burst = takeBurst( Math.max( 1, Settings.getInt( Settings.KEY_OFFLINE_DRAIN_RATE ) ) );
+				if ( burst.isEmpty() ) {
+					synchronized ( this ) {
+						while ( !shuttingDown && !offline && pathSet.isEmpty() )
+							wait();
+					}
+					continue;
+				}
+				
+				final long start = System.nanoTime();
+				for ( final File replay : burst )
+					pipeline.enqueueSpooled( replay );
+				final long remainingMs = 1000 - ( System.nanoTime() - start ) / 1000000;
+				if ( remainingMs > 0 )
+					Thread.sleep( remainingMs );
+			}
+		} catch ( final InterruptedException ie ) {
+			// Shutting down
+		}
+	}
+	
+	/**
+	 * Removes the oldest spooled replays.
+	 * @param maxCount max number of replays to remove
+	 * @return the removed replays, oldest first; an empty list if the spool is empty or the server is unreachable
+	 */
+	private synchronized List< File > takeBurst( final int maxCount ) {
+		final List< File > burst = new ArrayList< File >();
+		if ( offline )
+			return burst;
+		
+		for ( final Iterator< String > iterator = pathSet.iterator(); iterator.hasNext() && burst.size() < maxCount; ) {
+			burst.add( new File( iterator.next() ) );
+			iterator.remove();
+		}
+		if ( !burst.isEmpty() )
+			save();
+		
+		return burst;
+	}
+	
+	/**
+	 * Loads the spooled replays saved by the last run.
+	 */
+	private synchronized void load() {
+		if ( !file.exists() )
+			return;
+		
+		BufferedReader input = null;
+		try {
+			input = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+			String line;
+			while ( ( line = input.readLine() ) != null )
+				if ( line.length() > 0 && new File( line ).isFile() )
+					pathSet.add( line );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to read the upload spool!" );
+			ie.printStackTrace();
+		} finally {
+			if ( input != null )
+				try { input.close(); } catch ( final IOException ie ) {}
+		}
+		
+		if ( !pathSet.isEmpty() )
+			System.out.println( "Loaded " + pathSet.size() + " spooled upload(s)." );
+	}
+	
+	/**
+	 * Saves the spooled replays to the spool file, deletes the file if the spool is empty.
+	 * Must be called while holding the monitor.
+	 */
+	private void save() {
+		if ( pathSet.isEmpty() ) {
+			file.delete();
+			return;
+		}
+		
+		// Write to a temp file first so a crash cannot leave a truncated spool behind
+		final File tempFile = new File( file.getPath() + ".tmp" );
+		PrintWriter output = null;
+		try {
+			file.getParentFile().mkdirs();
+			output = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tempFile ), "UTF-8" ) );
+			for ( final String path : pathSet )
+				output.println( path );
+			output.close();
+			output = null;
+			
+			file.delete();
+			if ( !tempFile.renameTo( file ) )
+				throw new IOException( "Failed to rename " + tempFile + " to " + file );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to save the upload spool!" );
+			ie.printStackTrace();
+		} finally {
+			if ( output != null )
+				output.close();
+		}
+	}
+
+}
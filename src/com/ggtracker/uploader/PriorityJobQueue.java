@@ -0,0 +1,320 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking queue of upload jobs ordered by their {@link UploadJob.Priority priority class}, with aging.
+ * 
+ * <p>Each priority class has its own FIFO queue and its own capacity, so a flood of backfill jobs never blocks
+ * putting a live replay. Taking a job only compares the heads of the classes: the one with the earliest deadline wins,
+ * where the deadline of a job is the time it was put into the queue plus the aging time multiplied by the ordinal of its class.
+ * This way a backfill job which waited twice the aging time goes before a live replay which just arrived,
+ * so the lower classes are not starved.</p>
+ * 
+ * <p>Within a class, the jobs of each {@link UploadJob#getAuthToken() auth token} have their own FIFO queue, and the tokens
+ * are served round-robin, so on a machine shared by multiple players the backlog of one player cannot hold up the uploads
+ * of the others. All operations except {@link #remove(UploadJob)} take constant time.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class PriorityJobQueue {
+	
+	/**
+	 * A queued job with its deadline.
+	 */
+	private static class Entry {
+		/** The queued job.                        */
+		final UploadJob job;
+		/** Nano time of the deadline of the job. */
+		final long      deadlineNanos;
+		
+		/**
+		 * Creates a new Entry.
+		 * @param job           the queued job
+		 * @param deadlineNanos nano time of the deadline of the job
+		 */
+		Entry( final UploadJob job, final long deadlineNanos ) {
+			this.job           = job;
+			this.deadlineNanos = deadlineNanos;
+		}
+	}
+	
+	/**
+	 * Queue of a priority class, serving the queues of the tokens round-robin.
+	 */
+	private static class ClassQueue {
+		/** Queues of the tokens having queued jobs, mapped from the token. */
+		final Map< String, ArrayDeque< Entry > > tokenQueueMap = new HashMap< String, ArrayDeque< Entry > >();
+		/** Queues of the tokens having queued jobs, in serving order.      */
+		final ArrayDeque< ArrayDeque< Entry > >  ring          = new ArrayDeque< ArrayDeque< Entry > >();
+		/** Number of queued jobs of the class.                            */
+		int                                      size;
+		
+		/**
+		 * Adds an entry to the queue of its token.
+		 * @param entry entry to add
+		 */
+		void add( final Entry entry ) {
+			ArrayDeque< Entry > tokenQueue = tokenQueueMap.get( entry.job.getAuthToken() );
+			if ( tokenQueue == null ) {
+				tokenQueueMap.put( entry.job.getAuthToken(), tokenQueue = new ArrayDeque< Entry >() );
+				ring.add( tokenQueue );
+			}
+			tokenQueue.add( entry );
+			size++;
+		}
+		
+		/**
+		 * Returns the next entry to serve.
+		 * @return the next entry to serve; <code>null</code> if the class has no queued jobs
+		 */
+		Entry peek() {
+			final ArrayDeque< Entry > tokenQueue = ring.peek();
+			return tokenQueue == null ? null : tokenQueue.peek();
+		}
+		
+		/**
+		 * Removes the next entry to serve, and moves the queue of its token to the end of the ring.
+		 */
+		void remove() {
+			final ArrayDeque< Entry > tokenQueue = ring.remove();
+			final Entry               entry      = tokenQueue.remove();
+			if ( tokenQueue.isEmpty() )
+				tokenQueueMap.remove( entry.job.getAuthToken() );
+			else
+				ring.add( tokenQueue );
+			size--;
+		}
+		
+		/**
+		 * Removes the entry of a job.
+		 * @param job job whose entry to remove
+		 * @return true if the job was queued; false otherwise
+		 */
+		boolean remove( final UploadJob job ) {
+			final ArrayDeque< Entry > tokenQueue = tokenQueueMap.get( job.getAuthToken() );
+			if ( tokenQueue == null )
+				return false;
+			
+			for ( final Iterator< Entry > iterator = tokenQueue.iterator(); iterator.hasNext(); )
+				if ( iterator.next().job == job ) {
+					iterator.remove();
+					if ( tokenQueue.isEmpty() ) {
+						tokenQueueMap.remove( job.getAuthToken() );
+						ring.remove( tokenQueue );
+					}
+					size--;
+					return true;
+				}
+			return false;
+		}
+	}
+	
+	/** Max number of jobs per priority class. */
+	private final int  capacity;
+	/** Aging time in nanoseconds.             */
+	private final long agingNanos;
+	
+	/** Queues of the priority classes, indexed by the ordinal of the class. */
+	private final ClassQueue[] classQueues = new ClassQueue[ UploadJob.Priority.values().length ];
+	
+	/** Lock guarding the queues.                    */
+	private final ReentrantLock lock     = new ReentrantLock();
+	/** Condition signalled when a job is put.       */
+	private final Condition     notEmpty = lock.newCondition();
+	/** Conditions signalled when a job of a class is taken, indexed by the ordinal of the class. */
+	private final Condition[]   notFull  = new Condition[ UploadJob.Priority.values().length ];
+	
+	/** Number of queued jobs. */
+	private int size;
+	
+	/**
+	 * Creates a new PriorityJobQueue.
+	 * @param capacity max number of jobs per priority class; {@link Integer#MAX_VALUE} for unbounded
+	 * @param agingMs  aging time in milliseconds, the deadline of a job is delayed by this much for each class it is below the top class
+	 */
+	public PriorityJobQueue( final int capacity, final long agingMs ) {
+		this.capacity   = Math.max( 1, capacity );
+		this.agingNanos = agingMs * 1000000;
+		
+		for ( int i = 0; i < notFull.length; i++ ) {
+			classQueues[ i ] = new ClassQueue();
+			notFull    [ i ] = lock.newCondition();
+		}
+	}
+	
+	/**
+	 * Adds a job to the queue of its class. Must be called while holding the lock.
+	 * @param job job to add
+	 */
+	private void enqueue( final UploadJob job ) {
+		final int ordinal = job.getPriority().ordinal();
+		classQueues[ ordinal ].add( new Entry( job, System.nanoTime() + ordinal * agingNanos ) );
+		size++;
+		notEmpty.signal();
+	}
+	
+	/**
+	 * Removes the job with the earliest deadline. Must be called while holding the lock.
+	 * @return the job with the earliest deadline; <code>null</code> if the queue is empty
+	 */
+	private UploadJob dequeue() {
+		int   best      = -1;
+		Entry bestEntry = null;
+		for ( int i = 0; i < notFull.length; i++ ) {
+			final Entry head = classQueues[ i ].peek();
+			// Compare with a difference, nano times may overflow
+			if ( head != null && ( bestEntry == null || head.deadlineNanos - bestEntry.deadlineNanos < 0 ) ) {
+				best      = i;
+				bestEntry = head;
+			}
+		}
+		if ( bestEntry == null )
+			return null;
+		
+		classQueues[ best ].remove();
+		size--;
+		notFull[ best ].signal();
+		
+		return bestEntry.job;
+	}
+	
+	/**
+	 * Puts a job into the queue, waiting for space in its class if necessary.
+	 * @param job job to be put
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void put( final UploadJob job ) throws InterruptedException {
+		final int ordinal = job.getPriority().ordinal();
+		lock.lockInterruptibly();
+		try {
+			while ( classQueues[ ordinal ].size >= capacity )
+				notFull[ ordinal ].await();
+			enqueue( job );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Puts a job into the queue if there is space in its class.
+	 * @param job job to be put
+	 * @return true if the job was put; false if its class is full
+	 */
+	public boolean offer( final UploadJob job ) {
+		lock.lock();
+		try {
+			if ( classQueues[ job.getPriority().ordinal() ].size >= capacity )
+				return false;
+			enqueue( job );
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Takes the job with the earliest deadline, waiting if necessary.
+	 * @param timeout max time to wait
+	 * @param unit    unit of the timeout
+	 * @return the job with the earliest deadline; <code>null</code> if the timeout expired
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public UploadJob poll( final long timeout, final TimeUnit unit ) throws InterruptedException {
+		long remainingNanos = unit.toNanos( timeout );
+		lock.lockInterruptibly();
+		try {
+			while ( size == 0 ) {
+				if ( remainingNanos <= 0 )
+					return null;
+				remainingNanos = notEmpty.awaitNanos( remainingNanos );
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Takes the job with the earliest deadline if there is one, does not wait.
+	 * @return the job with the earliest deadline; <code>null</code> if the queue is empty
+	 */
+	public UploadJob poll() {
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes a job from the queue.
+	 * @param job job to remove
+	 * @return true if the job was in the queue; false otherwise
+	 */
+	public boolean remove( final UploadJob job ) {
+		final int ordinal = job.getPriority().ordinal();
+		lock.lock();
+		try {
+			if ( !classQueues[ ordinal ].remove( job ) )
+				return false;
+			size--;
+			notFull[ ordinal ].signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of queued jobs.
+	 * @return the number of queued jobs
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of queued jobs of a priority class.
+	 * @param priority priority class whose jobs to count
+	 * @return the number of queued jobs of the priority class
+	 */
+	public int size( final UploadJob.Priority priority ) {
+		lock.lock();
+		try {
+			return classQueues[ priority.ordinal() ].size;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Tells if the queue is empty.
+	 * @return true if the queue is empty; false otherwise
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The table of the processes running on the computer, tells if SC2 is running (see {@link GameMonitor}).
+ * 
+ * <p>The {@link #getSystem() system process table} is read:
+ * <ul>
+ * 	<li>on Linux from <code>/proc</code>: the first argument of the command line of each process, which is the path
+ * 		of the Windows executable for programs run by Wine,
+ * 	<li>elsewhere with <code>ProcessHandle</code> if available (Java 9 or newer),
+ * 	<li>otherwise from the output of <code>tasklist</code> on Windows and <code>ps</code> on other systems.
+ * </ul>
+ * A {@link Fake} process table can be used instead to simulate a running game.</p>
+ * 
+ * @author Andras Belicza
+ */
+public abstract class ProcessTable {
+	
+	/** The system process table, created on first use. */
+	private static ProcessTable system;
+	
+	/**
+	 * Returns the process table of the system.
+	 * @return the process table of the system
+	 */
+	public static synchronized ProcessTable getSystem() {
+		if ( system == null ) {
+			if ( new File( "/proc/self/cmdline" ).isFile() )
+				system = new ProcFsTable();
+			else {
+				try {
+					system = new HandleTable();
+				} catch ( final Exception e ) {
+					// ProcessHandle is only available from Java 9
+					system = new CommandTable();
+				}
+			}
+		}
+		
+		return system;
+	}
+	
+	/**
+	 * Lists the names of the running processes.
+	 * @return the names of the executables of the running processes (without folders)
+	 * @throws IOException if the process table cannot be read
+	 */
+	public abstract List< String > listProcessNames() throws IOException;
+	
+	/**
+	 * Tells if any of the specified processes is running.
+	 * @param names names of the executables of the processes, compared case-insensitively
+	 * @return true if any of the specified processes is running; false otherwise or if the process table cannot be read
+	 */
+	public boolean isAnyRunning( final Collection< String > names ) {
+		try {
+			for ( final String processName : listProcessNames() )
+				for ( final String name : names )
+					if ( name.equalsIgnoreCase( processName ) )
+						return true;
+		} catch ( final IOException ie ) {
+			// Not known, don't hold up the uploads
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the name of an executable from its path.
+	 * @param path path of the executable, Windows paths are also accepted
+	 * @return the name of the executable
+	 */
+	static String getExecutableName( final String path ) {
+		return path.substring( Math.max( path.lastIndexOf( '/' ), path.lastIndexOf( '\\' ) ) + 1 ).trim();
+	}
+	
+	/**
+	 * Process table read from the <code>/proc</code> file system of Linux.
+	 */
+	private static class ProcFsTable extends ProcessTable {
+		@Override
+		public List< String > listProcessNames() throws IOException {
+			final File[] processFolders = new File( "/proc" ).listFiles();
+			if ( processFolders == null )
+				throw new IOException( "Cannot list /proc!" );
+			
+			final List< String > nameList = new ArrayList< String >();
+			final byte[]         buffer   = new byte[ 1024 ];
+			for ( final File processFolder : processFolders ) {
+				if ( !Character.isDigit( processFolder.getName().charAt( 0 ) ) )
+					continue;
+				
+				// The arguments of the command line are separated by 0 bytes, the first one is the executable
+				InputStream input = null;
+				try {
+					input = new FileInputStream( new File( processFolder, "cmdline" ) );
+					int length = 0, count;
+					while ( length < buffer.length && ( count = input.read( buffer, length, buffer.length - length ) ) > 0 )
+						length += count;
+					int end = 0;
+					while ( end < length && buffer[ end ] != 0 )
+						end++;
+					if ( end > 0 )
+						nameList.add( getExecutableName( new String( buffer, 0, end, "UTF-8" ) ) );
+				} catch ( final IOException ie ) {
+					// The process ended or is not accessible
+				} finally {
+					if ( input != null )
+						try { input.close(); } catch ( final IOException ie ) {}
+				}
+			}
+			
+			return nameList;
+		}
+	}
+	
+	/**
+	 * Process table listed with <code>ProcessHandle</code> (Java 9 or newer), called by reflection.
+	 */
+	private static class HandleTable extends ProcessTable {
+		/** <code>ProcessHandle.allProcesses()</code>. */
+		private final Method allProcessesMethod;
+		/** <code>BaseStream.iterator()</code>.        */
+		private final Method iteratorMethod;
+		/** <code>ProcessHandle.info()</code>.         */
+		private final Method infoMethod;
+		/** <code>ProcessHandle.Info.command()</code>. */
+		private final Method commandMethod;
+		/** <code>Optional.orElse(Object)</code>.      */
+		private final Method orElseMethod;
+		
+		/**
+		 * Creates a new HandleTable.
+		 * @throws Exception if <code>ProcessHandle</code> is not available
+		 */
+		HandleTable() throws Exception {
+			final Class< ? > handleClass = Class.forName( "java.lang.ProcessHandle" );
+			allProcessesMethod = handleClass.getMethod( "allProcesses" );
+			iteratorMethod     = Class.forName( "java.util.stream.BaseStream" ).getMethod( "iterator" );
+			infoMethod         = handleClass.getMethod( "info" );
+			commandMethod      = Class.forName( "java.lang.ProcessHandle$Info" ).getMethod( "command" );
+			orElseMethod       = Class.forName( "java.util.Optional" ).getMethod( "orElse", Object.class );
+		}
+		
+		@Override
+		public List< String > listProcessNames() throws IOException {
+			final List< String > nameList = new ArrayList< String >();
+			try {
+				final Iterator< ? > handleIterator = (Iterator< ? >) iteratorMethod.invoke( allProcessesMethod.invoke( null ) );
+				while ( handleIterator.hasNext() ) {
+					final Object command = orElseMethod.invoke( commandMethod.invoke( infoMethod.invoke( handleIterator.next() ) ), (Object) null );
+					if ( command != null )
+						nameList.add( getExecutableName( command.toString() ) );
+				}
+			} catch ( final Exception e ) {
+				throw new IOException( "Cannot list the processes: " + e );
+			}
+			
+			return nameList;
+		}
+	}
+	
+	/**
+	 * Process table listed by <code>tasklist</code> on Windows and <code>ps</code> on other systems.
+	 */
+	private static class CommandTable extends ProcessTable {
+		@Override
+		public List< String > listProcessNames() throws IOException {
+			final boolean windows = Consts.OS == OperatingSystem.WINDOWS;
+			final Process process = new ProcessBuilder( windows ? Arrays.asList( "tasklist", "/fo", "csv", "/nh" ) : Arrays.asList( "ps", "-A", "-o", "comm=" ) )
+				.redirectErrorStream( true ).start();
+			
+			final List< String > nameList = new ArrayList< String >();
+			BufferedReader input = null;
+			try {
+				input = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+				String line;
+				while ( ( line = input.readLine() ) != null ) {
+					// tasklist lines look like: "SC2.exe","1234","Console","1","1,234,567 K"
+					if ( windows )
+						line = line.startsWith( "\"" ) && line.indexOf( '"', 1 ) > 0 ? line.substring( 1, line.indexOf( '"', 1 ) ) : "";
+					if ( line.length() > 0 )
+						nameList.add( getExecutableName( line ) );
+				}
+			} finally {
+				if ( input != null )
+					try { input.close(); } catch ( final IOException ie ) {}
+				process.destroy();
+			}
+			
+			return nameList;
+		}
+	}
+	
+	/**
+	 * A process table whose processes are set by hand, to simulate a running game.
+	 */
+	public static class Fake extends ProcessTable {
+		/** Names of the running processes. */
+		private volatile List< String > nameList = Collections.emptyList();
+		
+		/**
+		 * Sets the running processes.
+		 * @param names names of the executables of the running processes
+		 */
+		public void setRunning( final String... names ) {
+			nameList = Collections.unmodifiableList( new ArrayList< String >( Arrays.asList( names ) ) );
+		}
+		
+		@Override
+		public List< String > listProcessNames() {
+			return nameList;
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the replay files denoted by paths of replays, paths of folders and glob patterns.
+ * 
+ * <p>Folders are searched recursively. Glob patterns use the syntax of {@link java.nio.file.FileSystem#getPathMatcher(String)},
+ * e.g. <code>D:/replays/&#42;&#42;/&#42;.SC2Replay</code> or <code>old/2012-*</code>; folders matched by a pattern are searched recursively too.
+ * Only files with the SC2Replay extension are ever returned.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class ReplayFiles {
+	
+	/** Extension of the replay files (lower cased). */
+	private static final String REPLAY_EXTENSION = ".sc2replay";
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private ReplayFiles() {
+	}
+	
+	/**
+	 * Tells if a file is a replay based on its extension.
+	 * @param file file to be tested
+	 * @return true if the file is a replay; false otherwise
+	 */
+	public static boolean isReplay( final File file ) {
+		return file.getName().toLowerCase( Locale.ENGLISH ).endsWith( REPLAY_EXTENSION );
+	}
+	
+	/**
+	 * Collects the replays denoted by paths and glob patterns.
+	 * @param patternList list of paths and glob patterns
+	 * @param replays     collection to add the replays to (a set can be used to filter out replays denoted more than once)
+	 * @return the number of paths that do not exist and patterns that do not match anything
+	 */
+	public static int collect( final List< String > patternList, final Collection< File > replays ) {
+		int missing = 0;
+		for ( final String pattern : patternList ) {
+			if ( isGlob( pattern ) ) {
+				if ( !collectGlob( pattern, replays ) )
+					missing++;
+				continue;
+			}
+			
+			final File file = normalize( new File( pattern ) );
+			if ( file.isDirectory() )
+				collectFolder( file, replays );
+			else if ( file.isFile() ) {
+				if ( isReplay( file ) )
+					replays.add( file );
+			}
+			else
+				missing++;
+		}
+		
+		return missing;
+	}
+	
+	/**
+	 * Tells if a path is a glob pattern, i.e. it contains glob special characters.
+	 * @param path path to be tested
+	 * @return true if the path is a glob pattern; false otherwise
+	 */
+	private static boolean isGlob( final String path ) {
+		for ( int i = path.length() - 1; i >= 0; i-- )
+			switch ( path.charAt( i ) ) {
+			case '*' : case '?' : case '[' : case '{' :
+				return true;
+			}
+		return false;
+	}
+	
+	/**
+	 * Collects the replays matched by a glob pattern.
+	 * 
+	 * <p>The search starts in the deepest folder of the pattern without special characters. If the pattern does not contain
+	 * <code>&#42;&#42;</code>, the search does not go deeper than the number of folders in the pattern.</p>
+	 * 
+	 * @param pattern glob pattern
+	 * @param replays collection to add the replays to
+	 * @return true if the pattern matched anything; false otherwise
+	 */
+	private static boolean collectGlob( final String pattern, final Collection< File > replays ) {
+		// Glob patterns use '/' as the separator, backslash is the escape character
+		final String normalizedPattern = File.separatorChar == '\\' ? pattern.replace( '\\', '/' ) : pattern;
+		final List< String > segmentList = Arrays.asList( normalizedPattern.split( "/", -1 ) );
+		
+		int baseSegments = 0;
+		while ( baseSegments < segmentList.size() - 1 && !isGlob( segmentList.get( baseSegments ) ) )
+			baseSegments++;
+		
+		final StringBuilder baseBuilder = new StringBuilder();
+		for ( int i = 0; i < baseSegments; i++ )
+			baseBuilder.append( segmentList.get( i ) ).append( '/' );
+		final File baseFolder = normalize( new File( baseBuilder.length() == 0 ? "." : baseBuilder.toString() ) );
+		
+		final StringBuilder relativeBuilder = new StringBuilder();
+		for ( int i = baseSegments; i < segmentList.size(); i++ )
+			relativeBuilder.append( i > baseSegments ? "/" : "" ).append( segmentList.get( i ) );
+		final String relativePattern = relativeBuilder.toString();
+		
+		final PathMatcher matcher  = FileSystems.getDefault().getPathMatcher( "glob:" + relativePattern );
+		final int        maxDepth = relativePattern.contains( "**" ) ? Integer.MAX_VALUE : segmentList.size() - baseSegments;
+		
+		return collectGlob( baseFolder.toPath(), baseFolder, matcher, 1, maxDepth, replays );
+	}
+	
+	/**
+	 * Collects the replays matched by a glob pattern in a folder.
+	 * @param basePath base path the pattern is relative to
+	 * @param folder   folder to search
+	 * @param matcher  matcher of the pattern relative to the base path
+	 * @param depth    depth of the entries of the folder relative to the base path
+	 * @param maxDepth max depth to search
+	 * @param replays  collection to add the replays to
+	 * @return true if the pattern matched anything; false otherwise
+	 */
+	private static boolean collectGlob( final Path basePath, final File folder, final PathMatcher matcher, final int depth, final int maxDepth, final Collection< File > replays ) {
+		final File[] files = folder.listFiles();
+		if ( files == null )
+			return false;
+		
+		Arrays.sort( files );
+		boolean matched = false;
+		for ( final File file : files ) {
+			final boolean matches = matcher.matches( basePath.relativize( file.toPath() ) );
+			if ( file.isDirectory() ) {
+				if ( matches ) {
+					collectFolder( file, replays );
+					matched = true;
+				}
+				else if ( depth < maxDepth )
+					matched |= collectGlob( basePath, file, matcher, depth + 1, maxDepth, replays );
+			}
+			else if ( matches ) {
+				if ( isReplay( file ) )
+					replays.add( file );
+				matched = true;
+			}
+		}
+		
+		return matched;
+	}
+	
+	/**
+	 * Collects the replays of a folder and its subfolders.
+	 * @param folder  folder to collect the replays of
+	 * @param replays collection to add the replays to
+	 */
+	private static void collectFolder( final File folder, final Collection< File > replays ) {
+		final File[] files = folder.listFiles();
+		if ( files == null )
+			return;
+		
+		Arrays.sort( files );
+		for ( final File file : files )
+			if ( file.isDirectory() )
+				collectFolder( file, replays );
+			else if ( isReplay( file ) )
+				replays.add( file );
+	}
+	
+	/**
+	 * Returns the absolute, normalized form of a file, so the same file denoted by different paths can be recognized.
+	 * @param file file to be normalized
+	 * @return the absolute, normalized form of the file
+	 */
+	private static File normalize( final File file ) {
+		return file.toPath().toAbsolutePath().normalize().toFile();
+	}
+
+}
@@ -9,17 +9,11 @@
  */
 package com.ggtracker.uploader;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import com.sun.jna.platform.FileMonitor;
 import com.sun.jna.platform.FileMonitor.FileEvent;
@@ -29,7 +23,11 @@ import com.sun.jna.platform.FileMonitor.FileListener;
  * Replay folder monitor.
  * 
  * <p>Starts a new thread and monitors the replay folder for new replays.
- * When new replays are detected, they are uploaded to ggtracker.com.</p> 
+ * When new replays are detected, they are submitted to the {@link UploadPipeline} to be uploaded to ggtracker.com.</p> 
+ * 
+ * <p>Where the file monitor is supported, the thread blocks until the file monitor hands over a new replay, so an idle
+ * uploader does not wake up at all. Otherwise the replay folder is polled with an adaptive interval: short while
+ * new replays are expected, backing off exponentially while nothing happens.</p>
  * 
  * @author Andras Belicza
  */
@@ -42,21 +40,53 @@ public class ReplayFolderMonitor extends Thread implements FileFilter {
 	 */
 	private volatile boolean requestedToCancel;
 	
+	/** Max time to wait for the thread to end on shutdown, in milliseconds. */
+	private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+	
+	/** Lock to wait on between checks, notified when a rescan is requested. */
+	private final Object     scanLock = new Object();
+	/** Tells if a rescan of the replay folder has been requested.          */
+	private volatile boolean rescanRequested;
+	
 	/** Tells if File monitor is supported on the current machine. */
 	private static final boolean fileMonitorSupported = Consts.OS == OperatingSystem.WINDOWS;
 	
 	/** Date and time of the previous archived replay. */
 	private volatile long previousReplayDate = System.currentTimeMillis();
 	
-	/** New replay file reported by the file monitor. */
-	private volatile File lastReplayFromMonitor;
+	/** Marker in the monitor queue requesting a rescan. */
+	private static final File RESCAN = new File( "" );
+	
+	/** New replay files reported by the file monitor, and {@link #RESCAN} markers. */
+	private final BlockingQueue< File > monitorQueue = new LinkedBlockingQueue< File >();
+	
+	/** Current polling interval, in milliseconds. */
+	private volatile long pollIntervalMs;
+	
+	/** Pipeline to submit the detected replays to. */
+	private final UploadPipeline uploadPipeline;
+	
+	/** Number of directories listed by the current polling scan.          */
+	private int scanDirectories;
+	/** Number of files and directories stat'ed by the current polling scan. */
+	private int scanFiles;
 	
     /**
      * Creates a new ReplayFolderMonitor.
+     * @param uploadPipeline pipeline to submit the detected replays to
      */
-    public ReplayFolderMonitor() {
+    public ReplayFolderMonitor( final UploadPipeline uploadPipeline ) {
 		super( "Replay Folder Monitor" );
 		
+		this.uploadPipeline = uploadPipeline;
+		
+		Metrics.registerGauge( "folder_poll_interval_milliseconds", "Current interval of polling the replay folder, 0 if the file monitor is used.", null, null, new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return fileMonitor == null ? pollIntervalMs : 0;
+			}
+		} );
+		
 		// Set normal thread priority in case we're started from the EDT (Event Dispatching Thread)...
 		setPriority( NORM_PRIORITY );
     }
@@ -79,39 +109,124 @@ public class ReplayFolderMonitor extends Thread implements FileFilter {
 		if ( fileMonitorSupported )
 			setupFileMonitor();
 		
-		final long sleepTime = fileMonitor == null ? 3000 : 1000;
-		
 		final File replayFolder = new File( Settings.get( Settings.KEY_REPLAY_FOLDER ) ).getAbsoluteFile();
 		
 		while ( !requestedToCancel )
 			try {
-    			File lastReplayFile = null;
-    			
-    			// Check if a new replay was saved
-    			if ( fileMonitor == null ) {
-    				// Polling
-    				lastReplayFile = getLastReplay( replayFolder );
-    			}
-    			else {
-    				if ( lastReplayFromMonitor != null ) {
-    					lastReplayFile        = lastReplayFromMonitor;
-    					lastReplayFromMonitor = null;
-    				}
-    			}
-    			
-    			if ( lastReplayFile != null ) {					
-    				// Wait a little, let SC2 finish saving the game...
-    				sleep( 1500l );
-    				// Check again the date: FileListener is called at creation time which is the current time, lastModified of file is only set after that
-    				if ( lastReplayFile.lastModified() > previousReplayDate )
-    					uploadNewReplay( lastReplayFile );
-    			}
-    			
-	            sleep( sleepTime );
-            } catch ( final Exception e ) {
-	            e.printStackTrace();
-	            // Do not stop monitoring replay folder
-            }
+				if ( fileMonitor == null )
+					pollReplayFolder( replayFolder );
+				else
+					awaitFileMonitor( replayFolder );
+			} catch ( final InterruptedException ie ) {
+				// Interrupted by shutdown, the loop condition decides
+			} catch ( final Exception e ) {
+				e.printStackTrace();
+				// Do not stop monitoring replay folder
+			}
+	}
+	
+	/**
+	 * Polling: scans the replay folder, then waits the polling interval or until a rescan is requested.
+	 * 
+	 * <p>The interval is the {@link Settings#KEY_MONITOR_POLL_MIN_INTERVAL} after a new replay, after a rescan and while
+	 * an SC2 client is running (see {@link GameMonitor#isClientRunning()}), as new replays are expected then. After each scan
+	 * finding nothing it doubles, up to the {@link Settings#KEY_MONITOR_POLL_MAX_INTERVAL}.</p>
+	 * 
+	 * @param replayFolder the replay folder
+	 * @throws InterruptedException if interrupted while submitting the replay or waiting
+	 */
+	private void pollReplayFolder( final File replayFolder ) throws InterruptedException {
+		// Rescans are requested through the flag when polling
+		monitorQueue.clear();
+		rescanRequested = false;
+		
+		final File lastReplayFile = scanReplayFolder( replayFolder );
+		if ( lastReplayFile != null )
+			submitReplay( lastReplayFile );
+		
+		final long minIntervalMs = Math.max( 100, Settings.getInt( Settings.KEY_MONITOR_POLL_MIN_INTERVAL ) );
+		final long maxIntervalMs = Math.max( minIntervalMs, Settings.getInt( Settings.KEY_MONITOR_POLL_MAX_INTERVAL ) );
+		if ( lastReplayFile != null || uploadPipeline.getGameMonitor().isClientRunning() )
+			pollIntervalMs = minIntervalMs;
+		else
+			pollIntervalMs = Math.max( minIntervalMs, Math.min( maxIntervalMs, pollIntervalMs * 2 ) );
+		
+		synchronized ( scanLock ) {
+			if ( !rescanRequested )
+				scanLock.wait( pollIntervalMs );
+		}
+	}
+	
+	/**
+	 * File monitor: waits until the file monitor reports a new replay or a rescan is requested, without waking up in between.
+	 * @param replayFolder the replay folder
+	 * @throws InterruptedException if interrupted while waiting or submitting the replay
+	 */
+	private void awaitFileMonitor( final File replayFolder ) throws InterruptedException {
+		final File replayFile = monitorQueue.take();
+		if ( replayFile == RESCAN ) {
+			rescanRequested = false;
+			final File lastReplayFile = scanReplayFolder( replayFolder );
+			if ( lastReplayFile != null )
+				submitReplay( lastReplayFile );
+		}
+		else
+			submitReplay( replayFile );
+	}
+	
+	/**
+	 * Submits a new replay to the pipeline.
+	 * @param replayFile replay to submit
+	 * @throws InterruptedException if interrupted while waiting for the pipeline
+	 */
+	private void submitReplay( final File replayFile ) throws InterruptedException {
+		// Store the last modification date now so polling will not report this replay again.
+		// Waiting for SC2 to finish saving the game is the job of the pipeline's settle stage.
+		previousReplayDate = Math.max( previousReplayDate, replayFile.lastModified() );
+		uploadPipeline.submit( replayFile );
+	}
+	
+	/**
+	 * Requests an immediate scan of the replay folder, even if the file monitor is used.
+	 * Polling continues with the shortest interval.
+	 */
+	public void rescan() {
+		pollIntervalMs = 0;
+		monitorQueue.offer( RESCAN );
+		synchronized ( scanLock ) {
+			rescanRequested = true;
+			scanLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Scans the replay folder for a new replay, and reports the scan to the flight recorder.
+	 * @param replayFolder the replay folder
+	 * @return the last replay (one replay) that is after the last check time
+	 */
+	private File scanReplayFolder( final File replayFolder ) {
+		Metrics.FOLDER_SCANS.inc();
+		scanDirectories = 0;
+		scanFiles       = 0;
+		
+		if ( !JfrEvents.isRecorderInitialized() )
+			return getLastReplay( replayFolder );
+		
+		final JfrEvents.FolderScan event = new JfrEvents.FolderScan();
+		event.begin();
+		
+		final File lastReplay = getLastReplay( replayFolder );
+		
+		event.end();
+		if ( event.shouldCommit() ) {
+			event.folder      = replayFolder.getPath();
+			event.directories = scanDirectories;
+			event.files       = scanFiles;
+			event.foundReplay = lastReplay == null ? null : lastReplay.getPath();
+			event.commit();
+		}
+		
+		return lastReplay;
 	}
 	
 	/**
@@ -120,7 +235,8 @@ public class ReplayFolderMonitor extends Thread implements FileFilter {
 	 * @param startFolder start folder to start the search in
 	 * @return the last replay (one replay) that is after the last check time
 	 */
-	private File getLastReplay( final File startFolder ) {
+	File getLastReplay( final File startFolder ) {
+		scanDirectories++;
 		final File[] files = startFolder.listFiles( this );
 		if ( files == null )
 			return null;
@@ -139,138 +255,17 @@ public class ReplayFolderMonitor extends Thread implements FileFilter {
 		return null;
 	}
 	
-	// ========================== REPLAY UPLOAD SPECIFICATION CONSTANTS ===========================
-	/** Value of the request version parameter. */
-	private static final String PARAM_VALUE_REQUEST_VERSION = "1.0";
-	
-	/** Name of the request version parameter. */
-	private static final String PARAM_NAME_REQUEST_VERSION = "requestVersion";
-
-	private static final String PARAM_NAME_AUTH_TOKEN      = "accessToken";
-
-	/** Name of the description parameter.     */
-	private static final String PARAM_NAME_DESCRIPTION     = "description";
-	/** Name of the file name parameter.       */
-	private static final String PARAM_NAME_FILE_NAME       = "fileName";
-	/** Name of the file size parameter.       */
-	private static final String PARAM_NAME_FILE_SIZE       = "fileSize";
-	/** Name of the file MD5 parameter.        */
-	private static final String PARAM_NAME_FILE_MD5        = "fileMd5";
-	/** Name of the file content parameter.    */
-	private static final String PARAM_NAME_FILE_CONTENT    = "fileContent";
-	
-	// ======================= END OF REPLAY UPLOAD SPECIFICATION CONSTANTS =======================
-	
-	/**
-	 * Uploads the new replay.
-	 * @param lastReplayFile a new replay to be uploaded
-	 */
-	private void uploadNewReplay( final File lastReplayFile ) {
-		// Store the last modification date now
-		// (as it changes at the end of saving, and it will differ in our case if saving finishes during our last sleep,
-		//  also in case of file monitor it might be the creation (current) time, lastModified is only set later...)
-		previousReplayDate = lastReplayFile.lastModified();
-		
-		System.out.println( "New replay detected, uploading: " + lastReplayFile.getAbsolutePath() );
-		
-		// Retry a couple of times if upload fails:
-		for ( int attempt = 0; attempt < 3; attempt++ ) {
-			if ( attempt > 0 )
-				System.out.println( "Retrying upload (" + ( attempt + 1 ) + ")..." );
-			
-    		HttpPost httpPost = null;
-    		try {
-    			final String fileMd5 = Utils.calculateFileMd5( lastReplayFile );
-    			if ( fileMd5 == null || fileMd5.length() == 0 ) {
-    				System.err.println( "MD5 could not be calculated (" + lastReplayFile + ")!" );
-    				continue;
-    			}
-    			final String fileBase64 = Utils.encodeFileBase64( lastReplayFile );
-    			if ( fileBase64 == null ) {
-    				System.err.println( "Base64 encoding could not be performed (" + lastReplayFile + ")!" );
-    				continue;
-    			}
-    			
-    			final Map< String, String > paramsMap = new HashMap< String, String >();
-    			paramsMap.put( PARAM_NAME_REQUEST_VERSION, PARAM_VALUE_REQUEST_VERSION );
-    			paramsMap.put( PARAM_NAME_FILE_NAME      , lastReplayFile.getName() );
-    			paramsMap.put( PARAM_NAME_FILE_SIZE      , Long.toString( lastReplayFile.length() ) );
-    			paramsMap.put( PARAM_NAME_DESCRIPTION    , "" ); // Not used
-//    			paramsMap.put( PARAM_NAME_USER_NAME      , Settings.get( Settings.KEY_USER_NAME ) );
-    			paramsMap.put( PARAM_NAME_AUTH_TOKEN      , Settings.get( Settings.KEY_AUTH_TOKEN ) );
-//    			paramsMap.put( PARAM_NAME_PASSWORD       , Settings.get( Settings.KEY_UPLOAD_KEY ) );
-    			paramsMap.put( PARAM_NAME_FILE_MD5       , fileMd5 );
-    			paramsMap.put( PARAM_NAME_FILE_CONTENT   , fileBase64 );
-    			
-    			httpPost = new HttpPost( "http://ggtracker.com/replays/drop", paramsMap );
-    			
-    			if ( !httpPost.connect() ) {
-    				System.out.println( "Failed to connect!" );
-    				continue;
-    			}
-    			if ( !httpPost.doPost() ) {
-    				System.out.println( "Failed to send replay!" );
-    				continue;
-    			}
-    			final String response = httpPost.getResponse();
-    			if ( response == null ) {
-    				System.out.println( "Failed to read server response!" );
-    				continue;
-    			}
-    			
-    			try {
-    				// Example response:
-    				/*
-    				 * <?xml version="1.0" encoding="UTF-8"?>
-    				 * <uploadResult docVersion="1.0">
-    				 *     <errorCode>0</errorCode>
-    				 *     <message>Upload OK.</message>
-    				 *     <replayUrl>http://some.host.com/replay?id=1234</replayUrl>
-    				 * </uploadResult>
-    				 */
-    				final Document responseDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( new ByteArrayInputStream( response.getBytes( "UTF-8" ) ) );
-    				final Element  docElement       = responseDocument.getDocumentElement();
-    				final int      errorCode        = Integer.parseInt( ( (Element) docElement.getElementsByTagName( "errorCode" ).item( 0 ) ).getTextContent().trim() );
-    				if ( errorCode == 0 ) {
-    					final String replayUrl = ( (Element) docElement.getElementsByTagName( "replayUrl" ).item( 0 ) ).getTextContent().trim();
-        				System.out.println( "Successful upload, replay URL: " + replayUrl );
-    					
-    					// All went well, no more retries:
-        				if ( GgtrackerUploader.mainFrame != null )
-        					GgtrackerUploader.mainFrame.incUploadCount();
-        				
-    					return;
-    				}
-    				else {
-    					final String message = ( (Element) docElement.getElementsByTagName( "message" ).item( 0 ) ).getTextContent().trim();
-        				System.out.println( "Upload reported to have failed, error code:" + errorCode + ", error message: " + message );
-        				continue;
-    				}
-    			} catch ( final Exception e ) {
-    				System.out.println( "Failed to parse server response!" );
-    				e.printStackTrace();
-    				continue;
-    			}
-    		} finally {
-    			if ( httpPost != null )
-    				httpPost.close();
-    		}
-    		
-		}
-		
-		if ( GgtrackerUploader.mainFrame != null )
-			GgtrackerUploader.mainFrame.incFailedCount();
-	}
-	
 	/**
 	 * Shuts down this thread.<br>
-	 * First calls {@link #requestToCancel()} and then waits for this thread to close by calling {@link #join()}.
+	 * First calls {@link #requestToCancel()}, interrupts the thread in case it's sleeping or waiting for the pipeline,
+	 * and then waits for this thread to close by calling {@link #join(long)}, but not longer than {@link #SHUTDOWN_TIMEOUT_MS}.
 	 */
 	public void shutdown() {
 		requestToCancel();
+		interrupt();
 		
 		try {
-			join();
+			join( SHUTDOWN_TIMEOUT_MS );
 		} catch ( final InterruptedException ie ) {
 			ie.printStackTrace();
 		}
@@ -283,6 +278,7 @@ public class ReplayFolderMonitor extends Thread implements FileFilter {
 	 */
 	@Override
 	public boolean accept( final File pathname ) {
+		scanFiles++;
 		return pathname.isDirectory() || 
 			pathname.lastModified() > previousReplayDate && pathname.getName().toLowerCase().endsWith( ".sc2replay" );
 	}
@@ -325,7 +321,7 @@ public class ReplayFolderMonitor extends Thread implements FileFilter {
 						if ( event.getType() == FileMonitor.FILE_CREATED ) {
 							final File file = event.getFile();
 							if ( file.isFile() && accept( file ) )
-								lastReplayFromMonitor = file;
+								monitorQueue.offer( file );
 						}
 					}
 				} );
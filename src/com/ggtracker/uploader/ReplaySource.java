@@ -0,0 +1,286 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Content of a replay file for hashing and encoding, read with as little copying as possible.
+ * 
+ * <p>Replays of at least {@link #MAP_THRESHOLD} bytes are memory mapped, so hashing and encoding read straight from the page cache
+ * instead of copying the file through small heap buffers. Smaller replays (where setting up the mapping costs more than it saves),
+ * and replays on file systems that cannot be mapped (some network shares) are read into a heap buffer with as few reads as possible.</p>
+ * 
+ * <p>The file is closed when the source is opened; a mapping is released when the source is garbage collected.
+ * On Windows a live mapping prevents renaming and deleting the file, which SC2 or the user may do right after a replay is saved,
+ * so replays are never mapped there.</p>
+ * 
+ * <p>This class does not depend on AWT or Swing (unlike {@link Utils}), so preparing replays does not load them in headless mode.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class ReplaySource {
+	
+	/** Min size of the replays to be memory mapped. */
+	public static final int MAP_THRESHOLD = 256*1024;
+	
+	/** Min size of the replays memory mapped by {@link #open(File)}: never on Windows, where a mapping locks the file until it is garbage collected. */
+	private static final int DEFAULT_MAP_THRESHOLD = Consts.OS == OperatingSystem.WINDOWS ? Integer.MAX_VALUE : MAP_THRESHOLD;
+	
+	/** Size of the chunks mapped data is base64 encoded in, multiple of 3 so only the last chunk needs padding. */
+	private static final int ENCODE_CHUNK_SIZE = 48*1024;
+	
+	/** Digits used in the hexadecimal representation. */
+	private static final char[] HEX_DIGITS     = "0123456789abcdef".toCharArray();
+	/** Symbols used in the base64 format.             */
+	static final char[]         BASE64_SYMBOLS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	/** Base64 padding character.                      */
+	static final char           BASE64_PADDING = '=';
+	
+	/** The replay file.                                      */
+	private final File       file;
+	/** Last modification time of the file when it was opened. */
+	private final long       lastModified;
+	/** Content of the replay, positioned at its start.       */
+	private final ByteBuffer data;
+	/** Tells if the content is memory mapped.                */
+	private final boolean    mapped;
+	
+	/**
+	 * Creates a new ReplaySource.
+	 * @param file         the replay file
+	 * @param lastModified last modification time of the file when it was opened
+	 * @param data         content of the replay
+	 * @param mapped       tells if the content is memory mapped
+	 */
+	private ReplaySource( final File file, final long lastModified, final ByteBuffer data, final boolean mapped ) {
+		this.file         = file;
+		this.lastModified = lastModified;
+		this.data         = data;
+		this.mapped       = mapped;
+	}
+	
+	/**
+	 * Opens a replay: maps it if it is big enough, the file system supports it and not on Windows, else reads it into a heap buffer.
+	 * @param file replay file to open
+	 * @return the source of the replay
+	 * @throws IOException if the replay cannot be read
+	 */
+	public static ReplaySource open( final File file ) throws IOException {
+		return open( file, DEFAULT_MAP_THRESHOLD );
+	}
+	
+	/**
+	 * Opens a replay.
+	 * @param file         replay file to open
+	 * @param mapThreshold min size of the replay to be memory mapped; {@link Integer#MAX_VALUE} to always read it into a heap buffer
+	 * @return the source of the replay
+	 * @throws IOException if the replay cannot be read
+	 */
+	public static ReplaySource open( final File file, final int mapThreshold ) throws IOException {
+		final long             lastModified     = file.lastModified();
+		final RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			final long        size    = channel.size();
+			if ( size > Integer.MAX_VALUE )
+				throw new IOException( "Replay is too big: " + file );
+			
+			if ( size >= mapThreshold && mapThreshold < Integer.MAX_VALUE )
+				try {
+					return new ReplaySource( file, lastModified, channel.map( FileChannel.MapMode.READ_ONLY, 0, size ), true );
+				} catch ( final IOException ie ) {
+					Log.debug( "Failed to map replay, reading it instead (" + file + "): " + ie );
+				} catch ( final UnsupportedOperationException uoe ) {
+					Log.debug( "Mapping is not supported, reading replay instead (" + file + ")." );
+				}
+			
+			final ByteBuffer data = ByteBuffer.allocate( (int) size );
+			while ( data.hasRemaining() )
+				if ( channel.read( data ) < 0 )
+					throw new IOException( "Replay was truncated while reading: " + file );
+			data.flip();
+			
+			return new ReplaySource( file, lastModified, data, false );
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+	
+	/**
+	 * Returns the replay file.
+	 * @return the replay file
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Returns the last modification time of the file when it was opened.
+	 * @return the last modification time of the file when it was opened, in milliseconds since the epoch
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+	
+	/**
+	 * Returns the length of the replay.
+	 * @return the length of the replay
+	 */
+	public int getLength() {
+		return data.limit();
+	}
+	
+	/**
+	 * Tells if the content is memory mapped.
+	 * @return true if the content is memory mapped; false if it is in a heap buffer
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+	
+	/**
+	 * Returns a read-only view of the content of the replay.
+	 * @return a read-only view of the content of the replay, positioned at its start
+	 */
+	public ByteBuffer getData() {
+		return data.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Calculates the local fingerprint of the replay with the {@link LocalHash} selected by the settings.
+	 * @return the local fingerprint of the replay
+	 */
+	public long calculateFingerprint() {
+		return LocalHash.get().fingerprint( data );
+	}
+	
+	/**
+	 * Calculates the MD5 digest of the replay.
+	 * @return the MD5 digest of the replay in hex format; an empty string if the digest cannot be calculated
+	 */
+	public String calculateMd5() {
+		final JfrEvents.ReplayHash event = JfrEvents.isRecorderInitialized() ? new JfrEvents.ReplayHash() : null;
+		if ( event != null )
+			event.begin();
+		
+		try {
+			final MessageDigest md = MessageDigest.getInstance( "MD5" );
+			md.update( data.duplicate() );
+			return toHexString( md.digest() );
+		} catch ( final Exception e ) {
+			e.printStackTrace();
+			return "";
+		} finally {
+			if ( event != null ) {
+				event.end();
+				if ( event.shouldCommit() ) {
+					event.file  = file.getPath();
+					event.bytes = getLength();
+					event.commit();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the base64 encoded form of the replay.
+	 * @return the base64 encoded form of the replay
+	 */
+	public String encodeBase64() {
+		final JfrEvents.ReplayEncode event = JfrEvents.isRecorderInitialized() ? new JfrEvents.ReplayEncode() : null;
+		if ( event != null )
+			event.begin();
+		
+		// 3 bytes results in 4: charCount = RoundUp( size / 3 ) * 4
+		final int    length  = getLength();
+		final char[] encoded = new char[ ( length + 2 ) / 3 * 4 ];
+		int charPos = 0;
+		try {
+			if ( data.hasArray() )
+				charPos = encodeBase64( data.array(), data.arrayOffset(), length, encoded, charPos );
+			else {
+				final ByteBuffer source = data.duplicate();
+				final byte[]     chunk  = new byte[ Math.min( length, ENCODE_CHUNK_SIZE ) ];
+				while ( source.hasRemaining() ) {
+					final int chunkLength = Math.min( source.remaining(), chunk.length );
+					source.get( chunk, 0, chunkLength );
+					charPos = encodeBase64( chunk, 0, chunkLength, encoded, charPos );
+				}
+			}
+		} finally {
+			if ( event != null ) {
+				event.end();
+				if ( event.shouldCommit() ) {
+					event.file          = file.getPath();
+					event.bytes         = length;
+					event.encodedLength = charPos;
+					event.commit();
+				}
+			}
+		}
+		
+		return new String( encoded );
+	}
+	
+	/**
+	 * Base64 encodes bytes. Only the last encoded part of the data may have a length which is not a multiple of 3, it is padded.
+	 * @param source  array holding the bytes to encode
+	 * @param offset  offset of the bytes in the array
+	 * @param length  number of bytes to encode
+	 * @param encoded array to write the encoded characters to
+	 * @param charPos position to write the encoded characters at
+	 * @return the position after the last encoded character
+	 */
+	private static int encodeBase64( final byte[] source, final int offset, final int length, final char[] encoded, int charPos ) {
+		final int end = offset + length;
+		int i = offset;
+		for ( ; i + 2 < end; i += 3 ) {
+			final int bits = ( source[ i ] & 0xff ) << 16 | ( source[ i + 1 ] & 0xff ) << 8 | source[ i + 2 ] & 0xff;
+			encoded[ charPos++ ] = BASE64_SYMBOLS[ bits >>> 18        ];
+			encoded[ charPos++ ] = BASE64_SYMBOLS[ bits >>> 12 & 0x3f ];
+			encoded[ charPos++ ] = BASE64_SYMBOLS[ bits >>>  6 & 0x3f ];
+			encoded[ charPos++ ] = BASE64_SYMBOLS[ bits        & 0x3f ];
+		}
+		
+		if ( i < end ) {
+			// 1 or 2 bytes left
+			final int bits = ( source[ i ] & 0xff ) << 16 | ( i + 1 < end ? ( source[ i + 1 ] & 0xff ) << 8 : 0 );
+			encoded[ charPos++ ] = BASE64_SYMBOLS[ bits >>> 18        ];
+			encoded[ charPos++ ] = BASE64_SYMBOLS[ bits >>> 12 & 0x3f ];
+			encoded[ charPos++ ] = i + 1 < end ? BASE64_SYMBOLS[ bits >>> 6 & 0x3f ] : BASE64_PADDING;
+			encoded[ charPos++ ] = BASE64_PADDING;
+		}
+		
+		return charPos;
+	}
+	
+	/**
+	 * Converts the specified data to hex string.
+	 * @param data data to be converted
+	 * @return the specified data converted to hex string
+	 */
+	static String toHexString( final byte[] data ) {
+		final char[] hex = new char[ data.length << 1 ];
+		
+		for ( int i = 0, j = 0; i < data.length; i++ ) {
+			hex[ j++ ] = HEX_DIGITS[ ( data[ i ] & 0xff ) >> 4 ];
+			hex[ j++ ] = HEX_DIGITS[ data[ i ] & 0x0f ];
+		}
+		
+		return new String( hex );
+	}
+
+}
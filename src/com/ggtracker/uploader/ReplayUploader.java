@@ -0,0 +1,308 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Implements the replay upload protocol of ggtracker.com.
+ * 
+ * <p>Preparing (hashing and encoding) and sending are separate steps so they can be performed
+ * by different stages of the {@link UploadPipeline}. Between hashing and encoding the server is asked whether it already has
+ * the replay ({@link Md5PreCheck}), replays it has are neither encoded nor sent.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class ReplayUploader {
+	
+	// ========================== REPLAY UPLOAD SPECIFICATION CONSTANTS ===========================
+	/** Value of the request version parameter. */
+	private static final String PARAM_VALUE_REQUEST_VERSION = "1.0";
+	
+	/** Name of the request version parameter. */
+	private static final String PARAM_NAME_REQUEST_VERSION = "requestVersion";
+	
+	private static final String PARAM_NAME_AUTH_TOKEN      = "accessToken";
+	
+	/** Name of the description parameter.     */
+	private static final String PARAM_NAME_DESCRIPTION     = "description";
+	/** Name of the file name parameter.       */
+	private static final String PARAM_NAME_FILE_NAME       = "fileName";
+	/** Name of the file size parameter.       */
+	private static final String PARAM_NAME_FILE_SIZE       = "fileSize";
+	/** Name of the file MD5 parameter.        */
+	private static final String PARAM_NAME_FILE_MD5        = "fileMd5";
+	/** Name of the file content parameter.    */
+	private static final String PARAM_NAME_FILE_CONTENT    = "fileContent";
+	
+	// ======================= END OF REPLAY UPLOAD SPECIFICATION CONSTANTS =======================
+	
+	/** Max number of attempts to send a replay. */
+	private static final int MAX_ATTEMPTS = 3;
+	
+	/** Outcome of an attempt which could not connect to the server. */
+	public static final String OUTCOME_CONNECT = "connect";
+	
+	/** Max number of remembered MD5s. */
+	private static final int MAX_MD5_CACHE_SIZE = 4096;
+	
+	/**
+	 * MD5s of recently prepared replays, least recently used first, mapped from the path, the last modification time
+	 * and the {@link LocalHash local fingerprint} of the replay. A replay enqueued again (re-detected, retried, spooled) has its MD5
+	 * calculated only once, while a replay rewritten in place gets a new modification time and so a new MD5,
+	 * even if the fingerprints of the old and the new content collide.
+	 */
+	private static final Map< String, String > md5CacheMap = new LinkedHashMap< String, String >( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< String, String > eldest ) {
+			return size() > MAX_MD5_CACHE_SIZE;
+		}
+	};
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private ReplayUploader() {
+	}
+	
+	/**
+	 * Prepares the replay of the job for sending: calculates its MD5 (unless it is already set) and builds the request parameters
+	 * including the base64 encoded file content.
+	 * 
+	 * <p>The replay is opened once as a {@link ReplaySource}, both hashing and encoding read it from there.
+	 * The MD5 is only needed by the protocol; replays prepared again are recognized by their fast {@link LocalHash local fingerprint}
+	 * and their MD5 is not calculated again.</p>
+	 * 
+	 * <p>If the server already has the replay, only its {@link UploadJob#getKnownReplayUrl() replay URL} is set, and it is not to be sent.</p>
+	 * 
+	 * @param job job to be prepared
+	 * @return true if the job was prepared successfully or the server already has it; false otherwise
+	 */
+	public static boolean prepare( final UploadJob job ) {
+		final File replayFile = job.getFile();
+		final long start      = System.nanoTime();
+		
+		final ReplaySource source;
+		try {
+			source = ReplaySource.open( replayFile );
+		} catch ( final IOException ie ) {
+			System.err.println( "Replay could not be read (" + replayFile + "): " + ie );
+			Metrics.FAILURES.inc( "read" );
+			return false;
+		}
+		
+		final String fileMd5 = job.getMd5() != null ? job.getMd5() : calculateMd5( source );
+		job.getTrace().add( UploadTrace.STAGE_HASH, start );
+		if ( fileMd5 == null || fileMd5.length() == 0 ) {
+			System.err.println( "MD5 could not be calculated (" + replayFile + ")!" );
+			Metrics.FAILURES.inc( "md5" );
+			return false;
+		}
+		job.setMd5( fileMd5 );
+		
+		final long   checkStart     = System.nanoTime();
+		final String knownReplayUrl = Md5PreCheck.get().lookup( fileMd5, job.getAuthToken() );
+		job.getTrace().add( UploadTrace.STAGE_CHECK, checkStart );
+		if ( knownReplayUrl != null ) {
+			job.setKnownReplayUrl( knownReplayUrl );
+			return true;
+		}
+		final long encodeStart = System.nanoTime();
+		final String fileBase64 = source.encodeBase64();
+		job.getTrace().add( UploadTrace.STAGE_ENCODE, encodeStart );
+		
+		final Map< String, String > paramsMap = new HashMap< String, String >();
+		paramsMap.put( PARAM_NAME_REQUEST_VERSION, PARAM_VALUE_REQUEST_VERSION );
+		paramsMap.put( PARAM_NAME_FILE_NAME      , replayFile.getName() );
+		paramsMap.put( PARAM_NAME_FILE_SIZE      , Integer.toString( source.getLength() ) );
+		paramsMap.put( PARAM_NAME_DESCRIPTION    , "" ); // Not used
+		paramsMap.put( PARAM_NAME_AUTH_TOKEN     , job.getAuthToken() );
+		paramsMap.put( PARAM_NAME_FILE_MD5       , fileMd5 );
+		paramsMap.put( PARAM_NAME_FILE_CONTENT   , fileBase64 );
+		
+		job.setParamsMap( paramsMap );
+		
+		Metrics.PREPARE_TIME.record( System.nanoTime() - start );
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the MD5 of a replay, calculates it only if it is not remembered for the path, modification time and fingerprint of the replay.
+	 * @param source data of the replay
+	 * @return the MD5 of the replay; <code>null</code> if it could not be calculated
+	 */
+	static String calculateMd5( final ReplaySource source ) {
+		final String key = source.getFile().getAbsolutePath() + '#' + source.getLastModified() + '#' + Long.toHexString( source.calculateFingerprint() );
+		
+		synchronized ( md5CacheMap ) {
+			final String md5 = md5CacheMap.get( key );
+			if ( md5 != null ) {
+				Metrics.MD5_CACHE.inc( "hit" );
+				return md5;
+			}
+		}
+		
+		final String md5 = source.calculateMd5();
+		Metrics.MD5_CACHE.inc( "miss" );
+		if ( md5 != null && md5.length() > 0 )
+			synchronized ( md5CacheMap ) {
+				md5CacheMap.put( key, md5 );
+			}
+		
+		return md5;
+	}
+	
+	/**
+	 * Sends a prepared replay to the server, retrying a couple of times if the upload fails.
+	 * 
+	 * <p>If an attempt could not connect, the server is probed before retrying ({@link ConnectivityProbe}),
+	 * and the attempts are not wasted if it is unreachable. Retries are delayed exponentially starting from the
+	 * {@link Settings#KEY_HTTP_RETRY_DELAY}, so a failing server is not hit again right away; the delay ends early
+	 * if the job is cancelled or the thread is interrupted, and no more attempts are made.
+	 * The outcome of the last attempt is stored in the job.</p>
+	 * 
+	 * @param job prepared job to be sent
+	 * @return the replay URL reported by the server; <code>null</code> if the upload failed
+	 */
+	public static String send( final UploadJob job ) {
+		for ( int attempt = 0; attempt < MAX_ATTEMPTS && !job.isCancelled(); attempt++ ) {
+			if ( attempt > 0 ) {
+				if ( OUTCOME_CONNECT.equals( job.getLastOutcome() ) && !ConnectivityProbe.isReachable( Settings.get( Settings.KEY_UPLOAD_URL ) ) ) {
+					System.out.println( "Upload server is unreachable, not retrying." );
+					break;
+				}
+				final long    backoffStart = System.nanoTime();
+				final boolean retry        = job.awaitRetry( (long) Settings.getInt( Settings.KEY_HTTP_RETRY_DELAY ) << ( attempt - 1 ) );
+				job.getTrace().add( UploadTrace.STAGE_BACKOFF, attempt + 1, backoffStart, System.nanoTime(), null );
+				if ( !retry )
+					break;
+				System.out.println( "Retrying upload (" + ( attempt + 1 ) + ")..." );
+				Metrics.RETRIES.inc();
+			}
+			
+			final String replayUrl = sendOnce( job, attempt + 1 );
+			if ( replayUrl != null ) {
+				Md5PreCheck.get().recordUploaded( job.getMd5(), job.getAuthToken(), replayUrl );
+				return replayUrl;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Makes one attempt to send a prepared replay to the server.
+	 * 
+	 * <p>The phases of the attempt are added to the trace of the job one after the other from the start of the attempt.</p>
+	 * 
+	 * @param job     prepared job to be sent
+	 * @param attempt number of the attempt, starting from 1
+	 * @return the replay URL reported by the server; <code>null</code> if the attempt failed
+	 */
+	private static String sendOnce( final UploadJob job, final int attempt ) {
+		HttpPost httpPost = null;
+		final long start = System.nanoTime();
+		String outcome = "failure";
+		try {
+			final Settings.Snapshot settings = Settings.getSnapshot();
+			httpPost = new HttpPost( settings.get( Settings.KEY_UPLOAD_URL ), job.getParamsMap() );
+			httpPost.setTimeouts( settings.getInt( Settings.KEY_HTTP_CONNECT_TIMEOUT ), settings.getInt( Settings.KEY_HTTP_READ_TIMEOUT ), settings.getInt( Settings.KEY_HTTP_TOTAL_TIMEOUT ) );
+			job.setActivePost( httpPost );
+			
+			if ( !httpPost.connect() ) {
+				System.out.println( "Failed to connect!" );
+				Metrics.FAILURES.inc( outcome = httpPost.isAborted() ? "aborted" : OUTCOME_CONNECT );
+				return null;
+			}
+			if ( !httpPost.doPost() ) {
+				System.out.println( "Failed to send replay!" );
+				Metrics.FAILURES.inc( outcome = httpPost.isAborted() ? "aborted" : "send" );
+				return null;
+			}
+			Metrics.BYTES_SENT.add( httpPost.getBytesSent() );
+			final String response = httpPost.getResponse();
+			if ( response == null ) {
+				System.out.println( "Failed to read server response!" );
+				Metrics.FAILURES.inc( outcome = httpPost.isAborted() ? "aborted" : "response" );
+				return null;
+			}
+			Metrics.SERVER_TIME.record( httpPost.getServerNanos() );
+			Metrics.SEND_TIME.record( System.nanoTime() - start );
+			
+			final String replayUrl = parseReplayUrl( response );
+			outcome = replayUrl == null ? "rejected" : "success";
+			return replayUrl;
+		} finally {
+			job.setActivePost( null );
+			if ( httpPost != null ) {
+				httpPost.close();
+				
+				final UploadTrace trace = job.getTrace();
+				long phaseStart = start;
+				if ( httpPost.getConnectNanos() > 0 )
+					trace.add( UploadTrace.STAGE_CONNECT, attempt, phaseStart, phaseStart += httpPost.getConnectNanos(), null );
+				if ( httpPost.getSendNanos() > 0 )
+					trace.add( UploadTrace.STAGE_UPLOAD , attempt, phaseStart, phaseStart += httpPost.getSendNanos()   , null );
+				if ( httpPost.getServerNanos() > 0 )
+					trace.add( UploadTrace.STAGE_SERVER , attempt, phaseStart, phaseStart += httpPost.getServerNanos() , null );
+			}
+			job.setLastOutcome( outcome );
+			job.getTrace().add( UploadTrace.STAGE_ATTEMPT, attempt, start, System.nanoTime(), outcome );
+		}
+	}
+	
+	/**
+	 * Parses the <code>uploadResult</code> response of the server.
+	 * @param response the server response
+	 * @return the replay URL if the server reported success; <code>null</code> otherwise
+	 */
+	static String parseReplayUrl( final String response ) {
+		try {
+			// Example response:
+			/*
+			 * <?xml version="1.0" encoding="UTF-8"?>
+			 * <uploadResult docVersion="1.0">
+			 *     <errorCode>0</errorCode>
+			 *     <message>Upload OK.</message>
+			 *     <replayUrl>http://some.host.com/replay?id=1234</replayUrl>
+			 * </uploadResult>
+			 */
+			final Document responseDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( new ByteArrayInputStream( response.getBytes( "UTF-8" ) ) );
+			final Element  docElement       = responseDocument.getDocumentElement();
+			final int      errorCode        = Integer.parseInt( ( (Element) docElement.getElementsByTagName( "errorCode" ).item( 0 ) ).getTextContent().trim() );
+			if ( errorCode == 0 )
+				return ( (Element) docElement.getElementsByTagName( "replayUrl" ).item( 0 ) ).getTextContent().trim();
+			else {
+				final String message = ( (Element) docElement.getElementsByTagName( "message" ).item( 0 ) ).getTextContent().trim();
+				System.out.println( "Upload reported to have failed, error code:" + errorCode + ", error message: " + message );
+				Metrics.FAILURES.inc( "server_error_" + errorCode );
+				return null;
+			}
+		} catch ( final Exception e ) {
+			System.out.println( "Failed to parse server response!" );
+			e.printStackTrace();
+			Metrics.FAILURES.inc( "parse" );
+			return null;
+		}
+	}
+
+}
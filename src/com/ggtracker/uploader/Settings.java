@@ -9,18 +9,121 @@
  */
 package com.ggtracker.uploader;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Settings of the application.
  * 
+ * <p>Reads are lock-free: the settings are held in an immutable {@link Snapshot} which is replaced on every change.
+ * Use {@link #getSnapshot()} to read multiple settings consistently.</p>
+ * 
+ * <p>Modified settings are saved in the background by the settings writer thread, {@link #SAVE_DELAY_MS} after the first
+ * change, so a burst of changes results in one write. The settings file is written to a temporary file first which is then
+ * renamed to the settings file, so a crash during the save cannot leave a corrupt settings file behind.
+ * Pending changes are saved on exit by a shutdown hook.</p>
+ * 
+ * <p>Settings of a config file loaded by {@link #loadOverrides(File)} are kept in a separate layer above the saved settings:
+ * they override the saved settings but are never saved, and reloading the config file replaces the whole layer.</p>
+ * 
+ * <p>Components can react to changes by registering a {@link Listener}.</p>
+ * 
  * @author Andras Belicza
  */
 public class Settings {
 	
+	/**
+	 * Listener of setting changes.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the effective value of a setting changed.<br>
+		 * Called on the thread that changed the setting (which may be the EDT), after the change is visible to readers.
+		 * @param key      key of the changed setting
+		 * @param oldValue old value of the setting; <code>null</code> if it had none
+		 * @param newValue new value of the setting; <code>null</code> if it has none (an override without a default was dropped)
+		 */
+		void settingChanged( String key, String oldValue, String newValue );
+	}
+	
+	/**
+	 * An immutable snapshot of the settings.
+	 */
+	public static final class Snapshot {
+		
+		/** Settings explicitly set (loaded or changed), these are saved.                 */
+		private final Map< String, String > values;
+		/** Settings of the config file, these are never saved.                            */
+		private final Map< String, String > overrides;
+		/** Effective settings: the defaults overridden by the values, then the overrides. */
+		private final Map< String, String > effective;
+		
+		/**
+		 * Creates a new Snapshot.
+		 * @param values    settings explicitly set, must not be modified afterwards
+		 * @param overrides settings of the config file, must not be modified afterwards
+		 */
+		private Snapshot( final Map< String, String > values, final Map< String, String > overrides ) {
+			this.values    = values;
+			this.overrides = overrides;
+			
+			final Map< String, String > effective = new HashMap< String, String >( DEFAULT_VALUES );
+			effective.putAll( values );
+			effective.putAll( overrides );
+			this.effective = effective;
+		}
+		
+		/**
+		 * Returns the specified setting as a {@link String}.
+		 * @param key key of the setting to return
+		 * @return the specified setting as a {@link String}
+		 */
+		public String get( final String key ) {
+			return effective.get( key );
+		}
+		
+		/**
+		 * Returns the specified setting as a {@link Boolean}.
+		 * @param key key of the setting to return
+		 * @return the specified setting as a {@link Boolean}
+		 */
+		public Boolean getBoolean( final String key ) {
+			return Boolean.valueOf( effective.get( key ) );
+		}
+		
+		/**
+		 * Returns the specified setting as an <code>int</code>.<br>
+		 * If the stored value is not a valid integer, the default value of the setting is returned.
+		 * @param key key of the setting to return
+		 * @return the specified setting as an <code>int</code>
+		 */
+		public int getInt( final String key ) {
+			try {
+				return Integer.parseInt( effective.get( key ).trim() );
+			} catch ( final Exception e ) {
+				System.err.println( "Invalid integer setting: " + key + "=" + effective.get( key ) );
+				return Integer.parseInt( DEFAULT_VALUES.get( key ) );
+			}
+		}
+		
+	}
+	
 	/** Path of the settings file to persist settings. */
 	public static final File SETTINGS_FILE = new File( Consts.FOLDER_USER_CONTENT, "settings.xml" );
 	
@@ -29,6 +132,78 @@ public class Settings {
 	public static final String KEY_USER_NAME                 = "userName";
 	public static final String KEY_UPLOAD_KEY                = "uploadKey";
 	public static final String KEY_AUTH_TOKEN                = "authToken";
+	/** Auth tokens of the account folders on shared machines, see {@link AccountTokens}. */
+	public static final String KEY_ACCOUNT_TOKENS            = "accountTokens";
+	/** URL of the replay upload endpoint. */
+	public static final String KEY_UPLOAD_URL                = "uploadUrl";
+	
+	/** Time to let SC2 finish saving a replay before it is read, in milliseconds. */
+	public static final String KEY_PIPELINE_SETTLE_TIME      = "pipeline.settleTime";
+	/** Number of threads hashing and encoding replays.                            */
+	public static final String KEY_PIPELINE_PREPARE_THREADS  = "pipeline.prepareThreads";
+	/** Number of threads sending replays.                                         */
+	public static final String KEY_PIPELINE_SEND_THREADS     = "pipeline.sendThreads";
+	/** Capacity of the queues between the pipeline stages.                        */
+	public static final String KEY_PIPELINE_QUEUE_CAPACITY   = "pipeline.queueCapacity";
+	/** Max heap held by upload payloads in MB, <code>0</code> means half of the max heap. */
+	public static final String KEY_MEMORY_BUDGET             = "pipeline.memoryBudget";
+	/** How uploads are run: <code>stages</code>, <code>platform</code> or <code>virtual</code>, see {@link UploadPipeline}. */
+	public static final String KEY_PIPELINE_EXECUTION_MODE   = "pipeline.executionMode";
+	/** Number of platform threads running upload tasks in the <code>platform</code> execution mode. */
+	public static final String KEY_PIPELINE_TASK_THREADS     = "pipeline.taskThreads";
+	/** Time after which a waiting replay goes before the replays of the next higher priority class, in milliseconds. */
+	public static final String KEY_PIPELINE_AGING_TIME       = "pipeline.agingTime";
+	
+	/** Timeout to establish the upload connection, in milliseconds.               */
+	public static final String KEY_HTTP_CONNECT_TIMEOUT      = "http.connectTimeout";
+	/** Timeout to wait for data from the server, in milliseconds.                 */
+	public static final String KEY_HTTP_READ_TIMEOUT         = "http.readTimeout";
+	/** Max duration of one upload attempt, in milliseconds.                       */
+	public static final String KEY_HTTP_TOTAL_TIMEOUT        = "http.totalTimeout";
+	/** Delay before the first retry of a failed upload, doubled for each further retry, in milliseconds. */
+	public static final String KEY_HTTP_RETRY_DELAY          = "http.retryDelay";
+	/** Time to let in-flight uploads finish on exit, in milliseconds.             */
+	public static final String KEY_SHUTDOWN_DRAIN_TIMEOUT    = "shutdown.drainTimeout";
+	
+	/** Tells if replays are spooled while the upload server is unreachable.      */
+	public static final String KEY_OFFLINE_SPOOL             = "offline.spool";
+	/** Time between probing the unreachable upload server, in milliseconds.       */
+	public static final String KEY_OFFLINE_PROBE_INTERVAL    = "offline.probeInterval";
+	/** Max number of spooled replays fed back to the pipeline per second.         */
+	public static final String KEY_OFFLINE_DRAIN_RATE        = "offline.drainRate";
+	
+	/** Tells if the server is asked whether it has the replays before sending them, see {@link Md5PreCheck}. */
+	public static final String KEY_MD5_CHECK                 = "md5Check.enabled";
+	/** URL of the MD5 pre-check endpoint, empty means next to the upload endpoint. */
+	public static final String KEY_MD5_CHECK_URL             = "md5Check.url";
+	/** Time to cache the answers of the MD5 pre-check, in milliseconds.           */
+	public static final String KEY_MD5_CHECK_TTL             = "md5Check.cacheTtl";
+	
+	/** Hash of the local fingerprints of replays: <code>crc32c</code>, <code>crc32</code> or <code>xxh64</code>, see {@link LocalHash}. */
+	public static final String KEY_LOCAL_HASH                = "hash.local";
+	
+	/** Shortest interval of polling the replay folder, in milliseconds.           */
+	public static final String KEY_MONITOR_POLL_MIN_INTERVAL = "monitor.pollMinInterval";
+	/** Longest interval of polling the replay folder while idle, in milliseconds. */
+	public static final String KEY_MONITOR_POLL_MAX_INTERVAL = "monitor.pollMaxInterval";
+	
+	/** When to upload: <code>immediately</code> (default) or <code>betweenGames</code> (opt-in), see {@link GameMonitor}. */
+	public static final String KEY_UPLOAD_TIMING             = "upload.timing";
+	/** Executables of the SC2 client, separated by semicolons.                   */
+	public static final String KEY_GAME_PROCESSES            = "game.processes";
+	/** Time between checking whether a game is running, in milliseconds.         */
+	public static final String KEY_GAME_POLL_INTERVAL        = "game.pollInterval";
+	/** URL of the UI state of the SC2 client API, empty disables asking it.      */
+	public static final String KEY_GAME_CLIENT_API_URL       = "game.clientApiUrl";
+	/** Max time the uploads are deferred during a game, in milliseconds.          */
+	public static final String KEY_GAME_MAX_DEFERRAL         = "game.maxDeferral";
+	
+	/** Local port of the metrics endpoint, <code>0</code> disables it.            */
+	public static final String KEY_STATS_PORT                = "stats.port";
+	/** Tells if the timing traces of the uploads are written to the journal.     */
+	public static final String KEY_TRACE_JOURNAL             = "trace.journal";
+	/** Max number of records kept in the upload history by compaction.           */
+	public static final String KEY_HISTORY_MAX_RECORDS       = "history.maxRecords";
 	
 	/** Saved with version setting.        */
 	public static final String KEY_META_SAVED_WITH_VERSION   = "meta.savedWithVersion";
@@ -36,6 +211,9 @@ public class Settings {
 	public static final String KEY_META_SAVE_TIME            = "meta.savedTime";
 	
 	
+	/** Time between the first unsaved change and saving the settings, in milliseconds. */
+	public static final long SAVE_DELAY_MS = 1000;
+	
 	/** Default values of settings. */
 	private static Properties DEFAULT_PROPERTIES = new Properties();
 	static {
@@ -51,10 +229,98 @@ public class Settings {
 		DEFAULT_PROPERTIES.setProperty( KEY_REPLAY_FOLDER, new File( baseReplayFolder, "/StarCraft II/Accounts" ).getAbsolutePath() );
 		DEFAULT_PROPERTIES.setProperty( KEY_USER_NAME    , "" );
 		DEFAULT_PROPERTIES.setProperty( KEY_UPLOAD_KEY   , "" );
+		DEFAULT_PROPERTIES.setProperty( KEY_AUTH_TOKEN   , "" );
+		DEFAULT_PROPERTIES.setProperty( KEY_ACCOUNT_TOKENS, "" );
+		DEFAULT_PROPERTIES.setProperty( KEY_UPLOAD_URL   , "http://ggtracker.com/replays/drop" );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_PIPELINE_SETTLE_TIME    , "1500" );
+		DEFAULT_PROPERTIES.setProperty( KEY_PIPELINE_PREPARE_THREADS, "1"    );
+		DEFAULT_PROPERTIES.setProperty( KEY_PIPELINE_SEND_THREADS   , "1"    );
+		DEFAULT_PROPERTIES.setProperty( KEY_PIPELINE_QUEUE_CAPACITY , "4"    );
+		DEFAULT_PROPERTIES.setProperty( KEY_MEMORY_BUDGET           , "0"    );
+		DEFAULT_PROPERTIES.setProperty( KEY_PIPELINE_EXECUTION_MODE , "stages" );
+		DEFAULT_PROPERTIES.setProperty( KEY_PIPELINE_TASK_THREADS   , "8"    );
+		DEFAULT_PROPERTIES.setProperty( KEY_PIPELINE_AGING_TIME     , "30000" );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_HTTP_CONNECT_TIMEOUT    , "10000"  );
+		DEFAULT_PROPERTIES.setProperty( KEY_HTTP_READ_TIMEOUT       , "30000"  );
+		DEFAULT_PROPERTIES.setProperty( KEY_HTTP_TOTAL_TIMEOUT      , "120000" );
+		DEFAULT_PROPERTIES.setProperty( KEY_HTTP_RETRY_DELAY        , "1000"   );
+		DEFAULT_PROPERTIES.setProperty( KEY_SHUTDOWN_DRAIN_TIMEOUT  , "3000"   );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_OFFLINE_SPOOL           , "true"   );
+		DEFAULT_PROPERTIES.setProperty( KEY_OFFLINE_PROBE_INTERVAL  , "5000"   );
+		DEFAULT_PROPERTIES.setProperty( KEY_OFFLINE_DRAIN_RATE      , "4"      );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_MD5_CHECK               , "true"   );
+		DEFAULT_PROPERTIES.setProperty( KEY_MD5_CHECK_URL           , ""       );
+		DEFAULT_PROPERTIES.setProperty( KEY_MD5_CHECK_TTL           , "600000" );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_LOCAL_HASH              , LocalHash.NAME_CRC32C );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_MONITOR_POLL_MIN_INTERVAL, "1000"  );
+		DEFAULT_PROPERTIES.setProperty( KEY_MONITOR_POLL_MAX_INTERVAL, "60000" );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_UPLOAD_TIMING           , GameMonitor.TIMING_IMMEDIATELY );
+		DEFAULT_PROPERTIES.setProperty( KEY_GAME_PROCESSES          , "SC2.exe;SC2_x64.exe;SC2" );
+		DEFAULT_PROPERTIES.setProperty( KEY_GAME_POLL_INTERVAL      , "2000"   );
+		DEFAULT_PROPERTIES.setProperty( KEY_GAME_CLIENT_API_URL     , "http://localhost:6119/ui" );
+		DEFAULT_PROPERTIES.setProperty( KEY_GAME_MAX_DEFERRAL       , "3600000" );
+		
+		DEFAULT_PROPERTIES.setProperty( KEY_STATS_PORT, Integer.toString( InstanceMonitor.PORT + 1 ) );
+		DEFAULT_PROPERTIES.setProperty( KEY_TRACE_JOURNAL, "true" );
+		DEFAULT_PROPERTIES.setProperty( KEY_HISTORY_MAX_RECORDS, "1000000" );
+	}
+	
+	/** Default values of settings as a map. */
+	private static final Map< String, String > DEFAULT_VALUES = new HashMap< String, String >();
+	static {
+		for ( final String key : DEFAULT_PROPERTIES.stringPropertyNames() )
+			DEFAULT_VALUES.put( key, DEFAULT_PROPERTIES.getProperty( key ) );
 	}
 	
-	/** Properties storing the settings. */
-	private static Properties properties = new Properties( DEFAULT_PROPERTIES );
+	/** The current settings. Only replaced while holding the lock of the {@link Settings} class. */
+	private static volatile Snapshot snapshot = new Snapshot( Collections.< String, String >emptyMap(), Collections.< String, String >emptyMap() );
+	
+	/** Registered setting listeners. */
+	private static final List< Listener > listenerList = new CopyOnWriteArrayList< Listener >();
+	
+	/** Tells if there are unsaved changes. Guarded by the lock of the {@link Settings} class. */
+	private static boolean dirty;
+	/** The settings writer thread, started on the first change to be saved. Guarded by the lock of the {@link Settings} class. */
+	private static Thread  writerThread;
+	/** Lock serializing the writes of the settings file. */
+	private static final Object saveLock = new Object();
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private Settings() {
+	}
+	
+	/**
+	 * Registers a setting listener.
+	 * @param listener listener to be registered
+	 */
+	public static void addListener( final Listener listener ) {
+		listenerList.add( listener );
+	}
+	
+	/**
+	 * Removes a setting listener.
+	 * @param listener listener to be removed
+	 */
+	public static void removeListener( final Listener listener ) {
+		listenerList.remove( listener );
+	}
+	
+	/**
+	 * Returns the current snapshot of the settings.
+	 * @return the current snapshot of the settings
+	 */
+	public static Snapshot getSnapshot() {
+		return snapshot;
+	}
 	
 	/**
 	 * Sets a setting and automatically saves the modified settings.
@@ -67,17 +333,76 @@ public class Settings {
 	}
 	
 	/**
-	 * Sets a setting and saves the modified settings if specified.
+	 * Sets a setting and saves the modified settings if specified.<br>
+	 * Saving is done in the background, see the class documentation.
 	 * @param key      key of setting to set
 	 * @param value    value of setting to set
 	 * @param autoSave tells if the modified settings have to be saved automatically
 	 */
 	public static void set( final String key, final Object value, final boolean autoSave ) {
-		properties.setProperty( key, value.toString() );
+		update( Collections.singletonMap( key, value.toString() ), autoSave );
+	}
+	
+	/**
+	 * Applies changes to the settings: publishes a new snapshot, schedules saving if specified, and notifies the listeners.
+	 * @param changeMap changed settings
+	 * @param save      tells if the settings have to be saved
+	 */
+	private static void update( final Map< String, String > changeMap, final boolean save ) {
+		final Snapshot oldSnapshot;
+		final Snapshot newSnapshot;
+		synchronized ( Settings.class ) {
+			oldSnapshot = snapshot;
+			final Map< String, String > values = new HashMap< String, String >( oldSnapshot.values );
+			values.putAll( changeMap );
+			snapshot = newSnapshot = new Snapshot( Collections.unmodifiableMap( values ), oldSnapshot.overrides );
+			
+			if ( save )
+				scheduleSave();
+		}
+		
+		fireChanges( oldSnapshot, newSnapshot, changeMap.keySet() );
+	}
+	
+	/**
+	 * Replaces the settings of the config file: publishes a new snapshot, and notifies the listeners.
+	 * Settings of the previous config file missing from the new one are dropped.
+	 * @param overrideMap settings of the config file
+	 */
+	private static void replaceOverrides( final Map< String, String > overrideMap ) {
+		final Snapshot oldSnapshot;
+		final Snapshot newSnapshot;
+		synchronized ( Settings.class ) {
+			oldSnapshot = snapshot;
+			snapshot = newSnapshot = new Snapshot( oldSnapshot.values, Collections.unmodifiableMap( overrideMap ) );
+		}
 		
-		if ( autoSave ) {
-    		// Save settings immediately
-    		saveSettings();
+		final Set< String > keySet = new HashSet< String >( oldSnapshot.overrides.keySet() );
+		keySet.addAll( overrideMap.keySet() );
+		fireChanges( oldSnapshot, newSnapshot, keySet );
+	}
+	
+	/**
+	 * Notifies the listeners about the settings whose effective value changed.
+	 * @param oldSnapshot the replaced snapshot
+	 * @param newSnapshot the new snapshot
+	 * @param keys        keys of the settings that might have changed
+	 */
+	private static void fireChanges( final Snapshot oldSnapshot, final Snapshot newSnapshot, final Collection< String > keys ) {
+		if ( listenerList.isEmpty() )
+			return;
+		for ( final String key : keys ) {
+			final String oldValue = oldSnapshot.get( key );
+			final String newValue = newSnapshot.get( key );
+			if ( newValue == null ? oldValue == null : newValue.equals( oldValue ) )
+				continue;
+			for ( final Listener listener : listenerList )
+				try {
+					listener.settingChanged( key, oldValue, newValue );
+				} catch ( final Exception e ) {
+					System.err.println( "Setting listener failed: " + key );
+					e.printStackTrace( System.err );
+				}
 		}
 	}
 	
@@ -87,7 +412,7 @@ public class Settings {
 	 * @return the specified setting as a {@link String}
 	 */
 	public static String get( final String key ) {
-		return properties.getProperty( key );
+		return snapshot.get( key );
 	}
 	
 	/**
@@ -96,51 +421,345 @@ public class Settings {
 	 * @return the specified setting as a {@link Boolean}
 	 */
 	public static Boolean getBoolean( final String key ) {
-		return Boolean.valueOf( properties.getProperty( key ) );
+		return snapshot.getBoolean( key );
 	}
 	
 	/**
-	 * Loads the settings from its persistent file.<br>
-	 * If loading fails, errors are silently discarded, the default settings remain.
+	 * Returns the specified setting as an <code>int</code>.<br>
+	 * If the stored value is not a valid integer, the default value of the setting is returned.
+	 * @param key key of the setting to return
+	 * @return the specified setting as an <code>int</code>
+	 */
+	public static int getInt( final String key ) {
+		return snapshot.getInt( key );
+	}
+	
+	/**
+	 * Loads the settings from its persistent file, overriding the current settings.<br>
+	 * If loading fails, the default settings remain, and the unreadable file is kept as <code>settings.xml.corrupt</code>
+	 * so it is not lost when the settings are saved next time.
+	 * 
+	 * <p>The settings file is first parsed by the lightweight {@link #parseSettingsXml(String, Properties)} which understands
+	 * exactly what {@link Properties#storeToXML(java.io.OutputStream, String)} writes. If the file contains anything else
+	 * (e.g. it was edited by hand), it is parsed by the full XML parser of {@link Properties#loadFromXML(java.io.InputStream)}.</p>
 	 */
 	public static void loadSettings() {
 		if ( SETTINGS_FILE.exists() )
 			try {
-				properties.loadFromXML( new FileInputStream( SETTINGS_FILE ) );
+				final Properties properties = new Properties();
+				final byte[] content = new byte[ (int) SETTINGS_FILE.length() ];
+				final DataInputStream input = new DataInputStream( new FileInputStream( SETTINGS_FILE ) );
+				try {
+					input.readFully( content );
+				} finally {
+					input.close();
+				}
+				
+				if ( !parseSettingsXml( new String( content, "UTF-8" ), properties ) )
+					properties.loadFromXML( new ByteArrayInputStream( content ) );
+				
+				update( toMap( properties ), false );
 			} catch ( final Exception e ) {
 				System.err.println( "Failed to load settings!" );
 				e.printStackTrace( System.err );
+				
+				final File corruptFile = new File( SETTINGS_FILE.getPath() + ".corrupt" );
+				corruptFile.delete();
+				if ( SETTINGS_FILE.renameTo( corruptFile ) )
+					System.err.println( "The settings file is kept as: " + corruptFile );
 			}
 		else
 			System.err.println( "Warning: settings file does not exist, the default settings will be used." );
 	}
 	
 	/**
-	 * Saves the settings to its persistent file.
+	 * Parses a settings file written by {@link Properties#storeToXML(java.io.OutputStream, String)}.
+	 * 
+	 * <p>Only the XML declaration, the doctype, the <code>properties</code> root element with an optional <code>comment</code>
+	 * and <code>entry</code> elements with character and entity references are accepted. The parsed settings are only
+	 * added to the target if the whole content could be parsed.</p>
+	 * 
+	 * @param xml    content of the settings file
+	 * @param target properties to add the parsed settings to
+	 * @return true if the content was parsed; false if it contains something not supported here
 	 */
-	public static void saveSettings() {
+	static boolean parseSettingsXml( final String xml, final Properties target ) {
+		if ( xml.indexOf( '\uFFFD' ) >= 0 )
+			return false; // Malformed UTF-8 or another encoding
+		
+		final Properties parsed = new Properties();
+		int pos = skipWhitespace( xml, 0 );
+		
+		if ( xml.startsWith( "<?xml", pos ) ) {
+			final int end = xml.indexOf( "?>", pos );
+			if ( end < 0 )
+				return false;
+			final String declaration = xml.substring( pos, end );
+			if ( declaration.contains( "encoding" ) && !declaration.contains( "\"UTF-8\"" ) )
+				return false;
+			pos = skipWhitespace( xml, end + 2 );
+		}
+		if ( xml.startsWith( "<!DOCTYPE", pos ) ) {
+			final int end = xml.indexOf( '>', pos );
+			if ( end < 0 || xml.lastIndexOf( '[', end ) > pos )
+				return false; // Internal subsets may declare entities
+			pos = skipWhitespace( xml, end + 1 );
+		}
+		if ( !xml.startsWith( "<properties>", pos ) )
+			return false;
+		pos = skipWhitespace( xml, pos + "<properties>".length() );
+		
+		try {
+			while ( !xml.startsWith( "</properties>", pos ) ) {
+				if ( xml.startsWith( "<comment>", pos ) ) {
+					final int end = xml.indexOf( "</comment>", pos );
+					if ( end < 0 )
+						return false;
+					pos = end + "</comment>".length();
+				}
+				else if ( xml.startsWith( "<entry key=\"", pos ) ) {
+					final int keyStart = pos + "<entry key=\"".length();
+					final int keyEnd   = xml.indexOf( '"', keyStart );
+					if ( keyEnd < 0 )
+						return false;
+					final String key = unescapeXml( xml.substring( keyStart, keyEnd ) ).replace( '\t', ' ' ).replace( '\n', ' ' ).replace( '\r', ' ' );
+					
+					if ( xml.startsWith( "/>", keyEnd + 1 ) ) {
+						parsed.setProperty( key, "" );
+						pos = keyEnd + 3;
+					}
+					else if ( xml.startsWith( ">", keyEnd + 1 ) ) {
+						final int valueEnd = xml.indexOf( "</entry>", keyEnd + 2 );
+						if ( valueEnd < 0 )
+							return false;
+						final String value = xml.substring( keyEnd + 2, valueEnd );
+						if ( value.indexOf( '<' ) >= 0 )
+							return false; // CDATA, comments, nested elements
+						parsed.setProperty( key, unescapeXml( value.replace( "\r\n", "\n" ).replace( '\r', '\n' ) ) );
+						pos = valueEnd + "</entry>".length();
+					}
+					else
+						return false;
+				}
+				else
+					return false;
+				
+				pos = skipWhitespace( xml, pos );
+			}
+		} catch ( final IllegalArgumentException iae ) {
+			return false; // Unknown entity
+		}
+		
+		if ( skipWhitespace( xml, pos + "</properties>".length() ) != xml.length() )
+			return false;
+		
+		target.putAll( parsed );
+		return true;
+	}
+	
+	/**
+	 * Returns the position of the first non-whitespace character.
+	 * @param text text to search in
+	 * @param pos  position to start at
+	 * @return the position of the first non-whitespace character at or after <code>pos</code>; the length of the text if there is none
+	 */
+	private static int skipWhitespace( final String text, int pos ) {
+		while ( pos < text.length() && Character.isWhitespace( text.charAt( pos ) ) )
+			pos++;
+		return pos;
+	}
+	
+	/**
+	 * Replaces the predefined XML entities and the character references.
+	 * @param text text to be unescaped
+	 * @return the unescaped text
+	 * @throws IllegalArgumentException if the text contains an unknown or malformed reference
+	 */
+	private static String unescapeXml( final String text ) {
+		int amp = text.indexOf( '&' );
+		if ( amp < 0 )
+			return text;
+		
+		final StringBuilder builder = new StringBuilder( text.length() );
+		int pos = 0;
+		do {
+			final int semicolon = text.indexOf( ';', amp );
+			if ( semicolon < 0 )
+				throw new IllegalArgumentException( "Unterminated reference!" );
+			builder.append( text, pos, amp );
+			
+			final String name = text.substring( amp + 1, semicolon );
+			if ( "amp".equals( name ) )
+				builder.append( '&' );
+			else if ( "lt".equals( name ) )
+				builder.append( '<' );
+			else if ( "gt".equals( name ) )
+				builder.append( '>' );
+			else if ( "quot".equals( name ) )
+				builder.append( '"' );
+			else if ( "apos".equals( name ) )
+				builder.append( '\'' );
+			else if ( name.startsWith( "#x" ) )
+				builder.appendCodePoint( Integer.parseInt( name.substring( 2 ), 16 ) ); // NumberFormatException is an IllegalArgumentException
+			else if ( name.startsWith( "#" ) )
+				builder.appendCodePoint( Integer.parseInt( name.substring( 1 ) ) );
+			else
+				throw new IllegalArgumentException( "Unknown entity: " + name );
+			
+			pos = semicolon + 1;
+		} while ( ( amp = text.indexOf( '&', pos ) ) >= 0 );
+		
+		return builder.append( text, pos, text.length() ).toString();
+	}
+	
+	/**
+	 * Loads settings from a config file in the Java properties format (<code>key=value</code> lines), overriding the current settings.<br>
+	 * The overridden settings are not saved to the persistent settings file. The settings of a previously loaded config file
+	 * are replaced, the ones missing from this config file fall back to the saved or default settings.<br>
+	 * If the config file cannot be loaded, the previous overrides remain.
+	 * @param configFile config file to load
+	 * @return true if the config file was loaded; false otherwise
+	 */
+	public static boolean loadOverrides( final File configFile ) {
+		final Properties overrides = new Properties();
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream( configFile );
+			overrides.load( input );
+		} catch ( final Exception e ) {
+			System.err.println( "Failed to load config file: " + configFile );
+			e.printStackTrace( System.err );
+			return false;
+		} finally {
+			if ( input != null )
+				try { input.close(); } catch ( final Exception e ) {}
+		}
+		
+		final Map< String, String > overrideMap = toMap( overrides );
+		for ( final Map.Entry< String, String > entry : overrideMap.entrySet() )
+			entry.setValue( entry.getValue().trim() );
+		replaceOverrides( overrideMap );
+		
+		return true;
+	}
+	
+	/**
+	 * Copies properties to a map.
+	 * @param properties properties to be copied
+	 * @return a map containing the properties
+	 */
+	private static Map< String, String > toMap( final Properties properties ) {
+		final Map< String, String > map = new HashMap< String, String >();
+		for ( final String key : properties.stringPropertyNames() )
+			map.put( key, properties.getProperty( key ) );
+		return map;
+	}
+	
+	/**
+	 * Schedules saving the settings, starts the settings writer thread if it is not running.<br>
+	 * Must be called while holding the lock of the {@link Settings} class.
+	 */
+	private static void scheduleSave() {
+		dirty = true;
+		
+		if ( writerThread == null ) {
+			writerThread = new Thread( "Settings writer" ) {
+				@Override
+				public void run() {
+					while ( true )
+						try {
+							synchronized ( Settings.class ) {
+								while ( !dirty )
+									Settings.class.wait();
+							}
+							// Let more changes come, they are saved together
+							Thread.sleep( SAVE_DELAY_MS );
+							flush();
+						} catch ( final InterruptedException ie ) {
+							return;
+						}
+				}
+			};
+			writerThread.setDaemon( true );
+			writerThread.start();
+			
+			Runtime.getRuntime().addShutdownHook( new Thread( "Settings flush" ) {
+				@Override
+				public void run() {
+					flush();
+				}
+			} );
+		}
+		else
+			Settings.class.notifyAll();
+	}
+	
+	/**
+	 * Saves the settings to its persistent file if there are unsaved changes.
+	 * @return true if the settings were saved or there was nothing to save; false if saving failed
+	 */
+	public static boolean flush() {
+		synchronized ( saveLock ) {
+			final Snapshot savedSnapshot;
+			synchronized ( Settings.class ) {
+				if ( !dirty )
+					return true;
+				dirty = false;
+				savedSnapshot = snapshot;
+			}
+			
+			try {
+				writeSettings( savedSnapshot );
+				return true;
+			} catch ( final Exception e ) {
+				System.err.println( "Failed to save settings!" );
+				e.printStackTrace( System.err );
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Saves the settings to its persistent file immediately.
+	 * @return true if the settings were saved; false if saving failed
+	 */
+	public static boolean saveSettings() {
+		synchronized ( Settings.class ) {
+			dirty = true;
+		}
+		return flush();
+	}
+	
+	/**
+	 * Writes the settings file: the settings are written to a temporary file which then replaces the settings file.
+	 * @param savedSnapshot snapshot of the settings to be written
+	 * @throws IOException if writing the settings file fails
+	 */
+	private static void writeSettings( final Snapshot savedSnapshot ) throws IOException {
 		// First check and create settings folder if not exists
 		final File settingsFolder = SETTINGS_FILE.getParentFile();
 		if ( !settingsFolder.exists() )
 			settingsFolder.mkdirs();
 		
-		FileOutputStream output = null;
+		final Properties properties = new Properties();
+		properties.putAll( savedSnapshot.values );
+		// Set meta data
+		properties.setProperty( KEY_META_SAVED_WITH_VERSION, Consts.APP_VERSION );
+		properties.setProperty( KEY_META_SAVE_TIME         , Long.toString( System.currentTimeMillis() ) );
+		
+		final File tempFile = new File( settingsFolder, SETTINGS_FILE.getName() + ".tmp" );
+		final FileOutputStream output = new FileOutputStream( tempFile );
 		try {
-			
-			output = new FileOutputStream( SETTINGS_FILE );
-			
-			// Set meta data
-			set( KEY_META_SAVED_WITH_VERSION, Consts.APP_VERSION        , false );
-			set( KEY_META_SAVE_TIME         , System.currentTimeMillis(), false );
-			
 			properties.storeToXML( output, "This settings file is managed by " + Consts.APP_NAME + " automatically. Do not edit it unless you know what you're doing!" );
-			
-		} catch ( final Exception e ) {
-			System.err.println( "Failed to save settings!" );
-			e.printStackTrace( System.err );
+			output.getFD().sync();
 		} finally {
-			if ( output != null )
-				try { output.close(); } catch ( final Exception e ) {}
+			output.close();
+		}
+		
+		try {
+			Files.move( tempFile.toPath(), SETTINGS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch ( final AtomicMoveNotSupportedException amnse ) {
+			Files.move( tempFile.toPath(), SETTINGS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING );
 		}
 	}
 	
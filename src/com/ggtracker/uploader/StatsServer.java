@@ -0,0 +1,92 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP endpoint exposing the {@link Metrics} in the Prometheus text format.
+ * 
+ * <p>Listens on the loopback interface only, at <code>http://localhost:&lt;port&gt;/metrics</code>.
+ * The port is specified by the {@link Settings#KEY_STATS_PORT} setting (next to the {@link InstanceMonitor#PORT} by default),
+ * <code>0</code> disables the endpoint.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class StatsServer {
+	
+	/** Path of the metrics endpoint. */
+	public static final String PATH_METRICS = "/metrics";
+	
+	/** The underlying HTTP server. */
+	private static HttpServer server;
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private StatsServer() {
+	}
+	
+	/**
+	 * Starts the stats server if it is enabled by the settings.
+	 * Failing to start is not fatal, the uploader works without it.
+	 */
+	public static synchronized void start() {
+		final int port = Settings.getInt( Settings.KEY_STATS_PORT );
+		if ( port <= 0 || server != null )
+			return;
+		
+		try {
+			server = HttpServer.create( new InetSocketAddress( InetAddress.getByName( "localhost" ), port ), 0 );
+			server.createContext( PATH_METRICS, new HttpHandler() {
+				@Override
+				public void handle( final HttpExchange exchange ) throws IOException {
+					try {
+						final StringBuilder metricsBuilder = new StringBuilder( 4096 );
+						Metrics.writePrometheus( metricsBuilder );
+						
+						final byte[] response = metricsBuilder.toString().getBytes( "UTF-8" );
+						exchange.getResponseHeaders().set( "Content-Type", "text/plain; version=0.0.4; charset=utf-8" );
+						exchange.sendResponseHeaders( 200, response.length );
+						final OutputStream output = exchange.getResponseBody();
+						output.write( response );
+						output.flush();
+					} finally {
+						exchange.close();
+					}
+				}
+			} );
+			server.start();
+			System.out.println( "Stats server listening on http://localhost:" + port + PATH_METRICS );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to start stats server on port " + port + "!" );
+			ie.printStackTrace();
+			server = null;
+		}
+	}
+	
+	/**
+	 * Stops the stats server.
+	 */
+	public static synchronized void stop() {
+		if ( server != null ) {
+			server.stop( 0 );
+			server = null;
+		}
+	}
+
+}
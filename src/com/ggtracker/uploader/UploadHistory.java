@@ -0,0 +1,1526 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of the uploads, stored in segment files with an index on the MD5, the path and the time of the uploads.
+ * 
+ * <p>Records are appended to the active segment (<code>NNNNNNNN.log</code> in the history folder). Every record is length prefixed
+ * and followed by its CRC32, so a record torn by a crash is detected and cut off on the next load. When the active segment reaches
+ * {@link #MAX_SEGMENT_SIZE}, it is sealed: its index (<code>NNNNNNNN.idx</code>) is written, and a new segment is started.
+ * The index is columnar: the times, locations and outcomes of the records, followed by the MD5 and path hashes of the records
+ * sorted by hash.</p>
+ * 
+ * <p>Loading reads the index files of the sealed segments with bulk copies and only scans the (small) active segment.
+ * Only the times, the outcomes and the locations of the records are kept in memory along with the sorted hashes of the segments,
+ * which are binary searched; the records themselves are read from the segments when queried. Record times never decrease,
+ * so time range queries are binary searches too.</p>
+ * 
+ * <p>When {@link #COMPACT_SEGMENTS} segments are sealed, they are merged into one in the background: records superseded by a later
+ * record of the same replay (same MD5, or same path if the MD5 is unknown) are dropped, and only the newest <code>maxRecords</code>
+ * records are kept. The merged segment records the first segment it replaces, so replaced segments left behind by a crash
+ * are deleted on the next load.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class UploadHistory {
+	
+	/** Folder of the upload history.                        */
+	public static final File HISTORY_FOLDER   = new File( Consts.FOLDER_USER_CONTENT, "history" );
+	/** Max size of a segment before it is sealed.           */
+	public static final long MAX_SEGMENT_SIZE = 1024*1024;
+	/** Number of sealed segments that triggers compaction.  */
+	public static final int  COMPACT_SEGMENTS = 16;
+	
+	/** Outcome of a successful upload. */
+	public static final byte OUTCOME_UPLOADED = 1;
+	/** Outcome of a failed upload.     */
+	public static final byte OUTCOME_FAILED   = 2;
+	
+	/** Magic number of the segment files.                                                               */
+	private static final int SEGMENT_MAGIC       = 0x67675348;
+	/** Magic number of the index files.                                                                 */
+	private static final int INDEX_MAGIC         = 0x67674948;
+	/** Version of the file formats.                                                                     */
+	private static final int FORMAT_VERSION      = 1;
+	/** Size of the segment header: magic, version, ID of the first segment it covers.                  */
+	private static final int SEGMENT_HEADER_SIZE = 12;
+	/** Size of the index header: magic, version, number of records, number of MD5s, length of the segment. */
+	private static final int INDEX_HEADER_SIZE   = 24;
+	/** Max size of a record, larger length prefixes are considered corrupt.                            */
+	private static final int MAX_RECORD_SIZE     = 256*1024;
+	/** Size of the blocks the segments are read in by queries.                                          */
+	private static final int READ_BLOCK_SIZE     = 64*1024;
+	
+	
+	/**
+	 * A record of the upload history.
+	 */
+	public static final class Entry {
+		
+		/** Time of the upload.                                  */
+		private final long   time;
+		/** Outcome of the upload.                               */
+		private final byte   outcome;
+		/** Size of the replay.                                  */
+		private final long   size;
+		/** MD5 of the replay; <code>null</code> if unknown.     */
+		private final String md5;
+		/** Absolute path of the replay.                         */
+		private final String path;
+		/** Replay URL; <code>null</code> if the upload failed.  */
+		private final String replayUrl;
+		
+		/**
+		 * Creates a new Entry.
+		 * @param time      time of the upload
+		 * @param outcome   outcome of the upload ({@link UploadHistory#OUTCOME_UPLOADED} or {@link UploadHistory#OUTCOME_FAILED})
+		 * @param size      size of the replay
+		 * @param md5       MD5 of the replay; <code>null</code> if unknown
+		 * @param path      absolute path of the replay
+		 * @param replayUrl replay URL; <code>null</code> if the upload failed
+		 */
+		public Entry( final long time, final byte outcome, final long size, final String md5, final String path, final String replayUrl ) {
+			this.time      = time;
+			this.outcome   = outcome;
+			this.size      = size;
+			this.md5       = md5 == null || md5.length() == 0 ? null : md5;
+			this.path      = path;
+			this.replayUrl = replayUrl == null || replayUrl.length() == 0 ? null : replayUrl;
+		}
+		
+		/**
+		 * Returns the time of the upload.
+		 * @return the time of the upload
+		 */
+		public long getTime() {
+			return time;
+		}
+		
+		/**
+		 * Returns the outcome of the upload.
+		 * @return the outcome of the upload
+		 */
+		public byte getOutcome() {
+			return outcome;
+		}
+		
+		/**
+		 * Tells if the upload was successful.
+		 * @return true if the upload was successful; false otherwise
+		 */
+		public boolean isUploaded() {
+			return outcome == OUTCOME_UPLOADED;
+		}
+		
+		/**
+		 * Returns the size of the replay.
+		 * @return the size of the replay
+		 */
+		public long getSize() {
+			return size;
+		}
+		
+		/**
+		 * Returns the MD5 of the replay.
+		 * @return the MD5 of the replay; <code>null</code> if unknown
+		 */
+		public String getMd5() {
+			return md5;
+		}
+		
+		/**
+		 * Returns the absolute path of the replay.
+		 * @return the absolute path of the replay
+		 */
+		public String getPath() {
+			return path;
+		}
+		
+		/**
+		 * Returns the replay URL.
+		 * @return the replay URL; <code>null</code> if the upload failed
+		 */
+		public String getReplayUrl() {
+			return replayUrl;
+		}
+	
+	}
+	
+	/** Folder of the segment files.            */
+	private final File folder;
+	/** Max number of records kept by compaction. */
+	private final int  maxRecords;
+	
+	/** Times of the records in append order.                                         */
+	private long[] times     = new long[ 1024 ];
+	/** Locations of the records: segment ID in the high, offset in the low 32 bits.  */
+	private long[] locations = new long[ 1024 ];
+	/** Outcomes of the records.                                                      */
+	private byte[] outcomes  = new byte[ 1024 ];
+	/** Number of records.                                                            */
+	private int    count;
+	
+	/** The sealed segments in ascending ID order.                                  */
+	private final List< Segment > segmentList = new ArrayList< Segment >();
+	/** ID of the active segment.                                                   */
+	private int                   activeId;
+	/** Output of the active segment; <code>null</code> if not open.                */
+	private FileOutputStream      activeOutput;
+	/** Size of the active segment.                                                 */
+	private long                  activeSize;
+	/** Number of the first record of the active segment.                           */
+	private int                   activeFirstRecord;
+	/** Columns of the active segment, its index is written from them when sealed.  */
+	private SegmentData           activeData      = new SegmentData();
+	/** Index of the active segment on the MD5 (segment relative record numbers).   */
+	private HashIndex             activeMd5Index  = new HashIndex( 0 );
+	/** Index of the active segment on the path (segment relative record numbers).  */
+	private HashIndex             activePathIndex = new HashIndex( 0 );
+	/** Tells if a compaction is running.                                           */
+	private boolean               compacting;
+	
+	
+	/**
+	 * Lock of the segment files: queries hold the read lock while reading records (with locations obtained under the same lock),
+	 * compaction holds the write lock while it replaces segments.<br>
+	 * The in-memory index is guarded by the monitor of the history object.
+	 */
+	private final ReadWriteLock filesLock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Creates a new UploadHistory.
+	 * @param folder     folder of the segment files
+	 * @param maxRecords max number of records kept by compaction
+	 */
+	public UploadHistory( final File folder, final int maxRecords ) {
+		this.folder     = folder;
+		this.maxRecords = Math.max( 1, maxRecords );
+	}
+	
+	/**
+	 * Loads the index of the history and opens the active segment for appending.
+	 * @return true if the history was loaded; false if it could not be opened (errors are printed)
+	 */
+	public synchronized boolean load() {
+		close();
+		
+		try {
+			folder.mkdirs();
+			
+			final List< Integer > idList = new ArrayList< Integer >();
+			final File[] files = folder.listFiles();
+			if ( files == null )
+				throw new IOException( "Failed to list the history folder: " + folder );
+			for ( final File file : files ) {
+				final String name = file.getName();
+				if ( name.endsWith( ".tmp" ) )
+					file.delete(); // Left behind by a crash
+				else if ( name.matches( "\\d{8}\\.log" ) )
+					idList.add( Integer.valueOf( name.substring( 0, 8 ) ) );
+			}
+			Collections.sort( idList );
+			
+			// Drop the segments replaced by compaction and the unreadable ones
+			for ( int i = idList.size() - 1; i >= 0; i-- ) {
+				final int id           = idList.get( i );
+				final int firstCovered = readFirstCovered( id );
+				if ( firstCovered < 0 ) {
+					System.out.println( "Invalid upload history segment, moving it away: " + getSegmentFile( id ) );
+					getSegmentFile( id ).renameTo( new File( folder, getSegmentFile( id ).getName() + ".corrupt" ) );
+					getIndexFile( id ).delete();
+					idList.remove( i );
+					continue;
+				}
+				while ( i > 0 && idList.get( i - 1 ) >= firstCovered ) {
+					deleteSegment( idList.remove( i - 1 ) );
+					i--;
+				}
+			}
+			
+			if ( idList.isEmpty() ) {
+				activeId = 1;
+				createSegmentFile( activeId, activeId );
+			}
+			else
+				activeId = idList.remove( idList.size() - 1 );
+			
+			// Read the indexes of the sealed segments
+			final List< ByteBuffer > indexList = new ArrayList< ByteBuffer >( idList.size() );
+			int expectedCount = 0;
+			for ( final int id : idList ) {
+				ByteBuffer index = readIndexFile( id );
+				if ( index == null ) {
+					// Missing or stale index (e.g. crash while sealing or compacting): scan the segment and write its index
+					final SegmentData data   = new SegmentData();
+					final long        length = scanSegment( id, data );
+					writeIndexFile( id, createSegment( id, length, data ), data );
+					if ( ( index = readIndexFile( id ) ) == null )
+						throw new IOException( "Failed to write the index of upload history segment: " + getSegmentFile( id ) );
+				}
+				indexList.add( index );
+				expectedCount += index.getInt( 8 );
+			}
+			
+			count     = 0;
+			times     = new long[ Math.max( 1024, expectedCount + 1024 ) ];
+			locations = new long[ times.length ];
+			outcomes  = new byte[ times.length ];
+			segmentList.clear();
+			for ( int i = 0; i < indexList.size(); i++ )
+				segmentList.add( addSegment( idList.get( i ), indexList.get( i ) ) );
+			
+			// The active segment is scanned, it has no index yet
+			activeFirstRecord = count;
+			activeData        = new SegmentData();
+			activeSize        = scanSegment( activeId, activeData );
+			activeMd5Index    = new HashIndex( activeData.count );
+			activePathIndex   = new HashIndex( activeData.count );
+			for ( int i = 0; i < activeData.count; i++ ) {
+				if ( activeData.md5Keys[ i ] != 0 )
+					activeMd5Index.add( activeData.md5Keys[ i ], i );
+				activePathIndex.add( activeData.pathKeys[ i ], i );
+				addRecord( activeData.times[ i ], activeData.locations[ i ], activeData.outcomes[ i ] );
+			}
+			
+			activeOutput = new FileOutputStream( getSegmentFile( activeId ), true );
+			return true;
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to load the upload history!" );
+			ie.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Adds the records of a sealed segment to the in-memory columns, and creates the segment from its index.
+	 * @param id    ID of the segment
+	 * @param index content of the index file of the segment
+	 * @return the segment
+	 */
+	private Segment addSegment( final int id, final ByteBuffer index ) {
+		final int  records   = index.getInt ( 8  );
+		final int  md5Count  = index.getInt ( 12 );
+		final long length    = index.getLong( 16 );
+		if ( count + records > times.length )
+			ensureCapacity( count + records );
+		
+		index.position( INDEX_HEADER_SIZE );
+		index.asLongBuffer().get( times, count, records );
+		index.position( index.position() + records * 8 );
+		index.asLongBuffer().get( locations, count, records );
+		index.position( index.position() + records * 8 );
+		index.get( outcomes, count, records );
+		
+		final Segment segment = new Segment( id, length, records, md5Count );
+		segment.firstRecord = count;
+		index.asLongBuffer().get( segment.md5Keys );
+		index.position( index.position() + md5Count * 8 );
+		index.asIntBuffer().get( segment.md5Records );
+		index.position( index.position() + md5Count * 4 );
+		index.asLongBuffer().get( segment.pathKeys );
+		index.position( index.position() + records * 8 );
+		index.asIntBuffer().get( segment.pathRecords );
+		
+		count += records;
+		return segment;
+	}
+	
+	/**
+	 * Grows the in-memory columns to hold at least the given number of records.
+	 * @param capacity required capacity
+	 */
+	private void ensureCapacity( final int capacity ) {
+		final int newCapacity = Math.max( capacity, times.length * 2 );
+		times     = Arrays.copyOf( times    , newCapacity );
+		locations = Arrays.copyOf( locations, newCapacity );
+		outcomes  = Arrays.copyOf( outcomes , newCapacity );
+	}
+	
+	/**
+	 * Adds a record to the in-memory columns.
+	 * @param time     time of the record
+	 * @param location location of the record
+	 * @param outcome  outcome of the record
+	 */
+	private void addRecord( final long time, final long location, final byte outcome ) {
+		if ( count == times.length )
+			ensureCapacity( count + 1 );
+		
+		times    [ count ] = time;
+		locations[ count ] = location;
+		outcomes [ count ] = outcome;
+		count++;
+	}
+	
+	/**
+	 * Appends a record to the history.<br>
+	 * If the time of the record is before the time of the last record (the clock was set back), the time of the last record is stored.
+	 * @param entry record to be appended
+	 */
+	public synchronized void append( final Entry entry ) {
+		if ( activeOutput == null )
+			return;
+		
+		final long time = count > 0 ? Math.max( entry.time, times[ count - 1 ] ) : entry.time;
+		try {
+			final byte[] record = encodeRecord( entry, time );
+			if ( activeSize > SEGMENT_HEADER_SIZE && activeSize + record.length > MAX_SEGMENT_SIZE )
+				sealActiveSegment();
+			
+			activeOutput.write( record );
+			final long location = (long) activeId << 32 | activeSize;
+			activeSize += record.length;
+			
+			final long md5Key  = md5Key( entry.md5 );
+			final long pathKey = pathKey( entry.path );
+			if ( md5Key != 0 )
+				activeMd5Index.add( md5Key, activeData.count );
+			activePathIndex.add( pathKey, activeData.count );
+			activeData.add( time, location, entry.outcome, md5Key, pathKey );
+			addRecord( time, location, entry.outcome );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to write the upload history!" );
+			ie.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Seals the active segment: writes its index and starts a new active segment. Starts compaction if there are enough sealed segments.
+	 * @throws IOException if writing the index or creating the new segment fails
+	 */
+	private void sealActiveSegment() throws IOException {
+		activeOutput.close();
+		activeOutput = null;
+		
+		final Segment segment = createSegment( activeId, activeSize, activeData );
+		segment.firstRecord = activeFirstRecord;
+		writeIndexFile( activeId, segment, activeData );
+		segmentList.add( segment );
+		
+		activeId++;
+		createSegmentFile( activeId, activeId );
+		activeSize        = SEGMENT_HEADER_SIZE;
+		activeFirstRecord = count;
+		activeData        = new SegmentData();
+		activeMd5Index    = new HashIndex( 0 );
+		activePathIndex   = new HashIndex( 0 );
+		activeOutput      = new FileOutputStream( getSegmentFile( activeId ), true );
+		
+		if ( segmentList.size() >= COMPACT_SEGMENTS && !compacting ) {
+			compacting = true;
+			final Thread compactor = new Thread( "Upload history compactor" ) {
+				@Override
+				public void run() {
+					compact();
+				}
+			};
+			compactor.setDaemon( true );
+			compactor.start();
+		}
+	}
+	
+	
+	/**
+	 * Returns the number of records.
+	 * @return the number of records
+	 */
+	public synchronized int size() {
+		return count;
+	}
+	
+	/**
+	 * Tells if a compaction is running.
+	 * @return true if a compaction is running; false otherwise
+	 */
+	public synchronized boolean isCompacting() {
+		return compacting;
+	}
+	
+	/**
+	 * Tells if a replay file has been uploaded successfully, based on its path.
+	 * @param file replay file to be tested
+	 * @return true if the replay file has been uploaded successfully; false otherwise
+	 */
+	public boolean isUploaded( final File file ) {
+		for ( final Entry entry : findByPath( file.getAbsolutePath() ) )
+			if ( entry.isUploaded() )
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Returns the records of a replay path, newest first.
+	 * @param path absolute path of the replay
+	 * @return the records of the replay path, newest first
+	 */
+	public List< Entry > findByPath( final String path ) {
+		final List< Entry > entryList = findByKey( false, pathKey( path ) );
+		for ( int i = entryList.size() - 1; i >= 0; i-- )
+			if ( !path.equals( entryList.get( i ).path ) )
+				entryList.remove( i ); // Hash collision
+		return entryList;
+	}
+	
+	/**
+	 * Returns the records of a replay MD5, newest first.
+	 * @param md5 MD5 of the replay (hex)
+	 * @return the records of the replay MD5, newest first
+	 */
+	public List< Entry > findByMd5( final String md5 ) {
+		final long key = md5Key( md5 );
+		if ( key == 0 )
+			return new ArrayList< Entry >();
+		
+		final List< Entry > entryList = findByKey( true, key );
+		for ( int i = entryList.size() - 1; i >= 0; i-- )
+			if ( !md5.equalsIgnoreCase( entryList.get( i ).md5 ) )
+				entryList.remove( i ); // Hash collision
+		return entryList;
+	}
+	
+	/**
+	 * Returns the records since a given time, newest first.
+	 * @param since time to return the records since (inclusive)
+	 * @param limit max number of records to return
+	 * @return the records since the given time, newest first
+	 */
+	public List< Entry > findSince( final long since, final int limit ) {
+		return query( since, false, null, limit );
+	}
+	
+	/**
+	 * Returns the failed uploads, newest first.
+	 * @param limit max number of records to return
+	 * @return the failed uploads, newest first
+	 */
+	public List< Entry > findFailures( final int limit ) {
+		return query( Long.MIN_VALUE, true, null, limit );
+	}
+	
+	/**
+	 * Returns the records matching the specified criteria, newest first.
+	 * 
+	 * <p>If the text is an MD5, the MD5 index is used; otherwise the records (from the newest to the oldest) are read
+	 * and their path, replay URL and MD5 are searched for the text (case insensitively).</p>
+	 * 
+	 * @param since        time to return the records since (inclusive); {@link Long#MIN_VALUE} for all records
+	 * @param failuresOnly tells if only failed uploads are to be returned
+	 * @param text         text to search for; <code>null</code> or empty to match all records
+	 * @param limit        max number of records to return
+	 * @return the records matching the specified criteria, newest first
+	 */
+	public List< Entry > query( final long since, final boolean failuresOnly, final String text, final int limit ) {
+		final String searchText = text == null || text.trim().length() == 0 ? null : text.trim().toLowerCase( Locale.ENGLISH );
+		
+		if ( searchText != null && searchText.matches( "[0-9a-f]{32}" ) ) {
+			final List< Entry > entryList = findByMd5( searchText );
+			final List< Entry > resultList = new ArrayList< Entry >();
+			for ( final Entry entry : entryList )
+				if ( entry.time >= since && ( !failuresOnly || !entry.isUploaded() ) && resultList.size() < limit )
+					resultList.add( entry );
+			return resultList;
+		}
+		
+		final List< Entry > resultList = new ArrayList< Entry >();
+		filesLock.readLock().lock();
+		try {
+			long[] candidateLocations;
+			synchronized ( this ) {
+				final int first = firstRecordSince( since );
+				int candidates = 0;
+				// Without search text the first records are the result
+				candidateLocations = new long[ searchText == null ? Math.min( limit, count - first ) : count - first ];
+				for ( int i = count - 1; i >= first && candidates < candidateLocations.length; i-- )
+					if ( !failuresOnly || outcomes[ i ] != OUTCOME_UPLOADED )
+						candidateLocations[ candidates++ ] = locations[ i ];
+				if ( candidates < candidateLocations.length )
+					candidateLocations = Arrays.copyOf( candidateLocations, candidates );
+			}
+			return readEntries( candidateLocations, searchText, limit );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to read the upload history!" );
+			ie.printStackTrace();
+			return resultList;
+		} finally {
+			filesLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the records of a key, newest first.
+	 * @param md5 tells if the key is an MD5 key (else it is a path key)
+	 * @param key key to look up
+	 * @return the records of the key, newest first
+	 */
+	private List< Entry > findByKey( final boolean md5, final long key ) {
+		filesLock.readLock().lock();
+		try {
+			final long[] recordLocations;
+			synchronized ( this ) {
+				final int[] records = findRecords( md5, key );
+				recordLocations = new long[ records.length ];
+				for ( int i = 0; i < records.length; i++ )
+					recordLocations[ i ] = locations[ records[ records.length - 1 - i ] ];
+			}
+			return readEntries( recordLocations, null, Integer.MAX_VALUE );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to read the upload history!" );
+			ie.printStackTrace();
+			return new ArrayList< Entry >();
+		} finally {
+			filesLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the numbers of the records of a key: binary searches the sorted keys of the sealed segments, and looks up the key
+	 * in the hash index of the active segment. Must be called while holding the monitor.
+	 * @param md5 tells if the key is an MD5 key (else it is a path key)
+	 * @param key key to look up
+	 * @return the numbers of the records of the key in ascending order
+	 */
+	private int[] findRecords( final boolean md5, final long key ) {
+		int[] result = new int[ 4 ];
+		int   found  = 0;
+		for ( final Segment segment : segmentList ) {
+			final long[] keys    = md5 ? segment.md5Keys    : segment.pathKeys;
+			final int [] records = md5 ? segment.md5Records : segment.pathRecords;
+			for ( int i = lowerBound( keys, key ); i < keys.length && keys[ i ] == key; i++ ) {
+				if ( found == result.length )
+					result = Arrays.copyOf( result, found * 2 );
+				result[ found++ ] = segment.firstRecord + records[ i ];
+			}
+		}
+		for ( final int record : ( md5 ? activeMd5Index : activePathIndex ).get( key ) ) {
+			if ( found == result.length )
+				result = Arrays.copyOf( result, found * 2 );
+			result[ found++ ] = activeFirstRecord + record;
+		}
+		
+		return Arrays.copyOf( result, found );
+	}
+	
+	/**
+	 * Returns the index of the first key not less than the given key.
+	 * @param keys sorted keys
+	 * @param key  key to search for
+	 * @return the index of the first key not less than the given key; the length of the keys if there is none
+	 */
+	private static int lowerBound( final long[] keys, final long key ) {
+		int low  = 0;
+		int high = keys.length;
+		while ( low < high ) {
+			final int middle = ( low + high ) >>> 1;
+			if ( keys[ middle ] < key )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+	
+	/**
+	 * Returns the index of the first record with a time not before the given time.
+	 * @param since time to search for
+	 * @return the index of the first record with a time not before the given time; {@link #count} if there is none
+	 */
+	private int firstRecordSince( final long since ) {
+		int low  = 0;
+		int high = count;
+		while ( low < high ) {
+			final int middle = ( low + high ) >>> 1;
+			if ( times[ middle ] < since )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+	
+	/**
+	 * Reads the records at the given locations. Must be called while holding the read lock of the {@link #filesLock}.
+	 * @param recordLocations locations of the records to read
+	 * @param searchText      lower cased text to search for; <code>null</code> to return all records
+	 * @param limit           max number of records to return
+	 * @return the records read, in the order of the locations
+	 * @throws IOException if reading a segment fails
+	 */
+	private List< Entry > readEntries( final long[] recordLocations, final String searchText, final int limit ) throws IOException {
+		final List< Entry > entryList = new ArrayList< Entry >( Math.min( recordLocations.length, limit ) );
+		final Map< Integer, SegmentReader > readerMap = new HashMap< Integer, SegmentReader >();
+		try {
+			for ( int i = 0; i < recordLocations.length && entryList.size() < limit; i++ ) {
+				final int segmentId = (int) ( recordLocations[ i ] >>> 32 );
+				SegmentReader reader = readerMap.get( segmentId );
+				if ( reader == null )
+					readerMap.put( segmentId, reader = new SegmentReader( getSegmentFile( segmentId ) ) );
+				
+				final Entry entry = reader.read( (int) recordLocations[ i ] );
+				if ( entry != null && ( searchText == null || matches( entry, searchText ) ) )
+					entryList.add( entry );
+			}
+		} finally {
+			for ( final SegmentReader reader : readerMap.values() )
+				reader.close();
+		}
+		
+		return entryList;
+	}
+	
+	/**
+	 * Tells if the path, the replay URL or the MD5 of a record contains a text.
+	 * @param entry      record to be tested
+	 * @param searchText lower cased text to search for
+	 * @return true if the record matches the text; false otherwise
+	 */
+	private static boolean matches( final Entry entry, final String searchText ) {
+		return entry.path.toLowerCase( Locale.ENGLISH ).contains( searchText )
+			|| entry.replayUrl != null && entry.replayUrl.toLowerCase( Locale.ENGLISH ).contains( searchText )
+			|| entry.md5 != null && entry.md5.contains( searchText );
+	}
+	
+	/**
+	 * Compacts the sealed segments into one.
+	 */
+	private void compact() {
+		final long start = System.nanoTime();
+		try {
+			final List< Segment > compactedList;
+			final int             records;
+			final int             keepLimit;
+			final long[]          recordTimes;
+			final byte[]          recordOutcomes;
+			synchronized ( this ) {
+				compactedList  = new ArrayList< Segment >( segmentList );
+				// Records are in segment order, the ones after the compacted segments count towards the limit first
+				records        = activeFirstRecord;
+				keepLimit      = Math.max( 0, maxRecords - ( count - records ) );
+				recordTimes    = Arrays.copyOf( times   , records );
+				recordOutcomes = Arrays.copyOf( outcomes, records );
+			}
+			
+			// Keys of the records in record order (the segments are only replaced by this thread, their first records are stable)
+			final long[] md5Keys  = new long[ records ];
+			final long[] pathKeys = new long[ records ];
+			for ( final Segment segment : compactedList ) {
+				for ( int i = 0; i < segment.md5Keys.length; i++ )
+					md5Keys[ segment.firstRecord + segment.md5Records[ i ] ] = segment.md5Keys[ i ];
+				for ( int i = 0; i < segment.pathKeys.length; i++ )
+					pathKeys[ segment.firstRecord + segment.pathRecords[ i ] ] = segment.pathKeys[ i ];
+			}
+			
+			// Select the records to keep, newest first
+			final boolean[] keep = new boolean[ records ];
+			final HashIndex seenMd5Index  = new HashIndex( records );
+			final HashIndex seenPathIndex = new HashIndex( records );
+			int kept = 0;
+			for ( int i = records - 1; i >= 0; i-- ) {
+				final boolean superseded = md5Keys[ i ] != 0 ? seenMd5Index.contains( md5Keys[ i ] ) : seenPathIndex.contains( pathKeys[ i ] );
+				if ( !superseded && kept < keepLimit ) {
+					keep[ i ] = true;
+					kept++;
+				}
+				if ( md5Keys[ i ] != 0 )
+					seenMd5Index.add( md5Keys[ i ], i );
+				seenPathIndex.add( pathKeys[ i ], i );
+			}
+			
+			// Copy the kept records to the compacted segment (replacing the last compacted segment)
+			final int  firstId         = compactedList.get( 0 ).id;
+			final int  targetId        = compactedList.get( compactedList.size() - 1 ).id;
+			final File tempSegmentFile = new File( folder, getSegmentFile( targetId ).getName() + ".tmp" );
+			final File tempIndexFile   = new File( folder, getIndexFile( targetId ).getName() + ".tmp" );
+			final SegmentData keptData = new SegmentData();
+			long length = SEGMENT_HEADER_SIZE;
+			final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempSegmentFile ), 65536 ) );
+			try {
+				output.writeInt( SEGMENT_MAGIC );
+				output.writeInt( FORMAT_VERSION );
+				output.writeInt( firstId );
+				
+				final byte[] buffer = new byte[ MAX_RECORD_SIZE + 4 ];
+				for ( final Segment segment : compactedList ) {
+					final DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( getSegmentFile( segment.id ) ), 65536 ) );
+					try {
+						input.readFully( buffer, 0, SEGMENT_HEADER_SIZE );
+						int offset = SEGMENT_HEADER_SIZE;
+						for ( int record = segment.firstRecord; record < segment.firstRecord + segment.count; record++ ) {
+							final int recordLength = input.readInt();
+							if ( recordLength <= 0 || recordLength > MAX_RECORD_SIZE )
+								throw new IOException( "Upload history segment does not match its index: " + getSegmentFile( segment.id ) );
+							input.readFully( buffer, 0, recordLength + 4 );
+							offset += recordLength + 8;
+							if ( !keep[ record ] )
+								continue;
+							
+							output.writeInt( recordLength );
+							output.write( buffer, 0, recordLength + 4 );
+							keptData.add( recordTimes[ record ], (long) targetId << 32 | length, recordOutcomes[ record ], md5Keys[ record ], pathKeys[ record ] );
+							length += recordLength + 8;
+						}
+						if ( offset != segment.length )
+							throw new IOException( "Upload history segment does not match its index: " + getSegmentFile( segment.id ) );
+					} finally {
+						input.close();
+					}
+				}
+			} finally {
+				output.close();
+			}
+			final Segment compacted = createSegment( targetId, length, keptData );
+			writeIndexFile( tempIndexFile, compacted, keptData );
+			
+			// Replace the compacted segments
+			filesLock.writeLock().lock();
+			try {
+				synchronized ( this ) {
+					replaceFile( tempSegmentFile, getSegmentFile( targetId ) );
+					replaceFile( tempIndexFile  , getIndexFile  ( targetId ) );
+					for ( final Segment segment : compactedList )
+						if ( segment.id != targetId )
+							deleteSegment( segment.id );
+					
+					// Replace the records of the compacted segments in the columns, and shift the records after them
+					final int shift    = keptData.count - records;
+					final int newCount = count + shift;
+					final long[] newTimes     = new long[ Math.max( 1024, newCount + 1024 ) ];
+					final long[] newLocations = new long[ newTimes.length ];
+					final byte[] newOutcomes  = new byte[ newTimes.length ];
+					System.arraycopy( keptData.times    , 0      , newTimes    , 0            , keptData.count  );
+					System.arraycopy( keptData.locations, 0      , newLocations, 0            , keptData.count  );
+					System.arraycopy( keptData.outcomes , 0      , newOutcomes , 0            , keptData.count  );
+					System.arraycopy( times             , records, newTimes    , keptData.count, count - records );
+					System.arraycopy( locations         , records, newLocations, keptData.count, count - records );
+					System.arraycopy( outcomes          , records, newOutcomes , keptData.count, count - records );
+					times     = newTimes;
+					locations = newLocations;
+					outcomes  = newOutcomes;
+					count     = newCount;
+					
+					segmentList.removeAll( compactedList );
+					for ( final Segment segment : segmentList )
+						segment.firstRecord += shift; // Sealed while compacting
+					segmentList.add( 0, compacted );
+					activeFirstRecord += shift;
+				}
+			} finally {
+				filesLock.writeLock().unlock();
+			}
+			
+			System.out.println( "Compacted " + compactedList.size() + " upload history segments in " + ( System.nanoTime() - start ) / 1000000
+				+ " ms, kept " + kept + " of " + records + " records." );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to compact the upload history!" );
+			ie.printStackTrace();
+		} finally {
+			synchronized ( this ) {
+				compacting = false;
+			}
+		}
+	}
+	
+	/**
+	 * Closes the active segment. Appending is not possible until the history is loaded again.
+	 */
+	public synchronized void close() {
+		if ( activeOutput != null ) {
+			try {
+				activeOutput.close();
+			} catch ( final IOException ie ) {
+				ie.printStackTrace();
+			}
+			activeOutput = null;
+		}
+	}
+	
+	/**
+	 * Returns the file of a segment.
+	 * @param id ID of the segment
+	 * @return the file of the segment
+	 */
+	private File getSegmentFile( final int id ) {
+		return new File( folder, String.format( "%08d.log", id ) );
+	}
+	
+	/**
+	 * Returns the index file of a segment.
+	 * @param id ID of the segment
+	 * @return the index file of the segment
+	 */
+	private File getIndexFile( final int id ) {
+		return new File( folder, String.format( "%08d.idx", id ) );
+	}
+	
+	/**
+	 * Deletes a segment and its index.
+	 * @param id ID of the segment
+	 */
+	private void deleteSegment( final int id ) {
+		getIndexFile( id ).delete();
+		if ( !getSegmentFile( id ).delete() )
+			System.out.println( "Failed to delete upload history segment: " + getSegmentFile( id ) );
+	}
+	
+	/**
+	 * Creates an empty segment file.
+	 * @param id           ID of the segment
+	 * @param firstCovered ID of the first segment the new segment covers (its own ID if it does not replace others)
+	 * @throws IOException if creating the segment fails
+	 */
+	private void createSegmentFile( final int id, final int firstCovered ) throws IOException {
+		final DataOutputStream output = new DataOutputStream( new FileOutputStream( getSegmentFile( id ) ) );
+		try {
+			output.writeInt( SEGMENT_MAGIC );
+			output.writeInt( FORMAT_VERSION );
+			output.writeInt( firstCovered );
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Reads the ID of the first segment covered by a segment from its header.
+	 * @param id ID of the segment
+	 * @return the ID of the first segment covered by the segment; <code>-1</code> if the header is invalid
+	 */
+	private int readFirstCovered( final int id ) {
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream( new FileInputStream( getSegmentFile( id ) ) );
+			if ( input.readInt() != SEGMENT_MAGIC || input.readInt() != FORMAT_VERSION )
+				return -1;
+			final int firstCovered = input.readInt();
+			return firstCovered <= id ? firstCovered : -1;
+		} catch ( final IOException ie ) {
+			return -1;
+		} finally {
+			if ( input != null )
+				try { input.close(); } catch ( final IOException ie ) {}
+		}
+	}
+	
+	/**
+	 * Scans a segment and adds its records to the given columns. A torn or corrupt tail is cut off.
+	 * @param id   ID of the segment
+	 * @param data columns to add the records to
+	 * @return the length of the valid part of the segment
+	 * @throws IOException if reading the segment fails
+	 */
+	private long scanSegment( final int id, final SegmentData data ) throws IOException {
+		final File segmentFile = getSegmentFile( id );
+		long validLength = SEGMENT_HEADER_SIZE;
+		
+		final DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( segmentFile ), 65536 ) );
+		try {
+			input.readFully( new byte[ SEGMENT_HEADER_SIZE ] );
+			final byte[] buffer = new byte[ MAX_RECORD_SIZE ];
+			final CRC32  crc    = new CRC32();
+			while ( true ) {
+				final int length = input.readInt();
+				if ( length <= 0 || length > MAX_RECORD_SIZE )
+					break;
+				input.readFully( buffer, 0, length );
+				crc.reset();
+				crc.update( buffer, 0, length );
+				if ( input.readInt() != (int) crc.getValue() )
+					break;
+				
+				final Entry entry = decodeRecord( buffer, 0, length );
+				data.add( entry.time, (long) id << 32 | validLength, entry.outcome, md5Key( entry.md5 ), pathKey( entry.path ) );
+				validLength += length + 8;
+			}
+		} catch ( final EOFException ee ) {
+			// End of the segment (or a torn record)
+		} finally {
+			input.close();
+		}
+		
+		if ( validLength < segmentFile.length() ) {
+			System.out.println( "Cutting off " + ( segmentFile.length() - validLength ) + " invalid bytes of upload history segment: " + segmentFile );
+			final RandomAccessFile file = new RandomAccessFile( segmentFile, "rw" );
+			try {
+				file.setLength( validLength );
+			} finally {
+				file.close();
+			}
+		}
+		
+		return validLength;
+	}
+	
+	/**
+	 * Reads the index file of a segment.
+	 * @param id ID of the segment
+	 * @return the content of the index file; <code>null</code> if the index file is missing or does not match the segment
+	 * @throws IOException if reading the index file fails
+	 */
+	private ByteBuffer readIndexFile( final int id ) throws IOException {
+		final File indexFile = getIndexFile( id );
+		if ( !indexFile.exists() || indexFile.length() < INDEX_HEADER_SIZE || indexFile.length() > Integer.MAX_VALUE )
+			return null;
+		
+		final byte[] content = new byte[ (int) indexFile.length() ];
+		final DataInputStream input = new DataInputStream( new FileInputStream( indexFile ) );
+		try {
+			input.readFully( content );
+		} catch ( final EOFException ee ) {
+			return null;
+		} finally {
+			input.close();
+		}
+		
+		final ByteBuffer index    = ByteBuffer.wrap( content );
+		final int        records  = index.getInt( 8  );
+		final int        md5Count = index.getInt( 12 );
+		if ( index.getInt( 0 ) != INDEX_MAGIC || index.getInt( 4 ) != FORMAT_VERSION || records < 0 || md5Count < 0 || md5Count > records
+				|| index.getLong( 16 ) != getSegmentFile( id ).length() || getIndexFileSize( records, md5Count ) != content.length )
+			return null;
+		
+		return index;
+	}
+	
+	/**
+	 * Writes the index file of a segment.
+	 * @param id      ID of the segment
+	 * @param segment the segment with its sorted keys
+	 * @param data    columns of the segment
+	 * @throws IOException if writing the index file fails
+	 */
+	private void writeIndexFile( final int id, final Segment segment, final SegmentData data ) throws IOException {
+		final File tempFile = new File( folder, getIndexFile( id ).getName() + ".tmp" );
+		writeIndexFile( tempFile, segment, data );
+		replaceFile( tempFile, getIndexFile( id ) );
+	}
+	
+	/**
+	 * Writes an index file.
+	 * @param indexFile index file to write
+	 * @param segment   the segment with its sorted keys
+	 * @param data      columns of the segment
+	 * @throws IOException if writing the index file fails
+	 */
+	private static void writeIndexFile( final File indexFile, final Segment segment, final SegmentData data ) throws IOException {
+		final int        records  = segment.count;
+		final int        md5Count = segment.md5Keys.length;
+		final ByteBuffer index    = ByteBuffer.allocate( (int) getIndexFileSize( records, md5Count ) );
+		index.putInt( INDEX_MAGIC ).putInt( FORMAT_VERSION ).putInt( records ).putInt( md5Count ).putLong( segment.length );
+		index.asLongBuffer().put( data.times, 0, records );
+		index.position( index.position() + records * 8 );
+		index.asLongBuffer().put( data.locations, 0, records );
+		index.position( index.position() + records * 8 );
+		index.put( data.outcomes, 0, records );
+		index.asLongBuffer().put( segment.md5Keys );
+		index.position( index.position() + md5Count * 8 );
+		index.asIntBuffer().put( segment.md5Records );
+		index.position( index.position() + md5Count * 4 );
+		index.asLongBuffer().put( segment.pathKeys );
+		index.position( index.position() + records * 8 );
+		index.asIntBuffer().put( segment.pathRecords );
+		
+		final FileOutputStream output = new FileOutputStream( indexFile );
+		try {
+			output.write( index.array() );
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Returns the size of an index file.
+	 * @param records  number of records
+	 * @param md5Count number of records with known MD5
+	 * @return the size of the index file
+	 */
+	private static long getIndexFileSize( final int records, final int md5Count ) {
+		return INDEX_HEADER_SIZE + records * 29L + md5Count * 12L;
+	}
+	
+	/**
+	 * Creates a segment from its columns: sorts the MD5 and path keys of the records.
+	 * @param id     ID of the segment
+	 * @param length length of the segment
+	 * @param data   columns of the segment
+	 * @return the segment
+	 */
+	private static Segment createSegment( final int id, final long length, final SegmentData data ) {
+		int md5Count = 0;
+		for ( int i = 0; i < data.count; i++ )
+			if ( data.md5Keys[ i ] != 0 )
+				md5Count++;
+		
+		final Segment segment = new Segment( id, length, data.count, md5Count );
+		for ( int i = 0, j = 0; i < data.count; i++ ) {
+			if ( data.md5Keys[ i ] != 0 ) {
+				segment.md5Keys   [ j   ] = data.md5Keys[ i ];
+				segment.md5Records[ j++ ] = i;
+			}
+			segment.pathKeys   [ i ] = data.pathKeys[ i ];
+			segment.pathRecords[ i ] = i;
+		}
+		sortKeys( segment.md5Keys , segment.md5Records  );
+		sortKeys( segment.pathKeys, segment.pathRecords );
+		
+		return segment;
+	}
+	
+	/**
+	 * Sorts keys with their records by key, then by record (heap sort, no boxing).
+	 * @param keys    keys to sort
+	 * @param records records of the keys
+	 */
+	private static void sortKeys( final long[] keys, final int[] records ) {
+		final int n = keys.length;
+		for ( int i = n / 2 - 1; i >= 0; i-- )
+			siftDown( keys, records, i, n );
+		for ( int end = n - 1; end > 0; end-- ) {
+			swap( keys, records, 0, end );
+			siftDown( keys, records, 0, end );
+		}
+	}
+	
+	/**
+	 * Moves an element of a heap down to its place.
+	 * @param keys    keys of the heap
+	 * @param records records of the keys
+	 * @param index   index of the element
+	 * @param size    size of the heap
+	 */
+	private static void siftDown( final long[] keys, final int[] records, int index, final int size ) {
+		int child;
+		while ( ( child = 2 * index + 1 ) < size ) {
+			if ( child + 1 < size && isLess( keys, records, child, child + 1 ) )
+				child++;
+			if ( !isLess( keys, records, index, child ) )
+				return;
+			swap( keys, records, index, child );
+			index = child;
+		}
+	}
+	
+	/**
+	 * Tells if an element is less than another one: compares the keys, then the records.
+	 * @param keys    keys of the elements
+	 * @param records records of the keys
+	 * @param i       index of the first element
+	 * @param j       index of the second element
+	 * @return true if the first element is less than the second one; false otherwise
+	 */
+	private static boolean isLess( final long[] keys, final int[] records, final int i, final int j ) {
+		return keys[ i ] < keys[ j ] || keys[ i ] == keys[ j ] && records[ i ] < records[ j ];
+	}
+	
+	/**
+	 * Swaps two elements.
+	 * @param keys    keys of the elements
+	 * @param records records of the keys
+	 * @param i       index of the first element
+	 * @param j       index of the second element
+	 */
+	private static void swap( final long[] keys, final int[] records, final int i, final int j ) {
+		final long key = keys[ i ];
+		keys[ i ] = keys[ j ];
+		keys[ j ] = key;
+		final int record = records[ i ];
+		records[ i ] = records[ j ];
+		records[ j ] = record;
+	}
+	
+	
+	/**
+	 * Replaces a file with another one, atomically if supported by the file system.
+	 * @param source file to be moved
+	 * @param target file to be replaced
+	 * @throws IOException if the file cannot be replaced
+	 */
+	private static void replaceFile( final File source, final File target ) throws IOException {
+		try {
+			Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch ( final AtomicMoveNotSupportedException amnse ) {
+			Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+	
+	/**
+	 * Encodes a record: length, content and CRC32 of the content.
+	 * @param entry entry to be encoded
+	 * @param time  time to be stored
+	 * @return the encoded record
+	 * @throws IOException if the entry cannot be encoded (e.g. too long path)
+	 */
+	private static byte[] encodeRecord( final Entry entry, final long time ) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 256 );
+		final DataOutputStream output = new DataOutputStream( bytes );
+		output.writeInt( 0 ); // Length, set below
+		output.writeLong( time );
+		output.writeByte( entry.outcome );
+		output.writeLong( entry.size );
+		output.writeUTF( entry.md5       == null ? "" : entry.md5       );
+		output.writeUTF( entry.path );
+		output.writeUTF( entry.replayUrl == null ? "" : entry.replayUrl );
+		output.writeInt( 0 ); // CRC32, set below
+		
+		final byte[] record = bytes.toByteArray();
+		final int length = record.length - 8;
+		final CRC32 crc = new CRC32();
+		crc.update( record, 4, length );
+		ByteBuffer.wrap( record ).putInt( 0, length ).putInt( 4 + length, (int) crc.getValue() );
+		
+		return record;
+	}
+	
+	/**
+	 * Decodes the content of a record.
+	 * @param buffer buffer holding the content
+	 * @param offset offset of the content in the buffer
+	 * @param length length of the content
+	 * @return the decoded record
+	 * @throws IOException if the content is invalid
+	 */
+	private static Entry decodeRecord( final byte[] buffer, final int offset, final int length ) throws IOException {
+		final DataInputStream input = new DataInputStream( new ByteArrayInputStream( buffer, offset, length ) );
+		return new Entry( input.readLong(), input.readByte(), input.readLong(), input.readUTF(), input.readUTF(), input.readUTF() );
+	}
+	
+	/**
+	 * Returns the MD5 key of a hex MD5: its first 64 bits.
+	 * @param md5 hex MD5
+	 * @return the MD5 key; <code>0</code> if the MD5 is unknown or invalid
+	 */
+	static long md5Key( final String md5 ) {
+		if ( md5 == null || md5.length() < 16 )
+			return 0;
+		
+		long key = 0;
+		for ( int i = 0; i < 16; i++ ) {
+			final int digit = Character.digit( md5.charAt( i ), 16 );
+			if ( digit < 0 )
+				return 0;
+			key = key << 4 | digit;
+		}
+		return key == 0 ? 1 : key;
+	}
+	
+	/**
+	 * Returns the path key of a path: its 64-bit FNV-1a hash.
+	 * @param path path to hash
+	 * @return the path key (never <code>0</code>)
+	 */
+	static long pathKey( final String path ) {
+		long key = 0xcbf29ce484222325L;
+		for ( int i = 0; i < path.length(); i++ )
+			key = ( key ^ path.charAt( i ) ) * 0x100000001b3L;
+		return key == 0 ? 1 : key;
+	}
+	
+	/**
+	 * A sealed segment: its size and the keys of its records sorted for binary search.
+	 */
+	private static class Segment {
+		
+		/** ID of the segment.                                                                  */
+		final int    id;
+		/** Length of the segment file.                                                         */
+		final long   length;
+		/** Number of records in the segment.                                                   */
+		final int    count;
+		/** Number of the first record of the segment; changes when earlier segments are compacted. */
+		int          firstRecord;
+		/** MD5 keys of the records with known MD5, in ascending order.                         */
+		final long[] md5Keys;
+		/** Segment relative numbers of the records of the MD5 keys.                            */
+		final int[]  md5Records;
+		/** Path keys of the records, in ascending order.                                       */
+		final long[] pathKeys;
+		/** Segment relative numbers of the records of the path keys.                           */
+		final int[]  pathRecords;
+		
+		/**
+		 * Creates a new Segment.
+		 * @param id       ID of the segment
+		 * @param length   length of the segment file
+		 * @param count    number of records in the segment
+		 * @param md5Count number of records with known MD5
+		 */
+		public Segment( final int id, final long length, final int count, final int md5Count ) {
+			this.id     = id;
+			this.length = length;
+			this.count  = count;
+			md5Keys     = new long[ md5Count ];
+			md5Records  = new int [ md5Count ];
+			pathKeys    = new long[ count ];
+			pathRecords = new int [ count ];
+		}
+	
+	}
+	
+	/**
+	 * Growable columns of the records of a segment.
+	 */
+	private static class SegmentData {
+		
+		/** Times of the records.                                  */
+		long[] times     = new long[ 256 ];
+		/** Locations of the records.                              */
+		long[] locations = new long[ 256 ];
+		/** Outcomes of the records.                               */
+		byte[] outcomes  = new byte[ 256 ];
+		/** MD5 keys of the records, <code>0</code> if unknown.    */
+		long[] md5Keys   = new long[ 256 ];
+		/** Path keys of the records.                              */
+		long[] pathKeys  = new long[ 256 ];
+		/** Number of records.                                     */
+		int    count;
+		
+		/**
+		 * Adds a record.
+		 * @param time     time of the record
+		 * @param location location of the record
+		 * @param outcome  outcome of the record
+		 * @param md5Key   MD5 key of the record; <code>0</code> if the MD5 is unknown
+		 * @param pathKey  path key of the record
+		 */
+		public void add( final long time, final long location, final byte outcome, final long md5Key, final long pathKey ) {
+			if ( count == times.length ) {
+				times     = Arrays.copyOf( times    , count * 2 );
+				locations = Arrays.copyOf( locations, count * 2 );
+				outcomes  = Arrays.copyOf( outcomes , count * 2 );
+				md5Keys   = Arrays.copyOf( md5Keys  , count * 2 );
+				pathKeys  = Arrays.copyOf( pathKeys , count * 2 );
+			}
+			
+			times    [ count ] = time;
+			locations[ count ] = location;
+			outcomes [ count ] = outcome;
+			md5Keys  [ count ] = md5Key;
+			pathKeys [ count ] = pathKey;
+			count++;
+		}
+	
+	}
+	
+	
+	/**
+	 * Reads records of a segment in blocks, so reading nearby records does not need a disk read each.
+	 */
+	private static class SegmentReader {
+		
+		/** The segment file.                */
+		private final RandomAccessFile file;
+		/** Buffer of the current block.     */
+		private final byte[]           block = new byte[ READ_BLOCK_SIZE ];
+		/** Start of the current block.      */
+		private long                   blockStart;
+		/** Length of the current block.     */
+		private int                    blockLength;
+		/** CRC32 to verify the records.     */
+		private final CRC32            crc   = new CRC32();
+		
+		/**
+		 * Creates a new SegmentReader.
+		 * @param segmentFile the segment file
+		 * @throws IOException if the segment file cannot be opened
+		 */
+		public SegmentReader( final File segmentFile ) throws IOException {
+			file = new RandomAccessFile( segmentFile, "r" );
+		}
+		
+		/**
+		 * Reads a record.
+		 * @param offset offset of the record
+		 * @return the record; <code>null</code> if it is corrupt
+		 * @throws IOException if reading the segment fails
+		 */
+		public Entry read( final int offset ) throws IOException {
+			// Queries usually go backwards, so blocks end a little after the requested record
+			if ( offset < blockStart || offset + 4 > blockStart + blockLength )
+				readBlock( Math.max( 0, offset + 1024 - READ_BLOCK_SIZE ) );
+			final int length = ByteBuffer.wrap( block ).getInt( (int) ( offset - blockStart ) );
+			if ( length <= 0 || length > MAX_RECORD_SIZE )
+				return null;
+			if ( offset + 8 + length > blockStart + blockLength )
+				readBlock( offset );
+			
+			byte[] buffer = block;
+			int    start  = (int) ( offset - blockStart ) + 4;
+			if ( start + length + 4 > blockLength ) {
+				// Larger than a block
+				buffer = new byte[ length + 4 ];
+				file.seek( offset + 4 );
+				file.readFully( buffer );
+				start = 0;
+			}
+			
+			crc.reset();
+			crc.update( buffer, start, length );
+			if ( ByteBuffer.wrap( buffer ).getInt( start + length ) != (int) crc.getValue() )
+				return null;
+			
+			return decodeRecord( buffer, start, length );
+		}
+		
+		/**
+		 * Reads a block.
+		 * @param start start of the block
+		 * @throws IOException if reading the segment fails
+		 */
+		private void readBlock( final long start ) throws IOException {
+			file.seek( start );
+			blockStart  = start;
+			blockLength = 0;
+			int read;
+			while ( blockLength < block.length && ( read = file.read( block, blockLength, block.length - blockLength ) ) > 0 )
+				blockLength += read;
+		}
+		
+		/**
+		 * Closes the segment file.
+		 */
+		public void close() {
+			try {
+				file.close();
+			} catch ( final IOException ie ) {
+				ie.printStackTrace();
+			}
+		}
+	
+	}
+	
+	/**
+	 * Open addressing hash index from 64-bit keys to record numbers; a key may have multiple records.
+	 */
+	private static class HashIndex {
+		
+		/** Keys of the slots.                                   */
+		private long[] keys;
+		/** Records of the slots plus one, <code>0</code> means empty. */
+		private int[]  records;
+		/** Number of used slots.                                */
+		private int    size;
+		
+		/**
+		 * Creates a new HashIndex.
+		 * @param expectedSize expected number of records
+		 */
+		public HashIndex( final int expectedSize ) {
+			int capacity = 1024;
+			while ( capacity < expectedSize * 2 )
+				capacity <<= 1;
+			keys    = new long[ capacity ];
+			records = new int [ capacity ];
+		}
+		
+		/**
+		 * Returns the first slot of a key.
+		 * @param key the key
+		 * @return the first slot of the key
+		 */
+		private int slotOf( final long key ) {
+			return (int) ( ( key * 0x9e3779b97f4a7c15L ) >>> 32 ) & ( keys.length - 1 );
+		}
+		
+		/**
+		 * Adds a record of a key.
+		 * @param key    the key
+		 * @param record the record
+		 */
+		public void add( final long key, final int record ) {
+			if ( ( size + 1 ) * 2 > keys.length ) {
+				final long[] oldKeys    = keys;
+				final int[]  oldRecords = records;
+				keys    = new long[ oldKeys.length * 2 ];
+				records = new int [ oldKeys.length * 2 ];
+				for ( int i = 0; i < oldKeys.length; i++ )
+					if ( oldRecords[ i ] != 0 )
+						put( oldKeys[ i ], oldRecords[ i ] );
+			}
+			
+			put( key, record + 1 );
+			size++;
+		}
+		
+		/**
+		 * Puts a key into the first free slot.
+		 * @param key   the key
+		 * @param value record plus one
+		 */
+		private void put( final long key, final int value ) {
+			final int mask = keys.length - 1;
+			int slot = slotOf( key );
+			while ( records[ slot ] != 0 )
+				slot = slot + 1 & mask;
+			keys   [ slot ] = key;
+			records[ slot ] = value;
+		}
+		
+		/**
+		 * Tells if a key has records.
+		 * @param key the key
+		 * @return true if the key has records; false otherwise
+		 */
+		public boolean contains( final long key ) {
+			final int mask = keys.length - 1;
+			for ( int slot = slotOf( key ); records[ slot ] != 0; slot = slot + 1 & mask )
+				if ( keys[ slot ] == key )
+					return true;
+			return false;
+		}
+		
+		/**
+		 * Returns the records of a key.
+		 * @param key the key
+		 * @return the records of the key in ascending order
+		 */
+		public int[] get( final long key ) {
+			int[] result = new int[ 4 ];
+			int   found  = 0;
+			final int mask = keys.length - 1;
+			for ( int slot = slotOf( key ); records[ slot ] != 0; slot = slot + 1 & mask )
+				if ( keys[ slot ] == key ) {
+					if ( found == result.length )
+						result = Arrays.copyOf( result, found * 2 );
+					result[ found++ ] = records[ slot ] - 1;
+				}
+			
+			result = Arrays.copyOf( result, found );
+			Arrays.sort( result );
+			return result;
+		}
+	
+	}
+
+}
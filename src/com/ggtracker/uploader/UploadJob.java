@@ -0,0 +1,316 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A replay on its way through the {@link UploadPipeline}.
+ * 
+ * <p>A job is handed over from stage to stage, only one stage works on it at a time.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class UploadJob {
+	
+	/**
+	 * Priority class of a job, in decreasing order of priority.
+	 */
+	public enum Priority {
+		/** Replay just detected in the replay folder. */
+		LIVE,
+		/** Replay whose upload is being retried.     */
+		RETRY,
+		/** Replay enqueued to be uploaded in bulk.   */
+		BACKFILL;
+		
+		/** Label of the priority class used in the metrics. */
+		public final String label = name().toLowerCase();
+	}
+	
+	/** The replay file.                                                      */
+	private final File file;
+	/** Priority class of the job.                                            */
+	private final Priority priority;
+	/** Auth token to upload the replay with, see {@link AccountTokens}.     */
+	private final String authToken;
+	/** Nano time when the replay was detected.                               */
+	private final long detectedNanos;
+	/** Timing trace of the upload.                                          */
+	private final UploadTrace trace;
+	
+	/** Last modification time of the file when it was last checked.         */
+	private long                  lastModified;
+	/** Length of the file when it was last checked.                         */
+	private long                  length;
+	/** MD5 of the replay, set by the prepare stage.                          */
+	private String                md5;
+	/** Request parameters to be posted, set by the prepare stage.            */
+	private Map< String, String > paramsMap;
+	/** Bytes reserved from the {@link MemoryBudget} for the payload.         */
+	private long                  reservedBytes;
+	/** Outcome of the last upload attempt, set by the send stage.            */
+	private String                lastOutcome;
+	/** Replay URL if the server already has the replay, set by the prepare stage. */
+	private String                knownReplayUrl;
+	
+	/** The post currently sending the replay.                                */
+	private volatile HttpPost     activePost;
+	/** Tells if the job has been cancelled.                                  */
+	private volatile boolean      cancelled;
+	
+	/** Lock of the retry wait; not a monitor, which would pin a virtual thread while waiting. */
+	private final ReentrantLock   retryLock     = new ReentrantLock();
+	/** Condition signalled when the job is cancelled.                        */
+	private final Condition       cancelledCond = retryLock.newCondition();
+	
+	/**
+	 * Creates a new UploadJob of a {@link Priority#LIVE} replay.
+	 * @param file the replay file
+	 */
+	public UploadJob( final File file ) {
+		this( file, Priority.LIVE );
+	}
+	
+	/**
+	 * Creates a new UploadJob.
+	 * @param file     the replay file
+	 * @param priority priority class of the job
+	 */
+	public UploadJob( final File file, final Priority priority ) {
+		this.file     = file;
+		this.priority = priority;
+		authToken     = AccountTokens.get().resolve( file );
+		detectedNanos = System.nanoTime();
+		trace         = new UploadTrace( detectedNanos );
+		lastModified  = file.lastModified();
+		length        = file.length();
+	}
+	
+	/**
+	 * Returns the replay file.
+	 * @return the replay file
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Returns the priority class of the job.
+	 * @return the priority class of the job
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Returns the auth token to upload the replay with.
+	 * @return the auth token to upload the replay with
+	 */
+	public String getAuthToken() {
+		return authToken;
+	}
+	
+	/**
+	 * Returns the nano time when the replay was detected.
+	 * @return the nano time when the replay was detected
+	 */
+	public long getDetectedNanos() {
+		return detectedNanos;
+	}
+	
+	/**
+	 * Returns the timing trace of the upload.
+	 * @return the timing trace of the upload
+	 */
+	public UploadTrace getTrace() {
+		return trace;
+	}
+	
+	/**
+	 * Re-reads the last modification time and the length of the file.
+	 * @return true if the file changed since it was last checked; false otherwise
+	 */
+	public boolean refreshFileStats() {
+		final long newLastModified = file.lastModified();
+		final long newLength       = file.length();
+		
+		final boolean changed = newLastModified != lastModified || newLength != length;
+		lastModified = newLastModified;
+		length       = newLength;
+		
+		return changed;
+	}
+	
+	/**
+	 * Returns the last modification time of the file when it was last checked.
+	 * @return the last modification time of the file when it was last checked
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+	
+	/**
+	 * Returns the length of the file when it was last checked.
+	 * @return the length of the file when it was last checked
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * Returns the MD5 of the replay.
+	 * @return the MD5 of the replay; <code>null</code> if the job is not prepared yet
+	 */
+	public String getMd5() {
+		return md5;
+	}
+	
+	/**
+	 * Sets the MD5 of the replay.
+	 * @param md5 the MD5 of the replay
+	 */
+	public void setMd5( final String md5 ) {
+		this.md5 = md5;
+	}
+	
+	/**
+	 * Returns the request parameters to be posted.
+	 * @return the request parameters to be posted; <code>null</code> if the job is not prepared yet
+	 */
+	public Map< String, String > getParamsMap() {
+		return paramsMap;
+	}
+	
+	/**
+	 * Sets the request parameters to be posted.
+	 * @param paramsMap the request parameters to be posted; <code>null</code> to release the prepared payload
+	 */
+	public void setParamsMap( final Map< String, String > paramsMap ) {
+		this.paramsMap = paramsMap;
+	}
+	
+	/**
+	 * Returns the bytes reserved from the {@link MemoryBudget} for the payload.
+	 * @return the bytes reserved for the payload; <code>0</code> if nothing is reserved
+	 */
+	public long getReservedBytes() {
+		return reservedBytes;
+	}
+	
+	/**
+	 * Sets the bytes reserved from the {@link MemoryBudget} for the payload.
+	 * @param reservedBytes the bytes reserved for the payload; <code>0</code> if nothing is reserved
+	 */
+	public void setReservedBytes( final long reservedBytes ) {
+		this.reservedBytes = reservedBytes;
+	}
+	
+	/**
+	 * Returns the outcome of the last upload attempt.
+	 * @return the outcome of the last upload attempt, like <code>"success"</code> or {@link ReplayUploader#OUTCOME_CONNECT};
+	 * 		<code>null</code> if no attempt was made yet
+	 */
+	public String getLastOutcome() {
+		return lastOutcome;
+	}
+	
+	/**
+	 * Sets the outcome of the last upload attempt.
+	 * @param lastOutcome the outcome of the last upload attempt
+	 */
+	public void setLastOutcome( final String lastOutcome ) {
+		this.lastOutcome = lastOutcome;
+	}
+	
+	/**
+	 * Returns the replay URL if the server already has the replay.
+	 * @return the replay URL if the server already has the replay, see {@link Md5PreCheck}; <code>null</code> if the replay is to be sent
+	 */
+	public String getKnownReplayUrl() {
+		return knownReplayUrl;
+	}
+	
+	/**
+	 * Sets the replay URL if the server already has the replay.
+	 * @param knownReplayUrl the replay URL if the server already has the replay
+	 */
+	public void setKnownReplayUrl( final String knownReplayUrl ) {
+		this.knownReplayUrl = knownReplayUrl;
+	}
+	
+	/**
+	 * Sets the post currently sending the replay, so it can be aborted if the job is cancelled.
+	 * @param activePost the post currently sending the replay; <code>null</code> if sending ended
+	 */
+	public void setActivePost( final HttpPost activePost ) {
+		this.activePost = activePost;
+		
+		if ( cancelled && activePost != null )
+			activePost.abort();
+	}
+	
+	/**
+	 * Cancels the job: aborts the post sending the replay if there is one, and prevents further attempts.
+	 */
+	public void cancel() {
+		cancelled = true;
+		
+		final HttpPost post = activePost;
+		if ( post != null )
+			post.abort();
+		
+		retryLock.lock();
+		try {
+			cancelledCond.signalAll();
+		} finally {
+			retryLock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits before retrying a failed attempt, returns early if the job is cancelled.
+	 * @param delayMs time to wait in milliseconds
+	 * @return true if the job can be retried; false if it was cancelled or the thread was interrupted while waiting
+	 */
+	public boolean awaitRetry( final long delayMs ) {
+		long remainingNanos = delayMs * 1000000;
+		retryLock.lock();
+		try {
+			while ( !cancelled && remainingNanos > 0 )
+				remainingNanos = cancelledCond.awaitNanos( remainingNanos );
+		} catch ( final InterruptedException ie ) {
+			// Shutting down, keep the interrupted status for the caller's stage
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			retryLock.unlock();
+		}
+		
+		return !cancelled;
+	}
+	
+	/**
+	 * Tells if the job has been cancelled.
+	 * @return true if the job has been cancelled; false otherwise
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	@Override
+	public String toString() {
+		return file.getAbsolutePath();
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Append-only journal of the {@link UploadTrace}s in CSV format, and a summarizer of the journal.
+ * 
+ * <p>Every span is a line with the following columns:
+ * <code>time,replay,stage,attempt,start_us,duration_us,outcome</code>,
+ * where <code>time</code> is the wall clock time of the detection (identifies the upload together with the replay name),
+ * and <code>start_us</code> is the start of the span relative to the detection.
+ * The journal is moved to {@link #OLD_JOURNAL_FILE} when it exceeds {@link #MAX_JOURNAL_SIZE}.</p>
+ * 
+ * <p>The summary (percentiles of the durations per stage) can be printed with:<br>
+ * <code>java -cp ggtracker-uploader.jar com.ggtracker.uploader.UploadJournal [journal-file]</code></p>
+ * 
+ * @author Andras Belicza
+ */
+public class UploadJournal {
+	
+	/** The journal file.                                     */
+	public static final File   JOURNAL_FILE     = new File( Consts.FOLDER_LOGS, "upload-trace.csv" );
+	/** The previous journal file.                            */
+	public static final File   OLD_JOURNAL_FILE = new File( Consts.FOLDER_LOGS, "upload-trace.old.csv" );
+	/** Max size of the journal file before it is moved away. */
+	public static final long   MAX_JOURNAL_SIZE = 1024*1024;
+	
+	/** Header line of the journal. */
+	private static final String HEADER = "time,replay,stage,attempt,start_us,duration_us,outcome";
+	
+	/** Stage order used in the summary, unknown stages follow these. */
+	private static final String[] STAGE_ORDER = { UploadTrace.STAGE_DETECT, "settle" + UploadTrace.QUEUE_SUFFIX, "settle", "prepare" + UploadTrace.QUEUE_SUFFIX,
+		UploadTrace.STAGE_HASH, UploadTrace.STAGE_ENCODE, "send" + UploadTrace.QUEUE_SUFFIX, UploadTrace.STAGE_CONNECT, UploadTrace.STAGE_UPLOAD,
+		UploadTrace.STAGE_SERVER, UploadTrace.STAGE_ATTEMPT, UploadTrace.STAGE_TOTAL };
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private UploadJournal() {
+	}
+	
+	/**
+	 * Appends a trace to the journal.
+	 * @param replayName name of the replay
+	 * @param trace      trace to be appended
+	 */
+	public static synchronized void append( final String replayName, final UploadTrace trace ) {
+		final String replay = replayName.replace( ',', '_' ).replace( '\n', '_' ).replace( '\r', '_' );
+		final StringBuilder builder = new StringBuilder( 1024 );
+		for ( final UploadTrace.Span span : trace.getSpans() ) {
+			builder.append( trace.getOriginTime() ).append( ',' ).append( replay ).append( ',' ).append( span.stage ).append( ',' ).append( span.attempt )
+				.append( ',' ).append( span.startNanos / 1000 ).append( ',' ).append( span.durationNanos / 1000 ).append( ',' );
+			if ( span.outcome != null )
+				builder.append( span.outcome );
+			builder.append( '\n' );
+		}
+		
+		Writer output = null;
+		try {
+			if ( JOURNAL_FILE.length() > MAX_JOURNAL_SIZE ) {
+				OLD_JOURNAL_FILE.delete();
+				JOURNAL_FILE.renameTo( OLD_JOURNAL_FILE );
+			}
+			
+			final boolean newFile = !JOURNAL_FILE.exists();
+			JOURNAL_FILE.getParentFile().mkdirs();
+			output = new OutputStreamWriter( new FileOutputStream( JOURNAL_FILE, true ), "UTF-8" );
+			if ( newFile )
+				output.write( HEADER + '\n' );
+			output.write( builder.toString() );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to write the upload trace journal!" );
+			ie.printStackTrace();
+		} finally {
+			if ( output != null )
+				try { output.close(); } catch ( final IOException ie ) {}
+		}
+	}
+	
+	/**
+	 * Prints the summary of a journal: count and percentiles of the durations per stage, in milliseconds.
+	 * @param journalFile journal to be summarized
+	 * @param out         stream to print the summary to
+	 * @throws IOException if the journal cannot be read
+	 */
+	public static void summarize( final File journalFile, final PrintStream out ) throws IOException {
+		final Map< String, List< Long > > durationsMap = new LinkedHashMap< String, List< Long > >();
+		for ( final String stage : STAGE_ORDER )
+			durationsMap.put( stage, new ArrayList< Long >() );
+		
+		final Map< String, Integer > outcomeCountMap = new LinkedHashMap< String, Integer >();
+		int uploads = 0;
+		
+		final BufferedReader input = new BufferedReader( new InputStreamReader( new FileInputStream( journalFile ), "UTF-8" ) );
+		try {
+			String line;
+			while ( ( line = input.readLine() ) != null ) {
+				final String[] columns = line.split( ",", -1 );
+				if ( columns.length < 7 || HEADER.equals( line ) )
+					continue;
+				
+				final String stage = columns[ 2 ];
+				List< Long > durationList = durationsMap.get( stage );
+				if ( durationList == null )
+					durationsMap.put( stage, durationList = new ArrayList< Long >() );
+				try {
+					durationList.add( Long.parseLong( columns[ 5 ] ) );
+				} catch ( final NumberFormatException nfe ) {
+					continue;
+				}
+				
+				if ( UploadTrace.STAGE_TOTAL.equals( stage ) ) {
+					uploads++;
+					final Integer count = outcomeCountMap.get( columns[ 6 ] );
+					outcomeCountMap.put( columns[ 6 ], count == null ? 1 : count + 1 );
+				}
+			}
+		} finally {
+			input.close();
+		}
+		
+		out.println( "Uploads: " + uploads + " " + outcomeCountMap );
+		out.println( String.format( Locale.US, "%-16s %8s %10s %10s %10s %10s", "stage", "count", "p50 ms", "p90 ms", "p99 ms", "max ms" ) );
+		for ( final Entry< String, List< Long > > entry : durationsMap.entrySet() ) {
+			final List< Long > durationList = entry.getValue();
+			if ( durationList.isEmpty() )
+				continue;
+			
+			final long[] durations = new long[ durationList.size() ];
+			for ( int i = 0; i < durations.length; i++ )
+				durations[ i ] = durationList.get( i );
+			Arrays.sort( durations );
+			
+			out.println( String.format( Locale.US, "%-16s %8d %10.1f %10.1f %10.1f %10.1f", entry.getKey(), durations.length,
+				percentile( durations, 50 ) / 1000.0, percentile( durations, 90 ) / 1000.0, percentile( durations, 99 ) / 1000.0, durations[ durations.length - 1 ] / 1000.0 ) );
+		}
+	}
+	
+	/**
+	 * Returns the specified percentile of sorted values (nearest rank method).
+	 * @param sortedValues values sorted in ascending order
+	 * @param percentile   percentile to return (0..100)
+	 * @return the specified percentile of the values
+	 */
+	private static long percentile( final long[] sortedValues, final double percentile ) {
+		final int rank = (int) Math.ceil( percentile / 100 * sortedValues.length );
+		return sortedValues[ Math.max( 0, Math.min( sortedValues.length - 1, rank - 1 ) ) ];
+	}
+	
+	/**
+	 * Prints the summary of the journal.
+	 * @param arguments optional path of the journal to summarize, {@link #JOURNAL_FILE} if omitted or empty
+	 * @throws IOException if the journal cannot be read
+	 */
+	public static void main( final String[] arguments ) throws IOException {
+		final File journalFile = arguments.length > 0 && arguments[ 0 ].length() > 0 ? new File( arguments[ 0 ] ) : JOURNAL_FILE;
+		if ( !journalFile.exists() ) {
+			System.err.println( "Journal not found: " + journalFile );
+			System.exit( 1 );
+		}
+		
+		summarize( journalFile, System.out );
+	}
+
+}
@@ -0,0 +1,1202 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Staged replay upload pipeline.
+ * 
+ * <p>Detected replays go through the following stages, each having its own worker threads
+ * and a bounded queue in front of it:
+ * <ol>
+ * 	<li><b>settle</b>: waits until SC2 finishes saving the replay,
+ * 	<li><b>prepare</b>: hashes and encodes the replay (CPU and disk),
+ * 	<li><b>send</b>: sends the replay to the server (network).
+ * </ol>
+ * This way replay N+1 is prepared while replay N is on the wire.
+ * Bounded queues apply backpressure: if a stage falls behind, the stages before it block
+ * instead of piling up prepared payloads in memory.</p>
+ * 
+ * <p>Before preparing a replay, the prepare stage reserves the estimated size of its payload from the process-wide
+ * {@link MemoryBudget}, and the reservation is released when the payload is dropped. While the budget is exhausted,
+ * the prepare stage waits, and the stages and the replay folder monitor before it block on the full queues.</p>
+ * 
+ * <p>Replays enqueued in bulk (and the resumed checkpoint) wait in an unbounded backlog which is fed to the pipeline
+ * by a background thread, so enqueueing never blocks. While the memory budget is exhausted, the backlog is not fed,
+ * so bulk replays do not take the queue slots of newly detected ones. Sending can be paused: replays are still prepared until
+ * the queues fill up, but nothing is sent until the pipeline is resumed.</p>
+ * 
+ * <p>Every replay has a {@link UploadJob.Priority priority class}: replays detected in the replay folder are
+ * {@link UploadJob.Priority#LIVE live}, resumed checkpointed uploads are {@link UploadJob.Priority#RETRY retries},
+ * and replays enqueued in bulk are {@link UploadJob.Priority#BACKFILL backfill}. All queues (and the upload tasks waiting
+ * for a stage in the task modes) are {@link PriorityJobQueue}s, so a replay just saved goes before thousands of archived ones,
+ * while aging ({@link Settings#KEY_PIPELINE_AGING_TIME}) makes sure the lower classes are not starved.
+ * The queue capacity applies to each class separately, so backfill replays never hold up a live replay.
+ * The scheduling delay and the latency of the uploads are measured per class.</p>
+ * 
+ * <p>If the upload server cannot be connected, replays are spooled instead of being tried, and sent when the server
+ * is reachable again (see {@link OfflineSpool}), unless disabled by the {@link Settings#KEY_OFFLINE_SPOOL} setting.</p>
+ * 
+ * <p>While a game is being played (see {@link GameMonitor}), replays are only detected and enqueued if the
+ * {@link Settings#KEY_UPLOAD_TIMING} is {@link GameMonitor#TIMING_BETWEEN_GAMES}: the prepare and send stages wait
+ * until the game ends, so uploading does not take the disk and the network from the game.</p>
+ * 
+ * <p>The {@link Settings#KEY_PIPELINE_EXECUTION_MODE} setting selects how the stages are run:
+ * <ul>
+ * 	<li>{@link #MODE_STAGES}: each stage has its own worker threads as described above,
+ * 	<li>{@link #MODE_PLATFORM}: each replay is an upload task running all stages one after the other,
+ * 		the tasks run in a fixed pool of platform threads,
+ * 	<li>{@link #MODE_VIRTUAL}: each replay is an upload task running in its own virtual thread, so waiting
+ * 		(settling, the memory budget, pause, network I/O) does not tie up platform threads. Falls back to
+ * 		{@link #MODE_PLATFORM} if virtual threads are not available (see {@link VirtualThreads}).
+ * </ul>
+ * In the task modes the number of replays processed at once by the prepare and send stages is still limited
+ * to the number of their threads; the replays over the limit wait in their task (counted in the queue depth of the stage).</p>
+ * 
+ * <p>On shutdown in-flight uploads are given a drain deadline. Replays still unfinished when it expires
+ * are aborted and checkpointed to the {@link #CHECKPOINT_FILE}, and are resumed on the next start.
+ * The checkpoint and the {@link OfflineSpool#SPOOL_FILE spool} are kept in the state folder of the pipeline,
+ * which is the {@link Consts#FOLDER_USER_CONTENT} unless another one is specified (e.g. by the benchmarks).</p>
+ * 
+ * @author Andras Belicza
+ */
+public class UploadPipeline {
+	
+	/** Max number of extra settle rounds to wait for if SC2 is still writing the replay. */
+	private static final int  MAX_SETTLE_ROUNDS = 10;
+	/** Time to wait for new input before re-checking whether the stage has to finish.  */
+	private static final long POLL_TIMEOUT_MS   = 200;
+	/** Number of handled replays to remember to filter out repeated detections.         */
+	private static final int  HANDLED_MEMORY    = 64;
+	/** Time to wait for the workers to end after aborting them.                         */
+	private static final long ABORT_TIMEOUT_MS  = 1000;
+	
+	/** File to checkpoint the unfinished uploads to on shutdown. */
+	public static final File CHECKPOINT_FILE = new File( Consts.FOLDER_USER_CONTENT, "pending-uploads.txt" );
+	
+	/** Execution mode where each stage has its own worker threads.                       */
+	public static final String MODE_STAGES   = "stages";
+	/** Execution mode where each replay is an upload task run by a pool of platform threads. */
+	public static final String MODE_PLATFORM = "platform";
+	/** Execution mode where each replay is an upload task run by its own virtual thread.     */
+	public static final String MODE_VIRTUAL  = "virtual";
+	
+	/** File to checkpoint the unfinished uploads to on shutdown. */
+	private final File checkpointFile;
+	
+	/** Time to let SC2 finish saving a replay, in milliseconds. */
+	private final long settleTimeMs;
+	/** Aging time of the priority queues, in milliseconds.      */
+	private final long agingTimeMs;
+	
+	/** The settle stage.  */
+	private final Stage settleStage;
+	/** The prepare stage. */
+	private final Stage prepareStage;
+	/** The send stage.    */
+	private final Stage sendStage;
+	
+	/** The effective execution mode.                                                    */
+	private final String          executionMode;
+	/** Executor of the upload tasks; <code>null</code> in the {@link #MODE_STAGES} mode. */
+	private final ExecutorService taskExecutor;
+	/** Permits of the upload tasks of the backlog in the {@link #MODE_PLATFORM} mode; <code>null</code> in the other modes. */
+	private final Semaphore       backlogTaskPermits;
+	
+	/** Status counters of the pipeline. */
+	private final UploadStatus status = new UploadStatus();
+	
+	/** Budget of the memory held by the payloads. */
+	private final MemoryBudget budget = MemoryBudget.get();
+	
+	/** Spool of the replays while the server is unreachable; <code>null</code> if spooling is disabled. */
+	private final OfflineSpool spool;
+	/** Monitor telling if a game is being played. */
+	private final GameMonitor  gameMonitor;
+	
+	/** History to record the finished uploads in; <code>null</code> if not recorded. */
+	private volatile UploadHistory history;
+	
+	/** Jobs being in the pipeline, mapped from the absolute paths of their replays. */
+	private final Map< String, UploadJob > inFlightJobMap = new ConcurrentHashMap< String, UploadJob >();
+	
+	/** Last modification time of recently prepared replays, mapped from their absolute paths. */
+	@SuppressWarnings( "serial" )
+	private final Map< String, Long > handledModifiedMap = new LinkedHashMap< String, Long >() {
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< String, Long > eldest ) {
+			return size() > HANDLED_MEMORY;
+		}
+	};
+	
+	/** Enqueued jobs waiting to be fed to the pipeline. */
+	private final PriorityJobQueue backlog;
+	
+	/** Thread feeding the backlog to the pipeline. */
+	private final Thread backlogFeeder = new Thread( "Upload pipeline - backlog" ) {
+		@Override
+		public void run() {
+			feedBacklog();
+		}
+	};
+	
+	/** Lock guarding the paused state; not a monitor, which would pin a virtual thread while paused. */
+	private final ReentrantLock pauseLock = new ReentrantLock();
+	/** Condition signalled when sending is resumed.             */
+	private final Condition     resumed   = pauseLock.newCondition();
+	
+	/** Tells if shutdown has been requested.                    */
+	private volatile boolean shuttingDown;
+	/** Tells if the in-flight jobs are being aborted on shutdown. */
+	private volatile boolean aborting;
+	/** Tells if sending is paused.                              */
+	private volatile boolean paused;
+	
+	/**
+	 * Creates a new UploadPipeline configured from the settings, which looks for running games in the process table of the system.
+	 */
+	public UploadPipeline() {
+		this( ProcessTable.getSystem() );
+	}
+	
+	/**
+	 * Creates a new UploadPipeline configured from the settings, which keeps its state in the {@link Consts#FOLDER_USER_CONTENT}.
+	 * @param processTable process table to look for running games in
+	 */
+	public UploadPipeline( final ProcessTable processTable ) {
+		this( processTable, Consts.FOLDER_USER_CONTENT );
+	}
+	
+	/**
+	 * Creates a new UploadPipeline configured from the settings.
+	 * @param processTable process table to look for running games in
+	 * @param stateFolder  folder to keep the checkpoint and the offline spool in
+	 */
+	public UploadPipeline( final ProcessTable processTable, final File stateFolder ) {
+		checkpointFile = new File( stateFolder, CHECKPOINT_FILE.getName() );
+		settleTimeMs   = Settings.getInt( Settings.KEY_PIPELINE_SETTLE_TIME );
+		agingTimeMs    = Settings.getInt( Settings.KEY_PIPELINE_AGING_TIME );
+		backlog        = new PriorityJobQueue( Integer.MAX_VALUE, agingTimeMs );
+		spool          = Settings.getBoolean( Settings.KEY_OFFLINE_SPOOL ) ? new OfflineSpool( this, new File( stateFolder, OfflineSpool.SPOOL_FILE.getName() ) ) : null;
+		gameMonitor    = new GameMonitor( processTable );
+		
+		final int queueCapacity = Math.max( 1, Settings.getInt( Settings.KEY_PIPELINE_QUEUE_CAPACITY ) );
+		
+		// Settling only sleeps, it does not limit the number of upload tasks in it
+		settleStage = new Stage( "settle", queueCapacity, 1, Integer.MAX_VALUE, null ) {
+			@Override
+			protected boolean process( final UploadJob job ) throws InterruptedException {
+				return settle( job );
+			}
+		};
+		final int prepareThreads = Settings.getInt( Settings.KEY_PIPELINE_PREPARE_THREADS );
+		prepareStage = new Stage( "prepare", queueCapacity, prepareThreads, prepareThreads, settleStage ) {
+			@Override
+			protected boolean process( final UploadJob job ) throws InterruptedException {
+				return prepare( job );
+			}
+		};
+		final int sendThreads = Settings.getInt( Settings.KEY_PIPELINE_SEND_THREADS );
+		sendStage = new Stage( "send", queueCapacity, sendThreads, sendThreads, prepareStage ) {
+			@Override
+			protected boolean process( final UploadJob job ) throws InterruptedException {
+				send( job );
+				return false;
+			}
+		};
+		
+		final String mode = Settings.get( Settings.KEY_PIPELINE_EXECUTION_MODE );
+		if ( MODE_VIRTUAL.equals( mode ) && VirtualThreads.isSupported() ) {
+			executionMode      = MODE_VIRTUAL;
+			taskExecutor       = VirtualThreads.newVirtualThreadExecutor();
+			backlogTaskPermits = null;
+		}
+		else if ( MODE_VIRTUAL.equals( mode ) || MODE_PLATFORM.equals( mode ) ) {
+			if ( MODE_VIRTUAL.equals( mode ) )
+				System.out.println( "Virtual threads are not available, running uploads in platform threads." );
+			final int taskThreads = Math.max( 1, Settings.getInt( Settings.KEY_PIPELINE_TASK_THREADS ) );
+			executionMode      = MODE_PLATFORM;
+			taskExecutor       = VirtualThreads.newPlatformThreadExecutor( taskThreads );
+			// Tasks waiting for a thread are not ordered by priority, so keep a thread free for the live replays
+			backlogTaskPermits = new Semaphore( Math.max( 1, taskThreads - 1 ) );
+		}
+		else {
+			executionMode      = MODE_STAGES;
+			taskExecutor       = null;
+			backlogTaskPermits = null;
+		}
+		
+		for ( final Stage stage : getStages() ) {
+			Metrics.registerGauge( "queue_depth"  , "Number of replays waiting in the input queue of a pipeline stage.", "stage", stage.getName(), new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return stage.getQueueDepth();
+				}
+			} );
+			Metrics.registerGauge( "stage_active" , "Number of replays being processed by a pipeline stage.", "stage", stage.getName(), new Metrics.Gauge() {
+				@Override
+				public long getValue() {
+					return stage.getActiveCount();
+				}
+			} );
+		}
+		Metrics.registerGauge( "in_flight", "Number of replays in the upload pipeline.", null, null, new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return inFlightJobMap.size();
+			}
+		} );
+		Metrics.registerGauge( "backlog", "Number of enqueued replays waiting to enter the upload pipeline.", null, null, new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return backlog.size();
+			}
+		} );
+		Metrics.registerGauge( "paused", "1 if sending is paused, 0 otherwise.", null, null, new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return paused ? 1 : 0;
+			}
+		} );
+	}
+	
+	/**
+	 * Sets the history to record the finished uploads in.
+	 * @param history history to record the finished uploads in; <code>null</code> to not record them
+	 */
+	public void setHistory( final UploadHistory history ) {
+		this.history = history;
+	}
+	
+	/**
+	 * Returns the effective execution mode.
+	 * @return the effective execution mode: {@link #MODE_STAGES}, {@link #MODE_PLATFORM} or {@link #MODE_VIRTUAL}
+	 */
+	public String getExecutionMode() {
+		return executionMode;
+	}
+	
+	/**
+	 * Starts the worker threads of all stages (in the {@link #MODE_STAGES} mode), the backlog feeder, the offline spool
+	 * and the game monitor.
+	 */
+	public void start() {
+		gameMonitor.start();
+		
+		if ( taskExecutor == null ) {
+			settleStage .start();
+			prepareStage.start();
+			sendStage   .start();
+		}
+		
+		backlogFeeder.setDaemon( true );
+		backlogFeeder.start();
+		
+		if ( spool != null )
+			spool.start();
+	}
+	
+	/**
+	 * Submits a detected replay to the pipeline.
+	 * 
+	 * <p>Blocks if the settle queue is full (in the {@link #MODE_STAGES} mode).</p>
+	 * 
+	 * @param file replay file to be uploaded
+	 * @return true if the replay was accepted; false if it is already in the pipeline, has already been handled or the pipeline is shutting down
+	 * @throws InterruptedException if interrupted while waiting for space in the settle queue
+	 */
+	public boolean submit( final File file ) throws InterruptedException {
+		if ( shuttingDown )
+			return false;
+		
+		final String path = file.getAbsolutePath();
+		synchronized ( handledModifiedMap ) {
+			final Long handledModified = handledModifiedMap.get( path );
+			if ( handledModified != null && handledModified == file.lastModified() )
+				return false;
+		}
+		final UploadJob job = new UploadJob( file );
+		if ( inFlightJobMap.putIfAbsent( path, job ) != null )
+			return false;
+		
+		// A new replay means a game has just ended
+		gameMonitor.checkNow();
+		
+		System.out.println( "New replay detected, uploading: " + path );
+		Metrics.DETECTION_DELAY.record( ( System.currentTimeMillis() - job.getLastModified() ) * 1000000 );
+		job.getTrace().addDetect( job.getLastModified() );
+		dispatch( job, true, null );
+		
+		return true;
+	}
+	
+	/**
+	 * Enqueues replays to be uploaded.
+	 * 
+	 * <p>Never blocks: the replays are added to the backlog. Replays already in the pipeline or already handled
+	 * (with the same modification time) are skipped.</p>
+	 * 
+	 * @param files replay files to be uploaded
+	 * @return the number of replays accepted
+	 */
+	public int enqueue( final List< File > files ) {
+		int accepted = 0;
+		for ( final File file : files ) {
+			if ( shuttingDown )
+				break;
+			
+			final String path = file.getAbsolutePath();
+			synchronized ( handledModifiedMap ) {
+				final Long handledModified = handledModifiedMap.get( path );
+				if ( handledModified != null && handledModified == file.lastModified() )
+					continue;
+			}
+			final UploadJob job = new UploadJob( file, UploadJob.Priority.BACKFILL );
+			if ( inFlightJobMap.putIfAbsent( path, job ) != null )
+				continue;
+			
+			backlog.offer( job );
+			accepted++;
+		}
+		
+		if ( accepted > 0 )
+			System.out.println( "Enqueued " + accepted + " replay(s) for upload." );
+		
+		return accepted;
+	}
+	
+	/**
+	 * Enqueues a replay drained from the offline spool. It is added to the backlog as a retry.
+	 * @param file replay file to be uploaded
+	 */
+	void enqueueSpooled( final File file ) {
+		final UploadJob job = new UploadJob( file, UploadJob.Priority.RETRY );
+		if ( inFlightJobMap.putIfAbsent( file.getAbsolutePath(), job ) == null )
+			backlog.offer( job );
+	}
+	
+	/**
+	 * Feeds the backlog to the pipeline until shutdown.
+	 * 
+	 * <p>Replays modified recently go through the settle stage, others skip it. A replay is only fed when its payload
+	 * fits into the memory budget, and in the {@link #MODE_PLATFORM} mode when less than all but one of the threads run
+	 * backlog tasks. Jobs not fed on shutdown remain in the in-flight map, so they get checkpointed.</p>
+	 */
+	private void feedBacklog() {
+		try {
+			while ( !shuttingDown ) {
+				final UploadJob job = backlog.poll( POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+				if ( job == null )
+					continue;
+				
+				final long bytes = MemoryBudget.estimatePayload( job.getLength() );
+				while ( !budget.awaitAvailable( bytes, POLL_TIMEOUT_MS ) )
+					if ( shuttingDown )
+						return;
+				if ( backlogTaskPermits != null )
+					while ( !backlogTaskPermits.tryAcquire( POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS ) )
+						if ( shuttingDown )
+							return;
+				
+				dispatch( job, System.currentTimeMillis() - job.getLastModified() < settleTimeMs, backlogTaskPermits );
+			}
+		} catch ( final InterruptedException ie ) {
+			// Shutting down, the rest remains checkpointed
+		}
+	}
+	
+	/**
+	 * Hands a job over to the pipeline: puts it into the input queue of its first stage, or starts its upload task.
+	 * 
+	 * <p>If the upload task cannot be started because the pipeline is shutting down, the job remains in the in-flight map
+	 * and gets checkpointed.</p>
+	 * 
+	 * @param job         job to hand over
+	 * @param settle      tells if the job has to go through the settle stage
+	 * @param taskPermits permits to release when the upload task ends, one is acquired for the job; <code>null</code> if none
+	 * @throws InterruptedException if interrupted while waiting for space in the input queue
+	 */
+	private void dispatch( final UploadJob job, final boolean settle, final Semaphore taskPermits ) throws InterruptedException {
+		if ( taskExecutor == null ) {
+			( settle ? settleStage : prepareStage ).put( job );
+			return;
+		}
+		
+		try {
+			taskExecutor.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runTask( job, settle );
+					} finally {
+						if ( taskPermits != null )
+							taskPermits.release();
+					}
+				}
+			} );
+		} catch ( final RejectedExecutionException ree ) {
+			// Shutting down
+			if ( taskPermits != null )
+				taskPermits.release();
+		}
+	}
+	
+	/**
+	 * Upload task of a job: runs the stages of the pipeline one after the other.
+	 * 
+	 * <p>If the task is interrupted (aborted on shutdown), the job remains in the in-flight map and gets checkpointed.</p>
+	 * 
+	 * @param job    job to upload
+	 * @param settle tells if the job has to go through the settle stage
+	 */
+	private void runTask( final UploadJob job, final boolean settle ) {
+		try {
+			if ( settle && !settleStage.runTask( job ) )
+				return;
+			if ( prepareStage.runTask( job ) )
+				sendStage.runTask( job );
+		} catch ( final InterruptedException ie ) {
+			// Aborted
+		} catch ( final Exception e ) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Returns the number of enqueued replays waiting to enter the pipeline.
+	 * @return the number of enqueued replays waiting to enter the pipeline
+	 */
+	public int getBacklogSize() {
+		return backlog.size();
+	}
+	
+	/**
+	 * Pauses sending. Replays are still accepted and prepared, but they are not sent until {@link #resume()} is called.
+	 */
+	public void pause() {
+		if ( !paused )
+			System.out.println( "Uploading paused." );
+		paused = true;
+	}
+	
+	/**
+	 * Resumes sending.
+	 */
+	public void resume() {
+		pauseLock.lock();
+		try {
+			if ( paused )
+				System.out.println( "Uploading resumed." );
+			paused = false;
+			resumed.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+	
+	/**
+	 * Tells if sending is paused.
+	 * @return true if sending is paused; false otherwise
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+	
+	/**
+	 * Resumes the uploads checkpointed on the last shutdown.
+	 * 
+	 * <p>The checkpointed replays are added to the backlog as retries, they skip the settle stage.</p>
+	 */
+	public void resumeCheckpoint() {
+		if ( !checkpointFile.exists() )
+			return;
+		
+		final List< UploadJob > jobList = new ArrayList< UploadJob >();
+		BufferedReader input = null;
+		try {
+			input = new BufferedReader( new InputStreamReader( new FileInputStream( checkpointFile ), "UTF-8" ) );
+			String line;
+			while ( ( line = input.readLine() ) != null ) {
+				final File file = new File( line );
+				if ( line.length() > 0 && file.isFile() ) {
+					final UploadJob job = new UploadJob( file, UploadJob.Priority.RETRY );
+					if ( inFlightJobMap.putIfAbsent( file.getAbsolutePath(), job ) == null )
+						jobList.add( job );
+				}
+			}
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to read the upload checkpoint!" );
+			ie.printStackTrace();
+		} finally {
+			if ( input != null )
+				try { input.close(); } catch ( final IOException ie ) {}
+		}
+		
+		// The jobs are in the in-flight map now, they get checkpointed again if we shut down before they finish
+		checkpointFile.delete();
+		if ( jobList.isEmpty() )
+			return;
+		
+		System.out.println( "Resuming " + jobList.size() + " checkpointed upload(s)." );
+		for ( final UploadJob job : jobList )
+			backlog.offer( job );
+	}
+	
+	/**
+	 * Settle stage: waits until SC2 finishes saving the replay.
+	 * @param job job to settle
+	 * @return true if the job is to be prepared; false if it is finished
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private boolean settle( final UploadJob job ) throws InterruptedException {
+		final long start  = System.nanoTime();
+		final long waitMs = settleTimeMs - ( System.nanoTime() - job.getDetectedNanos() ) / 1000000;
+		if ( waitMs > 0 )
+			Thread.sleep( waitMs );
+		
+		// If the file is still being written, wait some more
+		for ( int round = 0; job.refreshFileStats() && round < MAX_SETTLE_ROUNDS; round++ )
+			Thread.sleep( settleTimeMs );
+		
+		job.getTrace().add( "settle", start );
+		
+		if ( !job.getFile().isFile() ) {
+			System.out.println( "Replay disappeared before upload: " + job );
+			Metrics.FAILURES.inc( "disappeared" );
+			finish( job, null );
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Prepare stage: hashes the replay, and encodes it unless the server already has it.
+	 * @param job job to prepare
+	 * @return true if the job is to be sent; false if it is finished
+	 * @throws InterruptedException if interrupted while waiting for a game to end or for the memory budget
+	 */
+	private boolean prepare( final UploadJob job ) throws InterruptedException {
+		final long gameStart = System.nanoTime();
+		if ( gameMonitor.awaitNoGame() )
+			job.getTrace().add( "game", gameStart );
+		
+		final long start = System.nanoTime();
+		Metrics.SCHEDULE_DELAY.record( job.getPriority().label, start - job.getDetectedNanos() );
+		
+		if ( spool != null && spool.isOffline() ) {
+			spoolJob( job );
+			return false;
+		}
+		
+		final long bytes = MemoryBudget.estimatePayload( job.getLength() );
+		budget.reserve( bytes );
+		job.setReservedBytes( bytes );
+		if ( System.nanoTime() - start > 1000000 )
+			job.getTrace().add( "budget", start );
+		
+		// Any failure (a RuntimeException, an OutOfMemoryError of the payload) must release the reservation and the in-flight entry
+		boolean prepared = false;
+		boolean failed   = true;
+		try {
+			prepared = ReplayUploader.prepare( job );
+			failed   = false;
+		} finally {
+			if ( failed )
+				finish( job, null );
+		}
+		if ( !prepared ) {
+			finish( job, null );
+			return false;
+		}
+		
+		synchronized ( handledModifiedMap ) {
+			handledModifiedMap.put( job.getFile().getAbsolutePath(), job.getLastModified() );
+		}
+		
+		if ( job.getKnownReplayUrl() != null ) {
+			System.out.println( "Replay is already on the server, replay URL: " + job.getKnownReplayUrl() );
+			finish( job, job.getKnownReplayUrl() );
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Send stage: sends the prepared replay to the server.
+	 * @param job job to send
+	 * @throws InterruptedException if interrupted while waiting for a game to end or while sending is paused
+	 */
+	private void send( final UploadJob job ) throws InterruptedException {
+		final long gameStart = System.nanoTime();
+		if ( gameMonitor.awaitNoGame() )
+			job.getTrace().add( "game", gameStart );
+		
+		pauseLock.lockInterruptibly();
+		try {
+			while ( paused )
+				resumed.await();
+		} finally {
+			pauseLock.unlock();
+		}
+		
+		if ( spool != null && spool.isOffline() ) {
+			spoolJob( job );
+			return;
+		}
+		
+		String  replayUrl = null;
+		boolean failed    = true;
+		try {
+			replayUrl = ReplayUploader.send( job );
+			failed    = false;
+		} finally {
+			if ( failed )
+				finish( job, null );
+		}
+		
+		// Release the payload as soon as possible
+		releasePayload( job );
+		
+		if ( replayUrl == null && spool != null && ReplayUploader.OUTCOME_CONNECT.equals( job.getLastOutcome() ) && !job.isCancelled() ) {
+			spool.goOffline();
+			spoolJob( job );
+			return;
+		}
+		
+		if ( replayUrl != null )
+			System.out.println( "Successful upload, replay URL: " + replayUrl );
+		
+		finish( job, replayUrl );
+	}
+	
+	/**
+	 * Finishes a job: removes it from the pipeline, updates the counters, records it in the history and journals its trace.
+	 * @param job       job to finish
+	 * @param replayUrl replay URL reported by the server; <code>null</code> if the upload failed
+	 */
+	private void finish( final UploadJob job, final String replayUrl ) {
+		final boolean success = replayUrl != null;
+		
+		releasePayload( job );
+		
+		// Aborted jobs remain in the in-flight map to be checkpointed
+		if ( aborting && !success )
+			return;
+		
+		inFlightJobMap.remove( job.getFile().getAbsolutePath() );
+		Metrics.UPLOADS.inc( success ? "success" : "failure" );
+		Metrics.UPLOAD_LATENCY.record( job.getPriority().label, System.nanoTime() - job.getDetectedNanos() );
+		if ( success )
+			status.recordUploaded( job.getLength() );
+		else
+			status.recordFailed();
+		
+		final UploadHistory history = this.history;
+		if ( history != null )
+			history.append( new UploadHistory.Entry( System.currentTimeMillis(), success ? UploadHistory.OUTCOME_UPLOADED : UploadHistory.OUTCOME_FAILED,
+				job.getLength(), job.getMd5(), job.getFile().getAbsolutePath(), replayUrl ) );
+		
+		final UploadTrace trace = job.getTrace();
+		trace.add( UploadTrace.STAGE_TOTAL, 0, trace.getOriginNanos(), System.nanoTime(), success ? "success" : "failure" );
+		if ( Settings.getBoolean( Settings.KEY_TRACE_JOURNAL ) )
+			UploadJournal.append( job.getFile().getName(), trace );
+	}
+	
+	/**
+	 * Moves a job to the offline spool: it leaves the pipeline without being finished, and is retried when the server is reachable again.
+	 * @param job job to spool
+	 */
+	private void spoolJob( final UploadJob job ) {
+		releasePayload( job );
+		
+		final String path = job.getFile().getAbsolutePath();
+		synchronized ( handledModifiedMap ) {
+			handledModifiedMap.put( path, job.getLastModified() );
+		}
+		spool.add( job.getFile() );
+		inFlightJobMap.remove( path );
+		
+		System.out.println( "Spooled replay until the upload server is reachable: " + path );
+	}
+	
+	/**
+	 * Drops the prepared payload of a job, and releases its reservation from the memory budget.
+	 * @param job job whose payload to release
+	 */
+	private void releasePayload( final UploadJob job ) {
+		job.setParamsMap( null );
+		
+		final long bytes = job.getReservedBytes();
+		if ( bytes > 0 ) {
+			job.setReservedBytes( 0 );
+			budget.release( bytes );
+		}
+	}
+	
+	/**
+	 * Returns the stages of the pipeline in processing order.
+	 * @return the stages of the pipeline in processing order
+	 */
+	public Stage[] getStages() {
+		return new Stage[] { settleStage, prepareStage, sendStage };
+	}
+	
+	/**
+	 * Returns the status counters of the pipeline.
+	 * @return the status counters of the pipeline
+	 */
+	public UploadStatus getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Returns the offline spool.
+	 * @return the offline spool; <code>null</code> if spooling is disabled
+	 */
+	public OfflineSpool getSpool() {
+		return spool;
+	}
+	
+	/**
+	 * Returns the game monitor.
+	 * @return the game monitor
+	 */
+	public GameMonitor getGameMonitor() {
+		return gameMonitor;
+	}
+	
+	/**
+	 * Returns the number of replays being in the pipeline.
+	 * @return the number of replays being in the pipeline
+	 */
+	public int getInFlightCount() {
+		return inFlightJobMap.size();
+	}
+	
+	/**
+	 * Shuts down the pipeline using the drain timeout specified by the settings.
+	 * @return true if all in-flight uploads finished before the drain deadline; false otherwise
+	 * @see #shutdown(long)
+	 */
+	public boolean shutdown() {
+		return shutdown( Settings.getInt( Settings.KEY_SHUTDOWN_DRAIN_TIMEOUT ) );
+	}
+	
+	/**
+	 * Shuts down the pipeline.
+	 * 
+	 * <p>New replays are not accepted anymore, and the replays already in the pipeline are given time to finish
+	 * until the drain deadline. Uploads still in progress after that are aborted, and all unfinished replays
+	 * are checkpointed to the {@link #CHECKPOINT_FILE}.
+	 * Returns at most about {@link #ABORT_TIMEOUT_MS} after the drain deadline.</p>
+	 * 
+	 * @param drainTimeoutMs time to let the in-flight uploads finish, in milliseconds
+	 * @return true if all in-flight uploads finished before the drain deadline; false otherwise
+	 */
+	public boolean shutdown( final long drainTimeoutMs ) {
+		shuttingDown = true;
+		if ( spool != null )
+			spool.shutdown();
+		
+		// Nothing is sent while paused or deferred, only give the idle workers time to notice the shutdown
+		final boolean deferring     = gameMonitor.isDeferring();
+		gameMonitor.shutdown();
+		final long    drainDeadline = System.nanoTime() + ( paused || deferring ? Math.min( drainTimeoutMs, 2 * POLL_TIMEOUT_MS ) : drainTimeoutMs ) * 1000000;
+		for ( final Stage stage : getStages() )
+			stage.join( drainDeadline );
+		if ( taskExecutor != null ) {
+			taskExecutor.shutdown();
+			awaitTasks( drainDeadline );
+		}
+		
+		final boolean drained = sendStage.isFinished() && ( taskExecutor == null || taskExecutor.isTerminated() );
+		if ( !drained ) {
+			if ( paused )
+				System.out.println( "Uploading is paused, aborting " + inFlightJobMap.size() + " upload(s)." );
+			else if ( deferring )
+				System.out.println( "A game is being played, aborting " + inFlightJobMap.size() + " deferred upload(s)." );
+			else
+				System.out.println( "Uploads did not finish in " + drainTimeoutMs + " ms, aborting " + inFlightJobMap.size() + " upload(s)." );
+			aborting = true;
+			
+			for ( final UploadJob job : inFlightJobMap.values() )
+				job.cancel();
+			backlogFeeder.interrupt();
+			for ( final Stage stage : getStages() )
+				stage.interrupt();
+			if ( taskExecutor != null )
+				taskExecutor.shutdownNow();
+			
+			final long abortDeadline = System.nanoTime() + ABORT_TIMEOUT_MS * 1000000;
+			for ( final Stage stage : getStages() )
+				stage.join( abortDeadline );
+			if ( taskExecutor != null )
+				awaitTasks( abortDeadline );
+		}
+		
+		checkpoint();
+		
+		return drained;
+	}
+	
+	/**
+	 * Waits for the upload tasks to end, but not after the specified deadline.
+	 * @param deadlineNanos nano time of the deadline
+	 */
+	private void awaitTasks( final long deadlineNanos ) {
+		try {
+			taskExecutor.awaitTermination( Math.max( 0, deadlineNanos - System.nanoTime() ), TimeUnit.NANOSECONDS );
+		} catch ( final InterruptedException ie ) {
+			ie.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Saves the paths of the unfinished replays to the {@link #CHECKPOINT_FILE}, oldest first.
+	 */
+	private void checkpoint() {
+		final List< UploadJob > jobList = new ArrayList< UploadJob >( inFlightJobMap.values() );
+		if ( jobList.isEmpty() )
+			return;
+		
+		Collections.sort( jobList, new Comparator< UploadJob >() {
+			@Override
+			public int compare( final UploadJob job1, final UploadJob job2 ) {
+				return Long.signum( job1.getDetectedNanos() - job2.getDetectedNanos() );
+			}
+		} );
+		
+		// Write to a temp file first so a crash cannot leave a truncated checkpoint behind
+		final File tempFile = new File( checkpointFile.getPath() + ".tmp" );
+		PrintWriter output = null;
+		try {
+			checkpointFile.getParentFile().mkdirs();
+			output = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tempFile ), "UTF-8" ) );
+			for ( final UploadJob job : jobList )
+				output.println( job.getFile().getAbsolutePath() );
+			output.close();
+			output = null;
+			
+			checkpointFile.delete();
+			if ( !tempFile.renameTo( checkpointFile ) )
+				throw new IOException( "Failed to rename " + tempFile + " to " + checkpointFile );
+			
+			System.out.println( "Checkpointed " + jobList.size() + " unfinished upload(s)." );
+		} catch ( final IOException ie ) {
+			System.out.println( "Failed to checkpoint unfinished uploads!" );
+			ie.printStackTrace();
+		} finally {
+			if ( output != null )
+				output.close();
+		}
+	}
+	
+	/**
+	 * A stage of the pipeline with its input queue and worker threads.
+	 * 
+	 * <p>In the task modes the worker threads are not started, the upload tasks run the stage themselves
+	 * (see {@link #runTask(UploadJob)}). Tasks over the limit of the stage wait in a priority queue,
+	 * and are let in one by one, the most urgent first.</p>
+	 */
+	public abstract class Stage {
+		
+		/** Name of the stage.                             */
+		private final String                      name;
+		/** Input queue of the stage.                      */
+		private final PriorityJobQueue            inputQueue;
+		/** Worker threads of the stage.                   */
+		private final Thread[]                    workers;
+		/** The stage feeding this stage.                  */
+		private final Stage                       upstream;
+		/** The stage fed by this stage.                   */
+		private Stage                             downstream;
+		/** Lock guarding the task permits.                */
+		private final ReentrantLock               taskLock         = new ReentrantLock();
+		/** Number of free task permits.                   */
+		private int                               freeTaskPermits;
+		/** Jobs of the upload tasks waiting for a permit. */
+		private final PriorityJobQueue            waitingTaskQueue;
+		/** Conditions of the waiting upload tasks, signalled when they are granted a permit. */
+		private final Map< UploadJob, Condition > taskConditionMap = new HashMap< UploadJob, Condition >();
+		/** Number of jobs being processed.                */
+		private final AtomicInteger               activeCount      = new AtomicInteger();
+		/** Highest observed input queue depth.            */
+		private final AtomicInteger               peakQueueDepth   = new AtomicInteger();
+		
+		/**
+		 * Creates a new Stage.
+		 * @param name          name of the stage
+		 * @param queueCapacity capacity of the input queue
+		 * @param threads       number of worker threads
+		 * @param taskLimit     max number of upload tasks running the stage at once in the task modes
+		 * @param upstream      the stage feeding this stage, <code>null</code> if this is the first stage
+		 */
+		protected Stage( final String name, final int queueCapacity, final int threads, final int taskLimit, final Stage upstream ) {
+			this.name        = name;
+			this.inputQueue  = new PriorityJobQueue( queueCapacity, agingTimeMs );
+			this.workers     = new Thread[ Math.max( 1, threads ) ];
+			this.upstream    = upstream;
+			freeTaskPermits  = Math.max( 1, taskLimit );
+			waitingTaskQueue = new PriorityJobQueue( Integer.MAX_VALUE, agingTimeMs );
+			if ( upstream != null )
+				upstream.downstream = this;
+			
+			for ( int i = 0; i < workers.length; i++ ) {
+				workers[ i ] = new Thread( "Upload pipeline - " + name + " #" + ( i + 1 ) ) {
+					@Override
+					public void run() {
+						work();
+					}
+				};
+				workers[ i ].setPriority( Thread.NORM_PRIORITY );
+			}
+		}
+		
+		/**
+		 * Processes a job of the stage.
+		 * @param job job to be processed
+		 * @return true if the job is to be passed to the next stage; false if it is finished
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		protected abstract boolean process( UploadJob job ) throws InterruptedException;
+		
+		/**
+		 * Puts a job into the input queue of the stage, waiting for space if necessary.
+		 * @param job job to be put
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private void put( final UploadJob job ) throws InterruptedException {
+			inputQueue.put( job );
+			updatePeakQueueDepth();
+		}
+		
+		/**
+		 * Updates the highest observed input queue depth with the current one.
+		 */
+		private void updatePeakQueueDepth() {
+			final int depth = getQueueDepth();
+			int peak;
+			while ( depth > ( peak = peakQueueDepth.get() ) && !peakQueueDepth.compareAndSet( peak, depth ) )
+				;
+		}
+		
+		/**
+		 * Runs the stage in an upload task: waits for a permit, then processes the job.
+		 * @param job job to be processed
+		 * @return true if the job is to be passed to the next stage; false if it is finished
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private boolean runTask( final UploadJob job ) throws InterruptedException {
+			acquireTaskPermit( job );
+			try {
+				job.getTrace().addQueueWait( name );
+				activeCount.incrementAndGet();
+				try {
+					return process( job );
+				} finally {
+					activeCount.decrementAndGet();
+				}
+			} finally {
+				releaseTaskPermit();
+			}
+		}
+		
+		/**
+		 * Acquires a task permit for a job, waits in the priority queue of the waiting tasks if there is none free.
+		 * @param job job of the upload task
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private void acquireTaskPermit( final UploadJob job ) throws InterruptedException {
+			taskLock.lock();
+			try {
+				if ( freeTaskPermits > 0 && waitingTaskQueue.isEmpty() ) {
+					freeTaskPermits--;
+					return;
+				}
+				
+				final Condition granted = taskLock.newCondition();
+				taskConditionMap.put( job, granted );
+				waitingTaskQueue.offer( job );
+				updatePeakQueueDepth();
+				try {
+					// The job is removed from the map when it is granted a permit
+					while ( taskConditionMap.containsKey( job ) )
+						granted.await();
+				} catch ( final InterruptedException ie ) {
+					if ( taskConditionMap.remove( job ) != null )
+						waitingTaskQueue.remove( job );
+					else
+						releaseTaskPermit(); // Granted meanwhile, pass it on
+					throw ie;
+				}
+			} finally {
+				taskLock.unlock();
+			}
+		}
+		
+		/**
+		 * Releases a task permit: hands it over to the most urgent waiting task if there is one.
+		 */
+		private void releaseTaskPermit() {
+			taskLock.lock();
+			try {
+				final UploadJob next = waitingTaskQueue.poll();
+				if ( next == null )
+					freeTaskPermits++;
+				else
+					taskConditionMap.remove( next ).signal();
+			} finally {
+				taskLock.unlock();
+			}
+		}
+		
+		/**
+		 * Worker loop: processes jobs until the pipeline shuts down and no more input can arrive.
+		 */
+		private void work() {
+			while ( true ) {
+				try {
+					final UploadJob job = inputQueue.poll( POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+					if ( job == null ) {
+						if ( shuttingDown && ( upstream == null || upstream.isFinished() ) && inputQueue.isEmpty() )
+							return;
+						continue;
+					}
+					
+					job.getTrace().addQueueWait( name );
+					activeCount.incrementAndGet();
+					final boolean passOn;
+					try {
+						passOn = process( job );
+					} finally {
+						activeCount.decrementAndGet();
+					}
+					if ( passOn && downstream != null )
+						downstream.put( job );
+				} catch ( final InterruptedException ie ) {
+					return;
+				} catch ( final Exception e ) {
+					// Do not stop the stage
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		/**
+		 * Starts the worker threads.
+		 */
+		private void start() {
+			for ( final Thread worker : workers )
+				worker.start();
+		}
+		
+		/**
+		 * Waits for the worker threads to end, but not after the specified deadline.
+		 * @param deadlineNanos nano time of the deadline
+		 */
+		private void join( final long deadlineNanos ) {
+			for ( final Thread worker : workers )
+				try {
+					final long remainingMs = ( deadlineNanos - System.nanoTime() ) / 1000000;
+					if ( remainingMs <= 0 )
+						return;
+					worker.join( remainingMs );
+				} catch ( final InterruptedException ie ) {
+					ie.printStackTrace();
+				}
+		}
+		
+		/**
+		 * Interrupts the worker threads.
+		 */
+		private void interrupt() {
+			for ( final Thread worker : workers )
+				worker.interrupt();
+		}
+		
+		/**
+		 * Tells if all worker threads of the stage have ended.
+		 * @return true if all worker threads of the stage have ended; false otherwise
+		 */
+		private boolean isFinished() {
+			for ( final Thread worker : workers )
+				if ( worker.isAlive() )
+					return false;
+			return true;
+		}
+		
+		/**
+		 * Returns the name of the stage.
+		 * @return the name of the stage
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Returns the number of worker threads.
+		 * @return the number of worker threads
+		 */
+		public int getThreadCount() {
+			return workers.length;
+		}
+		
+		/**
+		 * Returns the number of jobs waiting in the input queue (or for a permit in the task modes).
+		 * @return the number of jobs waiting in the input queue
+		 */
+		public int getQueueDepth() {
+			return inputQueue.size() + waitingTaskQueue.size();
+		}
+		
+		/**
+		 * Returns the highest observed input queue depth.
+		 * @return the highest observed input queue depth
+		 */
+		public int getPeakQueueDepth() {
+			return peakQueueDepth.get();
+		}
+		
+		/**
+		 * Returns the number of jobs being processed.
+		 * @return the number of jobs being processed
+		 */
+		public int getActiveCount() {
+			return activeCount.get();
+		}
+	
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload status counters of the {@link UploadPipeline}.
+ * 
+ * <p>Updated by the pipeline worker threads with atomic operations only. Views (like the {@link MainFrame})
+ * do not get notified, they sample the counters at their own pace.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class UploadStatus {
+	
+	/** Number of successful uploads.         */
+	private final AtomicLong uploadedCount = new AtomicLong();
+	/** Number of failed uploads.             */
+	private final AtomicLong failedCount   = new AtomicLong();
+	/** Size of the successfully uploaded replays in bytes. */
+	private final AtomicLong uploadedBytes = new AtomicLong();
+	
+	/**
+	 * Records a successful upload.
+	 * @param replayBytes size of the uploaded replay in bytes
+	 */
+	public void recordUploaded( final long replayBytes ) {
+		uploadedBytes.addAndGet( replayBytes );
+		uploadedCount.incrementAndGet();
+	}
+	
+	/**
+	 * Records a failed upload.
+	 */
+	public void recordFailed() {
+		failedCount.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the number of successful uploads.
+	 * @return the number of successful uploads
+	 */
+	public long getUploadedCount() {
+		return uploadedCount.get();
+	}
+	
+	/**
+	 * Returns the number of failed uploads.
+	 * @return the number of failed uploads
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+	
+	/**
+	 * Returns the size of the successfully uploaded replays.
+	 * @return the size of the successfully uploaded replays in bytes
+	 */
+	public long getUploadedBytes() {
+		return uploadedBytes.get();
+	}
+	
+}
@@ -0,0 +1,167 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing trace of one replay upload: the spans of the stages it went through, measured with the monotonic {@link System#nanoTime()} clock.
+ * 
+ * <p>Span start times are relative to the detection of the replay. The <code>detect</code> span (from saving to detection)
+ * is derived from the last modification time of the replay, so it has only millisecond precision.</p>
+ * 
+ * <p>Spans are added by the stages of the {@link UploadPipeline} one after the other, and written to the {@link UploadJournal} when the upload finishes.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class UploadTrace {
+	
+	/** Stage name of the time from saving the replay until its detection. */
+	public static final String STAGE_DETECT  = "detect";
+	/** Stage name of the hashing of the replay.                          */
+	public static final String STAGE_HASH    = "hash";
+	/** Stage name of asking the server if it has the replay.             */
+	public static final String STAGE_CHECK   = "check";
+	/** Stage name of the base64 encoding of the replay.                  */
+	public static final String STAGE_ENCODE  = "encode";
+	/** Stage name of connecting to the server.                           */
+	public static final String STAGE_CONNECT = "connect";
+	/** Stage name of sending the request body.                           */
+	public static final String STAGE_UPLOAD  = "upload";
+	/** Stage name of waiting for the server response.                    */
+	public static final String STAGE_SERVER  = "server";
+	/** Stage name of a whole upload attempt.                             */
+	public static final String STAGE_ATTEMPT = "attempt";
+	/** Stage name of waiting before retrying a failed upload attempt.    */
+	public static final String STAGE_BACKOFF = "backoff";
+	/** Stage name of the whole upload, from detection until finishing.   */
+	public static final String STAGE_TOTAL   = "total";
+	/** Suffix of the stage names of waiting in the input queue of a pipeline stage. */
+	public static final String QUEUE_SUFFIX  = ".queue";
+	
+	/**
+	 * A timed span of the trace.
+	 */
+	public static class Span {
+		
+		/** Name of the stage.                                      */
+		public final String stage;
+		/** Number of the upload attempt, <code>0</code> if not part of an attempt. */
+		public final int    attempt;
+		/** Start of the span relative to the detection, in nanoseconds. */
+		public final long   startNanos;
+		/** Duration of the span, in nanoseconds.                   */
+		public final long   durationNanos;
+		/** Optional outcome of the span, <code>null</code> if not applicable. */
+		public final String outcome;
+		
+		/**
+		 * Creates a new Span.
+		 * @param stage         name of the stage
+		 * @param attempt       number of the upload attempt, <code>0</code> if not part of an attempt
+		 * @param startNanos    start of the span relative to the detection, in nanoseconds
+		 * @param durationNanos duration of the span, in nanoseconds
+		 * @param outcome       optional outcome of the span
+		 */
+		public Span( final String stage, final int attempt, final long startNanos, final long durationNanos, final String outcome ) {
+			this.stage         = stage;
+			this.attempt       = attempt;
+			this.startNanos    = startNanos;
+			this.durationNanos = durationNanos;
+			this.outcome       = outcome;
+		}
+	
+	}
+	
+	/** Nano time of the detection of the replay.             */
+	private final long         originNanos;
+	/** Wall clock time of the detection of the replay.       */
+	private final long         originTime;
+	/** The spans of the trace.                              */
+	private final List< Span > spanList = new ArrayList< Span >();
+	/** Nano time of the end of the last added span.         */
+	private long               lastEndNanos;
+	
+	/**
+	 * Creates a new UploadTrace.
+	 * @param originNanos nano time of the detection of the replay
+	 */
+	public UploadTrace( final long originNanos ) {
+		this.originNanos = originNanos;
+		originTime       = System.currentTimeMillis() - ( System.nanoTime() - originNanos ) / 1000000;
+		lastEndNanos     = originNanos;
+	}
+	
+	/**
+	 * Adds the <code>detect</code> span: from the last modification of the replay until its detection.
+	 * @param lastModified last modification time of the replay
+	 */
+	public synchronized void addDetect( final long lastModified ) {
+		final long delayNanos = Math.max( 0, originTime - lastModified ) * 1000000;
+		spanList.add( new Span( STAGE_DETECT, 0, -delayNanos, delayNanos, null ) );
+	}
+	
+	/**
+	 * Adds a span ending now.
+	 * @param stage      name of the stage
+	 * @param startNanos nano time of the start of the span
+	 */
+	public void add( final String stage, final long startNanos ) {
+		add( stage, 0, startNanos, System.nanoTime(), null );
+	}
+	
+	/**
+	 * Adds a span of waiting in the input queue of a pipeline stage: from the end of the last span until now.
+	 * @param stage name of the pipeline stage
+	 */
+	public synchronized void addQueueWait( final String stage ) {
+		add( stage + QUEUE_SUFFIX, 0, lastEndNanos, System.nanoTime(), null );
+	}
+	
+	/**
+	 * Adds a span.
+	 * @param stage      name of the stage
+	 * @param attempt    number of the upload attempt, <code>0</code> if not part of an attempt
+	 * @param startNanos nano time of the start of the span
+	 * @param endNanos   nano time of the end of the span
+	 * @param outcome    optional outcome of the span
+	 */
+	public synchronized void add( final String stage, final int attempt, final long startNanos, final long endNanos, final String outcome ) {
+		spanList.add( new Span( stage, attempt, startNanos - originNanos, endNanos - startNanos, outcome ) );
+		if ( endNanos > lastEndNanos )
+			lastEndNanos = endNanos;
+	}
+	
+	/**
+	 * Returns the wall clock time of the detection of the replay.
+	 * @return the wall clock time of the detection of the replay
+	 */
+	public long getOriginTime() {
+		return originTime;
+	}
+	
+	/**
+	 * Returns the nano time of the detection of the replay.
+	 * @return the nano time of the detection of the replay
+	 */
+	public long getOriginNanos() {
+		return originNanos;
+	}
+	
+	/**
+	 * Returns a copy of the spans of the trace.
+	 * @return a copy of the spans of the trace
+	 */
+	public synchronized List< Span > getSpans() {
+		return new ArrayList< Span >( spanList );
+	}
+
+}
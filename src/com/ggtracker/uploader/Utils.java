@@ -16,12 +16,7 @@ import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
-import java.security.MessageDigest;
 
 import javax.swing.Box;
 import javax.swing.JComponent;
@@ -156,108 +151,13 @@ public class Utils {
 			( (JComponent) box.getComponent( i ) ).setAlignmentX( alignmentX );
 	}
 	
-	/**
-	 * Calculates the MD5 digest of a file.
-	 * @param file file whose MD5 digest to be calculated
-	 * @return the calculated MD5 digest of the file
-	 */
-	public static String calculateFileMd5( final File file ) {
-		FileInputStream input = null;
-		try {
-			final MessageDigest md = MessageDigest.getInstance( "MD5" );
-			
-			input = new FileInputStream( file );
-			final byte[] buffer = new byte[ 16*1024 ];
-			
-			int bytesRead;
-			while ( ( bytesRead = input.read( buffer ) ) > 0 )
-				md.update( buffer, 0, bytesRead );
-			
-			return convertToHexString( md.digest() );
-		}
-		catch ( final Exception e ) {
-			return "";
-		}
-		finally {
-			if ( input != null )
-				try { input.close(); } catch ( final IOException ie ) {}
-		}
-	}
-	
-	/** Digits used in the hexadecimal representation. */
-	public static final char[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
-	
 	/**
 	 * Converts the specified data to hex string.
 	 * @param data data to be converted
 	 * @return the specified data converted to hex string
 	 */
 	public static String convertToHexString( final byte[] data ) {
-		final StringBuilder hexBuilder = new StringBuilder( data.length << 1 );
-		
-		for ( final byte b : data )
-			hexBuilder.append( HEX_DIGITS[ ( b & 0xff ) >> 4 ] ).append( HEX_DIGITS[ b & 0x0f ] );
-		
-		return hexBuilder.toString();
-	}
-	
-	/** Symbols used in the base64 format. */
-	private static char[] BASE64_SYMBOLS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
-	/** Base64 padding character.          */
-	private static char   BASE64_PADDING = '=';
-	
-	/**
-	 * Returns the base64 encoded form of the specified file.
-	 * @param file file to be encoded
-	 * @return the base64 encoded form of the specified file; or <code>null</code> if some error occurs
-	 */
-	public static String encodeFileBase64( final File file ) {
-		if ( !file.exists() )
-			return null;
-		
-		// 3 bytes results in 4: charCount = RoundUp( size / 3 ) * 4
-		int bytesLeft = (int) file.length();
-		final char[] encoded = new char[ ( (bytesLeft+2) / 3 ) * 4 ];
-		
-		InputStream input = null;
-		int charPos = 0;
-		try {
-			input = new FileInputStream( file );
-			while ( bytesLeft > 0 ) {
-				final int byte1 = input.read();
-				final int byte2 = bytesLeft > 1 ? input.read() : 0;
-				final int byte3 = bytesLeft > 2 ? input.read() : 0;
-				
-				encoded[ charPos++ ] = BASE64_SYMBOLS[ byte1 >> 2 ];
-				encoded[ charPos++ ] = BASE64_SYMBOLS[ ( byte1 & 0x03 ) << 4 | ( byte2 & 0xf0 ) >> 4 ];
-				
-				if ( bytesLeft > 1 ) {
-					encoded[ charPos++ ] = BASE64_SYMBOLS[ ( byte2 & 0x0f ) << 2 | ( byte3 & 0xc0 ) >> 6 ];
-					
-					if ( bytesLeft > 2 )
-						encoded[ charPos++ ] = BASE64_SYMBOLS[ byte3 &0x3f ];
-					else
-						// 1 padding byte
-						encoded[ charPos++ ] = BASE64_PADDING;
-				}
-				else {
-					// 2 padding bytes
-					encoded[ charPos++ ] = BASE64_PADDING;
-					encoded[ charPos++ ] = BASE64_PADDING;
-				}
-				
-				bytesLeft -= 3;
-			}
-		} catch ( final Exception e ) {
-			e.printStackTrace();
-			return null;
-		}
-		finally {
-			if ( input != null )
-				try { input.close(); } catch ( final IOException ie ) {}
-		}
-		
-		return new String( encoded );
+		return ReplaySource.toHexString( data );
 	}
 	
 }
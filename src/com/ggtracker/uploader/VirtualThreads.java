@@ -0,0 +1,99 @@
+/*
+ * ggtracker uploader project
+ * 
+ * Copyright (c) 2012 ggtracker.com
+ * 
+ * This software is the property of ggtracker, inc.
+ * Copying, modifying, distributing, refactoring without the authors permission
+ * is prohibited and protected by Law.
+ */
+package com.ggtracker.uploader;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors running the upload tasks.
+ * 
+ * <p>Virtual threads are only available from Java 21, and the uploader is built for older versions,
+ * so they are looked up with reflection. If they are not available, a fixed pool of platform threads is used instead.</p>
+ * 
+ * @author Andras Belicza
+ */
+public class VirtualThreads {
+	
+	/** Factory of the virtual threads; <code>null</code> if virtual threads are not available. */
+	private static final ThreadFactory VIRTUAL_THREAD_FACTORY;
+	/** <code>Executors.newThreadPerTaskExecutor(ThreadFactory)</code>.                          */
+	private static final Method        NEW_THREAD_PER_TASK_EXECUTOR;
+	static {
+		ThreadFactory factory = null;
+		Method        method  = null;
+		try {
+			// Thread.ofVirtual().name( "Upload task #", 1 ).factory()
+			final Class< ? > builderClass = Class.forName( "java.lang.Thread$Builder" );
+			Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+			builder = builderClass.getMethod( "name", String.class, long.class ).invoke( builder, "Upload task #", 1L );
+			factory = (ThreadFactory) builderClass.getMethod( "factory" ).invoke( builder );
+			method  = Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class );
+		} catch ( final Exception e ) {
+			// Older Java or virtual threads are a disabled preview feature
+			factory = null;
+			method  = null;
+		}
+		VIRTUAL_THREAD_FACTORY       = factory;
+		NEW_THREAD_PER_TASK_EXECUTOR = method;
+	}
+	
+	/**
+	 * No need to instantiate this class.
+	 */
+	private VirtualThreads() {
+	}
+	
+	/**
+	 * Tells if virtual threads are available.
+	 * @return true if virtual threads are available; false otherwise
+	 */
+	public static boolean isSupported() {
+		return NEW_THREAD_PER_TASK_EXECUTOR != null;
+	}
+	
+	/**
+	 * Creates an executor starting a new virtual thread for each task.
+	 * @return an executor starting a new virtual thread for each task; <code>null</code> if virtual threads are not available
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if ( !isSupported() )
+			return null;
+		
+		try {
+			return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke( null, VIRTUAL_THREAD_FACTORY );
+		} catch ( final Exception e ) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates an executor running the tasks in a fixed pool of platform threads.
+	 * @param threads number of threads in the pool
+	 * @return an executor running the tasks in a fixed pool of platform threads
+	 */
+	public static ExecutorService newPlatformThreadExecutor( final int threads ) {
+		return Executors.newFixedThreadPool( Math.max( 1, threads ), new ThreadFactory() {
+			/** Counter to number the threads. */
+			private final AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread( final Runnable task ) {
+				final Thread thread = new Thread( task, "Upload task #" + counter.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+	}
+
+}